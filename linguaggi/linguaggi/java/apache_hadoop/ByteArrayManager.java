@@ -17,10 +17,16 @@
  */
 package org.apache.hadoop.hdfs.util;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.hadoop.HadoopIllegalArgumentException;
 import org.apache.hadoop.classification.InterfaceAudience;
@@ -261,12 +267,29 @@ public abstract class ByteArrayManager {
      * length is reset to zero if there is no increment.
      */
     private final long countResetTimePeriodMs;
+    /**
+     * Whether to use the {@link StripedImpl} for many concurrent threads,
+     * which ignores the count threshold and reset time period.
+     */
+    private final boolean striped;
+    /**
+     * The maximum total bytes of free arrays kept for reuse, only used by
+     * the {@link StripedImpl}.
+     */
+    private final long maxRetainedBytes;
 
     public Conf(int countThreshold, int countLimit, long
         countResetTimePeriodMs) {
+      this(countThreshold, countLimit, countResetTimePeriodMs, false, 0);
+    }
+
+    public Conf(int countThreshold, int countLimit, long
+        countResetTimePeriodMs, boolean striped, long maxRetainedBytes) {
       this.countThreshold = countThreshold;
       this.countLimit = countLimit;
       this.countResetTimePeriodMs = countResetTimePeriodMs;
+      this.striped = striped;
+      this.maxRetainedBytes = maxRetainedBytes;
     }
   }
 
@@ -294,7 +317,10 @@ public abstract class ByteArrayManager {
   public abstract int release(byte[] array);
 
   public static ByteArrayManager newInstance(Conf conf) {
-    return conf == null? new NewByteArrayWithoutLimit(): new Impl(conf);
+    if (conf == null) {
+      return new NewByteArrayWithoutLimit();
+    }
+    return conf.striped? new StripedImpl(conf): new Impl(conf);
   }
 
   /**
@@ -419,4 +445,361 @@ public abstract class ByteArrayManager {
       return managers;
     }
   }
+
+  /**
+   * A byte array manager for many concurrent threads, e.g. the writers and
+   * streamers of hundreds of output streams, which would contend on the
+   * synchronized counters and managers of {@link Impl}.
+   *
+   * Arrays have the same power of two lengths as with {@link Impl}. Every
+   * thread keeps a small magazine of free arrays per length, so that most
+   * allocations and releases touch no shared state. A full magazine spills
+   * half of its arrays to one of several striped free lists, and an empty
+   * one is refilled from them, so that arrays released by one thread are
+   * reused by another. The free arrays in magazines and free lists together
+   * never exceed {@link Conf#maxRetainedBytes}; further released arrays are
+   * left to the garbage collector. The magazines of terminated threads are
+   * moved to the free lists when the next thread starts using the manager.
+   *
+   * As with {@link Impl}, the number of allocated arrays of each length is
+   * limited by {@link Conf#countLimit}, blocking allocation at the limit.
+   * Unlike {@link Impl}, arrays are recycled regardless of how often their
+   * length is allocated, since the state of a length is created up front.
+   */
+  static class StripedImpl extends ByteArrayManager {
+    /** The free bytes a magazine may hold. */
+    static final int MAGAZINE_BYTES = 1 << 20;
+    /** The maximum number of arrays in a magazine. */
+    static final int MAX_MAGAZINE_SIZE = 16;
+    private static final int MIN_SHIFT =
+        Integer.numberOfTrailingZeros(MIN_ARRAY_LENGTH);
+    /** Lengths from MIN_ARRAY_LENGTH to 2^30. */
+    private static final int NUM_CLASSES = 31 - MIN_SHIFT;
+
+    private final int countLimit;
+    private final long maxRetainedBytes;
+    private final int numStripes;
+    private final SizeClass[] classes = new SizeClass[NUM_CLASSES];
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    private final ConcurrentLinkedQueue<ThreadCache> threadCaches =
+        new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ThreadCache> threadCache =
+        ThreadLocal.withInitial(this::newThreadCache);
+
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder magazineHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+
+    StripedImpl(Conf conf) {
+      this.countLimit = conf.countLimit;
+      this.maxRetainedBytes = conf.maxRetainedBytes;
+      int stripes = Integer.highestOneBit(
+          Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+      this.numStripes = Math.min(stripes, 64);
+      for (int i = 0; i < NUM_CLASSES; i++) {
+        classes[i] = new SizeClass(1 << (i + MIN_SHIFT));
+      }
+    }
+
+    /** A stack of free arrays of one length, owned by one thread. */
+    private static final class Magazine {
+      private final byte[][] arrays;
+      private int size;
+
+      Magazine(int capacity) {
+        arrays = new byte[capacity][];
+      }
+
+      byte[] pop() {
+        if (size == 0) {
+          return null;
+        }
+        final byte[] array = arrays[--size];
+        arrays[size] = null;
+        return array;
+      }
+    }
+
+    /** The magazines of a thread. */
+    private final class ThreadCache {
+      private final WeakReference<Thread> owner =
+          new WeakReference<>(Thread.currentThread());
+      private final int stripe =
+          nextStripe.getAndIncrement() & (numStripes - 1);
+      private final Magazine[] magazines = new Magazine[NUM_CLASSES];
+
+      Magazine getMagazine(int index) {
+        Magazine m = magazines[index];
+        if (m == null) {
+          m = new Magazine(classes[index].magazineSize);
+          magazines[index] = m;
+        }
+        return m;
+      }
+
+      boolean isOwnerTerminated() {
+        final Thread t = owner.get();
+        return t == null || !t.isAlive();
+      }
+    }
+
+    /** A shared free list. */
+    private static final class Stripe {
+      private final ArrayDeque<byte[]> arrays = new ArrayDeque<>();
+      /** Read without the lock to skip empty stripes. */
+      private volatile int size;
+    }
+
+    /** The state of one array length. */
+    private final class SizeClass {
+      private final int length;
+      private final int magazineSize;
+      private final Stripe[] stripes = new Stripe[numStripes];
+      private final AtomicInteger numAllocated = new AtomicInteger();
+      private volatile int numWaiting;
+
+      SizeClass(int length) {
+        this.length = length;
+        this.magazineSize = Math.max(1,
+            Math.min(MAX_MAGAZINE_SIZE, MAGAZINE_BYTES / length));
+        for (int i = 0; i < numStripes; i++) {
+          stripes[i] = new Stripe();
+        }
+      }
+
+      /** Wait until fewer than countLimit arrays are allocated. */
+      void acquire() throws InterruptedException {
+        for (;;) {
+          final int n = numAllocated.get();
+          if (n < countLimit) {
+            if (numAllocated.compareAndSet(n, n + 1)) {
+              return;
+            }
+            continue;
+          }
+          waits.increment();
+          synchronized (this) {
+            numWaiting++;
+            try {
+              while (numAllocated.get() >= countLimit) {
+                wait();
+              }
+            } finally {
+              numWaiting--;
+            }
+          }
+        }
+      }
+
+      void release() {
+        for (;;) {
+          final int n = numAllocated.get();
+          // it is possible to drop below 0 since
+          // some byte arrays may not be created by newByteArray.
+          if (n == 0 || numAllocated.compareAndSet(n, n - 1)) {
+            break;
+          }
+        }
+        if (numWaiting > 0) {
+          synchronized (this) {
+            notify();
+          }
+        }
+      }
+
+      /**
+       * Move up to half a magazine of arrays from the stripes to the
+       * magazine, starting with the given stripe.
+       * @return whether any array was moved.
+       */
+      boolean refill(Magazine m, int first) {
+        final int want = Math.max(1, magazineSize / 2);
+        for (int i = 0; i < numStripes; i++) {
+          final Stripe s = stripes[(first + i) & (numStripes - 1)];
+          if (s.size == 0) {
+            continue;
+          }
+          synchronized (s) {
+            while (m.size < want && !s.arrays.isEmpty()) {
+              m.arrays[m.size++] = s.arrays.pop();
+            }
+            s.size = s.arrays.size();
+          }
+          if (m.size > 0) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      /** Move the older half of a magazine to a stripe. */
+      void spill(Magazine m, int stripe, int count) {
+        final Stripe s = stripes[stripe];
+        synchronized (s) {
+          for (int i = 0; i < count; i++) {
+            s.arrays.push(m.arrays[i]);
+          }
+          s.size = s.arrays.size();
+        }
+        System.arraycopy(m.arrays, count, m.arrays, 0, m.size - count);
+        for (int i = m.size - count; i < m.size; i++) {
+          m.arrays[i] = null;
+        }
+        m.size -= count;
+      }
+    }
+
+    private ThreadCache newThreadCache() {
+      // a new thread is a good time to reclaim those of terminated threads
+      for (ThreadCache c : threadCaches) {
+        // remove(c) claims the cache when threads start concurrently
+        if (c.isOwnerTerminated() && threadCaches.remove(c)) {
+          for (int index = 0; index < NUM_CLASSES; index++) {
+            final Magazine m = c.magazines[index];
+            if (m != null && m.size > 0) {
+              classes[index].spill(m, c.stripe, m.size);
+            }
+          }
+        }
+      }
+      final ThreadCache cache = new ThreadCache();
+      threadCaches.add(cache);
+      return cache;
+    }
+
+    private static int classIndex(int powerOfTwo) {
+      return Integer.numberOfTrailingZeros(powerOfTwo) - MIN_SHIFT;
+    }
+
+    /**
+     * Allocate a byte array, where the length of the allocated array
+     * is the least power of two of the given length
+     * unless the given length is less than {@link #MIN_ARRAY_LENGTH}.
+     * In such case, the returned array length is equal to {@link
+     * #MIN_ARRAY_LENGTH}.
+     *
+     * If the number of allocated arrays of that length reaches the limit,
+     * the current thread is blocked until an array of the length is
+     * released.
+     *
+     * @return a byte array with length larger than or equal to the given
+     * length.
+     */
+    @Override
+    public byte[] newByteArray(final int arrayLength)
+        throws InterruptedException {
+      Preconditions.checkArgument(arrayLength >= 0);
+      if (arrayLength == 0) {
+        return EMPTY_BYTE_ARRAY;
+      }
+      final int powerOfTwo = arrayLength <= MIN_ARRAY_LENGTH?
+          MIN_ARRAY_LENGTH: leastPowerOfTwo(arrayLength);
+      final int index = classIndex(powerOfTwo);
+      final SizeClass c = classes[index];
+      c.acquire();
+      allocations.increment();
+
+      final ThreadCache cache = threadCache.get();
+      final Magazine m = cache.getMagazine(index);
+      byte[] array = m.pop();
+      if (array != null) {
+        magazineHits.increment();
+      } else if (c.refill(m, cache.stripe)) {
+        sharedHits.increment();
+        array = m.pop();
+      } else {
+        return new byte[powerOfTwo];
+      }
+      retainedBytes.addAndGet(-powerOfTwo);
+      return array;
+    }
+
+    /**
+     * Recycle the given byte array.
+     *
+     * The byte array may or may not be allocated
+     * by the {@link StripedImpl#newByteArray(int)} method.
+     *
+     * This is a non-blocking call.
+     *
+     * @return the number of free arrays of the length in the magazine of
+     *         the current thread, or -1 if the array is not kept.
+     */
+    @Override
+    public int release(final byte[] array) {
+      Preconditions.checkNotNull(array);
+      final int length = array.length;
+      if (length < MIN_ARRAY_LENGTH || Integer.bitCount(length) != 1) {
+        return -1;
+      }
+      final int index = classIndex(length);
+      final SizeClass c = classes[index];
+      c.release();
+      releases.increment();
+
+      if (retainedBytes.addAndGet(length) > maxRetainedBytes) {
+        retainedBytes.addAndGet(-length);
+        dropped.increment();
+        return -1;
+      }
+      final ThreadCache cache = threadCache.get();
+      final Magazine m = cache.getMagazine(index);
+      if (m.size == m.arrays.length) {
+        c.spill(m, cache.stripe, Math.max(1, m.size / 2));
+      }
+      m.arrays[m.size++] = array;
+      return m.size;
+    }
+
+    /** @return the number of arrays allocated. */
+    long getAllocationCount() {
+      return allocations.sum();
+    }
+
+    /** @return the number of allocations served from a thread's magazine. */
+    long getMagazineHitCount() {
+      return magazineHits.sum();
+    }
+
+    /** @return the number of allocations served from the shared lists. */
+    long getSharedHitCount() {
+      return sharedHits.sum();
+    }
+
+    /** @return the number of released arrays not kept for reuse. */
+    long getDroppedCount() {
+      return dropped.sum();
+    }
+
+    /** @return the number of allocations blocked by the count limit. */
+    long getWaitCount() {
+      return waits.sum();
+    }
+
+    /** @return the total bytes of free arrays kept for reuse. */
+    long getRetainedBytes() {
+      return retainedBytes.get();
+    }
+
+    /** @return the fraction of allocations served by reuse. */
+    double getHitRate() {
+      final long n = allocations.sum();
+      return n == 0? 0: (double) (magazineHits.sum() + sharedHits.sum()) / n;
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getSimpleName() + "[allocations=" + allocations.sum()
+          + ", magazineHits=" + magazineHits.sum()
+          + ", sharedHits=" + sharedHits.sum()
+          + ", releases=" + releases.sum()
+          + ", dropped=" + dropped.sum()
+          + ", waits=" + waits.sum()
+          + ", retainedBytes=" + retainedBytes.get() + "]";
+    }
+  }
 }
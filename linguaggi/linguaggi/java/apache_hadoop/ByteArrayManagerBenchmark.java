@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mini benchmark of {@link ByteArrayManager} implementations with many
+ * concurrent writers, as with hundreds of open output streams in a client:
+ * every writer keeps a few packet buffers in flight, releasing the oldest
+ * before allocating the next one.
+ *
+ * Usage: ByteArrayManagerBenchmark [writers] [seconds] [in-flight buffers]
+ */
+public class ByteArrayManagerBenchmark {
+  /** The length of a packet with checksums and header, as in DFSPacket. */
+  private static final int PACKET_LENGTH = 64 * 1024 + 33;
+
+  public static void main(String[] args) throws Exception {
+    int writers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int inFlight = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+    System.out.printf("%-10s %14s %10s%n", "manager", "allocations/s",
+        "hit rate");
+    for (int i = 0; i < 2; i++) {
+      run("Impl", ByteArrayManager.newInstance(
+          new ByteArrayManager.Conf(128, 2048, 10000)),
+          writers, seconds, inFlight);
+      run("Striped", ByteArrayManager.newInstance(
+          new ByteArrayManager.Conf(128, 2048, 10000, true, 256L << 20)),
+          writers, seconds, inFlight);
+    }
+  }
+
+  private static void run(String name, final ByteArrayManager bam,
+      int writers, int seconds, final int inFlight) throws Exception {
+    final LongAdder allocations = new LongAdder();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] deadline = new long[1];
+    Thread[] threads = new Thread[writers];
+    for (int t = 0; t < writers; t++) {
+      threads[t] = new Thread(() -> {
+        byte[][] ring = new byte[inFlight][];
+        try {
+          start.await();
+          for (int i = 0; System.nanoTime() < deadline[0]; i++) {
+            int slot = i % inFlight;
+            if (ring[slot] != null) {
+              bam.release(ring[slot]);
+            }
+            ring[slot] = bam.newByteArray(PACKET_LENGTH);
+            // touch the buffer like a writer filling a packet
+            ring[slot][i & 0xffff] = (byte) i;
+            allocations.increment();
+          }
+          for (byte[] b : ring) {
+            if (b != null) {
+              bam.release(b);
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      threads[t].start();
+    }
+    deadline[0] = System.nanoTime() + seconds * 1000000000L;
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    String hitRate = bam instanceof ByteArrayManager.StripedImpl
+        ? String.format("%.3f",
+            ((ByteArrayManager.StripedImpl) bam).getHitRate())
+        : "-";
+    System.out.printf("%-10s %14.0f %10s%n", name,
+        allocations.sum() / (double) seconds, hitRate);
+  }
+}
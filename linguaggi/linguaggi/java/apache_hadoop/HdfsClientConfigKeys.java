@@ -426,6 +426,10 @@ public interface HdfsClientConfigKeys {
       String  COUNT_RESET_TIME_PERIOD_MS_KEY =
           PREFIX + "count-reset-time-period-ms";
       long    COUNT_RESET_TIME_PERIOD_MS_DEFAULT = 10 * MS_PER_SECOND;
+      String  STRIPED_KEY = PREFIX + "striped";
+      boolean STRIPED_DEFAULT = false;
+      String  MAX_RETAINED_BYTES_KEY = PREFIX + "max-retained-bytes";
+      long    MAX_RETAINED_BYTES_DEFAULT = 256L << 20;
     }
   }
 
@@ -18,79 +18,88 @@
 package org.apache.hadoop.hdfs.server.blockmanagement;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.util.StringInterner;
 
-/** A map from host names to datanode descriptors. */
+/**
+ * A map from host names to datanode descriptors.
+ *
+ * The nodes are indexed by IP address and by host name. Each host maps to
+ * an immutable array of its nodes, which is replaced on update, so that
+ * lookups, e.g. for every block report, read the concurrent maps without
+ * locking. Updates, only on datanode registration and removal, are
+ * serialized so that the two indexes agree. The host strings are interned,
+ * as they are repeated by every node of a host and by the network topology.
+ */
 @InterfaceAudience.Private
 @InterfaceStability.Evolving
 class Host2NodesMap {
-  private HashMap<String, String> mapHost = new HashMap<String, String>();
-  private final HashMap<String, DatanodeDescriptor[]> map
-    = new HashMap<String, DatanodeDescriptor[]>();
-  private final ReadWriteLock hostmapLock = new ReentrantReadWriteLock();
+  private static final DatanodeDescriptor[] NO_NODES =
+      new DatanodeDescriptor[0];
+
+  private final ConcurrentHashMap<String, DatanodeDescriptor[]> map
+      = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, DatanodeDescriptor[]> mapHost
+      = new ConcurrentHashMap<>();
+  /** Serializes the updates. */
+  private final Object updateLock = new Object();
 
   /** Check if node is already in the map. */
   boolean contains(DatanodeDescriptor node) {
     if (node==null) {
       return false;
     }
-      
-    String ipAddr = node.getIpAddr();
-    hostmapLock.readLock().lock();
-    try {
-      DatanodeDescriptor[] nodes = map.get(ipAddr);
-      if (nodes != null) {
-        for(DatanodeDescriptor containedNode:nodes) {
-          if (node==containedNode) {
-            return true;
-          }
+    return indexOf(map.get(node.getIpAddr()), node) >= 0;
+  }
+
+  private static int indexOf(DatanodeDescriptor[] nodes,
+      DatanodeDescriptor node) {
+    if (nodes != null) {
+      for (int i = 0; i < nodes.length; i++) {
+        if (nodes[i] == node) {
+          return i;
         }
       }
-    } finally {
-      hostmapLock.readLock().unlock();
     }
-    return false;
+    return -1;
   }
-    
+
   /** add node to the map 
    * return true if the node is added; false otherwise.
    */
   boolean add(DatanodeDescriptor node) {
-    hostmapLock.writeLock().lock();
-    try {
-      if (node==null || contains(node)) {
+    if (node == null) {
+      return false;
+    }
+    String ipAddr = StringInterner.weakIntern(node.getIpAddr());
+    String hostname = StringInterner.weakIntern(node.getHostName());
+    synchronized (updateLock) {
+      if (contains(node)) {
         return false;
       }
-      
-      String ipAddr = node.getIpAddr();
-      String hostname = node.getHostName();
-      
-      mapHost.put(hostname, ipAddr);
-      
-      DatanodeDescriptor[] nodes = map.get(ipAddr);
-      DatanodeDescriptor[] newNodes;
-      if (nodes==null) {
-        newNodes = new DatanodeDescriptor[1];
-        newNodes[0]=node;
-      } else { // rare case: more than one datanode on the host
-        newNodes = new DatanodeDescriptor[nodes.length+1];
-        System.arraycopy(nodes, 0, newNodes, 0, nodes.length);
-        newNodes[nodes.length] = node;
-      }
-      map.put(ipAddr, newNodes);
+      addTo(map, ipAddr, node);
+      addTo(mapHost, hostname, node);
       return true;
-    } finally {
-      hostmapLock.writeLock().unlock();
     }
   }
-    
+
+  private static void addTo(Map<String, DatanodeDescriptor[]> index,
+      String key, DatanodeDescriptor node) {
+    DatanodeDescriptor[] nodes = index.get(key);
+    if (nodes == null) {
+      index.put(key, new DatanodeDescriptor[] {node});
+    } else { // rare case: more than one datanode on the host
+      DatanodeDescriptor[] newNodes = Arrays.copyOf(nodes, nodes.length + 1);
+      newNodes[nodes.length] = node;
+      index.put(key, newNodes);
+    }
+  }
+
   /** remove node from the map 
    * return true if the node is removed; false otherwise.
    */
@@ -98,48 +107,41 @@ class Host2NodesMap {
     if (node==null) {
       return false;
     }
-      
-    String ipAddr = node.getIpAddr();
-    String hostname = node.getHostName();
-    hostmapLock.writeLock().lock();
-    try {
-
-      DatanodeDescriptor[] nodes = map.get(ipAddr);
-      if (nodes==null) {
+    synchronized (updateLock) {
+      if (!removeFrom(map, node.getIpAddr(), node)) {
         return false;
       }
-      if (nodes.length==1) {
-        if (nodes[0]==node) {
-          map.remove(ipAddr);
-          //remove hostname key since last datanode is removed
-          mapHost.remove(hostname);
-          return true;
-        } else {
-          return false;
-        }
-      }
-      //rare case
-      int i=0;
-      for(; i<nodes.length; i++) {
-        if (nodes[i]==node) {
-          break;
+      if (!removeFrom(mapHost, node.getHostName(), node)) {
+        // the host name was changed while in the map
+        for (Map.Entry<String, DatanodeDescriptor[]> e : mapHost.entrySet()) {
+          if (removeFrom(mapHost, e.getKey(), node)) {
+            break;
+          }
         }
       }
-      if (i==nodes.length) {
-        return false;
-      } else {
-        DatanodeDescriptor[] newNodes;
-        newNodes = new DatanodeDescriptor[nodes.length-1];
-        System.arraycopy(nodes, 0, newNodes, 0, i);
-        System.arraycopy(nodes, i+1, newNodes, i, nodes.length-i-1);
-        map.put(ipAddr, newNodes);
-        return true;
-      }
-    } finally {
-      hostmapLock.writeLock().unlock();
+      return true;
     }
   }
-    
+
+  private static boolean removeFrom(Map<String, DatanodeDescriptor[]> index,
+      String key, DatanodeDescriptor node) {
+    DatanodeDescriptor[] nodes = key == null ? null : index.get(key);
+    int i = indexOf(nodes, node);
+    if (i < 0) {
+      return false;
+    }
+    if (nodes.length == 1) {
+      index.remove(key);
+      return true;
+    }
+    //rare case
+    DatanodeDescriptor[] newNodes = new DatanodeDescriptor[nodes.length-1];
+    System.arraycopy(nodes, 0, newNodes, 0, i);
+    System.arraycopy(nodes, i+1, newNodes, i, nodes.length-i-1);
+    index.put(key, newNodes);
+    return true;
+  }
+
   /**
    * Get a data node by its IP address.
    * @return DatanodeDescriptor if found, null otherwise 
@@ -148,25 +150,22 @@ class Host2NodesMap {
     if (ipAddr == null) {
       return null;
     }
-      
-    hostmapLock.readLock().lock();
-    try {
-      DatanodeDescriptor[] nodes = map.get(ipAddr);
-      // no entry
-      if (nodes== null) {
-        return null;
-      }
-      // one node
-      if (nodes.length == 1) {
-        return nodes[0];
-      }
-      // more than one node
-      return nodes[ThreadLocalRandom.current().nextInt(nodes.length)];
-    } finally {
-      hostmapLock.readLock().unlock();
+    return pick(map.get(ipAddr));
+  }
+
+  private static DatanodeDescriptor pick(DatanodeDescriptor[] nodes) {
+    // no entry
+    if (nodes == null) {
+      return null;
+    }
+    // one node
+    if (nodes.length == 1) {
+      return nodes[0];
     }
+    // more than one node
+    return nodes[ThreadLocalRandom.current().nextInt(nodes.length)];
   }
-  
+
   /**
    * Find data node by its transfer address
    *
@@ -177,27 +176,15 @@ class Host2NodesMap {
     if (ipAddr==null) {
       return null;
     }
-
-    hostmapLock.readLock().lock();
-    try {
-      DatanodeDescriptor[] nodes = map.get(ipAddr);
-      // no entry
-      if (nodes== null) {
-        return null;
-      }
-      for(DatanodeDescriptor containedNode:nodes) {
-        if (xferPort == containedNode.getXferPort()) {
-          return containedNode;
-        }
+    DatanodeDescriptor[] nodes = map.getOrDefault(ipAddr, NO_NODES);
+    for(DatanodeDescriptor containedNode:nodes) {
+      if (xferPort == containedNode.getXferPort()) {
+        return containedNode;
       }
-      return null;
-    } finally {
-      hostmapLock.readLock().unlock();
     }
+    return null;
   }
 
-  
-
   /** get a data node by its hostname. This should be used if only one 
    * datanode service is running on a hostname. If multiple datanodes
    * are running on a hostname then use methods getDataNodeByXferAddr and
@@ -208,27 +195,16 @@ class Host2NodesMap {
     if(hostname == null) {
       return null;
     }
-    
-    hostmapLock.readLock().lock();
-    try {
-      String ipAddr = mapHost.get(hostname);
-      if(ipAddr == null) {
-        return null;
-      } else {  
-        return getDatanodeByHost(ipAddr);
-      }
-    } finally {
-      hostmapLock.readLock().unlock();
-    }
+    return pick(mapHost.get(hostname));
   }
 
   @Override
   public String toString() {
     final StringBuilder b = new StringBuilder(getClass().getSimpleName())
         .append("[");
-    for(Map.Entry<String, String> host: mapHost.entrySet()) {
-      DatanodeDescriptor[] e = map.get(host.getValue());
-      b.append("\n  " + host.getKey() + " => "+host.getValue() + " => " 
+    for(Map.Entry<String, DatanodeDescriptor[]> host: mapHost.entrySet()) {
+      DatanodeDescriptor[] e = host.getValue();
+      b.append("\n  " + host.getKey() + " => "+e[0].getIpAddr() + " => "
           + Arrays.asList(e));
     }
     return b.append("\n]").toString();
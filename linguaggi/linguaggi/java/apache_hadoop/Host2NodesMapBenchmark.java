@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.blockmanagement;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+
+/**
+ * Mini benchmark of {@link Host2NodesMap} lookups from many threads, as
+ * done while processing block reports and placing blocks, against the
+ * previous map behind a read-write lock. A node re-registers now and then.
+ *
+ * Usage: Host2NodesMapBenchmark [threads] [seconds] [datanodes]
+ */
+public class Host2NodesMapBenchmark {
+
+  /** The previous implementation, the lookups of which take a read lock. */
+  private static class LockedMap {
+    private final HashMap<String, String> mapHost = new HashMap<>();
+    private final HashMap<String, DatanodeDescriptor[]> map =
+        new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    void add(DatanodeDescriptor node) {
+      lock.writeLock().lock();
+      try {
+        mapHost.put(node.getHostName(), node.getIpAddr());
+        map.put(node.getIpAddr(), new DatanodeDescriptor[] {node});
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    void remove(DatanodeDescriptor node) {
+      lock.writeLock().lock();
+      try {
+        map.remove(node.getIpAddr());
+        mapHost.remove(node.getHostName());
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    DatanodeDescriptor getDatanodeByHost(String ipAddr) {
+      lock.readLock().lock();
+      try {
+        DatanodeDescriptor[] nodes = map.get(ipAddr);
+        return nodes == null ? null : nodes[0];
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    DatanodeDescriptor getDataNodeByHostName(String hostname) {
+      lock.readLock().lock();
+      try {
+        String ipAddr = mapHost.get(hostname);
+        return ipAddr == null ? null : getDatanodeByHost(ipAddr);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+  }
+
+  private interface Ops {
+    DatanodeDescriptor byIp(String ipAddr);
+    DatanodeDescriptor byHostName(String hostname);
+    void reregister(DatanodeDescriptor node);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int numNodes = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+
+    DatanodeDescriptor[] nodes = new DatanodeDescriptor[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      nodes[i] = new DatanodeDescriptor(new DatanodeID(
+          "10." + (i >> 16) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff),
+          "host-" + i + ".example.com", "uuid-" + i, 9866, 9864, 9865,
+          9867));
+    }
+    Host2NodesMap map = new Host2NodesMap();
+    LockedMap locked = new LockedMap();
+    for (DatanodeDescriptor node : nodes) {
+      map.add(node);
+      locked.add(node);
+    }
+
+    System.out.printf("%-10s %16s%n", "map", "lookups/s");
+    for (int i = 0; i < 2; i++) {
+      run("Locked", new Ops() {
+        @Override
+        public DatanodeDescriptor byIp(String ipAddr) {
+          return locked.getDatanodeByHost(ipAddr);
+        }
+
+        @Override
+        public DatanodeDescriptor byHostName(String hostname) {
+          return locked.getDataNodeByHostName(hostname);
+        }
+
+        @Override
+        public void reregister(DatanodeDescriptor node) {
+          locked.remove(node);
+          locked.add(node);
+        }
+      }, nodes, threads, seconds);
+      run("Lock-free", new Ops() {
+        @Override
+        public DatanodeDescriptor byIp(String ipAddr) {
+          return map.getDatanodeByHost(ipAddr);
+        }
+
+        @Override
+        public DatanodeDescriptor byHostName(String hostname) {
+          return map.getDataNodeByHostName(hostname);
+        }
+
+        @Override
+        public void reregister(DatanodeDescriptor node) {
+          map.remove(node);
+          map.add(node);
+        }
+      }, nodes, threads, seconds);
+    }
+  }
+
+  private static void run(String name, final Ops ops,
+      final DatanodeDescriptor[] nodes, int threads, int seconds)
+      throws Exception {
+    final LongAdder lookups = new LongAdder();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final boolean writer = t == 0;
+      workers[t] = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long n = 0;
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        while (System.nanoTime() < deadline) {
+          for (int i = 0; i < 1000; i++) {
+            DatanodeDescriptor node = nodes[random.nextInt(nodes.length)];
+            if (writer && i == 0) {
+              ops.reregister(node);
+            } else if ((i & 1) == 0) {
+              ops.byIp(node.getIpAddr());
+            } else {
+              ops.byHostName(node.getHostName());
+            }
+          }
+          n += 1000;
+        }
+        lookups.add(n);
+      });
+      workers[t].start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    System.out.printf("%-10s %16.0f%n", name,
+        lookups.sum() / (double) seconds);
+  }
+}
@@ -0,0 +1,466 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.thirdparty.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.util.Preconditions;
+import org.apache.hadoop.util.concurrent.HadoopExecutors;
+
+/**
+ * A {@link CompressionInputStream} for the block format of
+ * {@link BlockCompressorStream}, as written by the lz4 and snappy codecs,
+ * which decompresses several blocks in parallel.
+ *
+ * The calling thread reads the compressed blocks ahead and finds their
+ * boundaries with a {@link ChunkSizer}, which gets the uncompressed length
+ * of a compressed chunk without decompressing it. Up to a number of blocks
+ * are decompressed on an executor, each with its own decompressor from the
+ * {@link CodecPool}, into reusable buffers, and are returned in order.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class ParallelBlockDecompressorStream extends CompressionInputStream {
+  private static volatile ExecutorService sharedExecutor;
+
+  /**
+   * Gets the uncompressed length of a compressed chunk of a block.
+   */
+  @FunctionalInterface
+  public interface ChunkSizer {
+    int getUncompressedLength(byte[] b, int off, int len) throws IOException;
+  }
+
+  /**
+   * Sizes lz4 blocks by walking their sequences, which only reads the
+   * tokens and length bytes.
+   */
+  public static final ChunkSizer LZ4 = (b, off, len) -> {
+    final int end = off + len;
+    int pos = off;
+    long size = 0;
+    while (pos < end) {
+      final int token = b[pos++] & 0xff;
+      int literals = token >>> 4;
+      if (literals == 15) {
+        int s;
+        do {
+          checkBounds(pos, end);
+          s = b[pos++] & 0xff;
+          literals += s;
+        } while (s == 255);
+      }
+      pos += literals;
+      size += literals;
+      if (pos >= end) {
+        // the last sequence only has literals
+        break;
+      }
+      // the match offset
+      pos += 2;
+      int match = token & 0xf;
+      if (match == 15) {
+        int s;
+        do {
+          checkBounds(pos, end);
+          s = b[pos++] & 0xff;
+          match += s;
+        } while (s == 255);
+      }
+      size += match + 4;
+    }
+    if (pos != end || size > Integer.MAX_VALUE) {
+      throw new IOException("Corrupt lz4 block");
+    }
+    return (int) size;
+  };
+
+  /**
+   * Sizes snappy blocks by the varint of their uncompressed length.
+   */
+  public static final ChunkSizer SNAPPY = (b, off, len) -> {
+    long size = 0;
+    for (int i = 0; i < 5; i++) {
+      checkBounds(off + i, off + len);
+      final int v = b[off + i] & 0xff;
+      size |= (long) (v & 0x7f) << (7 * i);
+      if (v < 0x80) {
+        if (size > Integer.MAX_VALUE) {
+          break;
+        }
+        return (int) size;
+      }
+    }
+    throw new IOException("Corrupt snappy block");
+  };
+
+  private static void checkBounds(int pos, int end) throws IOException {
+    if (pos >= end) {
+      throw new IOException("Corrupt compressed block");
+    }
+  }
+
+  /** A block read ahead. */
+  private static final class Block {
+    private final int uncompressedLength;
+    private final byte[] compressed;
+    private final int[] chunkEnds;
+    private final CompletableFuture<byte[]> uncompressed =
+        new CompletableFuture<>();
+
+    Block(int uncompressedLength, byte[] compressed, int[] chunkEnds) {
+      this.uncompressedLength = uncompressedLength;
+      this.compressed = compressed;
+      this.chunkEnds = chunkEnds;
+    }
+  }
+
+  private final CompressionCodec codec;
+  private final ChunkSizer sizer;
+  private final int maxBlocksInFlight;
+  private final ExecutorService executor;
+
+  private final ArrayDeque<Block> blocks = new ArrayDeque<>();
+  private boolean eof;
+
+  // the block being read.
+  private byte[] current;
+  private int currentPos;
+  private int currentLen;
+
+  /** Guarded by itself. */
+  private final ArrayDeque<Decompressor> decompressors = new ArrayDeque<>();
+  /** Guarded by itself. */
+  private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+  private final byte[] intBuf = new byte[4];
+  private final byte[] oneByte = new byte[1];
+
+  /**
+   * Creates a stream decompressing blocks on the executor shared by the
+   * streams, with a thread per processor.
+   */
+  public ParallelBlockDecompressorStream(InputStream in,
+      CompressionCodec codec, ChunkSizer sizer) throws IOException {
+    this(in, codec, sizer, Runtime.getRuntime().availableProcessors(),
+        getSharedExecutor());
+  }
+
+  /**
+   * @param in the compressed data.
+   * @param codec the codec to get decompressors for.
+   * @param sizer the sizer of the chunks of the codec.
+   * @param maxBlocksInFlight the number of blocks read ahead.
+   * @param executor the executor to decompress with.
+   */
+  public ParallelBlockDecompressorStream(InputStream in,
+      CompressionCodec codec, ChunkSizer sizer, int maxBlocksInFlight,
+      ExecutorService executor) throws IOException {
+    super(in);
+    Preconditions.checkArgument(maxBlocksInFlight > 0,
+        "maxBlocksInFlight must be positive: %s", maxBlocksInFlight);
+    this.codec = codec;
+    this.sizer = sizer;
+    this.maxBlocksInFlight = maxBlocksInFlight;
+    this.executor = executor;
+  }
+
+  /**
+   * @return the executor with a daemon thread per processor shared by the
+   *         streams which are not given one.
+   */
+  public static ExecutorService getSharedExecutor() {
+    ExecutorService executor = sharedExecutor;
+    if (executor == null) {
+      synchronized (ParallelBlockDecompressorStream.class) {
+        executor = sharedExecutor;
+        if (executor == null) {
+          executor = HadoopExecutors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(),
+              new ThreadFactoryBuilder().setDaemon(true)
+                  .setNameFormat("Parallel decompressor #%d").build());
+          sharedExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(oneByte, 0, 1) == -1 ? -1 : (oneByte[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    while (current == null || currentPos == currentLen) {
+      if (current != null) {
+        release(current);
+        current = null;
+      }
+      readAhead();
+      Block block = blocks.poll();
+      if (block == null) {
+        return -1;
+      }
+      current = await(block);
+      currentPos = 0;
+      currentLen = block.uncompressedLength;
+      // keep the executor busy while this block is consumed
+      readAhead();
+    }
+    final int n = Math.min(len, currentLen - currentPos);
+    System.arraycopy(current, currentPos, b, off, n);
+    currentPos += n;
+    return n;
+  }
+
+  /**
+   * Read compressed blocks until enough of them are being decompressed.
+   */
+  private void readAhead() throws IOException {
+    while (!eof && blocks.size() < maxBlocksInFlight) {
+      final Block block = readBlock();
+      if (block == null) {
+        eof = true;
+        return;
+      }
+      blocks.add(block);
+      executor.execute(() -> decompress(block));
+    }
+  }
+
+  /**
+   * Read a block: its uncompressed length followed by compressed chunks of
+   * that total uncompressed length.
+   *
+   * @return the block, or null at the end of the stream.
+   */
+  private Block readBlock() throws IOException {
+    if (!readInt(true)) {
+      return null;
+    }
+    final int uncompressedLength = getInt();
+    if (uncompressedLength == 0) {
+      return null;
+    }
+    if (uncompressedLength < 0) {
+      throw new IOException("Corrupt block length " + uncompressedLength);
+    }
+    byte[] compressed = new byte[0];
+    int[] chunkEnds = new int[1];
+    int numChunks = 0;
+    int length = 0;
+    for (long sized = 0; sized < uncompressedLength;) {
+      readInt(false);
+      final int chunkLength = getInt();
+      if (chunkLength <= 0) {
+        throw new IOException("Corrupt chunk length " + chunkLength);
+      }
+      if (compressed.length < length + chunkLength) {
+        compressed = Arrays.copyOf(compressed,
+            Math.max(length + chunkLength, 2 * compressed.length));
+      }
+      readFully(compressed, length, chunkLength);
+      sized += sizer.getUncompressedLength(compressed, length, chunkLength);
+      length += chunkLength;
+      if (numChunks == chunkEnds.length) {
+        chunkEnds = Arrays.copyOf(chunkEnds, 2 * numChunks);
+      }
+      chunkEnds[numChunks++] = length;
+      if (sized > uncompressedLength) {
+        throw new IOException("Chunks exceed the block length "
+            + uncompressedLength);
+      }
+    }
+    return new Block(uncompressedLength, compressed,
+        Arrays.copyOf(chunkEnds, numChunks));
+  }
+
+  /** Decompress a block on the executor. */
+  private void decompress(Block block) {
+    Decompressor decompressor = null;
+    byte[] out = null;
+    try {
+      synchronized (decompressors) {
+        decompressor = decompressors.poll();
+      }
+      if (decompressor == null) {
+        decompressor = CodecPool.getDecompressor(codec);
+      }
+      out = newBuffer(block.uncompressedLength);
+      int pos = 0;
+      int chunkStart = 0;
+      for (int chunkEnd : block.chunkEnds) {
+        decompressor.reset();
+        decompressor.setInput(block.compressed, chunkStart,
+            chunkEnd - chunkStart);
+        chunkStart = chunkEnd;
+        while (!decompressor.needsInput()) {
+          final int n = decompressor.decompress(out, pos,
+              block.uncompressedLength - pos);
+          if (n == 0) {
+            if (decompressor.finished() || pos == block.uncompressedLength) {
+              break;
+            }
+            throw new IOException("Decompressor made no progress");
+          }
+          pos += n;
+        }
+      }
+      if (pos != block.uncompressedLength) {
+        throw new IOException("Decompressed " + pos + " bytes of a block of "
+            + block.uncompressedLength);
+      }
+      block.uncompressed.complete(out);
+    } catch (Throwable t) {
+      if (out != null) {
+        release(out);
+      }
+      block.uncompressed.completeExceptionally(t);
+    } finally {
+      if (decompressor != null) {
+        synchronized (decompressors) {
+          decompressors.add(decompressor);
+        }
+      }
+    }
+  }
+
+  private byte[] newBuffer(int length) {
+    synchronized (freeBuffers) {
+      for (int i = freeBuffers.size(); i > 0; i--) {
+        byte[] b = freeBuffers.poll();
+        if (b.length >= length) {
+          return b;
+        }
+        // drop the buffers too small, e.g. of a short last block
+      }
+    }
+    return new byte[length];
+  }
+
+  private void release(byte[] buffer) {
+    synchronized (freeBuffers) {
+      if (freeBuffers.size() <= maxBlocksInFlight) {
+        freeBuffers.add(buffer);
+      }
+    }
+  }
+
+  private static byte[] await(Block block) throws IOException {
+    try {
+      return block.uncompressed.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decompressing");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * @param eofAllowed whether the end of the stream may be reached before
+   *        the int.
+   * @return false at the end of the stream.
+   */
+  private boolean readInt(boolean eofAllowed) throws IOException {
+    int n = in.read(intBuf, 0, 4);
+    if (n < 0 && eofAllowed) {
+      return false;
+    }
+    readFully(intBuf, Math.max(n, 0), 4 - Math.max(n, 0));
+    return true;
+  }
+
+  private int getInt() {
+    return ((intBuf[0] & 0xff) << 24) | ((intBuf[1] & 0xff) << 16)
+        | ((intBuf[2] & 0xff) << 8) | (intBuf[3] & 0xff);
+  }
+
+  private void readFully(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = in.read(b, off, len);
+      if (n < 0) {
+        throw new EOFException("Unexpected end of block in input stream");
+      }
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Wait for the blocks read ahead, dropping them.
+   */
+  private void dropBlocks() {
+    for (Block block; (block = blocks.poll()) != null;) {
+      try {
+        release(block.uncompressed.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        // dropped anyway
+      }
+    }
+  }
+
+  @Override
+  public void resetState() throws IOException {
+    dropBlocks();
+    if (current != null) {
+      release(current);
+      current = null;
+    }
+    eof = false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      dropBlocks();
+      super.close();
+    } finally {
+      synchronized (decompressors) {
+        for (Decompressor d : decompressors) {
+          CodecPool.returnDecompressor(d);
+        }
+        decompressors.clear();
+      }
+    }
+  }
+}
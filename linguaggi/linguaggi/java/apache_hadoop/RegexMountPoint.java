@@ -151,6 +151,13 @@ class RegexMountPoint<T> {
     return dstPath;
   }
 
+  /**
+   * @return whether interceptors may change the path before it is matched.
+   */
+  boolean hasInterceptors() {
+    return !interceptorList.isEmpty();
+  }
+
   public static Pattern getVarPatternInDest() {
     return VAR_PATTERN_IN_DEST;
   }
@@ -214,7 +221,7 @@ class RegexMountPoint<T> {
     return new Path(remainingPathStr);
   }
 
-  private String getPathToResolve(
+  static String getPathToResolve(
       String srcPath, boolean resolveLastComponent) {
     if (resolveLastComponent) {
       return srcPath;
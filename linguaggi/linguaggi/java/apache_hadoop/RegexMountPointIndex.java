@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.viewfs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * Index of the regex mount points of a mount table, which resolves a path
+ * against the candidate mount points only, instead of evaluating every
+ * regex in turn.
+ *
+ * The literal prefix of each regex anchored with {@code ^} is put in a
+ * trie, so the candidates for a path are the mount points whose prefix
+ * the path starts with, plus the mount points without a literal prefix.
+ * The candidates are tried in the order of the mount table, so the first
+ * mount point resolving the path wins, as with the sequential evaluation.
+ * Recent resolutions, including the paths which no mount point resolves,
+ * are kept in a bounded LRU cache.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+class RegexMountPointIndex<T> {
+  /** The default number of resolutions cached. */
+  static final int DEFAULT_CACHE_SIZE = 1024;
+
+  private static final String METACHARS = "\\.[]{}()*+?^$|";
+
+  /** A trie node, with the mount points whose prefix ends at the node. */
+  private static final class Node {
+    private final Map<Character, Node> children = new HashMap<>();
+    private final BitSet mountPoints = new BitSet();
+  }
+
+  private final List<RegexMountPoint<T>> mountPoints;
+  private final Node root = new Node();
+  private final int cacheSize;
+  /** The resolutions by path to resolve. Guarded by itself. */
+  private final LinkedHashMap<String, InodeTree.ResolveResult<T>> cache;
+
+  /**
+   * @param mountPoints the initialized mount points, in mount table order.
+   * @param cacheSize the number of resolutions cached, 0 to disable.
+   */
+  RegexMountPointIndex(List<RegexMountPoint<T>> mountPoints,
+      final int cacheSize) {
+    this.mountPoints = new ArrayList<>(mountPoints);
+    this.cacheSize = cacheSize;
+    this.cache = new LinkedHashMap<String, InodeTree.ResolveResult<T>>(
+        16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, InodeTree.ResolveResult<T>> eldest) {
+        return size() > cacheSize;
+      }
+    };
+    for (int i = 0; i < this.mountPoints.size(); i++) {
+      RegexMountPoint<T> mountPoint = this.mountPoints.get(i);
+      // interceptors may change the path to match
+      String prefix = mountPoint.hasInterceptors()
+          ? "" : getLiteralPrefix(mountPoint.getSrcPathRegex());
+      Node node = root;
+      for (int j = 0; j < prefix.length(); j++) {
+        node = node.children.computeIfAbsent(prefix.charAt(j), c -> new Node());
+      }
+      node.mountPoints.set(i);
+    }
+  }
+
+  /**
+   * Get the literal prefix of the strings matched by a regex, e.g.
+   * {@code /user/} for {@code ^/user/(?<username>\w+)}.
+   *
+   * @param regex the regex.
+   * @return the prefix, empty if the regex is not anchored at the start.
+   */
+  static String getLiteralPrefix(String regex) {
+    if (!regex.startsWith("^") || hasTopLevelAlternation(regex)) {
+      return "";
+    }
+    StringBuilder prefix = new StringBuilder();
+    int i = 1;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        // only an escaped punctuation char is a literal
+        if (i + 1 == regex.length()
+            || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+          break;
+        }
+        c = regex.charAt(i + 1);
+        i += 2;
+      } else if (METACHARS.indexOf(c) >= 0) {
+        break;
+      } else {
+        i++;
+      }
+      if (i < regex.length()) {
+        char next = regex.charAt(i);
+        if (next == '*' || next == '?' || next == '{') {
+          // the char is optional or repeated
+          break;
+        } else if (next == '+') {
+          prefix.append(c);
+          break;
+        }
+      }
+      prefix.append(c);
+    }
+    return prefix.toString();
+  }
+
+  /**
+   * @return whether the regex has a {@code |} outside of groups and
+   *         character classes, so that it is not anchored as a whole.
+   */
+  private static boolean hasTopLevelAlternation(String regex) {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        inClass = c != ']';
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the mount points which may resolve a path, in mount table order.
+   *
+   * @param pathToResolve the path matched against the regexes.
+   * @return the candidate mount points.
+   */
+  List<RegexMountPoint<T>> getCandidates(String pathToResolve) {
+    BitSet candidates = (BitSet) root.mountPoints.clone();
+    Node node = root;
+    for (int i = 0; pathToResolve != null && i < pathToResolve.length();
+         i++) {
+      node = node.children.get(pathToResolve.charAt(i));
+      if (node == null) {
+        break;
+      }
+      candidates.or(node.mountPoints);
+    }
+    List<RegexMountPoint<T>> result =
+        new ArrayList<>(candidates.cardinality());
+    for (int i = candidates.nextSetBit(0); i >= 0;
+         i = candidates.nextSetBit(i + 1)) {
+      result.add(mountPoints.get(i));
+    }
+    return result;
+  }
+
+  /**
+   * Resolve a path with the first mount point resolving it.
+   *
+   * @param srcPath the path to resolve.
+   * @param resolveLastComponent whether to resolve the last component.
+   * @return the resolution, or null if no mount point resolves the path.
+   */
+  InodeTree.ResolveResult<T> resolve(String srcPath,
+      boolean resolveLastComponent) {
+    final String key = (resolveLastComponent ? '+' : '-') + srcPath;
+    if (cacheSize > 0) {
+      synchronized (cache) {
+        if (cache.containsKey(key)) {
+          return cache.get(key);
+        }
+      }
+    }
+    InodeTree.ResolveResult<T> result = null;
+    for (RegexMountPoint<T> mountPoint : getCandidates(
+        RegexMountPoint.getPathToResolve(srcPath, resolveLastComponent))) {
+      result = mountPoint.resolve(srcPath, resolveLastComponent);
+      if (result != null) {
+        break;
+      }
+    }
+    if (cacheSize > 0) {
+      synchronized (cache) {
+        cache.put(key, result);
+      }
+    }
+    return result;
+  }
+}
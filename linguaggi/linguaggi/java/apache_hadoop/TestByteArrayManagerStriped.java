@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link ByteArrayManager.StripedImpl}
+ */
+public class TestByteArrayManagerStriped {
+  private static ByteArrayManager.StripedImpl newManager(int countLimit,
+      long maxRetainedBytes) {
+    return (ByteArrayManager.StripedImpl) ByteArrayManager.newInstance(
+        new ByteArrayManager.Conf(1, countLimit, 10000, true,
+            maxRetainedBytes));
+  }
+
+  @Test
+  public void testNewInstance() {
+    assertTrue(ByteArrayManager.newInstance(new ByteArrayManager.Conf(
+        1, 10, 10000)) instanceof ByteArrayManager.Impl);
+    assertTrue(ByteArrayManager.newInstance(new ByteArrayManager.Conf(
+        1, 10, 10000, true, 1 << 20)) instanceof ByteArrayManager.StripedImpl);
+  }
+
+  @Test
+  public void testAllocateAndRelease() throws Exception {
+    ByteArrayManager.StripedImpl bam = newManager(100, 1 << 20);
+    assertEquals(0, bam.newByteArray(0).length);
+    assertEquals(32, bam.newByteArray(1).length);
+    assertEquals(32, bam.newByteArray(32).length);
+    assertEquals(64, bam.newByteArray(33).length);
+
+    byte[] a = bam.newByteArray(1000);
+    assertEquals(1024, a.length);
+    assertEquals(1, bam.release(a));
+    // reused by the same thread from its magazine
+    assertSame(a, bam.newByteArray(1000));
+    assertEquals(1, bam.getMagazineHitCount());
+    assertEquals(0, bam.getRetainedBytes());
+
+    // arrays not of a power of two length are not kept
+    assertEquals(-1, bam.release(new byte[1000]));
+    assertEquals(-1, bam.release(new byte[16]));
+    // empty arrays are not counted
+    assertEquals(5, bam.getAllocationCount());
+  }
+
+  @Test
+  public void testSharedAcrossThreads() throws Exception {
+    final ByteArrayManager.StripedImpl bam = newManager(1000, 16 << 20);
+    final int n = 100;
+    final List<byte[]> released = new ArrayList<>();
+    Thread releaser = new Thread(() -> {
+      try {
+        for (int i = 0; i < n; i++) {
+          byte[] a = bam.newByteArray(4096);
+          released.add(a);
+        }
+        for (byte[] a : released) {
+          bam.release(a);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    releaser.start();
+    releaser.join();
+    assertEquals(n * 4096L, bam.getRetainedBytes());
+
+    // magazines of the terminated thread are reclaimed by a new thread,
+    // and arrays spilled to the shared lists are reused by this one
+    final AtomicReference<byte[]> fromOther = new AtomicReference<>();
+    Thread t = new Thread(() -> {
+      try {
+        fromOther.set(bam.newByteArray(4096));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    t.start();
+    t.join();
+    assertTrue(released.contains(fromOther.get()));
+    for (int i = 1; i < n; i++) {
+      assertTrue(released.contains(bam.newByteArray(4096)));
+    }
+    assertEquals(0, bam.getRetainedBytes());
+    assertEquals(n, bam.getSharedHitCount() + bam.getMagazineHitCount());
+    assertEquals(0.5, bam.getHitRate(), 1e-9);
+  }
+
+  @Test
+  public void testMaxRetainedBytes() throws Exception {
+    ByteArrayManager.StripedImpl bam = newManager(100, 4 * 1024);
+    List<byte[]> arrays = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      arrays.add(bam.newByteArray(1024));
+    }
+    int kept = 0;
+    for (byte[] a : arrays) {
+      if (bam.release(a) >= 0) {
+        kept++;
+      }
+    }
+    assertEquals(4, kept);
+    assertEquals(6, bam.getDroppedCount());
+    assertEquals(4 * 1024, bam.getRetainedBytes());
+  }
+
+  @Test
+  public void testCountLimit() throws Exception {
+    final ByteArrayManager.StripedImpl bam = newManager(2, 1 << 20);
+    final byte[] a = bam.newByteArray(100);
+    bam.newByteArray(100);
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicReference<byte[]> allocated = new AtomicReference<>();
+    Thread t = new Thread(() -> {
+      started.countDown();
+      try {
+        allocated.set(bam.newByteArray(100));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    t.start();
+    started.await();
+    // other lengths are not limited
+    bam.newByteArray(1000);
+    t.join(200);
+    assertTrue(t.isAlive());
+    assertNull(allocated.get());
+
+    bam.release(a);
+    t.join();
+    assertFalse(t.isAlive());
+    assertEquals(128, allocated.get().length);
+    assertTrue(bam.getWaitCount() >= 1);
+  }
+}
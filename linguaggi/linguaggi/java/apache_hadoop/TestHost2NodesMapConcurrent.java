@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.blockmanagement;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestHost2NodesMapConcurrent {
+  private Host2NodesMap map;
+  private DatanodeDescriptor[] nodes;
+
+  private static DatanodeDescriptor node(String ip, String host, int port) {
+    return new DatanodeDescriptor(new DatanodeID(ip, host,
+        "uuid-" + host + ":" + port, port, 9864, 9865, 9867));
+  }
+
+  @BeforeEach
+  public void setUp() {
+    map = new Host2NodesMap();
+    nodes = new DatanodeDescriptor[] {
+        node("1.1.1.1", "h1", 9866),
+        node("2.2.2.2", "h2", 9866),
+        // two datanodes on a host
+        node("3.3.3.3", "h3", 9866),
+        node("3.3.3.3", "h3", 9876),
+    };
+    for (DatanodeDescriptor node : nodes) {
+      assertTrue(map.add(node));
+    }
+  }
+
+  @Test
+  public void testLookups() {
+    assertFalse(map.add(nodes[0]));
+    assertFalse(map.add(null));
+    assertSame(nodes[0], map.getDatanodeByHost("1.1.1.1"));
+    assertSame(nodes[1], map.getDataNodeByHostName("h2"));
+    DatanodeDescriptor n = map.getDataNodeByHostName("h3");
+    assertTrue(n == nodes[2] || n == nodes[3]);
+    assertSame(nodes[3], map.getDatanodeByXferAddr("3.3.3.3", 9876));
+    assertNull(map.getDatanodeByXferAddr("3.3.3.3", 1));
+    assertNull(map.getDatanodeByHost("4.4.4.4"));
+    assertNull(map.getDataNodeByHostName("h4"));
+  }
+
+  @Test
+  public void testRemove() {
+    assertFalse(map.remove(node("1.1.1.1", "h1", 9866)));
+    assertTrue(map.remove(nodes[2]));
+    assertFalse(map.remove(nodes[2]));
+    assertFalse(map.contains(nodes[2]));
+    assertSame(nodes[3], map.getDatanodeByHost("3.3.3.3"));
+    assertSame(nodes[3], map.getDataNodeByHostName("h3"));
+    assertTrue(map.remove(nodes[3]));
+    assertNull(map.getDatanodeByHost("3.3.3.3"));
+    assertNull(map.getDataNodeByHostName("h3"));
+    assertTrue(map.remove(nodes[0]));
+    assertNull(map.getDataNodeByHostName("h1"));
+    assertSame(nodes[1], map.getDatanodeByHost("2.2.2.2"));
+  }
+
+  @Test
+  public void testLookupsWhileUpdating() throws Exception {
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] readers = new Thread[4];
+    for (int t = 0; t < readers.length; t++) {
+      readers[t] = new Thread(() -> {
+        try {
+          while (!done.get()) {
+            // the nodes which are never removed are always found
+            assertSame(nodes[0], map.getDataNodeByHostName("h1"));
+            assertSame(nodes[0], map.getDatanodeByHost("1.1.1.1"));
+            DatanodeDescriptor n = map.getDatanodeByHost("3.3.3.3");
+            assertTrue(n == null || n == nodes[2] || n == nodes[3]);
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      readers[t].start();
+    }
+    for (int i = 0; i < 10000; i++) {
+      DatanodeDescriptor node = nodes[1 + i % 3];
+      assertTrue(map.remove(node));
+      assertTrue(map.add(node));
+    }
+    done.set(true);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    for (DatanodeDescriptor node : nodes) {
+      assertTrue(map.contains(node));
+    }
+    assertTrue(map.toString().contains("h3 => 3.3.3.3"), map.toString());
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestParallelBlockDecompressorStream {
+  private ExecutorService executor;
+  private Lz4Codec codec;
+  private byte[] data;
+
+  @BeforeEach
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(3);
+    Configuration conf = new Configuration();
+    // several blocks, each of several chunks
+    conf.setInt(CommonConfigurationKeys.IO_COMPRESSION_CODEC_LZ4_BUFFERSIZE_KEY,
+        16 * 1024);
+    codec = new Lz4Codec();
+    codec.setConf(conf);
+    data = new byte[1000003];
+    Random random = new Random(0);
+    // compressible, with runs and literals
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt() : i / 100);
+    }
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private byte[] compress() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = codec.createOutputStream(bytes)) {
+      out.write(data);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void testLz4Sizer() throws IOException {
+    // "abc", a match of 6 at offset 3 and 20 literals
+    byte[] block = {0x32, 'a', 'b', 'c', 3, 0, (byte) 0xf0, 5,
+        1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20};
+    assertEquals(29, ParallelBlockDecompressorStream.LZ4
+        .getUncompressedLength(block, 0, block.length));
+    assertThrows(IOException.class, () -> ParallelBlockDecompressorStream.LZ4
+        .getUncompressedLength(block, 0, 5));
+  }
+
+  @Test
+  public void testReadInOrder() throws IOException {
+    byte[] compressed = compress();
+    for (int blocksInFlight : new int[] {1, 4}) {
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      try (ParallelBlockDecompressorStream in =
+          new ParallelBlockDecompressorStream(
+              new ByteArrayInputStream(compressed), codec,
+              ParallelBlockDecompressorStream.LZ4, blocksInFlight, executor)) {
+        actual.write(in.read());
+        byte[] buf = new byte[777];
+        for (int n; (n = in.read(buf, 0, buf.length)) != -1;) {
+          actual.write(buf, 0, n);
+        }
+        assertEquals(-1, in.read());
+      }
+      assertArrayEquals(data, actual.toByteArray());
+    }
+  }
+
+  @Test
+  public void testTruncated() throws IOException {
+    byte[] compressed = compress();
+    try (ParallelBlockDecompressorStream in =
+        new ParallelBlockDecompressorStream(
+            new ByteArrayInputStream(Arrays.copyOf(compressed,
+                compressed.length - 10)), codec,
+            ParallelBlockDecompressorStream.LZ4, 4, executor)) {
+      byte[] buf = new byte[4096];
+      assertThrows(EOFException.class, () -> {
+        while (in.read(buf, 0, buf.length) != -1) {
+          // drain
+        }
+      });
+    }
+  }
+}
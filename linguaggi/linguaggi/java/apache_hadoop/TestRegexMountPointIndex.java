@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.viewfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TestRegexMountPointIndex {
+
+  @Test
+  public void testLiteralPrefix() {
+    assertEquals("/user/",
+        RegexMountPointIndex.getLiteralPrefix("^/user/(?<username>\\w+)"));
+    assertEquals("/data/v1.2/",
+        RegexMountPointIndex.getLiteralPrefix("^/data/v1\\.2\\/\\d+"));
+    // optional, repeated and at least once
+    assertEquals("/hom", RegexMountPointIndex.getLiteralPrefix("^/home?"));
+    assertEquals("/", RegexMountPointIndex.getLiteralPrefix("^/a{2}"));
+    assertEquals("/t", RegexMountPointIndex.getLiteralPrefix("^/tm*p"));
+    assertEquals("/ab", RegexMountPointIndex.getLiteralPrefix("^/ab+c"));
+    assertEquals("/x", RegexMountPointIndex.getLiteralPrefix("^/x(a|b)"));
+    assertEquals("/x", RegexMountPointIndex.getLiteralPrefix("^/x[a|b]"));
+    // not anchored as a whole
+    assertEquals("", RegexMountPointIndex.getLiteralPrefix("/user/\\w+"));
+    assertEquals("", RegexMountPointIndex.getLiteralPrefix("^/a|/b"));
+    assertEquals("", RegexMountPointIndex.getLiteralPrefix("^(?i)/user"));
+  }
+
+  private static List<RegexMountPoint<Object>> newMountPoints(
+      String... regexes) throws Exception {
+    List<RegexMountPoint<Object>> mountPoints = new ArrayList<>();
+    for (String regex : regexes) {
+      RegexMountPoint<Object> mountPoint =
+          new RegexMountPoint<>(null, regex, "/dst", null);
+      mountPoint.initialize();
+      mountPoints.add(mountPoint);
+    }
+    return mountPoints;
+  }
+
+  @Test
+  public void testCandidatesInMountTableOrder() throws Exception {
+    List<RegexMountPoint<Object>> mountPoints = newMountPoints(
+        "^/user/(?<username>\\w+)", "^/data/(\\w+)", "^/user/admin",
+        "/tmp/(\\w+)", "^/u");
+    RegexMountPointIndex<Object> index =
+        new RegexMountPointIndex<>(mountPoints, 0);
+    assertEquals(Arrays.asList(mountPoints.get(0), mountPoints.get(2),
+        mountPoints.get(3), mountPoints.get(4)),
+        index.getCandidates("/user/admin/x"));
+    assertEquals(Arrays.asList(mountPoints.get(1), mountPoints.get(3)),
+        index.getCandidates("/data/x"));
+    assertEquals(Arrays.asList(mountPoints.get(3)),
+        index.getCandidates("/other"));
+  }
+
+  @Test
+  public void testSameFirstMatchAsSequential() throws Exception {
+    String[] regexes = new String[300];
+    for (int i = 0; i < regexes.length; i++) {
+      regexes[i] = i % 3 == 0 ? "^/proj" + i + "/(\\w+)"
+          : i % 3 == 1 ? "^/user/u" + i + "(/|$)" : "^/tmp" + (i % 7) + "+x";
+    }
+    List<RegexMountPoint<Object>> mountPoints = newMountPoints(regexes);
+    RegexMountPointIndex<Object> index =
+        new RegexMountPointIndex<>(mountPoints, 0);
+    for (int i = 0; i < 400; i++) {
+      for (String path : new String[] {"/proj" + i + "/a", "/user/u" + i,
+          "/user/u" + i + "/b", "/tmp" + (i % 9) + "x", "/tmp11x", "/z"}) {
+        RegexMountPoint<Object> expected = null;
+        for (RegexMountPoint<Object> mountPoint : mountPoints) {
+          if (find(mountPoint.getSrcPattern(), path)) {
+            expected = mountPoint;
+            break;
+          }
+        }
+        RegexMountPoint<Object> actual = null;
+        for (RegexMountPoint<Object> mountPoint : index.getCandidates(path)) {
+          if (find(mountPoint.getSrcPattern(), path)) {
+            actual = mountPoint;
+            break;
+          }
+        }
+        assertSame(expected, actual, path);
+      }
+    }
+  }
+
+  private static boolean find(Pattern pattern, String path) {
+    return pattern.matcher(path).find();
+  }
+}
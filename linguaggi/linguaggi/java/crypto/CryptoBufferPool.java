@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A pool of direct buffers for the crypto streams, so that streams opened
+ * and closed in quick succession reuse their buffers rather than allocating
+ * and freeing them each time. The buffers are pooled by capacity, up to a
+ * total capacity; the buffers beyond it are freed with
+ * {@link CryptoStreamUtils#freeDB(ByteBuffer)}.
+ */
+@InterfaceAudience.Private
+public class CryptoBufferPool {
+  private final long maxRetainedBytes;
+  /** Guarded by this. */
+  private final Map<Integer, ArrayDeque<ByteBuffer>> buffers =
+      new HashMap<>();
+  /** Guarded by this. */
+  private long retainedBytes;
+
+  /**
+   * @param maxRetainedBytes the total capacity of the buffers kept.
+   */
+  public CryptoBufferPool(long maxRetainedBytes) {
+    this.maxRetainedBytes = maxRetainedBytes;
+  }
+
+  /**
+   * Get a cleared direct buffer.
+   *
+   * @param capacity the capacity of the buffer.
+   * @return a buffer from the pool, or a new buffer.
+   */
+  public ByteBuffer getBuffer(int capacity) {
+    synchronized (this) {
+      ArrayDeque<ByteBuffer> free = buffers.get(capacity);
+      ByteBuffer buffer = free == null ? null : free.poll();
+      if (buffer != null) {
+        retainedBytes -= capacity;
+        buffer.clear();
+        return buffer;
+      }
+    }
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * Return a buffer got from {@link #getBuffer(int)} to the pool. It must
+   * not be used after.
+   *
+   * @param buffer the buffer.
+   */
+  public void returnBuffer(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+    synchronized (this) {
+      if (retainedBytes + buffer.capacity() <= maxRetainedBytes) {
+        buffers.computeIfAbsent(buffer.capacity(), c -> new ArrayDeque<>())
+            .push(buffer);
+        retainedBytes += buffer.capacity();
+        return;
+      }
+    }
+    CryptoStreamUtils.freeDB(buffer);
+  }
+
+  /**
+   * @return the total capacity of the buffers in the pool.
+   */
+  public synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  /**
+   * Free the buffers in the pool.
+   */
+  public void clear() {
+    ArrayDeque<ByteBuffer> freed = new ArrayDeque<>();
+    synchronized (this) {
+      for (ArrayDeque<ByteBuffer> free : buffers.values()) {
+        freed.addAll(free);
+      }
+      buffers.clear();
+      retainedBytes = 0;
+    }
+    for (ByteBuffer buffer : freed) {
+      CryptoStreamUtils.freeDB(buffer);
+    }
+  }
+}
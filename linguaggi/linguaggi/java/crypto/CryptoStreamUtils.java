@@ -38,6 +38,10 @@ public class CryptoStreamUtils {
   private static final int MIN_BUFFER_SIZE = 512;
   private static final Logger LOG =
       LoggerFactory.getLogger(CryptoStreamUtils.class);
+  /** The total capacity of the direct buffers kept for reuse. */
+  private static final long MAX_POOLED_BUFFER_BYTES = 64L * 1024 * 1024;
+  private static final CryptoBufferPool BUFFER_POOL =
+      new CryptoBufferPool(MAX_POOLED_BUFFER_BYTES);
 
   /**
    * Forcibly free the direct buffer.
@@ -56,6 +60,17 @@ public class CryptoStreamUtils {
     }
   }
 
+  /**
+   * Get the pool of direct buffers shared by the crypto streams. Streams
+   * which get their buffers from it return them on close, instead of
+   * freeing them with {@link #freeDB(ByteBuffer)}.
+   *
+   * @return the shared buffer pool.
+   */
+  public static CryptoBufferPool getBufferPool() {
+    return BUFFER_POOL;
+  }
+
   /**
    * Read crypto buffer size.
    *
@@ -0,0 +1,232 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.fs.ByteBufferReadable;
+
+/**
+ * An input stream decrypting a CTR mode stream on several threads, for
+ * sequential reads of large encrypted files, which are otherwise bound to
+ * the cipher throughput of a single core.
+ *
+ * The stream reads the encrypted data into a direct buffer of several
+ * segments and decrypts the segments in parallel with a
+ * {@link ParallelCtrCipher}. The direct buffers come from the
+ * {@link CryptoStreamUtils#getBufferPool() shared pool}, and are returned
+ * to it on close.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class ParallelCryptoInputStream extends FilterInputStream {
+  private final ParallelCtrCipher cipher;
+  private final int bufferSize;
+  private final CryptoBufferPool bufferPool;
+  /** Encrypted data. */
+  private ByteBuffer inBuffer;
+  /** Decrypted data, the remaining bytes of which have not been read. */
+  private ByteBuffer outBuffer;
+  /** Whether the stream reads into a buffer, null until the first read. */
+  private Boolean usingByteBufferRead = null;
+  /** For streams which can't read into a buffer. */
+  private byte[] tmpBuf;
+  private final byte[] oneByte = new byte[1];
+  /** The stream offset of the end of the decrypted data. */
+  private long streamOffset;
+  private boolean closed;
+
+  /**
+   * Creates a stream with buffers of
+   * {@link ParallelCtrCipher#getDefaultBufferSize()}, decrypting on the
+   * shared executor.
+   *
+   * @param in the encrypted stream.
+   * @param codec a CTR mode codec.
+   * @param key the key.
+   * @param iv the initial IV.
+   * @throws IOException if the stream offset can't be got.
+   */
+  public ParallelCryptoInputStream(InputStream in, CryptoCodec codec,
+      byte[] key, byte[] iv) throws IOException {
+    this(in, codec, ParallelCtrCipher.getDefaultBufferSize(), key, iv,
+        CryptoStreamUtils.getInputStreamOffset(in),
+        ParallelCtrCipher.DEFAULT_SEGMENT_SIZE,
+        ParallelCtrCipher.getSharedExecutor());
+  }
+
+  /**
+   * @param in the encrypted stream.
+   * @param codec a CTR mode codec.
+   * @param bufferSize the size of the buffers.
+   * @param key the key.
+   * @param iv the initial IV.
+   * @param streamOffset the offset of the stream in the encrypted data.
+   * @param segmentSize the size of the segments decrypted in parallel.
+   * @param executor the executor to decrypt on.
+   */
+  public ParallelCryptoInputStream(InputStream in, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv, long streamOffset,
+      int segmentSize, ExecutorService executor) {
+    super(in);
+    this.bufferSize = CryptoStreamUtils.checkBufferSize(codec, bufferSize);
+    this.cipher = new ParallelCtrCipher(codec, false, key, iv, segmentSize,
+        executor);
+    this.streamOffset = streamOffset;
+    this.bufferPool = CryptoStreamUtils.getBufferPool();
+    inBuffer = bufferPool.getBuffer(this.bufferSize);
+    outBuffer = bufferPool.getBuffer(this.bufferSize);
+    outBuffer.limit(0);
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(oneByte, 0, 1) == -1 ? -1 : (oneByte[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    checkStream();
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!outBuffer.hasRemaining() && !fill()) {
+      return -1;
+    }
+    final int n = Math.min(len, outBuffer.remaining());
+    outBuffer.get(b, off, n);
+    return n;
+  }
+
+  /**
+   * Read and decrypt more data.
+   *
+   * @return false at the end of the stream.
+   */
+  private boolean fill() throws IOException {
+    inBuffer.clear();
+    // read what is available, to decrypt as many segments as possible
+    do {
+      if (readIntoBuffer() < 0) {
+        break;
+      }
+    } while (inBuffer.hasRemaining() && in.available() > 0);
+    inBuffer.flip();
+    if (!inBuffer.hasRemaining()) {
+      return false;
+    }
+    outBuffer.clear();
+    final int n = inBuffer.remaining();
+    cipher.process(streamOffset, inBuffer, outBuffer);
+    streamOffset += n;
+    outBuffer.flip();
+    return true;
+  }
+
+  private int readIntoBuffer() throws IOException {
+    if (usingByteBufferRead == null) {
+      if (in instanceof ByteBufferReadable) {
+        try {
+          final int n = ((ByteBufferReadable) in).read(inBuffer);
+          usingByteBufferRead = Boolean.TRUE;
+          return n;
+        } catch (UnsupportedOperationException e) {
+          // e.g. FSDataInputStream over a stream without read(ByteBuffer)
+          usingByteBufferRead = Boolean.FALSE;
+        }
+      } else {
+        usingByteBufferRead = Boolean.FALSE;
+      }
+    } else if (usingByteBufferRead) {
+      return ((ByteBufferReadable) in).read(inBuffer);
+    }
+    return readFromUnderlyingStream();
+  }
+
+  private int readFromUnderlyingStream() throws IOException {
+    if (tmpBuf == null) {
+      tmpBuf = new byte[bufferSize];
+    }
+    final int n = in.read(tmpBuf, 0, inBuffer.remaining());
+    if (n > 0) {
+      inBuffer.put(tmpBuf, 0, n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    checkStream();
+    if (n <= 0) {
+      return 0;
+    }
+    if (n <= outBuffer.remaining()) {
+      outBuffer.position(outBuffer.position() + (int) n);
+      return n;
+    }
+    // the keystream of any offset can be computed, so skip the rest
+    long skipped = outBuffer.remaining();
+    outBuffer.position(outBuffer.limit());
+    final long s = in.skip(n - skipped);
+    streamOffset += s;
+    return skipped + s;
+  }
+
+  @Override
+  public int available() throws IOException {
+    checkStream();
+    return (int) Math.min(Integer.MAX_VALUE,
+        (long) in.available() + outBuffer.remaining());
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      super.close();
+    } finally {
+      bufferPool.returnBuffer(inBuffer);
+      bufferPool.returnBuffer(outBuffer);
+      inBuffer = null;
+      outBuffer = null;
+    }
+  }
+
+  private void checkStream() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * An output stream encrypting in CTR mode on several threads.
+ *
+ * The written data is buffered in a direct buffer of several segments,
+ * which are encrypted in parallel with a {@link ParallelCtrCipher} when the
+ * buffer is full or the stream is flushed. The direct buffers come from the
+ * {@link CryptoStreamUtils#getBufferPool() shared pool}, and are returned
+ * to it on close. The encrypted data is written straight from the direct
+ * buffer when the wrapped stream is a {@link WritableByteChannel}.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class ParallelCryptoOutputStream extends FilterOutputStream {
+  private final ParallelCtrCipher cipher;
+  private final CryptoBufferPool bufferPool;
+  /** Data to encrypt. */
+  private ByteBuffer inBuffer;
+  private ByteBuffer outBuffer;
+  private final int bufferSize;
+  /** For streams which can't write from a buffer, null until needed. */
+  private byte[] tmpBuf;
+  private final byte[] oneByte = new byte[1];
+  /** The stream offset of the start of the data to encrypt. */
+  private long streamOffset;
+  private boolean closed;
+
+  /**
+   * Creates a stream with buffers of
+   * {@link ParallelCtrCipher#getDefaultBufferSize()}, encrypting on the
+   * shared executor.
+   *
+   * @param out the stream to write the encrypted data to.
+   * @param codec a CTR mode codec.
+   * @param key the key.
+   * @param iv the initial IV.
+   * @param streamOffset the offset of the stream in the encrypted data.
+   */
+  public ParallelCryptoOutputStream(OutputStream out, CryptoCodec codec,
+      byte[] key, byte[] iv, long streamOffset) {
+    this(out, codec, ParallelCtrCipher.getDefaultBufferSize(), key, iv,
+        streamOffset,
+        ParallelCtrCipher.DEFAULT_SEGMENT_SIZE,
+        ParallelCtrCipher.getSharedExecutor());
+  }
+
+  /**
+   * @param out the stream to write the encrypted data to.
+   * @param codec a CTR mode codec.
+   * @param bufferSize the size of the buffers.
+   * @param key the key.
+   * @param iv the initial IV.
+   * @param streamOffset the offset of the stream in the encrypted data.
+   * @param segmentSize the size of the segments encrypted in parallel.
+   * @param executor the executor to encrypt on.
+   */
+  public ParallelCryptoOutputStream(OutputStream out, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv, long streamOffset,
+      int segmentSize, ExecutorService executor) {
+    super(out);
+    this.bufferSize = CryptoStreamUtils.checkBufferSize(codec, bufferSize);
+    this.cipher = new ParallelCtrCipher(codec, true, key, iv, segmentSize,
+        executor);
+    this.streamOffset = streamOffset;
+    this.bufferPool = CryptoStreamUtils.getBufferPool();
+    inBuffer = bufferPool.getBuffer(this.bufferSize);
+    outBuffer = bufferPool.getBuffer(this.bufferSize);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    oneByte[0] = (byte) b;
+    write(oneByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkStream();
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      final int n = Math.min(len, inBuffer.remaining());
+      inBuffer.put(b, off, n);
+      off += n;
+      len -= n;
+      if (!inBuffer.hasRemaining()) {
+        encrypt();
+      }
+    }
+  }
+
+  /**
+   * Encrypt the buffered data and write it out.
+   */
+  private void encrypt() throws IOException {
+    inBuffer.flip();
+    if (!inBuffer.hasRemaining()) {
+      inBuffer.clear();
+      return;
+    }
+    outBuffer.clear();
+    final int n = inBuffer.remaining();
+    cipher.process(streamOffset, inBuffer, outBuffer);
+    streamOffset += n;
+    inBuffer.clear();
+    outBuffer.flip();
+    if (out instanceof WritableByteChannel) {
+      final WritableByteChannel channel = (WritableByteChannel) out;
+      while (outBuffer.hasRemaining()) {
+        channel.write(outBuffer);
+      }
+      return;
+    }
+    if (tmpBuf == null) {
+      tmpBuf = new byte[bufferSize];
+    }
+    outBuffer.get(tmpBuf, 0, n);
+    out.write(tmpBuf, 0, n);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    checkStream();
+    encrypt();
+    super.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      closed = true;
+      try {
+        out.close();
+      } finally {
+        bufferPool.returnBuffer(inBuffer);
+        bufferPool.returnBuffer(outBuffer);
+        inBuffer = null;
+        outBuffer = null;
+      }
+    }
+  }
+
+  private void checkStream() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+}
@@ -0,0 +1,274 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.crypto;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.thirdparty.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.util.Preconditions;
+import org.apache.hadoop.util.concurrent.HadoopExecutors;
+
+/**
+ * Encrypts or decrypts with a CTR mode codec on several threads.
+ *
+ * In CTR mode the keystream of a block only depends on the key and on the
+ * IV of the block, which {@link CryptoCodec#calculateIV} derives from the
+ * initial IV and the stream offset. So a buffer is split into segments
+ * aligned on multiples of the segment size in the stream, and each segment
+ * is processed independently by its own {@link Encryptor} or
+ * {@link Decryptor}, initialized with the IV of the segment offset.
+ * Buffers of at most a segment are processed on the calling thread.
+ */
+@InterfaceAudience.Private
+public class ParallelCtrCipher {
+  /** The default segment size, which should amortize the cipher init. */
+  public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+  /** The maximum number of segments of the default stream buffers. */
+  public static final int DEFAULT_MAX_SEGMENTS = 4;
+
+  private static volatile ExecutorService sharedExecutor;
+
+  /** A cipher with its IV and the buffers to skip a block prefix. */
+  private final class Worker {
+    private final Encryptor encryptor;
+    private final Decryptor decryptor;
+    private final byte[] iv = new byte[blockSize];
+    private final ByteBuffer paddingIn = ByteBuffer.allocateDirect(blockSize);
+    private final ByteBuffer paddingOut = ByteBuffer.allocateDirect(blockSize);
+
+    Worker() throws IOException {
+      try {
+        encryptor = encrypt ? codec.createEncryptor() : null;
+        decryptor = encrypt ? null : codec.createDecryptor();
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+    }
+
+    /**
+     * Process a segment starting at the stream offset.
+     */
+    void process(long offset, ByteBuffer in, ByteBuffer out)
+        throws IOException {
+      codec.calculateIV(initIV, offset / blockSize, iv);
+      final int padding = (int) (offset % blockSize);
+      if (encrypt) {
+        encryptor.init(key, iv);
+      } else {
+        decryptor.init(key, iv);
+      }
+      if (padding > 0) {
+        // consume the keystream of the block before the offset
+        paddingIn.clear().limit(padding);
+        paddingOut.clear();
+        update(paddingIn, paddingOut);
+      }
+      update(in, out);
+    }
+
+    private void update(ByteBuffer in, ByteBuffer out) throws IOException {
+      if (encrypt) {
+        encryptor.encrypt(in, out);
+      } else {
+        decryptor.decrypt(in, out);
+      }
+    }
+  }
+
+  private final CryptoCodec codec;
+  private final boolean encrypt;
+  private final byte[] key;
+  private final byte[] initIV;
+  private final int blockSize;
+  private final int segmentSize;
+  private final ExecutorService executor;
+  /** Guarded by itself. */
+  private final ArrayDeque<Worker> workers = new ArrayDeque<>();
+
+  /**
+   * @param codec a CTR mode codec.
+   * @param encrypt whether to encrypt, or decrypt.
+   * @param key the key.
+   * @param iv the initial IV.
+   * @param segmentSize the size of the segments processed in parallel,
+   *        floored to a multiple of the cipher block size.
+   * @param executor the executor to process the segments on.
+   */
+  public ParallelCtrCipher(CryptoCodec codec, boolean encrypt, byte[] key,
+      byte[] iv, int segmentSize, ExecutorService executor) {
+    CryptoStreamUtils.checkCodec(codec);
+    this.codec = codec;
+    this.encrypt = encrypt;
+    this.key = key.clone();
+    this.initIV = iv.clone();
+    this.blockSize = codec.getCipherSuite().getAlgorithmBlockSize();
+    this.segmentSize = segmentSize - segmentSize % blockSize;
+    Preconditions.checkArgument(this.segmentSize > 0,
+        "Segment size must be at least the block size %s: %s", blockSize,
+        segmentSize);
+    this.executor = executor;
+  }
+
+  /**
+   * @return the executor with a daemon thread per processor shared by the
+   *         ciphers which are not given one.
+   */
+  public static ExecutorService getSharedExecutor() {
+    ExecutorService executor = sharedExecutor;
+    if (executor == null) {
+      synchronized (ParallelCtrCipher.class) {
+        executor = sharedExecutor;
+        if (executor == null) {
+          executor = HadoopExecutors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(),
+              new ThreadFactoryBuilder().setDaemon(true)
+                  .setNameFormat("Parallel CTR cipher #%d").build());
+          sharedExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  /**
+   * @return the default buffer size of the parallel crypto streams: a
+   *         segment per processor, up to {@link #DEFAULT_MAX_SEGMENTS}.
+   */
+  public static int getDefaultBufferSize() {
+    return DEFAULT_SEGMENT_SIZE * Math.min(DEFAULT_MAX_SEGMENTS,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @return the segment size.
+   */
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Encrypt or decrypt all the remaining bytes of the input buffer into the
+   * output buffer, advancing the positions of both.
+   *
+   * @param offset the stream offset of the input buffer position.
+   * @param in the input buffer.
+   * @param out the output buffer, with at least as many bytes remaining.
+   * @throws IOException if the cipher fails.
+   */
+  public void process(long offset, ByteBuffer in, ByteBuffer out)
+      throws IOException {
+    final int length = in.remaining();
+    Preconditions.checkArgument(out.remaining() >= length,
+        "Output buffer has %s bytes remaining for %s bytes", out.remaining(),
+        length);
+    final int inStart = in.position();
+    final int outStart = out.position();
+    final List<Future<?>> futures = new ArrayList<>();
+    IOException failure = null;
+    try {
+      int start = 0;
+      while (start < length) {
+        final long segmentOffset = offset + start;
+        // align the segment end on the segment size in the stream
+        final int end = (int) Math.min(length, start + segmentSize
+            - segmentOffset % segmentSize);
+        final ByteBuffer segmentIn = in.duplicate();
+        segmentIn.limit(inStart + end).position(inStart + start);
+        final ByteBuffer segmentOut = out.duplicate();
+        segmentOut.position(outStart + start).limit(outStart + end);
+        if (end == length) {
+          // the last segment is processed on the calling thread
+          processSegment(segmentOffset, segmentIn, segmentOut);
+        } else {
+          futures.add(executor.submit(() -> {
+            processSegment(segmentOffset, segmentIn, segmentOut);
+            return null;
+          }));
+        }
+        start = end;
+      }
+    } catch (IOException e) {
+      failure = e;
+    } finally {
+      // the segments must be done with the buffers before returning
+      failure = await(futures, failure);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    in.position(inStart + length);
+    out.position(outStart + length);
+  }
+
+  private void processSegment(long offset, ByteBuffer in, ByteBuffer out)
+      throws IOException {
+    Worker worker;
+    synchronized (workers) {
+      worker = workers.poll();
+    }
+    if (worker == null) {
+      worker = new Worker();
+    }
+    try {
+      worker.process(offset, in, out);
+    } finally {
+      synchronized (workers) {
+        workers.push(worker);
+      }
+    }
+  }
+
+  private static IOException await(List<Future<?>> futures,
+      IOException failure) {
+    boolean interrupted = false;
+    for (Future<?> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause() instanceof IOException
+                ? (IOException) e.getCause() : new IOException(e.getCause());
+          }
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+      if (failure == null) {
+        failure = new InterruptedIOException(
+            "Interrupted while waiting for the cipher");
+      }
+    }
+    return failure;
+  }
+}
@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestParallelCryptoStreams {
+  private static final int SEGMENT_SIZE = 10000;
+  private static final int BUFFER_SIZE = 100000;
+
+  private CryptoCodec codec;
+  private ExecutorService executor;
+  private final byte[] key = new byte[16];
+  private final byte[] iv = new byte[16];
+  private byte[] data;
+
+  @BeforeEach
+  public void setUp() {
+    Configuration conf = new Configuration();
+    conf.set(
+        CommonConfigurationKeysPublic.HADOOP_SECURITY_CRYPTO_CODEC_CLASSES_AES_CTR_NOPADDING_KEY,
+        JceAesCtrCryptoCodec.class.getName());
+    codec = CryptoCodec.getInstance(conf);
+    executor = Executors.newFixedThreadPool(4);
+    Random random = new Random(0);
+    random.nextBytes(key);
+    // the counter carries into the upper half of the IV
+    Arrays.fill(iv, (byte) 0xff);
+    data = new byte[1000017];
+    random.nextBytes(data);
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    codec.close();
+  }
+
+  /** Encrypt with a single cipher. */
+  private byte[] encrypt() throws Exception {
+    Encryptor encryptor = codec.createEncryptor();
+    encryptor.init(key, iv);
+    ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+    ByteBuffer out = ByteBuffer.allocateDirect(data.length);
+    in.put(data).flip();
+    encryptor.encrypt(in, out);
+    out.flip();
+    byte[] encrypted = new byte[data.length];
+    out.get(encrypted);
+    return encrypted;
+  }
+
+  @Test
+  public void testEncrypt() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Random random = new Random(1);
+    try (ParallelCryptoOutputStream out = new ParallelCryptoOutputStream(
+        bytes, codec, BUFFER_SIZE, key, iv, 0, SEGMENT_SIZE, executor)) {
+      out.write(data[0]);
+      int pos = 1;
+      while (pos < data.length) {
+        int n = Math.min(random.nextInt(3 * BUFFER_SIZE / 2),
+            data.length - pos);
+        out.write(data, pos, n);
+        pos += n;
+        if (random.nextInt(8) == 0) {
+          // segments not aligned on the stream
+          out.flush();
+        }
+      }
+    }
+    assertArrayEquals(encrypt(), bytes.toByteArray());
+  }
+
+  /** A stream which can also write from buffers. */
+  private static class ChannelOutputStream extends ByteArrayOutputStream
+      implements WritableByteChannel {
+    private int bufferWrites;
+    private int arrayWrites;
+
+    @Override
+    public int write(ByteBuffer src) {
+      bufferWrites++;
+      int n = src.remaining();
+      byte[] b = new byte[n];
+      src.get(b);
+      super.write(b, 0, n);
+      return n;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      arrayWrites++;
+      super.write(b, off, len);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+  }
+
+  @Test
+  public void testEncryptToChannel() throws Exception {
+    ChannelOutputStream channel = new ChannelOutputStream();
+    try (ParallelCryptoOutputStream out = new ParallelCryptoOutputStream(
+        channel, codec, BUFFER_SIZE, key, iv, 0, SEGMENT_SIZE, executor)) {
+      out.write(data, 0, data.length);
+    }
+    assertArrayEquals(encrypt(), channel.toByteArray());
+    // the direct buffers are written without a copy to the heap
+    assertTrue(channel.bufferWrites > 0);
+    assertEquals(0, channel.arrayWrites);
+  }
+
+  @Test
+  public void testDefaultBufferSize() {
+    int size = ParallelCtrCipher.getDefaultBufferSize();
+    assertTrue(size >= ParallelCtrCipher.DEFAULT_SEGMENT_SIZE);
+    assertTrue(size <= ParallelCtrCipher.DEFAULT_SEGMENT_SIZE
+        * ParallelCtrCipher.DEFAULT_MAX_SEGMENTS);
+  }
+
+  @Test
+  public void testDecryptFromOffset() throws Exception {
+    byte[] encrypted = encrypt();
+    int offset = 12345;
+    try (ParallelCryptoInputStream in = new ParallelCryptoInputStream(
+        new ByteArrayInputStream(encrypted, offset, data.length - offset),
+        codec, BUFFER_SIZE, key, iv, offset, SEGMENT_SIZE, executor)) {
+      assertEquals(data[offset] & 0xff, in.read());
+      // within the buffer, then beyond it
+      assertEquals(99, in.skip(99));
+      assertEquals(2 * BUFFER_SIZE, in.skip(2 * BUFFER_SIZE));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buf = new byte[7777];
+      for (int n; (n = in.read(buf, 0, buf.length)) != -1;) {
+        bytes.write(buf, 0, n);
+      }
+      assertArrayEquals(Arrays.copyOfRange(data, offset + 100
+          + 2 * BUFFER_SIZE, data.length), bytes.toByteArray());
+    }
+  }
+
+  /** Claims to read into buffers but does not, like some wrapped streams. */
+  private static class NoByteBufferReadStream extends ByteArrayInputStream
+      implements ByteBufferReadable {
+    private int byteBufferReads;
+
+    NoByteBufferReadStream(byte[] buf) {
+      super(buf);
+    }
+
+    @Override
+    public int read(ByteBuffer buf) {
+      byteBufferReads++;
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Test
+  public void testDecryptWithoutByteBufferRead() throws Exception {
+    NoByteBufferReadStream encrypted = new NoByteBufferReadStream(encrypt());
+    try (ParallelCryptoInputStream in = new ParallelCryptoInputStream(
+        encrypted, codec, BUFFER_SIZE, key, iv, 0, SEGMENT_SIZE, executor)) {
+      byte[] decrypted = new byte[data.length];
+      int pos = 0;
+      for (int n; (n = in.read(decrypted, pos, decrypted.length - pos)) > 0;) {
+        pos += n;
+      }
+      assertEquals(data.length, pos);
+      assertArrayEquals(data, decrypted);
+    }
+    // the stream falls back to byte[] reads for good after the first failure
+    assertEquals(1, encrypted.byteBufferReads);
+  }
+
+  @Test
+  public void testBufferPool() {
+    CryptoBufferPool pool = new CryptoBufferPool(2 * BUFFER_SIZE);
+    ByteBuffer b1 = pool.getBuffer(BUFFER_SIZE);
+    ByteBuffer b2 = pool.getBuffer(BUFFER_SIZE);
+    ByteBuffer b3 = pool.getBuffer(BUFFER_SIZE);
+    b1.put((byte) 1);
+    pool.returnBuffer(b1);
+    pool.returnBuffer(b2);
+    // beyond the limit
+    pool.returnBuffer(b3);
+    assertEquals(2 * BUFFER_SIZE, pool.getRetainedBytes());
+    ByteBuffer reused = pool.getBuffer(BUFFER_SIZE);
+    assertSame(b2, reused);
+    assertSame(b1, pool.getBuffer(BUFFER_SIZE));
+    assertEquals(0, b1.position());
+    pool.clear();
+    assertEquals(0, pool.getRetainedBytes());
+  }
+}
@@ -21,11 +21,20 @@ package org.apache.hadoop.fs;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import java.util.NoSuchElementException;
 import org.apache.hadoop.classification.InterfaceAudience;
@@ -33,8 +42,10 @@ import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.fs.Options.ChecksumOpt;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.thirdparty.com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.concurrent.HadoopExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +61,24 @@ public abstract class ChecksumFs extends FilterFs {
   private static final byte[] CHECKSUM_VERSION = new byte[] {'c', 'r', 'c', 0};
   private int defaultBytesPerChecksum = 512;
   private boolean verifyChecksum = true;
+  private int verifyReadAhead = 0;
+
+  /** Length of the data read and verified ahead by one task. */
+  static final int READ_AHEAD_SEGMENT_LENGTH = 256 * 1024;
+
+  private static ExecutorService verifierPool;
+
+  private static synchronized ExecutorService getVerifierPool() {
+    if (verifierPool == null) {
+      int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+      verifierPool = HadoopExecutors.newFixedThreadPool(threads,
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("ChecksumFs verifier #%d")
+              .build());
+    }
+    return verifierPool;
+  }
 
   public static double getApproxChkSumLength(long size) {
     return ChecksumFSOutputSummer.CHKSUM_AS_FRACTION * size;
@@ -70,6 +99,20 @@ public abstract class ChecksumFs extends FilterFs {
     this.verifyChecksum = inVerifyChecksum;
   }
 
+  /**
+   * Set how many segments of data and checksums streams opened afterwards
+   * read and verify ahead of the read position, on a small shared pool.
+   * This takes checksum computation off the reading thread, so large
+   * sequential scans become I/O bound. 0, the default, verifies each
+   * chunk synchronously when it is read.
+   *
+   * @param segments number of segments of
+   *     {@value #READ_AHEAD_SEGMENT_LENGTH} bytes to read ahead.
+   */
+  public void setVerifyReadAhead(int segments) {
+    this.verifyReadAhead = Math.max(0, segments);
+  }
+
   /**
    * get the raw file system.
    *
@@ -134,7 +177,8 @@ public abstract class ChecksumFs extends FilterFs {
    * For open()'s FSInputStream
    * It verifies that data matches checksums.
    *******************************************************/
-  private static class ChecksumFSInputChecker extends FSInputChecker {
+  private static class ChecksumFSInputChecker extends FSInputChecker
+      implements ByteBufferPositionedReadable, StreamCapabilities {
     public static final Logger LOG =
         LoggerFactory.getLogger(FSInputChecker.class);
     private static final int HEADER_LENGTH = 8;
@@ -144,6 +188,10 @@ public abstract class ChecksumFs extends FilterFs {
     private FSDataInputStream sums;
     private int bytesPerSum = 1;
     private long fileLen = -1L;
+    private ReadAhead readAhead;
+    /** Buffers of verified reads, taken by one reader at a time. */
+    private final AtomicReference<VerifyScratch> scratch =
+        new AtomicReference<>();
     
     public ChecksumFSInputChecker(ChecksumFs fs, Path file)
       throws IOException, UnresolvedLinkException {
@@ -167,7 +215,13 @@ public abstract class ChecksumFs extends FilterFs {
           throw new IOException("Not a checksum file: "+sumFile);
         }
         this.bytesPerSum = sums.readInt();
-        set(fs.verifyChecksum, DataChecksum.newCrc32(), bytesPerSum, 4);
+        if (fs.verifyChecksum && fs.verifyReadAhead > 0) {
+          // chunks are verified by the read ahead instead
+          readAhead = new ReadAhead(fs.verifyReadAhead);
+          set(false, null, bytesPerSum, 0);
+        } else {
+          set(fs.verifyChecksum, DataChecksum.newCrc32(), bytesPerSum, 4);
+        }
       } catch (FileNotFoundException e) {         // quietly ignore
         set(fs.verifyChecksum, null, 1, 0);
       } catch (IOException e) {                   // loudly ignore
@@ -200,17 +254,305 @@ public abstract class ChecksumFs extends FilterFs {
         return 0;
       }
 
-      int nread;
-      try (ChecksumFSInputChecker checker =
-               new ChecksumFSInputChecker(fs, file)) {
-        checker.seek(position);
-        nread = checker.read(b, off, len);
+      // verified like a ByteBuffer pread, without opening another checker
+      return read(position, ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buf) throws IOException {
+      if (position < 0) {
+        throw new EOFException(FSExceptionMessages.NEGATIVE_SEEK);
+      }
+      int len = buf.remaining();
+      if (len == 0) {
+        return 0;
+      }
+      long fileLength = getFileLength();
+      if (position >= fileLength) {
+        return -1;
+      }
+      len = (int) Math.min(len, fileLength - position);
+      if (sums == null || !fs.verifyChecksum) {
+        readRawFully(position, buf, len);
+        return len;
+      }
+      // checksums cover whole chunks, so verify the enclosing chunks
+      long start = getChunkPosition(position);
+      long end = Math.min(fileLength,
+          getChunkPosition(position + len - 1) + bytesPerSum);
+      VerifyScratch s = takeScratch();
+      try {
+        if (start == position && end == position + len) {
+          readVerified(s, start, buf, len);
+        } else {
+          int alignedLen = (int) (end - start);
+          ByteBuffer aligned = s.aligned(alignedLen, buf.isDirect());
+          readVerified(s, start, aligned, alignedLen);
+          aligned.position((int) (position - start));
+          aligned.limit(aligned.position() + len);
+          buf.put(aligned);
+        }
+      } finally {
+        scratch.set(s);
+      }
+      return len;
+    }
+
+    private VerifyScratch takeScratch() {
+      VerifyScratch s = scratch.getAndSet(null);
+      return s != null ? s : new VerifyScratch(bytesPerSum);
+    }
+
+    @Override
+    public void readFully(long position, ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        int n = read(position, buf);
+        if (n < 0) {
+          throw new EOFException(FSExceptionMessages.EOF_IN_READ_FULLY);
+        }
+        position += n;
+      }
+    }
+
+    @Override
+    public boolean hasCapability(String capability) {
+      return StreamCapabilities.PREADBYTEBUFFER.equals(capability);
+    }
+
+    /**
+     * Read len bytes at the given position into the buffer, advancing its
+     * position, with positional reads which leave the stream untouched.
+     */
+    private void readRawFully(long position, ByteBuffer buf, int len)
+        throws IOException {
+      if (datas.hasCapability(StreamCapabilities.PREADBYTEBUFFER)) {
+        ByteBuffer view = buf.duplicate();
+        view.limit(view.position() + len);
+        datas.readFully(position, view);
+      } else if (buf.hasArray()) {
+        datas.readFully(position, buf.array(),
+            buf.arrayOffset() + buf.position(), len);
+      } else {
+        byte[] tmp = new byte[len];
+        datas.readFully(position, tmp, 0, len);
+        buf.duplicate().put(tmp);
+      }
+      buf.position(buf.position() + len);
+    }
+
+    /**
+     * Read and verify the chunks of [start, start + len), where start is a
+     * chunk boundary and len ends at a chunk boundary or at the end of the
+     * file. Thread safe.
+     */
+    private void readVerified(VerifyScratch s, long start, ByteBuffer buf,
+        int len) throws IOException {
+      int dataStart = buf.position();
+      readRawFully(start, buf, len);
+      int checksumsLength =
+          CHECKSUM_SIZE * ((len + bytesPerSum - 1) / bytesPerSum);
+      byte[] checksums = s.checksums(checksumsLength);
+      try {
+        sums.readFully(getChecksumFilePos(start), checksums, 0,
+            checksumsLength);
+      } catch (EOFException e) {
+        throw new ChecksumException("Checksum error: " + file + " at "
+            + start, start);
+      }
+      ByteBuffer data = buf.duplicate();
+      data.limit(dataStart + len);
+      data.position(dataStart);
+      s.checksum.verifyChunkedSums(data,
+          ByteBuffer.wrap(checksums, 0, checksumsLength), file.toString(),
+          start);
+    }
+
+    /**
+     * The checksum and buffers of verified reads, which are not thread
+     * safe, so each reader takes them from the stream and puts them back.
+     */
+    private static final class VerifyScratch {
+      /** Larger aligned buffers are not kept. */
+      private static final int MAX_ALIGNED_LENGTH = 1 << 20;
+
+      private final DataChecksum checksum;
+      private byte[] checksums = new byte[0];
+      private ByteBuffer aligned;
+
+      VerifyScratch(int bytesPerSum) {
+        this.checksum =
+            DataChecksum.newDataChecksum(DataChecksum.Type.CRC32, bytesPerSum);
+      }
+
+      byte[] checksums(int length) {
+        if (checksums.length < length) {
+          checksums = new byte[length];
+        }
+        return checksums;
+      }
+
+      ByteBuffer aligned(int length, boolean direct) {
+        if (length > MAX_ALIGNED_LENGTH) {
+          return direct ? ByteBuffer.allocateDirect(length)
+              : ByteBuffer.allocate(length);
+        }
+        if (aligned == null || aligned.capacity() < length
+            || aligned.isDirect() != direct) {
+          aligned = direct ? ByteBuffer.allocateDirect(length)
+              : ByteBuffer.allocate(length);
+        }
+        aligned.clear();
+        aligned.limit(length);
+        return aligned;
+      }
+    }
+
+    /** Verified data of the file starting at a chunk boundary. */
+    private static final class Segment {
+      private final long start;
+      // claimed either by its task, to run, or by close(), to skip it
+      private final AtomicBoolean claimed = new AtomicBoolean();
+      private final CountDownLatch finished = new CountDownLatch(1);
+      private Future<byte[]> data;
+
+      Segment(long start) {
+        this.start = start;
+      }
+    }
+
+    /**
+     * Reads and verifies the segments following the read position on the
+     * verifier pool, and serves sequential reads from them.
+     */
+    private final class ReadAhead {
+      private final int depth;
+      private final int segmentLength;
+      private final ArrayDeque<Segment> pending = new ArrayDeque<>();
+      private long nextStart;
+      private long currentStart;
+      private byte[] current;
+
+      ReadAhead(int depth) {
+        this.depth = depth;
+        this.segmentLength = Math.max(1,
+            READ_AHEAD_SEGMENT_LENGTH / bytesPerSum) * bytesPerSum;
+      }
+
+      int read(long pos, byte[] buf, int offset, int len) throws IOException {
+        long fileLength = getFileLength();
+        if (pos >= fileLength) {
+          return -1;
+        }
+        while (current == null || pos < currentStart
+            || pos >= currentStart + current.length) {
+          current = null;
+          Segment head = pending.peek();
+          if (head == null || pos < head.start
+              || pos >= head.start + segmentLength) {
+            // first read or a seek
+            cancel();
+            nextStart = getChunkPosition(pos);
+            fill(fileLength);
+            continue;
+          }
+          pending.poll();
+          currentStart = head.start;
+          current = get(head);
+          fill(fileLength);
+        }
+        int n = (int) Math.min(len, currentStart + current.length - pos);
+        System.arraycopy(current, (int) (pos - currentStart), buf, offset, n);
+        return n;
+      }
+
+      private void fill(long fileLength) {
+        while (pending.size() < depth && nextStart < fileLength) {
+          final long start = nextStart;
+          final int len = (int) Math.min(segmentLength, fileLength - start);
+          final Segment segment = new Segment(start);
+          segment.data = getVerifierPool().submit(() -> {
+            if (!segment.claimed.compareAndSet(false, true)) {
+              return null;
+            }
+            try {
+              byte[] data = new byte[len];
+              VerifyScratch s = takeScratch();
+              try {
+                readVerified(s, start, ByteBuffer.wrap(data), len);
+              } finally {
+                scratch.set(s);
+              }
+              return data;
+            } finally {
+              segment.finished.countDown();
+            }
+          });
+          pending.add(segment);
+          nextStart += len;
+        }
+      }
+
+      private byte[] get(Segment segment) throws IOException {
+        try {
+          return segment.data.get();
+        } catch (InterruptedException e) {
+          cancel();
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted reading " + file);
+        } catch (ExecutionException e) {
+          // a retry after a checksum error reads everything again
+          cancel();
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException("Failed to read " + file + " at "
+              + segment.start, e.getCause());
+        }
+      }
+
+      void cancel() {
+        for (Segment segment : pending) {
+          segment.data.cancel(false);
+        }
+        pending.clear();
+        current = null;
+      }
+
+      /**
+       * Cancel the pending segments, interrupting the running ones, and
+       * wait until no task uses the streams any more.
+       */
+      void cancelAndWait() {
+        boolean interrupted = false;
+        for (Segment segment : pending) {
+          if (segment.claimed.compareAndSet(false, true)) {
+            // never started and now never will
+            segment.data.cancel(false);
+            continue;
+          }
+          segment.data.cancel(true);
+          while (true) {
+            try {
+              segment.finished.await();
+              break;
+            } catch (InterruptedException e) {
+              interrupted = true;
+            }
+          }
+        }
+        pending.clear();
+        current = null;
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
       }
-      return nread;
     }
 
     @Override
     public void close() throws IOException {
+      if (readAhead != null) {
+        readAhead.cancelAndWait();
+      }
       datas.close();
       if (sums != null) {
         sums.close();
@@ -229,6 +571,9 @@ public abstract class ChecksumFs extends FilterFs {
     @Override
     protected int readChunk(long pos, byte[] buf, int offset, int len,
         byte[] checksum) throws IOException {
+      if (readAhead != null) {
+        return readAhead.read(pos, buf, offset, len);
+      }
       boolean eof = false;
       if (needChecksum()) {
         assert checksum != null; // we have a checksum buffer
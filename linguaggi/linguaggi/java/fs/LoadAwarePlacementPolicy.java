@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.io.File;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.classification.VisibleForTesting;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.thirdparty.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.util.concurrent.HadoopExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link LocalDirPlacementPolicy} which places a new file on the directory
+ * expected to write it soonest.
+ * <p>
+ * For every directory it keeps the bytes allocated but not yet written, and
+ * moving averages of the write throughput and latency reported by writers.
+ * The expected time to write a file is the latency plus the time to write
+ * the pending bytes and the file at the measured throughput, so a slow or
+ * busy disk gets fewer new files. Directories that are equally good, e.g.
+ * before anything was measured, are chosen at random.
+ * <p>
+ * Writers which do not report their progress are accounted with the size
+ * they asked for, drained at the measured throughput of the directory.
+ * The free space of the directories is refreshed in the background every
+ * {@link #DF_REFRESH_INTERVAL_KEY} milliseconds rather than on allocation.
+ */
+@InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
+@InterfaceStability.Unstable
+public class LoadAwarePlacementPolicy extends LocalDirPlacementPolicy {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(LoadAwarePlacementPolicy.class);
+
+  public static final String DF_REFRESH_INTERVAL_KEY =
+      "fs.localdir.placement.load-aware.df.refresh.ms";
+  public static final long DF_REFRESH_INTERVAL_DEFAULT = 5000;
+  /** Write throughput assumed until one is measured, in bytes/s. */
+  public static final String DEFAULT_THROUGHPUT_KEY =
+      "fs.localdir.placement.load-aware.default.throughput";
+  public static final long DEFAULT_THROUGHPUT_DEFAULT = 100L << 20;
+  /** Size accounted for a file of unknown size. */
+  public static final String UNKNOWN_SIZE_KEY =
+      "fs.localdir.placement.load-aware.unknown.size";
+  public static final long UNKNOWN_SIZE_DEFAULT = 64L << 20;
+
+  /** Weight of a new sample in the moving averages. */
+  private static final double ALPHA = 0.2;
+
+  private static ScheduledExecutorService refresher;
+
+  private static synchronized ScheduledExecutorService getRefresher() {
+    if (refresher == null) {
+      refresher = HadoopExecutors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("LocalDirPlacement df refresher")
+              .build());
+    }
+    return refresher;
+  }
+
+  /** Load of one directory. */
+  private static final class Dir {
+    private final DF df;
+    private volatile long available;
+    /** Bytes allocated to tracked writers and not written yet. */
+    private final AtomicLong inFlight = new AtomicLong();
+    /** Bytes allocated to untracked writers, drained by estimate. */
+    private final AtomicLong backlog = new AtomicLong();
+    /** Bytes per nanosecond; 0 until measured. */
+    private double throughput;
+    /** Nanoseconds per reported write. */
+    private double latency;
+
+    Dir(DF df) {
+      this.df = df;
+    }
+
+    long getPending() {
+      return inFlight.get() + backlog.get();
+    }
+
+    void refresh() {
+      // recreate the dir so that getAvailable() is valid
+      final boolean b = new File(df.getDirPath()).mkdirs();
+      LOG.debug("mkdirs of {}={}", df, b);
+      available = df.getAvailable();
+    }
+  }
+
+  private Dir[] dirs;
+  private double defaultThroughput;
+  private long unknownSize;
+  private long lastDrainNanos;
+  private ScheduledFuture<?> refreshTask;
+
+  @Override
+  public void initialize(Path[] localDirs, DF[] dirDF) {
+    Configuration conf = getConf();
+    long refreshMs = conf.getLong(DF_REFRESH_INTERVAL_KEY,
+        DF_REFRESH_INTERVAL_DEFAULT);
+    defaultThroughput = conf.getLong(DEFAULT_THROUGHPUT_KEY,
+        DEFAULT_THROUGHPUT_DEFAULT) / 1e9;
+    unknownSize = conf.getLong(UNKNOWN_SIZE_KEY, UNKNOWN_SIZE_DEFAULT);
+    Dir[] newDirs = new Dir[dirDF.length];
+    for (int i = 0; i < dirDF.length; i++) {
+      newDirs[i] = new Dir(dirDF[i]);
+      newDirs[i].refresh();
+    }
+    dirs = newDirs;
+    lastDrainNanos = System.nanoTime();
+    refreshTask = getRefresher().scheduleWithFixedDelay(this::refresh,
+        refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** Refresh the free space and drain the untracked allocations. */
+  @VisibleForTesting
+  void refresh() {
+    long now = System.nanoTime();
+    long elapsed = now - lastDrainNanos;
+    lastDrainNanos = now;
+    for (Dir dir : dirs) {
+      try {
+        dir.refresh();
+      } catch (RuntimeException e) {
+        LOG.warn("Failed to refresh the free space of {}", dir.df, e);
+      }
+      final long drained = (long) (getThroughput(dir) * elapsed);
+      dir.backlog.updateAndGet(b -> Math.max(0, b - drained));
+    }
+  }
+
+  private double getThroughput(Dir dir) {
+    synchronized (dir) {
+      return dir.throughput > 0 ? dir.throughput : defaultThroughput;
+    }
+  }
+
+  /**
+   * @param dir index of a directory
+   * @return the expected nanoseconds until a file of the given size is
+   *         written to the directory
+   */
+  @VisibleForTesting
+  double getCost(int dir, long size) {
+    Dir d = dirs[dir];
+    double latency;
+    synchronized (d) {
+      latency = d.latency;
+    }
+    return latency + (d.getPending() + size) / getThroughput(d);
+  }
+
+  @Override
+  public int chooseDir(long size, boolean[] excluded) {
+    long needed = size == LocalDirAllocator.SIZE_UNKNOWN ? 0 : size;
+    int chosen = -1;
+    double best = Double.MAX_VALUE;
+    int ties = 0;
+    for (int i = 0; i < dirs.length; i++) {
+      if (excluded[i]) {
+        continue;
+      }
+      Dir dir = dirs[i];
+      if (dir.available - dir.getPending() <= needed) {
+        continue;
+      }
+      double cost = getCost(i, needed);
+      if (cost < best) {
+        best = cost;
+        chosen = i;
+        ties = 1;
+      } else if (cost == best
+          && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+        // reservoir sampling among equally good directories
+        chosen = i;
+      }
+    }
+    return chosen;
+  }
+
+  @Override
+  public long allocated(int dir, long size, boolean tracked) {
+    long accounted = size == LocalDirAllocator.SIZE_UNKNOWN
+        ? unknownSize : size;
+    if (tracked) {
+      dirs[dir].inFlight.addAndGet(accounted);
+    } else {
+      dirs[dir].backlog.addAndGet(accounted);
+    }
+    return accounted;
+  }
+
+  @Override
+  public void written(int dir, long bytes, long nanos) {
+    if (bytes <= 0 || nanos <= 0) {
+      return;
+    }
+    Dir d = dirs[dir];
+    synchronized (d) {
+      double throughput = (double) bytes / nanos;
+      d.throughput = d.throughput == 0
+          ? throughput : d.throughput + ALPHA * (throughput - d.throughput);
+      d.latency = d.latency == 0
+          ? nanos : d.latency + ALPHA * (nanos - d.latency);
+    }
+  }
+
+  @Override
+  public void released(int dir, long bytes) {
+    dirs[dir].inFlight.addAndGet(-bytes);
+  }
+
+  @Override
+  public void close() {
+    if (refreshTask != null) {
+      refreshTask.cancel(false);
+    }
+  }
+}
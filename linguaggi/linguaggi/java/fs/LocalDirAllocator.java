@@ -61,6 +61,9 @@ import org.slf4j.LoggerFactory;
  * 3. In the class implementation, "Disk" is referred to as "Dir", which
  * actually points to the configured directory on the Disk which will be the
  * parent for all file write/read allocations.
+ * 4. The round-robin scheme can be replaced by a {@link
+ * LocalDirPlacementPolicy} configured with
+ * {@link LocalDirPlacementPolicy#PLACEMENT_POLICY_CLASSNAME_KEY}.
  */
 @InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
 @InterfaceStability.Unstable
@@ -165,6 +168,75 @@ public class LocalDirAllocator {
     AllocatorPerContext context = obtainContext(contextCfgItemName);
     return context.getLocalPathForWrite(pathStr, size, conf, checkWrite);
   }
+
+  /** Get a path from the local FS like
+   *  {@link #getLocalPathForWrite(String, long, Configuration)}, for a writer
+   *  which reports its progress to the placement policy through the returned
+   *  allocation and closes it when the file is written.
+   *  @param pathStr the requested path (this will be created on the first
+   *  available disk)
+   *  @param size the size of the file that is going to be written
+   *  @param conf the Configuration object
+   *  @return the allocation of the complete path to the file on a local disk
+   *  @throws IOException raised on errors performing I/O.
+   */
+  public WriteAllocation allocateForWrite(String pathStr, long size,
+      Configuration conf) throws IOException {
+    AllocatorPerContext context = obtainContext(contextCfgItemName);
+    return context.allocateForWrite(pathStr, size, conf);
+  }
+
+  /**
+   * A path allocated by {@link #allocateForWrite}. The writer reports the
+   * bytes it wrote, ideally per flush or sync so that the time includes the
+   * disk, and closes the allocation when the file is complete, so that the
+   * placement policy can route new files away from busy or slow disks.
+   */
+  public static final class WriteAllocation implements Closeable {
+    private final Path path;
+    private final int dir;
+    private final LocalDirPlacementPolicy policy;
+    /** Bytes accounted by the policy and not released yet. */
+    private long reserved;
+
+    private WriteAllocation(Path path, int dir,
+        LocalDirPlacementPolicy policy, long reserved) {
+      this.path = path;
+      this.dir = dir;
+      this.policy = policy;
+      this.reserved = reserved;
+    }
+
+    /** @return the complete path to the file on a local disk */
+    public Path getPath() {
+      return path;
+    }
+
+    /**
+     * Report bytes written to the file.
+     * @param bytes the number of bytes written
+     * @param nanos the time it took to write them
+     */
+    public synchronized void recordWrite(long bytes, long nanos) {
+      if (policy == null) {
+        return;
+      }
+      policy.written(dir, bytes, nanos);
+      long release = Math.min(bytes, reserved);
+      if (release > 0) {
+        reserved -= release;
+        policy.released(dir, release);
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      if (policy != null && reserved > 0) {
+        policy.released(dir, reserved);
+        reserved = 0;
+      }
+    }
+  }
   
   /** Get a path from the local FS for reading. We search through all the
    *  configured dirs for the file's existence and return the complete
@@ -278,6 +350,7 @@ public class LocalDirAllocator {
       private DF[] dirDF;
       private Path[] localDirs;
       private String savedLocalDirs;
+      private LocalDirPlacementPolicy policy;
 
       public int getAndIncrDirNumLastAccessed() {
         return getAndIncrDirNumLastAccessed(1);
@@ -352,8 +425,15 @@ public class LocalDirAllocator {
           // randomize the first disk picked in the round-robin selection
           ctx.dirNumLastAccessed.set(dirIndexRandomizer.nextInt(dirs.size()));
         }
+        ctx.policy = LocalDirPlacementPolicy.getInstance(conf);
+        if (ctx.policy != null) {
+          ctx.policy.initialize(ctx.localDirs, ctx.dirDF);
+        }
 
-        currentContext.set(ctx);
+        Context previous = currentContext.getAndSet(ctx);
+        if (previous.policy != null) {
+          previous.policy.close();
+        }
       }
 
       return ctx;
@@ -405,6 +485,10 @@ public class LocalDirAllocator {
       if (pathStr.startsWith("/")) {
         pathStr = pathStr.substring(1);
       }
+      if (ctx.policy != null) {
+        return allocateWithPolicy(ctx, pathStr, size, checkWrite, false)
+            .getPath();
+      }
       Path returnPath = null;
       
       if(size == SIZE_UNKNOWN) {  //do roulette selection: pick dir with probability 
@@ -491,6 +575,58 @@ public class LocalDirAllocator {
       throw new DiskErrorException(newErrorText, diskException);
     }
 
+    /** Get a path from the local FS for a writer which reports its
+     *  progress. Without a placement policy there is nothing to report to.
+     */
+    public WriteAllocation allocateForWrite(String pathStr, long size,
+        Configuration conf) throws IOException {
+      Context ctx = confChanged(conf);
+      if (ctx.policy == null) {
+        return new WriteAllocation(
+            getLocalPathForWrite(pathStr, size, conf, true), -1, null, 0);
+      }
+      if (pathStr.startsWith("/")) {
+        pathStr = pathStr.substring(1);
+      }
+      return allocateWithPolicy(ctx, pathStr, size, true, true);
+    }
+
+    /** Try the directories in the order the placement policy chooses them
+     *  until one passes the disk check.
+     */
+    private WriteAllocation allocateWithPolicy(Context ctx, String pathStr,
+        long size, boolean checkWrite, boolean tracked) throws IOException {
+      LocalDirPlacementPolicy policy = ctx.policy;
+      boolean[] excluded = new boolean[ctx.localDirs.length];
+      String errorText = null;
+      IOException diskException = null;
+      int dir;
+      while ((dir = policy.chooseDir(size, excluded)) >= 0 && !excluded[dir]) {
+        Path returnPath = null;
+        try {
+          returnPath = createPath(ctx.localDirs[dir], pathStr, checkWrite);
+        } catch (IOException e) {
+          errorText = e.getMessage();
+          diskException = e;
+          LOG.debug("DiskException caught for dir {}", ctx.localDirs[dir], e);
+        }
+        if (returnPath != null) {
+          ctx.dirNumLastAccessed.set(dir);
+          long accounted = policy.allocated(dir, size, tracked);
+          return new WriteAllocation(returnPath, dir,
+              tracked ? policy : null, accounted);
+        }
+        excluded[dir] = true;
+      }
+      String newErrorText = "Could not find any valid local directory for " +
+          pathStr + " with requested size " + size +
+          " using " + policy.getClass().getSimpleName();
+      if (errorText != null) {
+        newErrorText = newErrorText + " due to " + errorText;
+      }
+      throw new DiskErrorException(newErrorText, diskException);
+    }
+
     /** Creates a file on the local FS. Pass size as 
      * {@link LocalDirAllocator.SIZE_UNKNOWN} if not known apriori. We
      *  round-robin over the set of disks (via the configured dirs) and return
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Decides on which of the directories of a {@link LocalDirAllocator} context
+ * a new file is written, in place of the default round-robin over the
+ * directories with enough space.
+ * <p>
+ * An instance is created for a context whenever its set of directories
+ * changes, and is told about every allocation it made. Writers which
+ * allocate with {@link LocalDirAllocator#allocateForWrite} also report how
+ * much they wrote and how long that took, and when they are done.
+ * All methods may be called concurrently.
+ */
+@InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
+@InterfaceStability.Unstable
+public abstract class LocalDirPlacementPolicy extends Configured {
+
+  /** Class name of the placement policy; round-robin if not set. */
+  public static final String PLACEMENT_POLICY_CLASSNAME_KEY =
+      "fs.localdir.placement.policy.classname";
+
+  /**
+   * Set up the policy for a new set of directories.
+   * @param dirs the directories of the context
+   * @param dirDF disk usage of the directories, same order as dirs
+   */
+  public abstract void initialize(Path[] dirs, DF[] dirDF);
+
+  /**
+   * Choose a directory for a new file.
+   * @param size the size of the file or {@link LocalDirAllocator#SIZE_UNKNOWN}
+   * @param excluded directories which must not be chosen, because they were
+   *                 tried already and failed the disk check
+   * @return the index of the chosen directory, or -1 if none has space
+   */
+  public abstract int chooseDir(long size, boolean[] excluded);
+
+  /**
+   * A file was placed in a directory.
+   * @param dir index of the directory
+   * @param size the size of the file or {@link LocalDirAllocator#SIZE_UNKNOWN}
+   * @param tracked true if the writer reports its progress via
+   *                {@link #written} and {@link #released}; otherwise the
+   *                policy has to estimate when the file is written
+   * @return the number of bytes the policy accounts for the file, to be
+   *         released by a tracked writer
+   */
+  public abstract long allocated(int dir, long size, boolean tracked);
+
+  /**
+   * Bytes were written to a directory.
+   * @param dir index of the directory
+   * @param bytes bytes written
+   * @param nanos time taken to write them, including the flush or sync
+   */
+  public abstract void written(int dir, long bytes, long nanos);
+
+  /**
+   * Part of the size of a tracked allocation is no longer expected to be
+   * written, because it was written or the file was closed.
+   * @param dir index of the directory
+   * @param bytes the released part of the size
+   */
+  public abstract void released(int dir, long bytes);
+
+  /** The directories of the context changed and the policy is not used. */
+  public void close() {
+  }
+
+  /**
+   * Get an instance of the configured placement policy.
+   * @param conf the configuration to be used
+   * @return the policy, or null to use round-robin
+   */
+  public static LocalDirPlacementPolicy getInstance(Configuration conf) {
+    Class<? extends LocalDirPlacementPolicy> policyClass = conf.getClass(
+        PLACEMENT_POLICY_CLASSNAME_KEY, null, LocalDirPlacementPolicy.class);
+    return policyClass == null
+        ? null : ReflectionUtils.newInstance(policyClass, conf);
+  }
+}
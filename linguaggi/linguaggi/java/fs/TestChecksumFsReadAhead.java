@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestChecksumFsReadAhead {
+  private static final int FILE_LENGTH =
+      3 * ChecksumFs.READ_AHEAD_SEGMENT_LENGTH + 1000;
+
+  private FileContext fc;
+  private ChecksumFs checksumFs;
+  private File testDir;
+  private Path file;
+  private byte[] expected;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    Configuration conf = new Configuration();
+    fc = FileContext.getLocalFSFileContext(conf);
+    checksumFs = (ChecksumFs) fc.getDefaultFileSystem();
+    testDir = GenericTestUtils.getTestDir("TestChecksumFsReadAhead");
+    file = new Path(testDir.getAbsolutePath(), "data");
+    expected = new byte[FILE_LENGTH];
+    new Random(0).nextBytes(expected);
+    try (FSDataOutputStream out = fc.create(file,
+        EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE))) {
+      out.write(expected);
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    checksumFs.setVerifyReadAhead(0);
+    fc.delete(new Path(testDir.getAbsolutePath()), true);
+  }
+
+  private byte[] readAll() throws Exception {
+    byte[] actual = new byte[FILE_LENGTH];
+    try (FSDataInputStream in = checksumFs.open(file, 4096)) {
+      // odd sized reads, not aligned to chunks or segments
+      int pos = 0;
+      while (pos < FILE_LENGTH) {
+        int n = in.read(actual, pos, Math.min(777, FILE_LENGTH - pos));
+        pos += n;
+      }
+      assertEquals(-1, in.read());
+      in.seek(100);
+      assertEquals(expected[100], (byte) in.read());
+    }
+    return actual;
+  }
+
+  @Test
+  public void testSequentialReadAhead() throws Exception {
+    checksumFs.setVerifyReadAhead(2);
+    assertArrayEquals(expected, readAll());
+  }
+
+  @Test
+  public void testByteBufferPositionedRead() throws Exception {
+    try (FSDataInputStream in = checksumFs.open(file, 4096)) {
+      for (ByteBuffer buf : new ByteBuffer[] {
+          ByteBuffer.allocate(10000), ByteBuffer.allocateDirect(10000)}) {
+        // aligned, unaligned and past the end of the file
+        for (long position : new long[] {0, 512, 1, 700,
+            FILE_LENGTH - 300}) {
+          buf.clear();
+          int len = (int) Math.min(buf.capacity(), FILE_LENGTH - position);
+          assertEquals(len, in.read(position, buf));
+          assertEquals(len, buf.position());
+          buf.flip();
+          for (int i = 0; i < len; i++) {
+            assertEquals(expected[(int) position + i], buf.get(i),
+                "byte " + (position + i));
+          }
+        }
+        buf.clear();
+        assertEquals(-1, in.read(FILE_LENGTH, buf));
+      }
+    }
+  }
+
+  @Test
+  public void testPositionedReadWithReadAhead() throws Exception {
+    // preads are verified without a checker of their own, and must
+    // neither read ahead nor move the stream
+    checksumFs.setVerifyReadAhead(2);
+    try (FSDataInputStream in = checksumFs.open(file, 4096)) {
+      byte[] buf = new byte[1000];
+      for (long position : new long[] {0, 1, 700,
+          ChecksumFs.READ_AHEAD_SEGMENT_LENGTH - 10, FILE_LENGTH - 1000}) {
+        in.readFully(position, buf, 0, buf.length);
+        for (int i = 0; i < buf.length; i++) {
+          assertEquals(expected[(int) position + i], buf[i],
+              "byte " + (position + i));
+        }
+      }
+      assertEquals(0, in.getPos());
+    }
+  }
+
+  @Test
+  public void testCloseWhileReadingAhead() throws Exception {
+    checksumFs.setVerifyReadAhead(3);
+    for (int i = 0; i < 20; i++) {
+      FSDataInputStream in = checksumFs.open(file, 4096);
+      // starts the read ahead, then close with the segments in flight
+      assertEquals(expected[0], (byte) in.read());
+      in.close();
+    }
+    assertArrayEquals(expected, readAll());
+  }
+
+  @Test
+  public void testCorruptionDetected() throws Exception {
+    int corruptAt = ChecksumFs.READ_AHEAD_SEGMENT_LENGTH + 5;
+    try (RandomAccessFile raf =
+        new RandomAccessFile(new File(testDir, "data"), "rw")) {
+      raf.seek(corruptAt);
+      raf.write(expected[corruptAt] ^ 1);
+    }
+    checksumFs.setVerifyReadAhead(2);
+    assertThrows(ChecksumException.class, this::readAll);
+    try (FSDataInputStream in = checksumFs.open(file, 4096)) {
+      ByteBuffer buf = ByteBuffer.allocateDirect(100);
+      assertThrows(ChecksumException.class,
+          () -> in.readFully(corruptAt - 10, buf));
+    }
+  }
+}
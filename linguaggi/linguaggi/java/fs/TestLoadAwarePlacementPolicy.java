@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.io.File;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestLoadAwarePlacementPolicy {
+  private static final int DIRS = 4;
+
+  private LoadAwarePlacementPolicy policy;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    File base = GenericTestUtils.getTestDir("TestLoadAwarePlacementPolicy");
+    Path[] dirs = new Path[DIRS];
+    DF[] dirDF = new DF[DIRS];
+    for (int i = 0; i < DIRS; i++) {
+      File dir = new File(base, "dir" + i);
+      dir.mkdirs();
+      dirs[i] = new Path(dir.getPath());
+      dirDF[i] = new DF(dir, 30000);
+    }
+    Configuration conf = new Configuration();
+    conf.setLong(LoadAwarePlacementPolicy.DF_REFRESH_INTERVAL_KEY, 60000);
+    policy = new LoadAwarePlacementPolicy();
+    policy.setConf(conf);
+    policy.initialize(dirs, dirDF);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    policy.close();
+  }
+
+  @Test
+  public void testSpreadsWhenIdle() {
+    boolean[] excluded = new boolean[DIRS];
+    int[] counts = new int[DIRS];
+    for (int i = 0; i < 4000; i++) {
+      counts[policy.chooseDir(1024, excluded)]++;
+    }
+    for (int count : counts) {
+      assertTrue(count > 800, "uneven spread " + count);
+    }
+  }
+
+  @Test
+  public void testAvoidsSlowAndBusyDirs() {
+    boolean[] excluded = new boolean[DIRS];
+    // dir 0 writes at a tenth of the speed of the others
+    for (int i = 0; i < DIRS; i++) {
+      policy.written(i, 1 << 20, i == 0 ? 100_000_000L : 10_000_000L);
+    }
+    for (int i = 0; i < 100; i++) {
+      assertNotEquals(0, policy.chooseDir(1 << 20, excluded));
+    }
+
+    // tracked allocations pile up until released
+    int busy = policy.chooseDir(1 << 20, excluded);
+    long accounted = policy.allocated(busy, 64 << 20, true);
+    assertEquals(64 << 20, accounted);
+    for (int i = 0; i < 100; i++) {
+      int dir = policy.chooseDir(1 << 20, excluded);
+      assertNotEquals(0, dir);
+      assertNotEquals(busy, dir);
+    }
+    policy.released(busy, accounted);
+    assertEquals(policy.getCost(busy, 0),
+        policy.getCost((busy % (DIRS - 1)) + 1, 0), 1e-6);
+
+    // untracked allocations are drained at the measured throughput
+    policy.allocated(busy, 64 << 20, false);
+    int other = (busy % (DIRS - 1)) + 1;
+    assertTrue(policy.getCost(busy, 0) > policy.getCost(other, 0));
+    policy.refresh();
+    assertTrue(policy.getCost(busy, 0) > policy.getCost(other, 0));
+  }
+
+  @Test
+  public void testExcludedAndFull() {
+    boolean[] excluded = new boolean[DIRS];
+    for (int i = 1; i < DIRS; i++) {
+      excluded[i] = true;
+    }
+    assertEquals(0, policy.chooseDir(1024, excluded));
+    excluded[0] = true;
+    assertEquals(-1, policy.chooseDir(1024, excluded));
+    excluded[0] = false;
+    assertEquals(-1, policy.chooseDir(Long.MAX_VALUE / 2, excluded));
+  }
+}
@@ -18,10 +18,20 @@
 
 package org.apache.hadoop.io;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.hadoop.HadoopIllegalArgumentException;
 import org.apache.hadoop.classification.InterfaceAudience;
@@ -888,6 +898,293 @@ public class MapFile {
 
   }
 
+  /**
+   * Provide concurrent lookups in an existing map.
+   *
+   * <p>Unlike {@link Reader}, the index is not kept as key objects on the
+   * heap: it is read once into memory-mapped files of serialized keys and
+   * data positions, which are unlinked right away, so it costs no heap and
+   * can be paged out by the kernel. Lookups binary search the serialized
+   * keys with the raw comparator of the key class.
+   *
+   * <p>{@link #get(WritableComparable, Writable)} takes no lock: every
+   * thread scans the data file with its own cursor, opened on its first
+   * lookup, so a reader used by N threads holds N open data files. Each
+   * cursor gets a new instance of the comparator's class; a comparator
+   * passed as option without a no-argument constructor is shared and must
+   * be thread safe.
+   *
+   * <p>The index is released when the reader is garbage collected.
+   */
+  public static class ConcurrentReader implements java.io.Closeable {
+    /** Directory of the memory-mapped index files. */
+    public static final String INDEX_MMAP_DIR_KEY = "io.map.index.mmap.dir";
+
+    private final Path dataFile;
+    private final Configuration conf;
+    private final SequenceFile.Reader.Option[] options;
+    private final WritableComparator comparatorOption;
+    private final Class<? extends WritableComparable> keyClass;
+
+    /** Entries of (key offset, data position), 16 bytes each. */
+    private MappedByteBuffer entries;
+    /** Serialized keys, each prefixed by its int length. */
+    private MappedByteBuffer keys;
+    private int count;
+
+    private final ThreadLocal<Cursor> cursors = new ThreadLocal<>();
+    private final Queue<Cursor> allCursors = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /** Per-thread state of lookups. */
+    private static final class Cursor {
+      private final SequenceFile.Reader data;
+      private final long firstPosition;
+      private final WritableComparator comparator;
+      private final WritableComparable nextKey;
+      private final DataOutputBuffer searchKey = new DataOutputBuffer();
+      private final ByteBuffer keys;
+      private byte[] scratch = new byte[64];
+
+      Cursor(SequenceFile.Reader data, WritableComparator comparator,
+          ByteBuffer keys) throws IOException {
+        this.data = data;
+        this.firstPosition = data.getPosition();
+        this.comparator = comparator;
+        this.nextKey = comparator.newKey();
+        this.keys = keys;
+      }
+    }
+
+    public ConcurrentReader(Path dir, Configuration conf,
+        SequenceFile.Reader.Option... opts) throws IOException {
+      Reader.ComparatorOption comparatorOpt =
+          Options.getOption(Reader.ComparatorOption.class, opts);
+      this.comparatorOption =
+          comparatorOpt == null ? null : comparatorOpt.getValue();
+      this.dataFile = new Path(dir, DATA_FILE_NAME);
+      this.conf = conf;
+      this.options = opts;
+
+      SequenceFile.Reader.Option[] indexOptions = Options.prependOptions(
+          opts, SequenceFile.Reader.file(new Path(dir, INDEX_FILE_NAME)));
+      try (SequenceFile.Reader index =
+          new SequenceFile.Reader(conf, indexOptions)) {
+        this.keyClass =
+            index.getKeyClass().asSubclass(WritableComparable.class);
+        buildIndex(index, conf.getInt(
+            IO_MAP_INDEX_SKIP_KEY, IO_MAP_INDEX_SKIP_DEFAULT));
+      }
+    }
+
+    /**
+     * Read the index into the mapped files, with the same skipping and
+     * de-duplication as {@link Reader}.
+     */
+    private void buildIndex(SequenceFile.Reader index, int indexSkip)
+        throws IOException {
+      File dir = new File(conf.get(INDEX_MMAP_DIR_KEY,
+          System.getProperty("java.io.tmpdir")));
+      File keysFile = File.createTempFile("mapfile-keys", ".idx", dir);
+      File entriesFile = File.createTempFile("mapfile-entries", ".idx", dir);
+      try {
+        WritableComparator comparator = newComparator();
+        DataOutputBuffer keyBytes = new DataOutputBuffer();
+        LongWritable position = new LongWritable();
+        WritableComparable lastKey = null;
+        long lastIndex = -1;
+        long keysLength = 0;
+        int skip = indexSkip;
+        try (DataOutputStream keysOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(keysFile)));
+            DataOutputStream entriesOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(entriesFile)))) {
+          try {
+            while (true) {
+              WritableComparable k = comparator.newKey();
+              if (!index.next(k, position)) {
+                break;
+              }
+              // check order to make sure comparator is compatible
+              if (lastKey != null && comparator.compare(lastKey, k) > 0) {
+                throw new IOException("key out of order: " + k + " after "
+                    + lastKey);
+              }
+              lastKey = k;
+              if (skip > 0) {
+                skip--;
+                continue;
+              }
+              skip = indexSkip;
+              if (position.get() == lastIndex) {
+                continue;
+              }
+              lastIndex = position.get();
+              keyBytes.reset();
+              k.write(keyBytes);
+              entriesOut.writeLong(keysLength);
+              entriesOut.writeLong(position.get());
+              keysOut.writeInt(keyBytes.getLength());
+              keysOut.write(keyBytes.getData(), 0, keyBytes.getLength());
+              keysLength += Integer.BYTES + keyBytes.getLength();
+              count++;
+            }
+          } catch (EOFException e) {
+            LOG.warn("Unexpected EOF reading " + index +
+                " at entry #" + count + ".  Ignoring.");
+          }
+        }
+        if (keysLength > Integer.MAX_VALUE
+            || (long) count * 16 > Integer.MAX_VALUE) {
+          throw new IOException("Index of " + dataFile + " is too large ("
+              + count + " entries, " + keysLength + " key bytes)");
+        }
+        this.keys = map(keysFile);
+        this.entries = map(entriesFile);
+      } finally {
+        // the mappings outlive the file names
+        boolean keysDeleted = keysFile.delete();
+        boolean entriesDeleted = entriesFile.delete();
+        if (!keysDeleted || !entriesDeleted) {
+          LOG.warn("Failed to delete index files in " + dir);
+        }
+      }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+            raf.length());
+      }
+    }
+
+    /**
+     * @return a comparator of the caller's own. The raw compare of
+     *     {@link WritableComparator} deserializes into instance fields, so
+     *     cursors cannot share the registered or passed instance.
+     */
+    private WritableComparator newComparator() {
+      WritableComparator comparator = comparatorOption != null
+          ? comparatorOption : WritableComparator.get(keyClass, conf);
+      Class<? extends WritableComparator> cls = comparator.getClass();
+      if (cls == WritableComparator.class) {
+        return new WritableComparator(comparator.getKeyClass(), conf, true);
+      }
+      try {
+        cls.getDeclaredConstructor();
+      } catch (NoSuchMethodException e) {
+        // cannot be copied, so it must be thread safe
+        return comparator;
+      }
+      return ReflectionUtils.newInstance(cls, conf);
+    }
+
+    /** @return the cursor of the calling thread, opened if needed. */
+    private Cursor getCursor() throws IOException {
+      if (closed) {
+        throw new IOException("Reader of " + dataFile + " is closed");
+      }
+      Cursor cursor = cursors.get();
+      if (cursor == null) {
+        SequenceFile.Reader.Option[] dataOptions = Options.prependOptions(
+            options, SequenceFile.Reader.file(dataFile));
+        cursor = new Cursor(new SequenceFile.Reader(conf, dataOptions),
+            newComparator(), keys.duplicate());
+        cursors.set(cursor);
+        allCursors.add(cursor);
+        if (closed) {
+          // raced with close
+          cursor.data.close();
+          throw new IOException("Reader of " + dataFile + " is closed");
+        }
+      }
+      return cursor;
+    }
+
+    /** @return the number of entries of the index. */
+    public int getIndexSize() {
+      return count;
+    }
+
+    /**
+     * Compare the serialized search key of the cursor with an index key.
+     */
+    private int compareWithIndexKey(Cursor cursor, int entry) {
+      int offset = (int) entries.getLong(entry * 16);
+      int length = cursor.keys.getInt(offset);
+      if (cursor.scratch.length < length) {
+        cursor.scratch = new byte[Math.max(length, cursor.scratch.length * 2)];
+      }
+      cursor.keys.position(offset + Integer.BYTES);
+      cursor.keys.get(cursor.scratch, 0, length);
+      return cursor.comparator.compare(cursor.searchKey.getData(), 0,
+          cursor.searchKey.getLength(), cursor.scratch, 0, length);
+    }
+
+    /**
+     * Return the value for the named key, or null if none exists. Safe to
+     * call from many threads at once.
+     * @param key key.
+     * @param val val.
+     * @return val if the key exists, otherwise null.
+     * @throws IOException raised on errors performing I/O.
+     */
+    public Writable get(WritableComparable key, Writable val)
+        throws IOException {
+      Cursor cursor = getCursor();
+      cursor.searchKey.reset();
+      key.write(cursor.searchKey);
+
+      // find the last index entry at or before the key
+      int low = 0;
+      int high = count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compareWithIndexKey(cursor, mid);
+        if (cmp > 0) {
+          low = mid + 1;
+        } else if (cmp < 0) {
+          high = mid - 1;
+        } else {
+          high = mid;
+          break;
+        }
+      }
+      cursor.data.seek(high < 0
+          ? cursor.firstPosition : entries.getLong(high * 16 + 8));
+
+      while (cursor.data.next(cursor.nextKey)) {
+        int c = cursor.comparator.compare(key, cursor.nextKey);
+        if (c == 0) {
+          cursor.data.getCurrentValue(val);
+          return val;
+        } else if (c < 0) {
+          break;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Close the map. Lookups in progress on other threads may fail.
+     * @throws IOException raised on errors performing I/O.
+     */
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (Cursor cursor : allCursors) {
+        IOUtils.cleanupWithLogger(LOG, cursor.data);
+      }
+      allCursors.clear();
+      // the index is not unmapped explicitly, since a lookup still running
+      // on another thread would then crash the JVM; the mappings are
+      // released when the reader is garbage collected.
+    }
+  }
+
   /**
    * Renames an existing map directory.
    * @param fs fs.
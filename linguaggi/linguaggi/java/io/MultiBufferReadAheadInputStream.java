@@ -0,0 +1,610 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import org.apache.hadoop.fs.ByteBufferPositionedReadable;
+
+import org.apache.spark.util.ThreadUtils;
+
+/**
+ * {@link InputStream} implementation which, like {@link ReadAheadInputStream}, asynchronously
+ * reads ahead from the underlying input, but keeps up to a configurable number of buffers read
+ * ahead instead of one, so that a single stream can keep several I/Os in flight on high latency
+ * storage.
+ *
+ * The number of buffers read ahead adapts to the consumer: it grows whenever the consumer has to
+ * wait for a buffer, up to the maximum depth, and shrinks again when the consumer keeps finding
+ * its buffers ready, to release the memory of slow consumers.
+ *
+ * Buffers are read by a shared, bounded executor rather than a thread per stream. When reading
+ * from a {@link ByteBufferPositionedReadable}, the buffers are read with concurrent positioned
+ * reads, optionally into direct buffers; a plain {@link InputStream} is read into one buffer at
+ * a time.
+ */
+public class MultiBufferReadAheadInputStream extends InputStream {
+
+  /** The number of threads of the executor shared by all streams by default. */
+  private static final int SHARED_THREADS =
+    Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+  private static volatile ExecutorService sharedExecutor;
+
+  /** A buffer being read, or read, from the underlying input. */
+  private static final class Slot {
+    final ByteBuffer buffer;
+    final long position;
+    // the following are guarded by stateChangeLock.
+    boolean done;
+    boolean endOfStream;
+    Throwable exception;
+    // dropped by skip while being read.
+    boolean abandoned;
+
+    Slot(ByteBuffer buffer, long position) {
+      this.buffer = buffer;
+      this.position = position;
+    }
+  }
+
+  private final ReentrantLock stateChangeLock = new ReentrantLock();
+
+  private final Condition slotDone = stateChangeLock.newCondition();
+
+  private final InputStream underlyingInputStream;
+
+  private final ByteBufferPositionedReadable positionedReadable;
+
+  private final ExecutorService executorService;
+
+  private final int bufferSizeInBytes;
+
+  private final int maxDepth;
+
+  private final boolean direct;
+
+  // the buffer being consumed, only accessed by the reader.
+  private ByteBuffer activeBuffer;
+
+  @GuardedBy("stateChangeLock")
+  // the buffers being read or read ahead, in order.
+  private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+
+  @GuardedBy("stateChangeLock")
+  private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+  @GuardedBy("stateChangeLock")
+  // the position of the next buffer to read.
+  private long nextPosition;
+
+  @GuardedBy("stateChangeLock")
+  // the number of buffers to keep read ahead.
+  private int depth = 1;
+
+  @GuardedBy("stateChangeLock")
+  // the number of buffer switches since the reader last waited.
+  private int readyInARow;
+
+  @GuardedBy("stateChangeLock")
+  private boolean endOfStream;
+
+  @GuardedBy("stateChangeLock")
+  // the exception of a failed read, thrown by all following reads.
+  private Throwable readException;
+
+  @GuardedBy("stateChangeLock")
+  private boolean isClosed;
+
+  @GuardedBy("stateChangeLock")
+  // the number of tasks reading from the underlying input.
+  private int tasksRunning;
+
+  @GuardedBy("stateChangeLock")
+  // for a plain input stream, whether a task is reading the pending slots.
+  private boolean pumping;
+
+  /**
+   * Creates a stream reading ahead from an input stream, with the shared executor.
+   *
+   * @param inputStream The underlying input stream.
+   * @param bufferSizeInBytes The size of each buffer.
+   * @param maxDepth The maximum number of buffers read ahead.
+   */
+  public MultiBufferReadAheadInputStream(
+      InputStream inputStream, int bufferSizeInBytes, int maxDepth) {
+    this(inputStream, null, 0, bufferSizeInBytes, maxDepth, false, getSharedExecutor());
+  }
+
+  /**
+   * Creates a stream reading ahead with concurrent positioned reads.
+   *
+   * @param input The underlying input, which is closed with this stream if it is
+   *              {@link Closeable}.
+   * @param position The position to start reading at.
+   * @param bufferSizeInBytes The size of each buffer.
+   * @param maxDepth The maximum number of buffers read ahead.
+   * @param direct Whether to read into direct buffers.
+   * @param executorService The executor to read with, e.g. {@link #getSharedExecutor()}.
+   */
+  public MultiBufferReadAheadInputStream(
+      ByteBufferPositionedReadable input,
+      long position,
+      int bufferSizeInBytes,
+      int maxDepth,
+      boolean direct,
+      ExecutorService executorService) {
+    this(null, input, position, bufferSizeInBytes, maxDepth, direct, executorService);
+  }
+
+  /**
+   * Creates a stream reading ahead from an input stream.
+   *
+   * @param inputStream The underlying input stream.
+   * @param bufferSizeInBytes The size of each buffer.
+   * @param maxDepth The maximum number of buffers read ahead.
+   * @param executorService The executor to read with.
+   */
+  public MultiBufferReadAheadInputStream(
+      InputStream inputStream,
+      int bufferSizeInBytes,
+      int maxDepth,
+      ExecutorService executorService) {
+    this(inputStream, null, 0, bufferSizeInBytes, maxDepth, false, executorService);
+  }
+
+  private MultiBufferReadAheadInputStream(
+      InputStream inputStream,
+      ByteBufferPositionedReadable positionedReadable,
+      long position,
+      int bufferSizeInBytes,
+      int maxDepth,
+      boolean direct,
+      ExecutorService executorService) {
+    Preconditions.checkArgument(bufferSizeInBytes > 0,
+      "bufferSizeInBytes should be greater than 0, but the value is " + bufferSizeInBytes);
+    Preconditions.checkArgument(maxDepth > 0,
+      "maxDepth should be greater than 0, but the value is " + maxDepth);
+    this.underlyingInputStream = inputStream;
+    this.positionedReadable = positionedReadable;
+    this.nextPosition = position;
+    this.bufferSizeInBytes = bufferSizeInBytes;
+    this.maxDepth = maxDepth;
+    this.direct = direct;
+    this.executorService = Preconditions.checkNotNull(executorService);
+    this.activeBuffer = ByteBuffer.allocate(0);
+  }
+
+  /**
+   * Returns the executor shared by the streams which are not given one, with a bounded number of
+   * daemon threads.
+   */
+  public static ExecutorService getSharedExecutor() {
+    ExecutorService executor = sharedExecutor;
+    if (executor == null) {
+      synchronized (MultiBufferReadAheadInputStream.class) {
+        executor = sharedExecutor;
+        if (executor == null) {
+          executor = ThreadUtils.newDaemonFixedThreadPool(SHARED_THREADS, "read-ahead");
+          sharedExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  @VisibleForTesting
+  int getDepth() {
+    stateChangeLock.lock();
+    try {
+      return depth;
+    } finally {
+      stateChangeLock.unlock();
+    }
+  }
+
+  @GuardedBy("stateChangeLock")
+  private void checkReadException() throws IOException {
+    if (readException != null) {
+      Throwables.throwIfInstanceOf(readException, IOException.class);
+      Throwables.throwIfUnchecked(readException);
+      throw new IOException(readException);
+    }
+  }
+
+  private ByteBuffer newBuffer() {
+    ByteBuffer buffer = freeBuffers.poll();
+    if (buffer == null) {
+      buffer = direct ? ByteBuffer.allocateDirect(bufferSizeInBytes)
+        : ByteBuffer.allocate(bufferSizeInBytes);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /** Schedules reads until depth buffers are read ahead of the active buffer. */
+  @GuardedBy("stateChangeLock")
+  private void readAhead() {
+    while (!endOfStream && !isClosed && slots.size() < depth) {
+      Slot slot = new Slot(newBuffer(), nextPosition);
+      nextPosition += bufferSizeInBytes;
+      slots.add(slot);
+      if (positionedReadable != null) {
+        submit(() -> readPositioned(slot));
+      } else if (!pumping) {
+        pumping = true;
+        submit(this::pump);
+      }
+    }
+  }
+
+  private void submit(Runnable task) {
+    tasksRunning++;
+    try {
+      executorService.execute(task);
+    } catch (RejectedExecutionException e) {
+      tasksRunning--;
+      throw e;
+    }
+  }
+
+  /** Fills one buffer with a positioned read. */
+  private void readPositioned(Slot slot) {
+    ByteBuffer buffer = slot.buffer;
+    Throwable exception = null;
+    boolean eof = false;
+    try {
+      while (buffer.hasRemaining() && !isClosedOrAbandoned(slot)) {
+        if (positionedReadable.read(slot.position + buffer.position(), buffer) < 0) {
+          eof = true;
+          break;
+        }
+      }
+    } catch (EOFException e) {
+      eof = true;
+    } catch (Throwable e) {
+      exception = e;
+    }
+    complete(slot, eof, exception);
+  }
+
+  /** Fills the pending buffers in order from the input stream, one at a time. */
+  private void pump() {
+    while (true) {
+      Slot slot;
+      stateChangeLock.lock();
+      try {
+        slot = null;
+        for (Slot s : slots) {
+          if (!s.done) {
+            slot = s;
+            break;
+          }
+        }
+        if (slot == null || isClosed) {
+          pumping = false;
+          taskFinished();
+          return;
+        }
+      } finally {
+        stateChangeLock.unlock();
+      }
+      byte[] arr = slot.buffer.array();
+      int off = 0;
+      boolean eof = false;
+      Throwable exception = null;
+      try {
+        while (off < arr.length) {
+          int read = underlyingInputStream.read(arr, off, arr.length - off);
+          if (read < 0) {
+            eof = true;
+            break;
+          }
+          off += read;
+        }
+      } catch (EOFException e) {
+        eof = true;
+      } catch (Throwable e) {
+        exception = e;
+      }
+      slot.buffer.position(off);
+      stateChangeLock.lock();
+      try {
+        markDone(slot, eof, exception);
+        if (eof || exception != null) {
+          // nothing more can be read
+          for (Slot s : slots) {
+            if (!s.done) {
+              s.buffer.flip();
+              s.done = true;
+              s.endOfStream = true;
+            }
+          }
+          pumping = false;
+          taskFinished();
+          return;
+        }
+      } finally {
+        stateChangeLock.unlock();
+      }
+    }
+  }
+
+  private boolean isClosedOrAbandoned(Slot slot) {
+    stateChangeLock.lock();
+    try {
+      return isClosed || slot.abandoned;
+    } finally {
+      stateChangeLock.unlock();
+    }
+  }
+
+  private void complete(Slot slot, boolean eof, Throwable exception) {
+    stateChangeLock.lock();
+    try {
+      markDone(slot, eof, exception);
+      taskFinished();
+    } finally {
+      stateChangeLock.unlock();
+    }
+  }
+
+  @GuardedBy("stateChangeLock")
+  private void markDone(Slot slot, boolean eof, Throwable exception) {
+    slot.buffer.flip();
+    slot.done = true;
+    slot.endOfStream = eof;
+    slot.exception = exception;
+    if (slot.abandoned) {
+      freeBuffers.add(slot.buffer);
+    } else if (eof) {
+      endOfStream = true;
+    }
+    slotDone.signalAll();
+  }
+
+  @GuardedBy("stateChangeLock")
+  private void taskFinished() {
+    tasksRunning--;
+    slotDone.signalAll();
+  }
+
+  /**
+   * Makes the next buffer read ahead the active buffer, waiting for it if needed.
+   *
+   * @return false at the end of the stream.
+   */
+  private boolean nextBuffer() throws IOException {
+    stateChangeLock.lock();
+    try {
+      if (activeBuffer.capacity() > 0) {
+        freeBuffers.add(activeBuffer);
+      }
+      activeBuffer = ByteBuffer.allocate(0);
+      checkReadException();
+      while (true) {
+        readAhead();
+        Slot slot = slots.peek();
+        if (slot == null) {
+          return false;
+        }
+        if (!slot.done) {
+          // the reader is faster than the reads: read further ahead
+          readyInARow = 0;
+          if (depth < maxDepth) {
+            depth++;
+            readAhead();
+          }
+          while (!slot.done) {
+            slotDone.await();
+          }
+        } else if (++readyInARow > 2 * depth && depth > 1) {
+          // the reads are well ahead of the reader: release a buffer
+          depth--;
+          readyInARow = 0;
+        }
+        slots.poll();
+        if (slot.exception != null) {
+          readException = slot.exception;
+          abandonSlots();
+          checkReadException();
+        }
+        if (slot.buffer.hasRemaining()) {
+          activeBuffer = slot.buffer;
+          readAhead();
+          return true;
+        }
+        freeBuffers.add(slot.buffer);
+        if (slot.endOfStream) {
+          endOfStream = true;
+          abandonSlots();
+          return false;
+        }
+      }
+    } catch (InterruptedException e) {
+      InterruptedIOException iio = new InterruptedIOException(e.getMessage());
+      iio.initCause(e);
+      throw iio;
+    } finally {
+      stateChangeLock.unlock();
+    }
+  }
+
+  /** Drops the buffers read ahead, which are recycled once their reads complete. */
+  @GuardedBy("stateChangeLock")
+  private void abandonSlots() {
+    for (Slot slot : slots) {
+      if (slot.done) {
+        freeBuffers.add(slot.buffer);
+      } else {
+        slot.abandoned = true;
+      }
+    }
+    slots.clear();
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (activeBuffer.hasRemaining()) {
+      // short path - just get one byte.
+      return activeBuffer.get() & 0xFF;
+    } else {
+      byte[] oneByteArray = new byte[1];
+      return read(oneByteArray, 0, 1) == -1 ? -1 : oneByteArray[0] & 0xFF;
+    }
+  }
+
+  @Override
+  public int read(byte[] b, int offset, int len) throws IOException {
+    if (offset < 0 || len < 0 || len > b.length - offset) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!activeBuffer.hasRemaining() && !nextBuffer()) {
+      return -1;
+    }
+    len = Math.min(len, activeBuffer.remaining());
+    activeBuffer.get(b, offset, len);
+    return len;
+  }
+
+  @Override
+  public int available() throws IOException {
+    stateChangeLock.lock();
+    try {
+      long available = activeBuffer.remaining();
+      for (Slot slot : slots) {
+        if (!slot.done) {
+          break;
+        }
+        available += slot.buffer.remaining();
+      }
+      // Make sure we have no integer overflow.
+      return (int) Math.min(Integer.MAX_VALUE, available);
+    } finally {
+      stateChangeLock.unlock();
+    }
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0L) {
+      return 0L;
+    }
+    if (n <= activeBuffer.remaining()) {
+      activeBuffer.position((int) n + activeBuffer.position());
+      return n;
+    }
+    long skipped = activeBuffer.remaining();
+    activeBuffer.position(activeBuffer.limit());
+    // skip the buffers read ahead, as long as they are read
+    while (skipped < n) {
+      stateChangeLock.lock();
+      try {
+        Slot slot = slots.peek();
+        if (slot == null || !slot.done || slot.buffer.remaining() > n - skipped) {
+          break;
+        }
+      } finally {
+        stateChangeLock.unlock();
+      }
+      if (!nextBuffer()) {
+        return skipped;
+      }
+      skipped += activeBuffer.remaining();
+      activeBuffer.position(activeBuffer.limit());
+    }
+    if (skipped == n) {
+      return n;
+    }
+    if (positionedReadable != null) {
+      return skipped + skipPositioned(n - skipped);
+    }
+    // let the stream be read up to the buffer to skip into, then skip within it
+    if (!nextBuffer()) {
+      return skipped;
+    }
+    long toSkip = Math.min(n - skipped, activeBuffer.remaining());
+    activeBuffer.position((int) toSkip + activeBuffer.position());
+    skipped += toSkip;
+    return skipped < n ? skipped + skip(n - skipped) : skipped;
+  }
+
+  /** Skips by reading further on, without reading the bytes skipped. */
+  private long skipPositioned(long n) throws IOException {
+    stateChangeLock.lock();
+    try {
+      if (endOfStream && slots.isEmpty()) {
+        return 0;
+      }
+      // the position after the active buffer
+      long position = slots.isEmpty() ? nextPosition : slots.peek().position;
+      abandonSlots();
+      nextPosition = position + n;
+      // the end of the stream may have been found by a read ahead which is now abandoned, so
+      // let the reads from the new position find it again
+      endOfStream = false;
+      readyInARow = 0;
+      return n;
+    } finally {
+      stateChangeLock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    stateChangeLock.lock();
+    try {
+      if (isClosed) {
+        return;
+      }
+      isClosed = true;
+      abandonSlots();
+      // the underlying input is closed once nobody is reading from it
+      while (tasksRunning > 0) {
+        slotDone.await();
+      }
+    } catch (InterruptedException e) {
+      InterruptedIOException iio = new InterruptedIOException(e.getMessage());
+      iio.initCause(e);
+      throw iio;
+    } finally {
+      stateChangeLock.unlock();
+    }
+    if (underlyingInputStream != null) {
+      underlyingInputStream.close();
+    } else if (positionedReadable instanceof Closeable closeable) {
+      closeable.close();
+    }
+  }
+}
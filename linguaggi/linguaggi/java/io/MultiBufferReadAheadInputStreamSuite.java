@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.ByteBufferPositionedReadable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests functionality of {@link MultiBufferReadAheadInputStream}, reading both from a plain
+ * {@link InputStream} and from a {@link ByteBufferPositionedReadable}.
+ */
+public class MultiBufferReadAheadInputStreamSuite {
+
+  private static final int BUFFER_SIZE = 64;
+
+  private byte[] data;
+
+  private ExecutorService executor;
+
+  /** An in-memory input which can be slowed down, blocked or made to fail. */
+  private static class TestInput implements ByteBufferPositionedReadable, Closeable {
+    private final byte[] data;
+    private final AtomicInteger reading = new AtomicInteger();
+    volatile int latencyMs;
+    volatile long failFrom = Long.MAX_VALUE;
+    volatile long blockFrom = Long.MAX_VALUE;
+    final CountDownLatch unblock = new CountDownLatch(1);
+    volatile boolean closed;
+    volatile boolean closedWhileReading;
+
+    TestInput(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buf) throws IOException {
+      reading.incrementAndGet();
+      try {
+        if (position >= blockFrom) {
+          unblock.await();
+        }
+        if (latencyMs > 0) {
+          Thread.sleep(latencyMs);
+        }
+        if (position >= failFrom) {
+          throw new IOException("Failed to read at " + position);
+        }
+        if (position >= data.length) {
+          return -1;
+        }
+        int n = (int) Math.min(buf.remaining(), data.length - position);
+        buf.put(data, (int) position, n);
+        return n;
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } finally {
+        reading.decrementAndGet();
+      }
+    }
+
+    @Override
+    public void readFully(long position, ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        int n = read(position, buf);
+        if (n < 0) {
+          throw new IOException("End of stream");
+        }
+        position += n;
+      }
+    }
+
+    @Override
+    public void close() {
+      closedWhileReading |= reading.get() > 0;
+      closed = true;
+    }
+
+    /** A sequential view of this input, starting at position 0. */
+    InputStream asInputStream() {
+      return new InputStream() {
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+          byte[] b = new byte[1];
+          return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int n = TestInput.this.read(position, ByteBuffer.wrap(b, off, len));
+          if (n > 0) {
+            position += n;
+          }
+          return n;
+        }
+
+        @Override
+        public void close() {
+          TestInput.this.close();
+        }
+      };
+    }
+  }
+
+  @BeforeEach
+  public void setUp() {
+    data = new byte[100 * BUFFER_SIZE + 17];
+    new Random(42).nextBytes(data);
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private MultiBufferReadAheadInputStream open(TestInput input, boolean positioned, int maxDepth) {
+    if (positioned) {
+      return new MultiBufferReadAheadInputStream(
+        input, 0, BUFFER_SIZE, maxDepth, false, executor);
+    }
+    return new MultiBufferReadAheadInputStream(
+      input.asInputStream(), BUFFER_SIZE, maxDepth, executor);
+  }
+
+  private void assertReadsFrom(InputStream in, int position) throws IOException {
+    byte[] buf = new byte[37];
+    while (position < data.length) {
+      int n = in.read(buf, 0, buf.length);
+      Assertions.assertTrue(n > 0, "read returned " + n + " at " + position);
+      for (int i = 0; i < n; i++) {
+        Assertions.assertEquals(data[position + i], buf[i], "byte " + (position + i));
+      }
+      position += n;
+    }
+    Assertions.assertEquals(-1, in.read());
+    Assertions.assertEquals(-1, in.read(buf, 0, buf.length));
+  }
+
+  @Test
+  public void testReadsInputStream() throws IOException {
+    try (InputStream in = open(new TestInput(data), false, 4)) {
+      assertReadsFrom(in, 0);
+    }
+  }
+
+  @Test
+  public void testReadsPositioned() throws IOException {
+    for (boolean direct : new boolean[] {false, true}) {
+      try (InputStream in = new MultiBufferReadAheadInputStream(
+          new TestInput(data), 100, BUFFER_SIZE, 4, direct, executor)) {
+        assertReadsFrom(in, 100);
+      }
+    }
+  }
+
+  @Test
+  public void testDepthGrowsAndShrinks() throws Exception {
+    for (boolean positioned : new boolean[] {false, true}) {
+      TestInput input = new TestInput(data);
+      input.latencyMs = 2;
+      try (MultiBufferReadAheadInputStream in = open(input, positioned, 4)) {
+        Assertions.assertEquals(1, in.getDepth());
+        // a consumer faster than the input keeps waiting, so the stream reads further ahead
+        byte[] buf = new byte[BUFFER_SIZE];
+        for (int i = 0; i < 20; i++) {
+          Assertions.assertEquals(BUFFER_SIZE, in.readNBytes(buf, 0, BUFFER_SIZE));
+        }
+        Assertions.assertEquals(4, in.getDepth());
+
+        // a consumer slower than the input finds its buffers ready and gives some back
+        input.latencyMs = 0;
+        for (int i = 0; i < 60; i++) {
+          Thread.sleep(5);
+          Assertions.assertEquals(BUFFER_SIZE, in.readNBytes(buf, 0, BUFFER_SIZE));
+        }
+        Assertions.assertEquals(1, in.getDepth());
+      }
+    }
+  }
+
+  @Test
+  public void testSkipAcrossSlots() throws Exception {
+    for (boolean positioned : new boolean[] {false, true}) {
+      try (MultiBufferReadAheadInputStream in = open(new TestInput(data), positioned, 4)) {
+        byte[] buf = new byte[10];
+        Assertions.assertEquals(10, in.read(buf, 0, 10));
+        // the first read waited, so two buffers are read ahead; let them complete, then skip
+        // through and past them
+        while (in.available() < 2 * BUFFER_SIZE) {
+          Thread.sleep(1);
+        }
+        int position = 10;
+        for (long n : new long[] {5, 3 * BUFFER_SIZE + 7, 20 * BUFFER_SIZE + 3}) {
+          Assertions.assertEquals(n, in.skip(n));
+          position += n;
+          Assertions.assertEquals(data[position] & 0xFF, in.read());
+          position++;
+        }
+        assertReadsFrom(in, position);
+        Assertions.assertEquals(0, in.skip(10));
+      }
+    }
+  }
+
+  @Test
+  public void testErrorsAreSticky() throws IOException {
+    for (boolean positioned : new boolean[] {false, true}) {
+      TestInput input = new TestInput(data);
+      input.failFrom = 5 * BUFFER_SIZE;
+      try (InputStream in = open(input, positioned, 4)) {
+        byte[] buf = new byte[BUFFER_SIZE];
+        for (int i = 0; i < 5; i++) {
+          Assertions.assertEquals(BUFFER_SIZE, in.readNBytes(buf, 0, BUFFER_SIZE));
+        }
+        IOException e = Assertions.assertThrows(IOException.class, in::read);
+        Assertions.assertEquals("Failed to read at " + 5 * BUFFER_SIZE, e.getMessage());
+        // the input is never read again, every later read fails the same way
+        input.failFrom = Long.MAX_VALUE;
+        Assertions.assertSame(e, Assertions.assertThrows(IOException.class, in::read));
+        Assertions.assertSame(e, Assertions.assertThrows(IOException.class,
+          () -> in.read(buf, 0, buf.length)));
+      }
+    }
+  }
+
+  @Test
+  public void testCloseWaitsForInFlightReads() throws Exception {
+    for (boolean positioned : new boolean[] {false, true}) {
+      TestInput input = new TestInput(data);
+      input.blockFrom = BUFFER_SIZE;
+      MultiBufferReadAheadInputStream in = open(input, positioned, 4);
+      // the first buffer is read, the reads ahead of it block
+      Assertions.assertEquals(data[0] & 0xFF, in.read());
+      Thread closer = new Thread(() -> {
+        try {
+          in.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      closer.start();
+      closer.join(200);
+      Assertions.assertTrue(closer.isAlive());
+      Assertions.assertFalse(input.closed);
+
+      input.unblock.countDown();
+      closer.join(10000);
+      Assertions.assertFalse(closer.isAlive());
+      Assertions.assertTrue(input.closed);
+      Assertions.assertFalse(input.closedWhileReading);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.fs.ByteBufferPositionedReadable;
+
+/**
+ * Mini benchmark of the read throughput of {@link ReadAheadInputStream} and
+ * {@link MultiBufferReadAheadInputStream} over a local file throttled to emulate high latency
+ * storage: every read of the underlying input takes at least the given latency. The consumer
+ * computes a CRC32 of the data, which is checked against the file.
+ *
+ * Usage: ReadAheadInputStreamBenchmark [MB of data] [latency ms] [buffer KB] [max depth]
+ */
+public class ReadAheadInputStreamBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int size = (args.length > 0 ? Integer.parseInt(args[0]) : 64) << 20;
+    int latencyMs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int bufferSize = (args.length > 2 ? Integer.parseInt(args[2]) : 1024) << 10;
+    int maxDepth = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+    File file = File.createTempFile("read-ahead-benchmark", ".bin");
+    file.deleteOnExit();
+    byte[] bytes = new byte[size];
+    new Random(0).nextBytes(bytes);
+    Files.write(file.toPath(), bytes);
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    long expected = crc.getValue();
+    bytes = null;
+
+    System.out.printf("%-36s %10s%n", "stream", "MB/s");
+    for (int i = 0; i < 2; i++) {
+      report("unbuffered", size, expected,
+        () -> new ThrottledInputStream(new FileInputStream(file), latencyMs));
+      report("ReadAheadInputStream", size, expected,
+        () -> new ReadAheadInputStream(
+          new ThrottledInputStream(new FileInputStream(file), latencyMs), bufferSize));
+      report("MultiBuffer, input stream", size, expected,
+        () -> new MultiBufferReadAheadInputStream(
+          new ThrottledInputStream(new FileInputStream(file), latencyMs), bufferSize, maxDepth));
+      report("MultiBuffer, positioned, direct", size, expected,
+        () -> new MultiBufferReadAheadInputStream(
+          new ThrottledPositionedReadable(file, latencyMs), 0, bufferSize, maxDepth, true,
+          MultiBufferReadAheadInputStream.getSharedExecutor()));
+    }
+  }
+
+  private interface StreamFactory {
+    InputStream open() throws IOException;
+  }
+
+  private static void report(String name, int size, long expected, StreamFactory factory)
+      throws IOException {
+    byte[] buf = new byte[64 << 10];
+    CRC32 crc = new CRC32();
+    long start = System.nanoTime();
+    long total = 0;
+    try (InputStream in = factory.open()) {
+      int n;
+      while ((n = in.read(buf, 0, buf.length)) > 0) {
+        crc.update(buf, 0, n);
+        total += n;
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (total != size || crc.getValue() != expected) {
+      throw new IllegalStateException(name + " read wrong data");
+    }
+    System.out.printf("%-36s %10.1f%n", name, size / (double) (1 << 20) / seconds);
+  }
+
+  private static void sleep(int latencyMs) throws IOException {
+    try {
+      Thread.sleep(latencyMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+
+  /** An input stream whose every read takes at least the given latency. */
+  private static class ThrottledInputStream extends FilterInputStream {
+    private final int latencyMs;
+
+    ThrottledInputStream(InputStream in, int latencyMs) {
+      super(in);
+      this.latencyMs = latencyMs;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      sleep(latencyMs);
+      return super.read(b, off, len);
+    }
+  }
+
+  /** A positioned readable file whose every read takes at least the given latency. */
+  private static class ThrottledPositionedReadable
+      implements ByteBufferPositionedReadable, Closeable {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int latencyMs;
+
+    ThrottledPositionedReadable(File file, int latencyMs) throws IOException {
+      this.file = new RandomAccessFile(file, "r");
+      this.channel = this.file.getChannel();
+      this.latencyMs = latencyMs;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buf) throws IOException {
+      sleep(latencyMs);
+      return channel.read(buf, position);
+    }
+
+    @Override
+    public void readFully(long position, ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        int read = read(position, buf);
+        if (read < 0) {
+          throw new EOFException();
+        }
+        position += read;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+}
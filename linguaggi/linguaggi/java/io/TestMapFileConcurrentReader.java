@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestMapFileConcurrentReader {
+  private static final Configuration conf = new Configuration();
+  private static final Path TEST_DIR = new Path(GenericTestUtils.getTempPath(
+      TestMapFileConcurrentReader.class.getSimpleName()));
+  private static final int ENTRIES = 10000;
+
+  @Before
+  public void setUp() throws Exception {
+    LocalFileSystem fs = FileSystem.getLocal(conf);
+    if (fs.exists(TEST_DIR) && !fs.delete(TEST_DIR, true)) {
+      fail("Can't clean up test dir");
+    }
+  }
+
+  private Path writeMap(String name) throws IOException {
+    Path dir = new Path(TEST_DIR, name);
+    try (MapFile.Writer writer = new MapFile.Writer(conf, dir,
+        MapFile.Writer.keyClass(Text.class),
+        MapFile.Writer.valueClass(IntWritable.class))) {
+      writer.setIndexInterval(7);
+      for (int i = 0; i < ENTRIES; i++) {
+        // even keys only, so odd keys fall between entries
+        writer.append(new Text(key(2 * i)), new IntWritable(2 * i));
+      }
+    }
+    return dir;
+  }
+
+  /** A key without a registered raw comparator. */
+  public static class UnregisteredKey
+      implements WritableComparable<UnregisteredKey> {
+    private long id;
+    private String name = "";
+
+    public UnregisteredKey() {
+    }
+
+    UnregisteredKey(long id) {
+      this.id = id;
+      this.name = key((int) id);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeLong(id);
+      out.writeUTF(name);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      id = in.readLong();
+      name = in.readUTF();
+    }
+
+    @Override
+    public int compareTo(UnregisteredKey other) {
+      int cmp = Long.compare(id, other.id);
+      return cmp != 0 ? cmp : name.compareTo(other.name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof UnregisteredKey
+          && compareTo((UnregisteredKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(id);
+    }
+  }
+
+  private static String key(int i) {
+    return String.format("key-%08d", i);
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    Path dir = writeMap("get");
+    try (MapFile.ConcurrentReader reader =
+        new MapFile.ConcurrentReader(dir, conf)) {
+      assertEquals((ENTRIES + 6) / 7, reader.getIndexSize());
+      IntWritable value = new IntWritable();
+      for (int i = 0; i < 2 * ENTRIES; i++) {
+        Writable found = reader.get(new Text(key(i)), value);
+        if (i % 2 == 0) {
+          assertEquals(i, ((IntWritable) found).get());
+        } else {
+          assertNull(found);
+        }
+      }
+      // before the first and after the last key
+      assertNull(reader.get(new Text("a"), value));
+      assertNull(reader.get(new Text("z"), value));
+    }
+  }
+
+  @Test
+  public void testConcurrentGet() throws Exception {
+    Path dir = writeMap("concurrent");
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    try (final MapFile.ConcurrentReader reader =
+        new MapFile.ConcurrentReader(dir, conf)) {
+      Thread[] threads = new Thread[8];
+      for (int t = 0; t < threads.length; t++) {
+        final int offset = t;
+        threads[t] = new Thread(() -> {
+          IntWritable value = new IntWritable();
+          try {
+            for (int i = offset; i < ENTRIES; i += 3) {
+              Writable found = reader.get(new Text(key(2 * i)), value);
+              if (found == null || value.get() != 2 * i) {
+                throw new AssertionError("wrong value for " + key(2 * i));
+              }
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        });
+        threads[t].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  @Test
+  public void testConcurrentGetWithoutRawComparator() throws Exception {
+    Path dir = new Path(TEST_DIR, "unregistered");
+    try (MapFile.Writer writer = new MapFile.Writer(conf, dir,
+        MapFile.Writer.keyClass(UnregisteredKey.class),
+        MapFile.Writer.valueClass(IntWritable.class))) {
+      writer.setIndexInterval(7);
+      for (int i = 0; i < ENTRIES; i++) {
+        writer.append(new UnregisteredKey(2 * i), new IntWritable(2 * i));
+      }
+    }
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    try (final MapFile.ConcurrentReader reader =
+        new MapFile.ConcurrentReader(dir, conf)) {
+      // the cursors compare with the generic comparator, which deserializes
+      // both keys into its own fields
+      Thread[] threads = new Thread[8];
+      for (int t = 0; t < threads.length; t++) {
+        final int offset = t;
+        threads[t] = new Thread(() -> {
+          IntWritable value = new IntWritable();
+          try {
+            for (int i = offset; i < 2 * ENTRIES; i += 3) {
+              Writable found = reader.get(new UnregisteredKey(i), value);
+              if (i % 2 == 0 ? found == null || value.get() != i
+                  : found != null) {
+                throw new AssertionError("wrong value for key " + i);
+              }
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        });
+        threads[t].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mini load benchmark comparing the shared call queue used by default with
+ * a {@link ShardedCallQueue}. A fixed number of reader threads enqueue calls
+ * as fast as the queue accepts them while 8, 32 and 64 handler threads
+ * dequeue them, and the number of calls handed over per second is reported.
+ *
+ * Usage: CallQueueShardingBenchmark [readers] [seconds]
+ */
+public class CallQueueShardingBenchmark {
+
+  private interface Queue {
+    void put(int reader, Object call) throws InterruptedException;
+    Object take(int handler) throws InterruptedException;
+  }
+
+  private static final Object CALL = new Object();
+
+  public static void main(String[] args) throws Exception {
+    int readers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    System.out.printf("%-8s %-8s %15s%n", "handlers", "queue", "calls/s");
+    for (int handlers : new int[] {8, 32, 64}) {
+      final int capacity = handlers * 100;
+      final LinkedBlockingQueue<Object> shared =
+          new LinkedBlockingQueue<>(capacity);
+      report(handlers, "shared", run(readers, handlers, seconds, new Queue() {
+        @Override
+        public void put(int reader, Object call) throws InterruptedException {
+          shared.put(call);
+        }
+
+        @Override
+        public Object take(int handler) throws InterruptedException {
+          return shared.take();
+        }
+      }));
+      final ShardedCallQueue<Object> sharded = new ShardedCallQueue<>(
+          Math.min(readers, handlers), capacity);
+      report(handlers, "sharded", run(readers, handlers, seconds, new Queue() {
+        @Override
+        public void put(int reader, Object call) throws InterruptedException {
+          sharded.put(reader, call);
+        }
+
+        @Override
+        public Object take(int handler) throws InterruptedException {
+          return sharded.take(handler);
+        }
+      }));
+    }
+  }
+
+  private static void report(int handlers, String queue, double rate) {
+    System.out.printf("%-8d %-8s %15.0f%n", handlers, queue, rate);
+  }
+
+  private static double run(int readers, int handlers, int seconds,
+      final Queue queue) throws InterruptedException {
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final LongAdder handled = new LongAdder();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[readers + handlers];
+    for (int i = 0; i < readers; i++) {
+      final int reader = i;
+      threads[i] = new Thread(() -> {
+        try {
+          start.await();
+          while (running.get()) {
+            queue.put(reader, CALL);
+          }
+        } catch (InterruptedException e) {
+          // benchmark finished
+        }
+      });
+    }
+    for (int i = 0; i < handlers; i++) {
+      final int handler = i;
+      threads[readers + i] = new Thread(() -> {
+        try {
+          start.await();
+          while (running.get()) {
+            queue.take(handler);
+            handled.increment();
+          }
+        } catch (InterruptedException e) {
+          // benchmark finished
+        }
+      });
+    }
+    for (Thread t : threads) {
+      t.setDaemon(true);
+      t.start();
+    }
+    start.countDown();
+    // warm up before measuring
+    Thread.sleep(1000);
+    long before = handled.sum();
+    long startNanos = System.nanoTime();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+    long count = handled.sum() - before;
+    long elapsedNanos = System.nanoTime() - startNanos;
+    running.set(false);
+    for (Thread t : threads) {
+      t.interrupt();
+      t.join();
+    }
+    return count * 1e9 / elapsedNanos;
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A fixed-size, lock-free latency histogram with log-linear buckets in the
+ * style of HdrHistogram: every power of two range is split into
+ * {@link #SUB_BUCKETS} linear sub-buckets, so any recorded value is
+ * reported with a relative error of at most 1/{@value #SUB_BUCKETS}.
+ * Recording is a handful of atomic increments and never blocks.
+ */
+@InterfaceAudience.Private
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** Values are clamped to 2^MAX_EXPONENT - 1. */
+  private static final int MAX_EXPONENT = 40;
+  static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+  private static final int NUM_BUCKETS =
+      (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    int sub = index % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + sub) << shift;
+  }
+
+  /**
+   * Record one value.
+   * @param value the value, negative values are recorded as 0.
+   */
+  void add(long value) {
+    long v = Math.min(Math.max(value, 0), MAX_VALUE);
+    counts.incrementAndGet(bucketIndex(v));
+    count.increment();
+    sum.add(v);
+    long m = max.get();
+    while (v > m && !max.compareAndSet(m, v)) {
+      m = max.get();
+    }
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return the highest value equivalent to the bucket containing the given
+   *     percentile, or 0 if nothing was recorded.
+   */
+  long getPercentile(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[NUM_BUCKETS];
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        long upper = (i + 1 < NUM_BUCKETS)
+            ? bucketLowerBound(i + 1) - 1 : MAX_VALUE;
+        return Math.min(upper, getMax());
+      }
+    }
+    return getMax();
+  }
+}
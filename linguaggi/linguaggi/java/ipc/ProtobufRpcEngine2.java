@@ -28,6 +28,8 @@ import org.apache.hadoop.ipc.Client.ConnectionId;
 import org.apache.hadoop.ipc.ProcessingDetails.Timing;
 import org.apache.hadoop.ipc.RPC.RpcInvoker;
 import org.apache.hadoop.ipc.protobuf.ProtobufRpcEngine2Protos.RequestHeaderProto;
+import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto;
+import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto.RpcStatusProto;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.token.SecretManager;
 import org.apache.hadoop.security.token.TokenIdentifier;
@@ -37,6 +39,7 @@ import org.apache.hadoop.thirdparty.protobuf.Descriptors.MethodDescriptor;
 import org.apache.hadoop.thirdparty.protobuf.Message;
 import org.apache.hadoop.thirdparty.protobuf.ServiceException;
 import org.apache.hadoop.thirdparty.protobuf.TextFormat;
+import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Time;
 import org.apache.hadoop.util.concurrent.AsyncGet;
 import org.apache.hadoop.tracing.Tracer;
@@ -49,9 +52,13 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -63,6 +70,21 @@ public class ProtobufRpcEngine2 implements RpcEngine {
       LoggerFactory.getLogger(ProtobufRpcEngine2.class);
   private static final ThreadLocal<AsyncGet<Message, Exception>>
       ASYNC_RETURN_MESSAGE = new ThreadLocal<>();
+  private static final ThreadLocal<CallBatch> CURRENT_BATCH =
+      new ThreadLocal<>();
+
+  /**
+   * Method name of a request carrying a batch of calls. Protobuf method
+   * names cannot start with an underscore, so it never clashes with a real
+   * method.
+   */
+  static final String BATCH_METHOD_NAME = "__batch";
+
+  public static final String IPC_CLIENT_PROTOBUF_BATCH_MAX_CALLS_KEY =
+      "ipc.client.protobuf.batch.max-calls";
+  public static final String IPC_SERVER_PROTOBUF_BATCH_MAX_CALLS_KEY =
+      "ipc.server.protobuf.batch.max-calls";
+  public static final int IPC_PROTOBUF_BATCH_MAX_CALLS_DEFAULT = 1000;
 
   static { // Register the rpcRequest deserializer for ProtobufRpcEngine
     registerProtocolEngine();
@@ -84,6 +106,41 @@ public class ProtobufRpcEngine2 implements RpcEngine {
     return ASYNC_RETURN_MESSAGE.get();
   }
 
+  /**
+   * Start batching calls made by this thread. Until {@link #flushBatch()}
+   * is called, calls on protobuf proxies are not sent; they return null
+   * and their result is available from {@link #getAsyncReturnMessage()}
+   * once the batch has been flushed. All calls of a batch must go through
+   * the same proxy. The server runs the calls back-to-back on one handler
+   * and returns all results in one response, so batching suits many small
+   * independent calls such as heartbeats and reports. Methods that defer
+   * their response cannot be batched; in a batch they fail with an
+   * UnsupportedOperationException.
+   */
+  @Unstable
+  public static void beginBatch() {
+    if (CURRENT_BATCH.get() != null) {
+      throw new IllegalStateException("A batch is already in progress");
+    }
+    CURRENT_BATCH.set(new CallBatch());
+  }
+
+  /**
+   * Send the calls queued since {@link #beginBatch()} as one request and
+   * stop batching. If the client is in asynchronous mode the request is
+   * sent asynchronously as well.
+   * @throws ServiceException if sending the batch failed.
+   */
+  @Unstable
+  public static void flushBatch() throws ServiceException {
+    CallBatch batch = CURRENT_BATCH.get();
+    if (batch == null) {
+      throw new IllegalStateException("No batch in progress");
+    }
+    CURRENT_BATCH.remove();
+    batch.send();
+  }
+
   public <T> ProtocolProxy<T> getProxy(Class<T> protocol, long clientVersion,
       InetSocketAddress addr, UserGroupInformation ticket, Configuration conf,
       SocketFactory factory, int rpcTimeout) throws IOException {
@@ -147,6 +204,7 @@ public class ProtobufRpcEngine2 implements RpcEngine {
     private final String protocolName;
     private AtomicBoolean fallbackToSimpleAuth;
     private AlignmentContext alignmentContext;
+    private final int maxBatchCalls;
 
     protected Invoker(Class<?> protocol, InetSocketAddress addr,
         UserGroupInformation ticket, Configuration conf, SocketFactory factory,
@@ -176,6 +234,8 @@ public class ProtobufRpcEngine2 implements RpcEngine {
       this.clientProtocolVersion = RPC
           .getProtocolVersion(protocol);
       this.alignmentContext = alignmentContext;
+      this.maxBatchCalls = conf.getInt(IPC_CLIENT_PROTOBUF_BATCH_MAX_CALLS_KEY,
+          IPC_PROTOBUF_BATCH_MAX_CALLS_DEFAULT);
     }
 
     private RequestHeaderProto constructRpcRequestHeader(Method method) {
@@ -237,6 +297,12 @@ public class ProtobufRpcEngine2 implements RpcEngine {
             + method.getName() + "]");
       }
 
+      CallBatch batch = CURRENT_BATCH.get();
+      if (batch != null) {
+        ASYNC_RETURN_MESSAGE.set(batch.add(this, method, (Message) args[1]));
+        return null;
+      }
+
       // if Tracing is on then start a new span for this rpc.
       // guard it in the if statement to make sure there isn't
       // any extra string manipulation.
@@ -309,6 +375,54 @@ public class ProtobufRpcEngine2 implements RpcEngine {
       return new RpcProtobufRequest(rpcRequestHeader, theRequest);
     }
 
+    /**
+     * Send a batch of calls as a single request.
+     * @return the response, available once the call completes.
+     */
+    private AsyncGet<RpcWritable.Buffer, IOException> sendBatch(
+        List<CallBatch.Entry> entries) throws ServiceException {
+      RequestHeaderProto batchHeader = RequestHeaderProto.newBuilder()
+          .setMethodName(BATCH_METHOD_NAME)
+          .setDeclaringClassProtocolName(protocolName)
+          .setClientProtocolVersion(clientProtocolVersion)
+          .build();
+      Tracer tracer = Tracer.curThreadTracer();
+      TraceScope traceScope = null;
+      if (tracer != null) {
+        traceScope = tracer.newScope(protocolName + "." + BATCH_METHOD_NAME);
+      }
+      final RpcWritable.Buffer val;
+      try {
+        val = (RpcWritable.Buffer) client.call(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+            new RpcProtobufBatchRequest(batchHeader, entries), remoteId,
+            fallbackToSimpleAuth, alignmentContext);
+      } catch (Throwable e) {
+        if (traceScope != null) {
+          traceScope.addTimelineAnnotation("Call got exception: " +
+              e.toString());
+        }
+        throw new ServiceException(e);
+      } finally {
+        if (traceScope != null) {
+          traceScope.close();
+        }
+      }
+      if (Client.isAsynchronousMode()) {
+        return Client.getAsyncRpcResponse();
+      }
+      return new AsyncGet<RpcWritable.Buffer, IOException>() {
+        @Override
+        public RpcWritable.Buffer get(long timeout, TimeUnit unit) {
+          return val;
+        }
+
+        @Override
+        public boolean isDone() {
+          return true;
+        }
+      };
+    }
+
     private Message getReturnMessage(final Method method,
         final RpcWritable.Buffer buf) throws ServiceException {
       Message prototype = null;
@@ -359,6 +473,10 @@ public class ProtobufRpcEngine2 implements RpcEngine {
       return remoteId;
     }
 
+    int getMaxBatchCalls() {
+      return maxBatchCalls;
+    }
+
     protected long getClientProtocolVersion() {
       return clientProtocolVersion;
     }
@@ -368,6 +486,128 @@ public class ProtobufRpcEngine2 implements RpcEngine {
     }
   }
 
+  /**
+   * Calls queued by one thread between {@link #beginBatch()} and
+   * {@link #flushBatch()}. A batch that reaches the configured maximum
+   * size is sent right away and batching continues with a new request.
+   */
+  static class CallBatch {
+    private Invoker invoker;
+    private List<Entry> entries = new ArrayList<>();
+
+    /** One queued call and, once the batch is sent, its result. */
+    static class Entry {
+      private final Method method;
+      private final RequestHeaderProto header;
+      private final Message request;
+      /** Position of the call in its batch and in the batch response. */
+      private final int index;
+      private SentBatch sent;
+
+      Entry(Method method, RequestHeaderProto header, Message request,
+          int index) {
+        this.method = method;
+        this.header = header;
+        this.request = request;
+        this.index = index;
+      }
+    }
+
+    /** The response of a sent batch, decoded on first use. */
+    private static class SentBatch {
+      private final Invoker invoker;
+      private final List<Entry> entries;
+      private final AsyncGet<RpcWritable.Buffer, IOException> response;
+      private Object[] results;
+
+      SentBatch(Invoker invoker, List<Entry> entries,
+          AsyncGet<RpcWritable.Buffer, IOException> response) {
+        this.invoker = invoker;
+        this.entries = entries;
+        this.response = response;
+      }
+
+      synchronized Message get(Entry entry, long timeout, TimeUnit unit)
+          throws Exception {
+        if (results == null) {
+          results = decode(response.get(timeout, unit));
+        }
+        Object result = results[entry.index];
+        if (result instanceof Exception) {
+          throw (Exception) result;
+        }
+        return (Message) result;
+      }
+
+      private Object[] decode(RpcWritable.Buffer buf) throws Exception {
+        if (buf == null) {
+          throw new TimeoutException("Batch response not available");
+        }
+        List<Message> prototypes = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+          prototypes.add(invoker.getReturnProtoType(entry.method));
+        }
+        RpcProtobufBatchResponse response =
+            buf.getValue(new RpcProtobufBatchResponse(prototypes));
+        Object[] decoded = new Object[entries.size()];
+        for (int i = 0; i < decoded.length; i++) {
+          RpcResponseHeaderProto header = response.getHeader(i);
+          if (header.getStatus() == RpcStatusProto.SUCCESS) {
+            decoded[i] = response.getResult(i);
+          } else {
+            decoded[i] = new ServiceException(new RemoteException(
+                header.getExceptionClassName(), header.getErrorMsg()));
+          }
+        }
+        return decoded;
+      }
+    }
+
+    AsyncGet<Message, Exception> add(Invoker callInvoker, Method method,
+        Message request) throws ServiceException {
+      if (invoker == null) {
+        invoker = callInvoker;
+      } else if (invoker != callInvoker) {
+        throw new ServiceException(
+            "All calls of a batch must use the same proxy");
+      }
+      final Entry entry = new Entry(method,
+          invoker.constructRpcRequestHeader(method), request, entries.size());
+      entries.add(entry);
+      if (entries.size() >= invoker.getMaxBatchCalls()) {
+        send();
+      }
+      return new AsyncGet<Message, Exception>() {
+        @Override
+        public Message get(long timeout, TimeUnit unit) throws Exception {
+          if (entry.sent == null) {
+            throw new IllegalStateException(
+                "The batch containing this call has not been flushed");
+          }
+          return entry.sent.get(entry, timeout, unit);
+        }
+
+        @Override
+        public boolean isDone() {
+          return entry.sent != null && entry.sent.response.isDone();
+        }
+      };
+    }
+
+    void send() throws ServiceException {
+      if (entries.isEmpty()) {
+        return;
+      }
+      List<Entry> toSend = entries;
+      entries = new ArrayList<>();
+      SentBatch sent =
+          new SentBatch(invoker, toSend, invoker.sendBatch(toSend));
+      for (Entry entry : toSend) {
+        entry.sent = sent;
+      }
+    }
+  }
+
   @VisibleForTesting
   @InterfaceAudience.Private
   @InterfaceStability.Unstable
@@ -405,10 +645,16 @@ public class ProtobufRpcEngine2 implements RpcEngine {
     static class CallInfo {
       private final RPC.Server server;
       private final String methodName;
+      private final boolean batched;
 
       CallInfo(RPC.Server server, String methodName) {
+        this(server, methodName, false);
+      }
+
+      CallInfo(RPC.Server server, String methodName, boolean batched) {
         this.server = server;
         this.methodName = methodName;
+        this.batched = batched;
       }
 
       public RPC.Server getServer() {
@@ -418,6 +664,10 @@ public class ProtobufRpcEngine2 implements RpcEngine {
       public String getMethodName() {
         return methodName;
       }
+
+      boolean isBatched() {
+        return batched;
+      }
     }
 
     static class ProtobufRpcEngineCallbackImpl
@@ -428,6 +678,13 @@ public class ProtobufRpcEngine2 implements RpcEngine {
       private final String methodName;
 
       ProtobufRpcEngineCallbackImpl() {
+        if (CURRENT_CALL_INFO.get().isBatched()) {
+          // the handler answers the whole batch at once, there is no call
+          // of its own this method could respond to later.
+          throw new UnsupportedOperationException("Method "
+              + CURRENT_CALL_INFO.get().getMethodName()
+              + " defers its response and cannot be batched");
+        }
         this.server = CURRENT_CALL_INFO.get().getServer();
         this.call = Server.getCurCall().get();
         this.methodName = CURRENT_CALL_INFO.get().getMethodName();
@@ -580,6 +837,16 @@ public class ProtobufRpcEngine2 implements RpcEngine {
         String declaringClassProtoName =
             rpcRequest.getDeclaringClassProtocolName();
         long clientVersion = rpcRequest.getClientProtocolVersion();
+        if (BATCH_METHOD_NAME.equals(methodName)) {
+          ProtoClassProtoImpl protocolImpl = getProtocolImpl(server,
+              declaringClassProtoName, clientVersion);
+          if (!protocolImpl.isShadedPBImpl()) {
+            throw new RpcNoSuchMethodException("Batched calls are not "
+                + "supported by " + declaringClassProtoName);
+          }
+          return callBatch(server, connectionProtocolName, request,
+              protocolImpl);
+        }
         return call(server, connectionProtocolName, request, receiveTime,
             methodName, declaringClassProtoName, clientVersion);
       }
@@ -649,6 +916,96 @@ public class ProtobufRpcEngine2 implements RpcEngine {
         }
         return RpcWritable.wrap(result);
       }
+
+      /**
+       * Run every call of a batch request back-to-back on the current
+       * handler. The whole request is decoded and every method resolved
+       * before the first call runs, so a batch that is too large or names
+       * an unknown method fails as a whole without side effects. Once the
+       * calls run, a failing call does not stop the batch; its error is
+       * returned in its slot of the multiplexed response. Methods that
+       * defer their response fail with an UnsupportedOperationException.
+       */
+      private RpcWritable callBatch(RPC.Server server,
+          String connectionProtocolName, RpcWritable.Buffer request,
+          ProtoClassProtoImpl protocolImpl) throws Exception {
+        BlockingService service = (BlockingService) protocolImpl.protocolImpl;
+        int maxCalls = server.getConf().getInt(
+            IPC_SERVER_PROTOBUF_BATCH_MAX_CALLS_KEY,
+            IPC_PROTOBUF_BATCH_MAX_CALLS_DEFAULT);
+        List<MethodDescriptor> methods = new ArrayList<>();
+        List<Message> params = new ArrayList<>();
+        while (request.remaining() > 0) {
+          if (methods.size() >= maxCalls) {
+            throw new RpcServerException("Batch exceeds " + maxCalls
+                + " calls, see " + IPC_SERVER_PROTOBUF_BATCH_MAX_CALLS_KEY);
+          }
+          RequestHeaderProto header =
+              request.getValue(RequestHeaderProto.getDefaultInstance());
+          String methodName = header.getMethodName();
+          MethodDescriptor methodDescriptor = service.getDescriptorForType()
+              .findMethodByName(methodName);
+          if (methodDescriptor == null) {
+            // the payload cannot be skipped without its type
+            String msg = "Unknown method " + methodName + " called on "
+                + connectionProtocolName + " protocol.";
+            LOG.warn(msg);
+            throw new RpcNoSuchMethodException(msg);
+          }
+          methods.add(methodDescriptor);
+          params.add(
+              request.getValue(service.getRequestPrototype(methodDescriptor)));
+        }
+
+        Call currentCall = Server.getCurCall().get();
+        ProcessingDetails batchDetails = currentCall.getProcessingDetails();
+        currentCall.setDetailedMetricsName(BATCH_METHOD_NAME);
+        server.rpcDetailedMetrics.init(protocolImpl.protocolClass);
+        RpcProtobufBatchResponse response = new RpcProtobufBatchResponse();
+        for (int i = 0; i < methods.size(); i++) {
+          MethodDescriptor methodDescriptor = methods.get(i);
+          String methodName = methodDescriptor.getName();
+          String metricsName = methodName;
+          // lock times are added to the details of the batch call
+          long lockWait =
+              batchDetails.get(Timing.LOCKWAIT, TimeUnit.NANOSECONDS);
+          long lockShared =
+              batchDetails.get(Timing.LOCKSHARED, TimeUnit.NANOSECONDS);
+          long lockExclusive =
+              batchDetails.get(Timing.LOCKEXCLUSIVE, TimeUnit.NANOSECONDS);
+          long startNanos = Time.monotonicNowNanos();
+          try {
+            CURRENT_CALL_INFO.set(new CallInfo(server, methodName, true));
+            response.addResult(service.callBlockingMethod(
+                methodDescriptor, null, params.get(i)));
+          } catch (ServiceException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            metricsName = cause.getClass().getSimpleName();
+            response.addError(cause);
+          } catch (Exception e) {
+            metricsName = e.getClass().getSimpleName();
+            response.addError(e);
+          } finally {
+            CURRENT_CALL_INFO.set(null);
+          }
+          long deltaNanos = Time.monotonicNowNanos() - startNanos;
+          ProcessingDetails details =
+              new ProcessingDetails(TimeUnit.NANOSECONDS);
+          details.set(Timing.PROCESSING, deltaNanos);
+          details.set(Timing.LOCKWAIT, batchDetails.get(Timing.LOCKWAIT,
+              TimeUnit.NANOSECONDS) - lockWait);
+          details.set(Timing.LOCKSHARED, batchDetails.get(Timing.LOCKSHARED,
+              TimeUnit.NANOSECONDS) - lockShared);
+          details.set(Timing.LOCKEXCLUSIVE, batchDetails.get(
+              Timing.LOCKEXCLUSIVE, TimeUnit.NANOSECONDS) - lockExclusive);
+          details.set(Timing.LOCKFREE, deltaNanos
+              - details.get(Timing.LOCKWAIT)
+              - details.get(Timing.LOCKSHARED)
+              - details.get(Timing.LOCKEXCLUSIVE));
+          server.updateBatchedCallMetrics(currentCall, metricsName, details);
+        }
+        return response;
+      }
     }
   }
 
@@ -694,4 +1051,112 @@ public class ProtobufRpcEngine2 implements RpcEngine {
       }
     }
   }
+
+  // a batch request is framed as the batch header followed by the header
+  // and payload of every call.
+  static class RpcProtobufBatchRequest extends RpcProtobufRequest {
+    private final List<CallBatch.Entry> entries;
+
+    RpcProtobufBatchRequest(RequestHeaderProto header,
+        List<CallBatch.Entry> entries) {
+      super(header, null);
+      this.entries = entries;
+    }
+
+    @Override
+    public void writeTo(ResponseBuffer out) throws IOException {
+      super.writeTo(out);
+      for (CallBatch.Entry entry : entries) {
+        entry.header.writeDelimitedTo(out);
+        entry.request.writeDelimitedTo(out);
+      }
+    }
+  }
+
+  // the multiplexed response to a batch: for every call, in request order,
+  // a response header with the call's index as call id, followed by the
+  // result message if the call succeeded. the server builds it with
+  // addResult and addError; the client decodes it with readFrom, which
+  // needs the result prototype of every call to parse the payloads.
+  static class RpcProtobufBatchResponse extends RpcWritable {
+    private final List<Message> prototypes;
+    private final List<RpcResponseHeaderProto> headers = new ArrayList<>();
+    private final List<Message> results = new ArrayList<>();
+
+    RpcProtobufBatchResponse() {
+      this(null);
+    }
+
+    RpcProtobufBatchResponse(List<Message> prototypes) {
+      this.prototypes = prototypes;
+    }
+
+    int size() {
+      return headers.size();
+    }
+
+    RpcResponseHeaderProto getHeader(int index) {
+      return headers.get(index);
+    }
+
+    /** @return the result of a call, null if the call failed. */
+    Message getResult(int index) {
+      return results.get(index);
+    }
+
+    void addResult(Message result) {
+      headers.add(RpcResponseHeaderProto.newBuilder()
+          .setCallId(size())
+          .setStatus(RpcStatusProto.SUCCESS)
+          .build());
+      results.add(result);
+    }
+
+    void addError(Throwable t) {
+      headers.add(RpcResponseHeaderProto.newBuilder()
+          .setCallId(size())
+          .setStatus(RpcStatusProto.ERROR)
+          .setExceptionClassName(t.getClass().getName())
+          .setErrorMsg(StringUtils.stringifyException(t))
+          .build());
+      results.add(null);
+    }
+
+    @Override
+    void writeTo(ResponseBuffer out) throws IOException {
+      for (int i = 0; i < headers.size(); i++) {
+        headers.get(i).writeDelimitedTo(out);
+        if (results.get(i) != null) {
+          results.get(i).writeDelimitedTo(out);
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    <T> T readFrom(ByteBuffer bb) throws IOException {
+      if (prototypes == null) {
+        throw new IllegalStateException(
+            "Result prototypes are required to decode a batch response");
+      }
+      headers.clear();
+      results.clear();
+      for (int i = 0; i < prototypes.size(); i++) {
+        RpcResponseHeaderProto header = RpcWritable.wrap(
+            RpcResponseHeaderProto.getDefaultInstance()).readFrom(bb);
+        if (header.getCallId() != i) {
+          throw new IOException("Unexpected batch response for call "
+              + header.getCallId() + ", expected " + i);
+        }
+        headers.add(header);
+        if (header.getStatus() == RpcStatusProto.SUCCESS) {
+          results.add(RpcWritable.wrap(
+              prototypes.get(i).getDefaultInstanceForType()).readFrom(bb));
+        } else {
+          results.add(null);
+        }
+      }
+      return (T) this;
+    }
+  }
 }
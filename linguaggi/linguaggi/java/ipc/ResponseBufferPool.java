@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A pool of direct {@link ByteBuffer}s used by the server to serialize RPC
+ * responses, so responses can be written to the socket without first being
+ * copied into a heap array and then into a temporary direct buffer by NIO.
+ *
+ * Buffers are kept in power-of-two size classes from {@link #MIN_SIZE} up to
+ * the configured maximum. Requests larger than the maximum, or made while
+ * a size class is empty and at its retention limit, are served with a fresh
+ * buffer and counted as misses. A buffer must only be released once the
+ * response using it has been fully written; responses dropped with their
+ * connection are simply left to the garbage collector.
+ */
+@InterfaceAudience.Private
+class ResponseBufferPool {
+  public static final String IPC_SERVER_RESPONSE_DIRECT_BUFFERS_ENABLED_KEY =
+      "ipc.server.response.direct-buffers.enabled";
+  public static final boolean
+      IPC_SERVER_RESPONSE_DIRECT_BUFFERS_ENABLED_DEFAULT = false;
+  public static final String IPC_SERVER_RESPONSE_DIRECT_BUFFERS_MAX_SIZE_KEY =
+      "ipc.server.response.direct-buffers.max-buffer-size";
+  public static final int IPC_SERVER_RESPONSE_DIRECT_BUFFERS_MAX_SIZE_DEFAULT =
+      1024 * 1024;
+  public static final String
+      IPC_SERVER_RESPONSE_DIRECT_BUFFERS_MAX_RETAINED_KEY =
+      "ipc.server.response.direct-buffers.max-retained-bytes";
+  public static final long
+      IPC_SERVER_RESPONSE_DIRECT_BUFFERS_MAX_RETAINED_DEFAULT =
+      64L * 1024 * 1024;
+
+  static final int MIN_SIZE = 256;
+
+  private final ConcurrentLinkedQueue<ByteBuffer>[] freeLists;
+  private final AtomicInteger[] freeCounts;
+  private final int[] maxFreePerClass;
+  private final int maxBufferSize;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder bytesCopied = new LongAdder();
+
+  ResponseBufferPool(Configuration conf) {
+    this(conf.getInt(IPC_SERVER_RESPONSE_DIRECT_BUFFERS_MAX_SIZE_KEY,
+            IPC_SERVER_RESPONSE_DIRECT_BUFFERS_MAX_SIZE_DEFAULT),
+        conf.getLong(IPC_SERVER_RESPONSE_DIRECT_BUFFERS_MAX_RETAINED_KEY,
+            IPC_SERVER_RESPONSE_DIRECT_BUFFERS_MAX_RETAINED_DEFAULT));
+  }
+
+  @SuppressWarnings("unchecked")
+  ResponseBufferPool(int maxBufferSize, long maxRetainedBytes) {
+    this.maxBufferSize = Math.max(MIN_SIZE, roundUp(maxBufferSize));
+    int numClasses = sizeClass(this.maxBufferSize) + 1;
+    this.freeLists = new ConcurrentLinkedQueue[numClasses];
+    this.freeCounts = new AtomicInteger[numClasses];
+    this.maxFreePerClass = new int[numClasses];
+    // split the retained byte budget evenly across the size classes
+    long perClassBytes = maxRetainedBytes / numClasses;
+    for (int i = 0; i < numClasses; i++) {
+      freeLists[i] = new ConcurrentLinkedQueue<>();
+      freeCounts[i] = new AtomicInteger();
+      maxFreePerClass[i] =
+          (int) Math.min(Integer.MAX_VALUE, perClassBytes / (MIN_SIZE << i));
+    }
+  }
+
+  private static int roundUp(int size) {
+    return size <= MIN_SIZE ? MIN_SIZE
+        : Integer.highestOneBit(size - 1) << 1;
+  }
+
+  private static int sizeClass(int roundedSize) {
+    return Integer.numberOfTrailingZeros(roundedSize)
+        - Integer.numberOfTrailingZeros(MIN_SIZE);
+  }
+
+  /**
+   * Get a direct buffer with position 0 and limit set to the given size.
+   * @param size number of bytes needed.
+   * @return a direct buffer.
+   */
+  ByteBuffer acquire(int size) {
+    if (size > maxBufferSize) {
+      misses.increment();
+      return ByteBuffer.allocateDirect(size);
+    }
+    int rounded = roundUp(size);
+    int idx = sizeClass(rounded);
+    ByteBuffer buf = freeLists[idx].poll();
+    if (buf != null) {
+      freeCounts[idx].decrementAndGet();
+      hits.increment();
+    } else {
+      misses.increment();
+      buf = ByteBuffer.allocateDirect(rounded);
+    }
+    buf.clear().limit(size);
+    return buf;
+  }
+
+  /**
+   * Return a buffer obtained from {@link #acquire(int)}.
+   * @param buf the buffer, may be null.
+   */
+  void release(ByteBuffer buf) {
+    if (buf == null || !buf.isDirect()) {
+      return;
+    }
+    int capacity = buf.capacity();
+    if (capacity > maxBufferSize || capacity != roundUp(capacity)) {
+      return;
+    }
+    int idx = sizeClass(capacity);
+    if (freeCounts[idx].incrementAndGet() <= maxFreePerClass[idx]) {
+      freeLists[idx].offer(buf);
+    } else {
+      freeCounts[idx].decrementAndGet();
+    }
+  }
+
+  /**
+   * Record bytes of a response that went through an intermediate heap copy
+   * instead of a pooled buffer.
+   * @param n number of bytes copied.
+   */
+  void incrBytesCopied(long n) {
+    bytesCopied.add(n);
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  long getBytesCopied() {
+    return bytesCopied.sum();
+  }
+}
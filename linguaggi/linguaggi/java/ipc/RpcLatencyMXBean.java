@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.List;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * Per-method RPC latency breakdowns and the slowest recent calls of an
+ * IPC server. Published via JMX, and so also served as JSON by
+ * {@link org.apache.hadoop.jmx.JMXJsonServlet}.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public interface RpcLatencyMXBean {
+  /**
+   * @return queue, processing and response time distributions, in
+   *     microseconds, of every method that has been called.
+   */
+  List<RpcLatencyTracker.MethodLatency> getMethodLatencies();
+
+  /**
+   * @return the slowest calls since the server started whose total time
+   *     exceeded the slow call threshold, slowest first.
+   */
+  List<RpcLatencyTracker.SlowCall> getSlowCalls();
+
+  /**
+   * @return the slow call threshold in milliseconds.
+   */
+  long getSlowCallThresholdMs();
+}
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Records per-method latency histograms for the queue, processing and
+ * response phases of RPC calls, and keeps the slowest calls seen since the
+ * server started in a bounded min-heap. Recording only takes a lock for a
+ * slow call that is slower than the fastest call kept so far.
+ */
+@InterfaceAudience.Private
+public class RpcLatencyTracker implements RpcLatencyMXBean {
+  public static final String IPC_SERVER_LATENCY_TRACKER_ENABLED_KEY =
+      "ipc.server.latency-tracker.enabled";
+  public static final boolean IPC_SERVER_LATENCY_TRACKER_ENABLED_DEFAULT =
+      false;
+  public static final String IPC_SERVER_LATENCY_TRACKER_SLOW_CALLS_KEY =
+      "ipc.server.latency-tracker.slow-calls";
+  public static final int IPC_SERVER_LATENCY_TRACKER_SLOW_CALLS_DEFAULT = 64;
+  public static final String IPC_SERVER_LATENCY_TRACKER_SLOW_THRESHOLD_KEY =
+      "ipc.server.latency-tracker.slow-call.threshold.ms";
+  public static final long IPC_SERVER_LATENCY_TRACKER_SLOW_THRESHOLD_DEFAULT =
+      1000;
+
+  /** Latency distribution of one phase of a call, in microseconds. */
+  public static class LatencySummary {
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    LatencySummary(LatencyHistogram histogram) {
+      this.count = histogram.getCount();
+      this.mean = histogram.getMean();
+      this.p50 = histogram.getPercentile(50);
+      this.p90 = histogram.getPercentile(90);
+      this.p99 = histogram.getPercentile(99);
+      this.p999 = histogram.getPercentile(99.9);
+      this.max = histogram.getMax();
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public double getMean() {
+      return mean;
+    }
+
+    public long getP50() {
+      return p50;
+    }
+
+    public long getP90() {
+      return p90;
+    }
+
+    public long getP99() {
+      return p99;
+    }
+
+    public long getP999() {
+      return p999;
+    }
+
+    public long getMax() {
+      return max;
+    }
+  }
+
+  /** Latency breakdown of one RPC method. */
+  public static class MethodLatency {
+    private final String method;
+    private final LatencySummary queueTime;
+    private final LatencySummary processingTime;
+    private final LatencySummary responseTime;
+
+    MethodLatency(String method, Histograms histograms) {
+      this.method = method;
+      this.queueTime = new LatencySummary(histograms.queue);
+      this.processingTime = new LatencySummary(histograms.processing);
+      this.responseTime = new LatencySummary(histograms.response);
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public LatencySummary getQueueTime() {
+      return queueTime;
+    }
+
+    public LatencySummary getProcessingTime() {
+      return processingTime;
+    }
+
+    public LatencySummary getResponseTime() {
+      return responseTime;
+    }
+  }
+
+  /** A call whose total time exceeded the slow call threshold. */
+  public static class SlowCall {
+    private final String method;
+    private final String user;
+    private final String callerContext;
+    private final String client;
+    private final long timestamp;
+    private final long queueTimeMicros;
+    private final long processingTimeMicros;
+    private final long responseTimeMicros;
+
+    SlowCall(String method, String user, String callerContext,
+        String client, long timestamp, long queueTimeMicros,
+        long processingTimeMicros, long responseTimeMicros) {
+      this.method = method;
+      this.user = user;
+      this.callerContext = callerContext;
+      this.client = client;
+      this.timestamp = timestamp;
+      this.queueTimeMicros = queueTimeMicros;
+      this.processingTimeMicros = processingTimeMicros;
+      this.responseTimeMicros = responseTimeMicros;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public String getUser() {
+      return user;
+    }
+
+    public String getCallerContext() {
+      return callerContext;
+    }
+
+    public String getClient() {
+      return client;
+    }
+
+    /** @return wall clock time the call completed, in milliseconds. */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public long getQueueTimeMicros() {
+      return queueTimeMicros;
+    }
+
+    public long getProcessingTimeMicros() {
+      return processingTimeMicros;
+    }
+
+    public long getResponseTimeMicros() {
+      return responseTimeMicros;
+    }
+
+    public long getTotalTimeMicros() {
+      return queueTimeMicros + processingTimeMicros + responseTimeMicros;
+    }
+  }
+
+  static class Histograms {
+    final LatencyHistogram queue = new LatencyHistogram();
+    final LatencyHistogram processing = new LatencyHistogram();
+    final LatencyHistogram response = new LatencyHistogram();
+  }
+
+  private final Map<String, Histograms> methods = new ConcurrentHashMap<>();
+  /** The slowest calls, fastest at the head; guarded by itself. */
+  private final PriorityQueue<SlowCall> slowCalls;
+  private final int maxSlowCalls;
+  /**
+   * Total time a call must exceed to enter {@link #slowCalls}: the threshold
+   * until the heap is full, then the total time of its fastest call.
+   */
+  private volatile long slowCallFloorMicros;
+  private final long slowThresholdMicros;
+
+  RpcLatencyTracker(Configuration conf) {
+    this(conf.getInt(IPC_SERVER_LATENCY_TRACKER_SLOW_CALLS_KEY,
+            IPC_SERVER_LATENCY_TRACKER_SLOW_CALLS_DEFAULT),
+        conf.getLong(IPC_SERVER_LATENCY_TRACKER_SLOW_THRESHOLD_KEY,
+            IPC_SERVER_LATENCY_TRACKER_SLOW_THRESHOLD_DEFAULT));
+  }
+
+  RpcLatencyTracker(int numSlowCalls, long slowThresholdMs) {
+    this.maxSlowCalls = Math.max(1, numSlowCalls);
+    this.slowCalls = new PriorityQueue<>(maxSlowCalls,
+        Comparator.comparingLong(SlowCall::getTotalTimeMicros));
+    this.slowThresholdMicros = TimeUnit.MILLISECONDS.toMicros(slowThresholdMs);
+    this.slowCallFloorMicros = slowThresholdMicros;
+  }
+
+  /**
+   * Record a completed call.
+   * @param method method name.
+   * @param queueNanos time spent in the call queue.
+   * @param processingNanos time spent processing the call.
+   * @param responseNanos time spent sending the response.
+   * @param user remote user, may be null.
+   * @param callerContext caller context, may be null.
+   * @param client client address, may be null.
+   */
+  void add(String method, long queueNanos, long processingNanos,
+      long responseNanos, String user, String callerContext, String client) {
+    Histograms histograms = methods.get(method);
+    if (histograms == null) {
+      histograms = methods.computeIfAbsent(method, m -> new Histograms());
+    }
+    long queueMicros = TimeUnit.NANOSECONDS.toMicros(queueNanos);
+    long processingMicros = TimeUnit.NANOSECONDS.toMicros(processingNanos);
+    long responseMicros = TimeUnit.NANOSECONDS.toMicros(responseNanos);
+    histograms.queue.add(queueMicros);
+    histograms.processing.add(processingMicros);
+    histograms.response.add(responseMicros);
+
+    long totalMicros = queueMicros + processingMicros + responseMicros;
+    if (totalMicros >= slowCallFloorMicros) {
+      addSlowCall(new SlowCall(method, user, callerContext, client,
+          System.currentTimeMillis(), queueMicros, processingMicros,
+          responseMicros));
+    }
+  }
+
+  private void addSlowCall(SlowCall call) {
+    synchronized (slowCalls) {
+      if (slowCalls.size() < maxSlowCalls) {
+        slowCalls.add(call);
+      } else if (call.getTotalTimeMicros()
+          > slowCalls.peek().getTotalTimeMicros()) {
+        slowCalls.poll();
+        slowCalls.add(call);
+      } else {
+        return;
+      }
+      if (slowCalls.size() == maxSlowCalls) {
+        slowCallFloorMicros = Math.max(slowThresholdMicros,
+            slowCalls.peek().getTotalTimeMicros());
+      }
+    }
+  }
+
+  @Override
+  public List<MethodLatency> getMethodLatencies() {
+    List<MethodLatency> result = new ArrayList<>(methods.size());
+    for (Map.Entry<String, Histograms> e : methods.entrySet()) {
+      result.add(new MethodLatency(e.getKey(), e.getValue()));
+    }
+    result.sort(Comparator.comparing(MethodLatency::getMethod));
+    return result;
+  }
+
+  @Override
+  public List<SlowCall> getSlowCalls() {
+    List<SlowCall> result;
+    synchronized (slowCalls) {
+      result = new ArrayList<>(slowCalls);
+    }
+    result.sort(
+        Comparator.comparingLong(SlowCall::getTotalTimeMicros).reversed());
+    return result;
+  }
+
+  @Override
+  public long getSlowCallThresholdMs() {
+    return TimeUnit.MICROSECONDS.toMillis(slowThresholdMicros);
+  }
+}
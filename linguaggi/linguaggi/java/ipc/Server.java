@@ -73,6 +73,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
+import javax.management.ObjectName;
 import javax.security.sasl.Sasl;
 import javax.security.sasl.SaslException;
 import javax.security.sasl.SaslServer;
@@ -104,6 +105,7 @@ import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcSaslProto;
 import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcSaslProto.SaslAuth;
 import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcSaslProto.SaslState;
 import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RPCTraceInfoProto;
+import org.apache.hadoop.metrics2.util.MBeans;
 import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.SaslMechanismFactory;
@@ -476,6 +478,9 @@ public abstract class Server {
   private Class<? extends Writable> rpcRequestClass;   // class used for deserializing the rpc request
   final protected RpcMetrics rpcMetrics;
   final protected RpcDetailedMetrics rpcDetailedMetrics;
+  // non-null iff per-method latency histograms are recorded
+  private final RpcLatencyTracker latencyTracker;
+  private ObjectName latencyTrackerBeanName;
 
   private Configuration conf;
   private String portRangeConfig = null;
@@ -485,6 +490,8 @@ public abstract class Server {
 
   private int maxQueueSize;
   private final int maxRespSize;
+  // non-null iff responses are serialized into pooled direct buffers
+  private final ResponseBufferPool responseBufferPool;
   private final ThreadLocal<ResponseBuffer> responseBuffer =
       new ThreadLocal<ResponseBuffer>(){
         @Override
@@ -498,6 +505,8 @@ public abstract class Server {
 
   volatile private boolean running = true;         // true while server runs
   private CallQueueManager<Call> callQueue;
+  // non-null iff readers feed per-reader call queue shards
+  private ShardedCallQueue<Call> shardedCallQueue;
 
   private long purgeIntervalNanos;
 
@@ -510,6 +519,9 @@ public abstract class Server {
   private Map<Integer, Listener> auxiliaryListenerMap;
   private Responder responder = null;
   private Handler[] handlers = null;
+  // non-null iff calls run on the virtual thread handler pool
+  private VirtualThreadHandlerPool handlerPool = null;
+  private HandlerDispatcher[] handlerDispatchers = null;
   private final AtomicInteger numInProcessHandler = new AtomicInteger();
   private final LongAdder totalRequests = new LongAdder();
   private long lastSeenTotalRequests = 0;
@@ -537,6 +549,26 @@ public abstract class Server {
     return numInProcessHandler.get();
   }
 
+  /**
+   * @return number of calls running on the virtual thread handler pool,
+   *     or 0 if the server uses fixed handler threads.
+   */
+  public int getNumInFlightPooledCalls() {
+    VirtualThreadHandlerPool pool = handlerPool;
+    return pool != null ? pool.getInFlight() : 0;
+  }
+
+  /**
+   * @return number of dispatches blocked on the virtual thread handler
+   *     pool's concurrency limits, or 0 if the server uses fixed handler
+   *     threads. Calls not yet dispatched remain in the call queue, see
+   *     {@link #getCallQueueLen()}.
+   */
+  public int getNumWaitingPooledCalls() {
+    VirtualThreadHandlerPool pool = handlerPool;
+    return pool != null ? pool.getWaiting() : 0;
+  }
+
   public long getTotalRequests() {
     return totalRequests.sum();
   }
@@ -661,6 +693,9 @@ public abstract class Server {
         .convert(completionTimeNanos - arrivalTimeNanos, TimeUnit.NANOSECONDS);
     rpcDetailedMetrics.addOverallProcessingTime(name, overallProcessingTime);
     callQueue.addResponseTime(name, call, details);
+    if (latencyTracker != null) {
+      addLatency(name, call, details);
+    }
     if (isLogSlowRPC()) {
       logSlowRpcCalls(name, call, details);
     }
@@ -669,6 +704,45 @@ public abstract class Server {
     }
   }
 
+  /**
+   * Update the per-method metrics of one call of a batch. The batch itself
+   * is accounted as a single call by
+   * {@link #updateMetrics(Call, long, boolean)}.
+   * @param call the call carrying the batch
+   * @param name Rpc method name, or the exception class name
+   * @param details the processing details of the batched call
+   */
+  void updateBatchedCallMetrics(Call call, String name,
+      ProcessingDetails details) {
+    TimeUnit unit = rpcMetrics.getMetricsTimeUnit();
+    // don't include lock wait for detailed metrics.
+    rpcDetailedMetrics.addProcessingTime(name,
+        details.get(Timing.PROCESSING, unit)
+            - details.get(Timing.LOCKWAIT, unit));
+    if (latencyTracker != null) {
+      addLatency(name, call, details);
+    }
+    ProcessingDetails.LOG.debug("Served batched: [{}] name={} details={}",
+        call, name, details);
+  }
+
+  private void addLatency(String name, Call call, ProcessingDetails details) {
+    UserGroupInformation user = call.getRemoteUser();
+    latencyTracker.add(name, details.get(Timing.QUEUE),
+        details.get(Timing.PROCESSING), details.get(Timing.RESPONSE),
+        user != null ? user.getUserName() : null,
+        call.callerContext != null ? call.callerContext.getContext() : null,
+        call.getHostAddress());
+  }
+
+  /**
+   * @return per-method latency histograms and slowest recent calls, or
+   *     null if latency tracking is disabled.
+   */
+  public RpcLatencyMXBean getLatencyTracker() {
+    return latencyTracker;
+  }
+
   /**
    * Update rpc metrics for defered calls.
    * @param call The Rpc Call
@@ -699,6 +773,9 @@ public abstract class Server {
         .convert(completionTimeNanos - arrivalTimeNanos, TimeUnit.NANOSECONDS);
     rpcDetailedMetrics.addOverallProcessingTime(name, overallProcessingTime);
     callQueue.addResponseTime(name, call, details);
+    if (latencyTracker != null) {
+      addLatency(name, call, details);
+    }
     if (isLogSlowRPC()) {
       logSlowRpcCalls(name, call, details);
     }
@@ -783,9 +860,19 @@ public abstract class Server {
     return rpcDetailedMetrics;
   }
   
+  /**
+   * @return the handler threads, or the dispatcher threads when calls run
+   *     on the virtual thread handler pool; empty before the server starts.
+   */
   @VisibleForTesting
   Iterable<? extends Thread> getHandlers() {
-    return Arrays.asList(handlers);
+    if (handlers != null) {
+      return Arrays.asList(handlers);
+    }
+    if (handlerDispatchers != null) {
+      return Arrays.asList(handlerDispatchers);
+    }
+    return Collections.emptyList();
   }
 
   @VisibleForTesting
@@ -936,6 +1023,13 @@ public abstract class Server {
    * Refresh the call queue
    */
   public synchronized void refreshCallQueue(Configuration conf) {
+    if (shardedCallQueue != null) {
+      // calls never go through callQueue, swapping it would have no effect
+      LOG.warn("Ignoring call queue refresh on port " + port + " since "
+          + ShardedCallQueue.IPC_SERVER_CALLQUEUE_SHARDED_KEY
+          + " is enabled; restart the server to change its call queue");
+      return;
+    }
     // Create the next queue
     String prefix = getQueueClassPrefix();
     this.maxQueueSize = handlerCount * conf.getInt(
@@ -1218,6 +1312,8 @@ public abstract class Server {
     final Connection connection;  // connection to client
     final Writable rpcRequest;    // Serialized Rpc request from client
     ByteBuffer rpcResponse;       // the response for this call
+    // the response as pooled direct buffers, written with a gathering write
+    ByteBuffer[] rpcResponseBuffers;
 
     private ResponseParams responseParams; // the response params
     private Writable rv;                   // the byte response
@@ -1347,9 +1443,55 @@ public abstract class Server {
     }
 
     void setResponse(ByteBuffer response) throws IOException {
+      releaseResponse();
       this.rpcResponse = response;
     }
 
+    void setResponse(ByteBuffer[] responseBuffers) {
+      releaseResponse();
+      this.rpcResponseBuffers = responseBuffers;
+    }
+
+    /**
+     * Write as much of the response as the channel accepts.
+     * @return number of bytes written, or -1 if the channel reached EOF.
+     */
+    int writeResponse(SocketChannel channel) throws IOException {
+      if (rpcResponseBuffers == null) {
+        return channelWrite(channel, rpcResponse);
+      }
+      // direct buffers are handed to the socket as is, so there is no need
+      // to split the write into NIO_BUFFER_LIMIT sized chunks
+      long count = channel.write(rpcResponseBuffers);
+      if (count > 0) {
+        rpcMetrics.incrSentBytes((int) count);
+      }
+      return (int) count;
+    }
+
+    boolean hasRemainingResponse() {
+      if (rpcResponseBuffers == null) {
+        return rpcResponse.hasRemaining();
+      }
+      for (ByteBuffer buf : rpcResponseBuffers) {
+        if (buf.hasRemaining()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Clear out the response, returning pooled buffers to the pool. */
+    void releaseResponse() {
+      rpcResponse = null;
+      if (rpcResponseBuffers != null) {
+        for (ByteBuffer buf : rpcResponseBuffers) {
+          responseBufferPool.release(buf);
+        }
+        rpcResponseBuffers = null;
+      }
+    }
+
     @Override
     void doResponse(Throwable t, RpcStatusProto status) throws IOException {
       RpcCall call = this;
@@ -1489,7 +1631,7 @@ public abstract class Server {
       readers = new Reader[readThreads];
       for (int i = 0; i < readThreads; i++) {
         Reader reader = new Reader(
-            "Socket Reader #" + (i + 1) + " for port " + port);
+            "Socket Reader #" + (i + 1) + " for port " + port, i);
         readers[i] = reader;
         reader.start();
       }
@@ -1508,9 +1650,11 @@ public abstract class Server {
     private class Reader extends Thread {
       final private BlockingQueue<Connection> pendingConnections;
       private final Selector readSelector;
+      private final int index;
 
-      Reader(String name) throws IOException {
+      Reader(String name, int index) throws IOException {
         super(name);
+        this.index = index;
 
         this.pendingConnections =
             new LinkedBlockingQueue<Connection>(readerPendingConnectionQueue);
@@ -1682,6 +1826,7 @@ public abstract class Server {
           continue;
         }
         key.attach(c);  // so closeCurrentConnection can get the object
+        c.readerIndex = reader.index;
         reader.addConnection(c);
       }
     }
@@ -1915,13 +2060,13 @@ public abstract class Server {
           //
           // Send as much data as we can in the non-blocking fashion
           //
-          int numBytes = channelWrite(channel, call.rpcResponse);
+          int numBytes = call.writeResponse(channel);
           if (numBytes < 0) {
             return true;
           }
-          if (!call.rpcResponse.hasRemaining()) {
+          if (!call.hasRemainingResponse()) {
             //Clear out the response buffer so it can be collected
-            call.rpcResponse = null;
+            call.releaseResponse();
             call.connection.decRpcCount();
             if (numElements == 1) {    // last call fully processes.
               done = true;             // no more data for this channel.
@@ -2062,6 +2207,9 @@ public abstract class Server {
     private ByteBuffer data;
     private final ByteBuffer dataLengthBuffer;
     private LinkedList<RpcCall> responseQueue;
+    // index of the Reader serving this connection, selects the call queue
+    // shard when the call queue is sharded
+    private volatile int readerIndex = -1;
     // number of outstanding rpcs
     private AtomicInteger rpcCount = new AtomicInteger();
     private long lastContact;
@@ -3165,7 +3313,15 @@ public abstract class Server {
       throws IOException, InterruptedException {
     try {
       // queue the call, may be blocked if blocking is true.
-      if (blocking) {
+      if (shardedCallQueue != null) {
+        int affinity = (call instanceof RpcCall)
+            ? ((RpcCall) call).connection.readerIndex : -1;
+        if (blocking) {
+          shardedCallQueue.put(affinity, call);
+        } else {
+          shardedCallQueue.add(affinity, call);
+        }
+      } else if (blocking) {
         callQueue.put(call);
       } else {
         callQueue.add(call);
@@ -3195,7 +3351,10 @@ public abstract class Server {
 
   /** Handles queued calls . */
   private class Handler extends Thread {
+    private final int instanceNumber;
+
     public Handler(int instanceNumber) {
+      this.instanceNumber = instanceNumber;
       this.setDaemon(true);
       this.setName("IPC Server handler "+ instanceNumber +
           " on default port " + port);
@@ -3206,92 +3365,156 @@ public abstract class Server {
       LOG.debug("{}: starting", Thread.currentThread().getName());
       SERVER.set(Server.this);
       while (running) {
-        TraceScope traceScope = null;
-        Call call = null;
-        long startTimeNanos = 0;
-        // True iff the connection for this call has been dropped.
-        // Set to true by default and update to false later if the connection
-        // can be succesfully read.
-        boolean connDropped = true;
-
         try {
-          call = callQueue.take(); // pop the queue; maybe blocked here
-          numInProcessHandler.incrementAndGet();
-          startTimeNanos = Time.monotonicNowNanos();
-          if (alignmentContext != null && call.isCallCoordinated() &&
-              call.getClientStateId() > alignmentContext.getLastSeenStateId()) {
-            /*
-             * The call processing should be postponed until the client call's
-             * state id is aligned (<=) with the server state id.
-
-             * NOTE:
-             * Inserting the call back to the queue can change the order of call
-             * execution comparing to their original placement into the queue.
-             * This is not a problem, because Hadoop RPC does not have any
-             * constraints on ordering the incoming rpc requests.
-             * In case of Observer, it handles only reads, which are
-             * commutative.
-             */
-            // Re-queue the call and continue
-            requeueCall(call);
-            call = null;
-            continue;
-          }
-          LOG.debug("{}: {} for RpcKind {}.", Thread.currentThread().getName(), call, call.rpcKind);
-          CurCall.set(call);
-          if (call.span != null) {
-            traceScope = tracer.activateSpan(call.span);
-            call.span.addTimelineAnnotation("called");
-          }
-          // always update the current call context
-          CallerContext.setCurrent(call.callerContext);
-          UserGroupInformation remoteUser = call.getRemoteUser();
-          connDropped = !call.isOpen();
-          if (remoteUser != null) {
-            remoteUser.doAs(call);
-          } else {
-            call.run();
+          Call call = takeCall(instanceNumber); // maybe blocked here
+          processCall(call);
+        } catch (InterruptedException e) {
+          if (running) {                          // unexpected -- log it
+            LOG.info(Thread.currentThread().getName() + " unexpectedly interrupted", e);
           }
+        }
+      }
+      LOG.debug("{}: exiting", Thread.currentThread().getName());
+    }
+  }
+
+  /**
+   * Takes calls from the call queue and hands each one to the
+   * {@link VirtualThreadHandlerPool}, once the pool has room for it.
+   */
+  private class HandlerDispatcher extends Thread {
+    private final int instanceNumber;
+
+    HandlerDispatcher(int instanceNumber) {
+      this.instanceNumber = instanceNumber;
+      this.setDaemon(true);
+      this.setName("IPC Server handler dispatcher " + instanceNumber +
+          " on default port " + port);
+    }
+
+    @Override
+    public void run() {
+      LOG.debug("{}: starting", Thread.currentThread().getName());
+      while (running) {
+        boolean permitHeld = false;
+        try {
+          handlerPool.acquire();
+          permitHeld = true;
+          Call call = takeCall(instanceNumber); // maybe blocked here
+          permitHeld = false;
+          handlerPool.execute(call, Server.this::processCall);
         } catch (InterruptedException e) {
           if (running) {                          // unexpected -- log it
             LOG.info(Thread.currentThread().getName() + " unexpectedly interrupted", e);
-            if (traceScope != null) {
-              traceScope.addTimelineAnnotation("unexpectedly interrupted: " +
-                  StringUtils.stringifyException(e));
-            }
           }
         } catch (Exception e) {
           LOG.info(Thread.currentThread().getName() + " caught an exception", e);
-          if (traceScope != null) {
-            traceScope.addTimelineAnnotation("Exception: " +
-                StringUtils.stringifyException(e));
-          }
         } finally {
-          CurCall.set(null);
-          numInProcessHandler.decrementAndGet();
-          IOUtils.cleanupWithLogger(LOG, traceScope);
-          if (call != null) {
-            updateMetrics(call, startTimeNanos, connDropped);
-            ProcessingDetails.LOG.debug("Served: [{}]{} name={} user={} details={}",
-                call, (call.isResponseDeferred() ? ", deferred" : ""),
-                call.getDetailedMetricsName(), call.getRemoteUser(),
-                call.getProcessingDetails());
+          if (permitHeld) {
+            handlerPool.release();
           }
         }
       }
       LOG.debug("{}: exiting", Thread.currentThread().getName());
     }
+  }
 
-    private void requeueCall(Call call)
-        throws IOException, InterruptedException {
-      try {
-        internalQueueCall(call, false);
-        rpcMetrics.incrRequeueCalls();
-      } catch (RpcServerException rse) {
-        call.doResponse(rse.getCause(), rse.getRpcStatusProto());
+  /**
+   * Pop the next call from the call queue, or from the handler's shard
+   * when the call queue is sharded.
+   */
+  private Call takeCall(int handlerIndex) throws InterruptedException {
+    return shardedCallQueue != null
+        ? shardedCallQueue.take(handlerIndex) : callQueue.take();
+  }
+
+  /**
+   * Process one call taken from the call queue on the current thread.
+   * Used both by the {@link Handler} threads and by the threads of the
+   * {@link VirtualThreadHandlerPool}.
+   */
+  private void processCall(Call call) {
+    SERVER.set(Server.this);
+    TraceScope traceScope = null;
+    long startTimeNanos = 0;
+    // True iff the connection for this call has been dropped.
+    // Set to true by default and update to false later if the connection
+    // can be succesfully read.
+    boolean connDropped = true;
+
+    try {
+      numInProcessHandler.incrementAndGet();
+      startTimeNanos = Time.monotonicNowNanos();
+      if (alignmentContext != null && call.isCallCoordinated() &&
+          call.getClientStateId() > alignmentContext.getLastSeenStateId()) {
+        /*
+         * The call processing should be postponed until the client call's
+         * state id is aligned (<=) with the server state id.
+
+         * NOTE:
+         * Inserting the call back to the queue can change the order of call
+         * execution comparing to their original placement into the queue.
+         * This is not a problem, because Hadoop RPC does not have any
+         * constraints on ordering the incoming rpc requests.
+         * In case of Observer, it handles only reads, which are
+         * commutative.
+         */
+        // Re-queue the call and continue
+        requeueCall(call);
+        call = null;
+        return;
+      }
+      LOG.debug("{}: {} for RpcKind {}.", Thread.currentThread().getName(), call, call.rpcKind);
+      CurCall.set(call);
+      if (call.span != null) {
+        traceScope = tracer.activateSpan(call.span);
+        call.span.addTimelineAnnotation("called");
+      }
+      // always update the current call context
+      CallerContext.setCurrent(call.callerContext);
+      UserGroupInformation remoteUser = call.getRemoteUser();
+      connDropped = !call.isOpen();
+      if (remoteUser != null) {
+        remoteUser.doAs(call);
+      } else {
+        call.run();
+      }
+    } catch (InterruptedException e) {
+      if (running) {                          // unexpected -- log it
+        LOG.info(Thread.currentThread().getName() + " unexpectedly interrupted", e);
+        if (traceScope != null) {
+          traceScope.addTimelineAnnotation("unexpectedly interrupted: " +
+              StringUtils.stringifyException(e));
+        }
+      }
+    } catch (Exception e) {
+      LOG.info(Thread.currentThread().getName() + " caught an exception", e);
+      if (traceScope != null) {
+        traceScope.addTimelineAnnotation("Exception: " +
+            StringUtils.stringifyException(e));
+      }
+    } finally {
+      CurCall.set(null);
+      numInProcessHandler.decrementAndGet();
+      IOUtils.cleanupWithLogger(LOG, traceScope);
+      if (call != null) {
+        updateMetrics(call, startTimeNanos, connDropped);
+        ProcessingDetails.LOG.debug("Served: [{}]{} name={} user={} details={}",
+            call, (call.isResponseDeferred() ? ", deferred" : ""),
+            call.getDetailedMetricsName(), call.getRemoteUser(),
+            call.getProcessingDetails());
       }
     }
+  }
 
+  private void requeueCall(Call call)
+      throws IOException, InterruptedException {
+    try {
+      internalQueueCall(call, false);
+      rpcMetrics.incrRequeueCalls();
+    } catch (RpcServerException rse) {
+      call.doResponse(rse.getCause(), rse.getRpcStatusProto());
+    }
   }
 
   @VisibleForTesting
@@ -3385,6 +3608,10 @@ public abstract class Server {
     this.maxRespSize = conf.getInt(
         CommonConfigurationKeys.IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY,
         CommonConfigurationKeys.IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT);
+    this.responseBufferPool = conf.getBoolean(
+        ResponseBufferPool.IPC_SERVER_RESPONSE_DIRECT_BUFFERS_ENABLED_KEY,
+        ResponseBufferPool.IPC_SERVER_RESPONSE_DIRECT_BUFFERS_ENABLED_DEFAULT)
+        ? new ResponseBufferPool(conf) : null;
     if (numReaders != -1) {
       this.readThreads = numReaders;
     } else {
@@ -3403,6 +3630,23 @@ public abstract class Server {
         getSchedulerClass(CommonConfigurationKeys.IPC_NAMESPACE, port, conf),
         getClientBackoffEnable(CommonConfigurationKeys.IPC_NAMESPACE, port, conf),
         maxQueueSize, prefix, conf);
+    if (conf.getBoolean(ShardedCallQueue.IPC_SERVER_CALLQUEUE_SHARDED_KEY,
+        ShardedCallQueue.IPC_SERVER_CALLQUEUE_SHARDED_DEFAULT)) {
+      // shards are plain FIFO queues, so they cannot honour a custom
+      // scheduler, call queue implementation or client backoff
+      if (getQueueClass(CommonConfigurationKeys.IPC_NAMESPACE, port, conf)
+          != LinkedBlockingQueue.class ||
+          getSchedulerClass(CommonConfigurationKeys.IPC_NAMESPACE, port, conf)
+          != DefaultRpcScheduler.class ||
+          callQueue.isClientBackoffEnabled()) {
+        LOG.warn("Ignoring " + ShardedCallQueue.IPC_SERVER_CALLQUEUE_SHARDED_KEY
+            + " since a custom call queue or scheduler, or client backoff,"
+            + " is configured");
+      } else {
+        this.shardedCallQueue = new ShardedCallQueue<>(
+            Math.max(1, Math.min(readThreads, handlerCount)), maxQueueSize);
+      }
+    }
 
     this.secretManager = (SecretManager<TokenIdentifier>) secretManager;
     this.authorize = 
@@ -3420,6 +3664,13 @@ public abstract class Server {
     connectionManager = new ConnectionManager();
     this.rpcMetrics = RpcMetrics.create(this, conf);
     this.rpcDetailedMetrics = RpcDetailedMetrics.create(this.port);
+    if (conf.getBoolean(
+        RpcLatencyTracker.IPC_SERVER_LATENCY_TRACKER_ENABLED_KEY,
+        RpcLatencyTracker.IPC_SERVER_LATENCY_TRACKER_ENABLED_DEFAULT)) {
+      this.latencyTracker = new RpcLatencyTracker(conf);
+    } else {
+      this.latencyTracker = null;
+    }
     this.tcpNoDelay = conf.getBoolean(
         CommonConfigurationKeysPublic.IPC_SERVER_TCPNODELAY_KEY,
         CommonConfigurationKeysPublic.IPC_SERVER_TCPNODELAY_DEFAULT);
@@ -3601,6 +3852,12 @@ public abstract class Server {
 
   private void setupResponse(RpcCall call,
       RpcResponseHeaderProto header, Writable rv) throws IOException {
+    // sasl wrapping needs the response as a heap array
+    if (responseBufferPool != null && !call.connection.useWrap &&
+        (rv == null || (rv instanceof RpcWritable.ProtobufWrapper))) {
+      setupPooledResponseForProtobuf(call, header, rv);
+      return;
+    }
     final byte[] response;
     if (rv == null || (rv instanceof RpcWritable.ProtobufWrapper)) {
       response = setupResponseForProtobuf(header, rv);
@@ -3611,9 +3868,55 @@ public abstract class Server {
       LOG.warn("Large response size " + response.length + " for call "
           + call.toString());
     }
+    if (responseBufferPool != null) {
+      responseBufferPool.incrBytesCopied(response.length);
+    }
     call.setResponse(ByteBuffer.wrap(response));
   }
 
+  /**
+   * Serialize a protobuf response straight into pooled direct buffers: one
+   * for the length prefix and header, one for the payload. The Responder
+   * writes both with a single gathering write.
+   */
+  private void setupPooledResponseForProtobuf(RpcCall call,
+      RpcResponseHeaderProto header, Writable rv) throws IOException {
+    Message payload = (rv != null)
+        ? ((RpcWritable.ProtobufWrapper)rv).getMessage() : null;
+    int headerLength = getDelimitedLength(header);
+    int payloadLength = (payload != null) ? getDelimitedLength(payload) : 0;
+    int length = headerLength + payloadLength;
+    if (length > maxRespSize) {
+      LOG.warn("Large response size " + length + " for call "
+          + call.toString());
+    }
+    ByteBuffer headerBuf = responseBufferPool.acquire(headerLength + 4);
+    ByteBuffer payloadBuf = null;
+    try {
+      headerBuf.putInt(length);
+      CodedOutputStream cos = CodedOutputStream.newInstance(headerBuf);
+      cos.writeUInt32NoTag(header.getSerializedSize());
+      header.writeTo(cos);
+      cos.flush();
+      headerBuf.flip();
+      if (payload == null) {
+        call.setResponse(new ByteBuffer[] {headerBuf});
+        return;
+      }
+      payloadBuf = responseBufferPool.acquire(payloadLength);
+      cos = CodedOutputStream.newInstance(payloadBuf);
+      cos.writeUInt32NoTag(payload.getSerializedSize());
+      payload.writeTo(cos);
+      cos.flush();
+      payloadBuf.flip();
+    } catch (IOException | RuntimeException e) {
+      responseBufferPool.release(headerBuf);
+      responseBufferPool.release(payloadBuf);
+      throw e;
+    }
+    call.setResponse(new ByteBuffer[] {headerBuf, payloadBuf});
+  }
+
   private byte[] setupResponseForWritable(
       RpcResponseHeaderProto header, Writable rv) throws IOException {
     ResponseBuffer buf = responseBuffer.get().reset();
@@ -3693,6 +3996,10 @@ public abstract class Server {
 
   private void wrapWithSasl(RpcCall call) throws IOException {
     if (call.connection.saslServer != null) {
+      if (call.rpcResponseBuffers != null) {
+        // the response was set up before wrapping was negotiated
+        call.setResponse(ByteBuffer.wrap(flatten(call.rpcResponseBuffers)));
+      }
       byte[] token = call.rpcResponse.array();
       // synchronization may be needed since there can be multiple Handler
       // threads using saslServer to wrap responses.
@@ -3712,6 +4019,26 @@ public abstract class Server {
       setupResponse(call, saslHeader, RpcWritable.wrap(saslMessage));
     }
   }
+
+  /**
+   * Copy pooled response buffers into a single heap array, for the paths
+   * such as SASL wrapping that need the response as one byte[].
+   */
+  private byte[] flatten(ByteBuffer[] buffers) {
+    int length = 0;
+    for (ByteBuffer buf : buffers) {
+      length += buf.remaining();
+    }
+    byte[] bytes = new byte[length];
+    int offset = 0;
+    for (ByteBuffer buf : buffers) {
+      int n = buf.remaining();
+      buf.duplicate().get(bytes, offset, n);
+      offset += n;
+    }
+    responseBufferPool.incrBytesCopied(length);
+    return bytes;
+  }
   
   Configuration getConf() {
     return conf;
@@ -3729,6 +4056,10 @@ public abstract class Server {
 
   /** Starts the service.  Must be called before any calls will be handled. */
   public synchronized void start() {
+    if (latencyTracker != null && latencyTrackerBeanName == null) {
+      latencyTrackerBeanName = MBeans.register("IPC",
+          "RpcLatencyForPort" + port, latencyTracker);
+    }
     responder.start();
     listener.start();
     if (auxiliaryListenerMap != null && auxiliaryListenerMap.size() > 0) {
@@ -3737,6 +4068,23 @@ public abstract class Server {
       }
     }
 
+    if (conf.getBoolean(
+        VirtualThreadHandlerPool.IPC_SERVER_HANDLER_VIRTUAL_ENABLED_KEY,
+        VirtualThreadHandlerPool.IPC_SERVER_HANDLER_VIRTUAL_ENABLED_DEFAULT)) {
+      handlerPool = new VirtualThreadHandlerPool(
+          "IPC Server handler on default port " + port, conf);
+      LOG.info("Running calls on {} handler pool with at most {} concurrent"
+          + " calls", handlerPool.isVirtual() ? "virtual thread" : "cached",
+          handlerPool.getMaxConcurrentCalls());
+      handlerDispatchers =
+          new HandlerDispatcher[handlerPool.getNumDispatchers()];
+      for (int i = 0; i < handlerDispatchers.length; i++) {
+        handlerDispatchers[i] = new HandlerDispatcher(i);
+        handlerDispatchers[i].start();
+      }
+      return;
+    }
+
     handlers = new Handler[handlerCount];
     
     for (int i = 0; i < handlerCount; i++) {
@@ -3756,6 +4104,14 @@ public abstract class Server {
         }
       }
     }
+    if (handlerDispatchers != null) {
+      for (HandlerDispatcher dispatcher : handlerDispatchers) {
+        dispatcher.interrupt();
+      }
+    }
+    if (handlerPool != null) {
+      handlerPool.shutdown();
+    }
     listener.interrupt();
     listener.doStop();
     if (auxiliaryListenerMap != null && auxiliaryListenerMap.size() > 0) {
@@ -3769,6 +4125,10 @@ public abstract class Server {
     shutdownMetricsUpdaterExecutor();
     this.rpcMetrics.shutdown();
     this.rpcDetailedMetrics.shutdown();
+    if (latencyTrackerBeanName != null) {
+      MBeans.unregister(latencyTrackerBeanName);
+      latencyTrackerBeanName = null;
+    }
   }
 
   private void shutdownMetricsUpdaterExecutor() {
@@ -3919,7 +4279,16 @@ public abstract class Server {
    * @return The number of rpc calls in the queue.
    */
   public int getCallQueueLen() {
-    return callQueue.size();
+    return shardedCallQueue != null
+        ? shardedCallQueue.size() : callQueue.size();
+  }
+
+  /**
+   * @return number of calls a handler took from another handler's call
+   *     queue shard, or 0 if the call queue is not sharded.
+   */
+  public long getNumStolenCalls() {
+    return shardedCallQueue != null ? shardedCallQueue.getStolen() : 0;
   }
 
   public boolean isClientBackoffEnabled() {
@@ -3956,6 +4325,30 @@ public abstract class Server {
     return readThreads;
   }
 
+  /**
+   * @return number of response buffers served from the direct buffer pool,
+   *     or 0 if pooled response buffers are disabled.
+   */
+  public long getResponseBufferPoolHits() {
+    return responseBufferPool != null ? responseBufferPool.getHits() : 0;
+  }
+
+  /**
+   * @return number of response buffers that had to be newly allocated,
+   *     or 0 if pooled response buffers are disabled.
+   */
+  public long getResponseBufferPoolMisses() {
+    return responseBufferPool != null ? responseBufferPool.getMisses() : 0;
+  }
+
+  /**
+   * @return number of response bytes that went through an intermediate heap
+   *     copy, or 0 if pooled response buffers are disabled.
+   */
+  public long getResponseBytesCopied() {
+    return responseBufferPool != null ? responseBufferPool.getBytesCopied() : 0;
+  }
+
   /**
    * When the read or write buffer size is larger than this limit, i/o will be 
    * done in chunks of this size. Most RPC requests and responses would be
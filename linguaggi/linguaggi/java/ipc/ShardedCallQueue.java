@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A call queue split into independent FIFO shards. Each socket Reader feeds
+ * one shard and a subset of the handlers take from it, so readers and
+ * handlers on different shards never touch the same queue lock.
+ *
+ * A handler first polls its home shard, then tries to steal from the other
+ * shards. Only when every shard is empty does it park on a shared
+ * condition, which producers signal only while some handler is parked. A
+ * busy server thus never takes the shared lock, and an idle one does not
+ * spin.
+ *
+ * The shards are plain FIFO queues: they cannot honour an
+ * {@link RpcScheduler} or client backoff, so the server only shards its
+ * call queue when neither is configured, and a full queue always blocks
+ * the producer.
+ *
+ * @param <E> type of the queued calls.
+ */
+@InterfaceAudience.Private
+class ShardedCallQueue<E> {
+  public static final String IPC_SERVER_CALLQUEUE_SHARDED_KEY =
+      "ipc.server.callqueue.sharded";
+  public static final boolean IPC_SERVER_CALLQUEUE_SHARDED_DEFAULT = false;
+
+  private final LinkedBlockingQueue<E>[] shards;
+  private final AtomicInteger nextShard = new AtomicInteger();
+  private final LongAdder stolen = new LongAdder();
+  private final ReentrantLock idleLock = new ReentrantLock();
+  private final Condition notEmpty = idleLock.newCondition();
+  private final AtomicInteger parked = new AtomicInteger();
+
+  @SuppressWarnings("unchecked")
+  ShardedCallQueue(int numShards, int capacity) {
+    if (numShards <= 0) {
+      throw new IllegalArgumentException(
+          "Number of shards must be positive: " + numShards);
+    }
+    int shardCapacity = Math.max(1, capacity / numShards);
+    this.shards = new LinkedBlockingQueue[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards[i] = new LinkedBlockingQueue<>(shardCapacity);
+    }
+  }
+  int getNumShards() {
+    return shards.length;
+  }
+
+  /**
+   * @param affinity reader or handler index, or a negative value if the
+   *     element has no affinity.
+   * @return the shard for the given affinity.
+   */
+  int shardFor(int affinity) {
+    if (affinity < 0) {
+      return Math.floorMod(nextShard.getAndIncrement(), shards.length);
+    }
+    return affinity % shards.length;
+  }
+
+  /**
+   * Insert into the given shard, waiting if it is full.
+   * @param affinity see {@link #shardFor(int)}.
+   * @param e the element.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  void put(int affinity, E e) throws InterruptedException {
+    shards[shardFor(affinity)].put(e);
+    signalNotEmpty();
+  }
+
+  /**
+   * Insert into the given shard, or any other shard with room, waiting on
+   * the given shard if every shard is full. Like {@link CallQueueManager}
+   * without client backoff, a full queue slows the reader down rather than
+   * failing the call.
+   * @param affinity see {@link #shardFor(int)}.
+   * @param e the element.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  void add(int affinity, E e) throws InterruptedException {
+    int home = shardFor(affinity);
+    for (int i = 0; i < shards.length; i++) {
+      if (shards[(home + i) % shards.length].offer(e)) {
+        signalNotEmpty();
+        return;
+      }
+    }
+    put(home, e);
+  }
+
+  private void signalNotEmpty() {
+    // pairs with the recheck in take(): a handler registers as parked
+    // before its last scan, so either it sees the element or we see it.
+    if (parked.get() > 0) {
+      idleLock.lock();
+      try {
+        notEmpty.signal();
+      } finally {
+        idleLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Take the next element for the given handler, stealing from other
+   * shards when its home shard is empty and parking when all are empty.
+   * @param handler index of the handler.
+   * @return the element.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  E take(int handler) throws InterruptedException {
+    int home = shardFor(handler);
+    E e = poll(home);
+    while (e == null) {
+      idleLock.lockInterruptibly();
+      parked.incrementAndGet();
+      try {
+        e = poll(home);
+        if (e == null) {
+          notEmpty.await();
+        }
+      } finally {
+        parked.decrementAndGet();
+        idleLock.unlock();
+      }
+      if (e == null) {
+        e = poll(home);
+      }
+    }
+    return e;
+  }
+
+  private E poll(int home) {
+    E e = shards[home].poll();
+    return e != null ? e : steal(home);
+  }
+
+  private E steal(int home) {
+    for (int i = 1; i < shards.length; i++) {
+      E e = shards[(home + i) % shards.length].poll();
+      if (e != null) {
+        stolen.increment();
+        return e;
+      }
+    }
+    return null;
+  }
+
+  int size() {
+    int size = 0;
+    for (LinkedBlockingQueue<E> shard : shards) {
+      size += shard.size();
+    }
+    return size;
+  }
+
+  /** @return number of elements taken from a shard other than the home one. */
+  long getStolen() {
+    return stolen.sum();
+  }
+}
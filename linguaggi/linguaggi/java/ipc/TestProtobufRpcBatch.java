@@ -0,0 +1,297 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.ProtobufRpcEngine2.RpcProtobufBatchResponse;
+import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto.RpcStatusProto;
+import org.apache.hadoop.ipc.protobuf.TestProtos;
+import org.apache.hadoop.ipc.protobuf.TestRpcServiceProtos;
+import org.apache.hadoop.thirdparty.protobuf.BlockingService;
+import org.apache.hadoop.thirdparty.protobuf.Message;
+import org.apache.hadoop.thirdparty.protobuf.RpcController;
+import org.apache.hadoop.thirdparty.protobuf.ServiceException;
+import org.apache.hadoop.util.concurrent.AsyncGet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for batched calls through {@link ProtobufRpcEngine2}.
+ */
+@Timeout(60)
+public class TestProtobufRpcBatch extends TestRpcBase {
+
+  private RPC.Server server;
+  private TestRpcService proxy;
+  private BatchServerImpl serverImpl;
+
+  /** Counts echo calls; optionally defers their response. */
+  public static class BatchServerImpl extends PBServerImpl {
+    private final AtomicInteger echoCalls = new AtomicInteger();
+    private volatile boolean deferEcho;
+
+    @Override
+    public TestProtos.EchoResponseProto echo(
+        RpcController unused, TestProtos.EchoRequestProto request)
+        throws ServiceException {
+      echoCalls.incrementAndGet();
+      if (deferEcho && "defer".equals(request.getMessage())) {
+        ProtobufRpcEngine2.Server.registerForDeferredResponse2();
+        return null;
+      }
+      return super.echo(unused, request);
+    }
+  }
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    setupConf();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    stop(server, proxy);
+  }
+
+  private void startServer(Configuration serverConf) throws Exception {
+    serverImpl = new BatchServerImpl();
+    BlockingService service = TestRpcServiceProtos.TestProtobufRpcProto
+        .newReflectiveBlockingService(serverImpl);
+    server = setupTestServer(new RPC.Builder(serverConf)
+        .setProtocol(TestRpcService.class)
+        .setInstance(service).setBindAddress(ADDRESS).setPort(PORT)
+        .setNumHandlers(1));
+    proxy = getClient(addr, conf);
+  }
+
+  private static AsyncGet<Message, Exception> echo(TestRpcService client,
+      String msg) throws ServiceException {
+    assertNull(client.echo(null, newEchoRequest(msg)));
+    return ProtobufRpcEngine2.getAsyncReturnMessage();
+  }
+
+  private static String getEcho(AsyncGet<Message, Exception> result)
+      throws Exception {
+    return convert((TestProtos.EchoResponseProto)
+        result.get(10, TimeUnit.SECONDS));
+  }
+
+  private static Exception getError(AsyncGet<Message, Exception> result) {
+    ServiceException se = assertThrows(ServiceException.class,
+        () -> result.get(10, TimeUnit.SECONDS));
+    assertTrue(se.getCause() instanceof RemoteException, se.toString());
+    return (Exception) se.getCause();
+  }
+
+  @Test
+  public void testBatchRoundTrip() throws Exception {
+    startServer(conf);
+    List<AsyncGet<Message, Exception>> results = new ArrayList<>();
+    ProtobufRpcEngine2.beginBatch();
+    for (int i = 0; i < 10; i++) {
+      results.add(echo(proxy, "msg" + i));
+    }
+    ProtobufRpcEngine2.flushBatch();
+    for (int i = 0; i < 10; i++) {
+      assertEquals("msg" + i, getEcho(results.get(i)));
+    }
+    assertEquals(10, serverImpl.echoCalls.get());
+
+    // the proxy works unbatched again once the batch is flushed
+    assertEquals("plain", convert(proxy.echo(null, newEchoRequest("plain"))));
+  }
+
+  @Test
+  public void testBatchedCallMetrics() throws Exception {
+    Configuration serverConf = new Configuration(conf);
+    serverConf.setBoolean(
+        RpcLatencyTracker.IPC_SERVER_LATENCY_TRACKER_ENABLED_KEY, true);
+    startServer(serverConf);
+    List<AsyncGet<Message, Exception>> results = new ArrayList<>();
+    ProtobufRpcEngine2.beginBatch();
+    for (int i = 0; i < 5; i++) {
+      results.add(echo(proxy, "msg" + i));
+    }
+    ProtobufRpcEngine2.flushBatch();
+    for (int i = 0; i < 5; i++) {
+      assertEquals("msg" + i, getEcho(results.get(i)));
+    }
+
+    // every batched call is recorded under its own method
+    long echoCount = 0;
+    for (RpcLatencyTracker.MethodLatency latency
+        : server.getLatencyTracker().getMethodLatencies()) {
+      if ("echo".equals(latency.getMethod())) {
+        echoCount = latency.getProcessingTime().getCount();
+      }
+    }
+    assertEquals(5, echoCount);
+  }
+
+  @Test
+  public void testClientSplitsLargeBatch() throws Exception {
+    startServer(conf);
+    Configuration clientConf = new Configuration(conf);
+    clientConf.setInt(
+        ProtobufRpcEngine2.IPC_CLIENT_PROTOBUF_BATCH_MAX_CALLS_KEY, 3);
+    TestRpcService client = getClient(addr, clientConf);
+    try {
+      List<AsyncGet<Message, Exception>> results = new ArrayList<>();
+      ProtobufRpcEngine2.beginBatch();
+      for (int i = 0; i < 7; i++) {
+        results.add(echo(client, "msg" + i));
+      }
+      // the two full batches have been sent already, the rest is queued
+      assertEquals("msg0", getEcho(results.get(0)));
+      assertThrows(IllegalStateException.class,
+          () -> results.get(6).get(10, TimeUnit.SECONDS));
+      ProtobufRpcEngine2.flushBatch();
+      for (int i = 0; i < 7; i++) {
+        assertEquals("msg" + i, getEcho(results.get(i)));
+      }
+    } finally {
+      RPC.stopProxy(client);
+    }
+  }
+
+  @Test
+  public void testPerEntryErrors() throws Exception {
+    startServer(conf);
+    ProtobufRpcEngine2.beginBatch();
+    AsyncGet<Message, Exception> first = echo(proxy, "first");
+    assertNull(proxy.error(null, newEmptyRequest()));
+    AsyncGet<Message, Exception> error =
+        ProtobufRpcEngine2.getAsyncReturnMessage();
+    AsyncGet<Message, Exception> last = echo(proxy, "last");
+    ProtobufRpcEngine2.flushBatch();
+
+    assertEquals("first", getEcho(first));
+    RemoteException re = (RemoteException) getError(error);
+    assertEquals(RpcServerException.class.getName(), re.getClassName());
+    assertEquals("last", getEcho(last));
+  }
+
+  @Test
+  public void testServerMaxCalls() throws Exception {
+    Configuration serverConf = new Configuration(conf);
+    serverConf.setInt(
+        ProtobufRpcEngine2.IPC_SERVER_PROTOBUF_BATCH_MAX_CALLS_KEY, 2);
+    startServer(serverConf);
+
+    // a batch at the limit is accepted
+    ProtobufRpcEngine2.beginBatch();
+    AsyncGet<Message, Exception> a = echo(proxy, "a");
+    AsyncGet<Message, Exception> b = echo(proxy, "b");
+    ProtobufRpcEngine2.flushBatch();
+    assertEquals("a", getEcho(a));
+    assertEquals("b", getEcho(b));
+    assertEquals(2, serverImpl.echoCalls.get());
+
+    // a batch over the limit fails as a whole before any call runs
+    ProtobufRpcEngine2.beginBatch();
+    for (int i = 0; i < 3; i++) {
+      echo(proxy, "over" + i);
+    }
+    ServiceException se = assertThrows(ServiceException.class,
+        ProtobufRpcEngine2::flushBatch);
+    assertTrue(se.getCause() instanceof RemoteException, se.toString());
+    assertEquals(2, serverImpl.echoCalls.get());
+  }
+
+  @Test
+  public void testDeferredResponseRefused() throws Exception {
+    startServer(conf);
+    serverImpl.deferEcho = true;
+    ProtobufRpcEngine2.beginBatch();
+    AsyncGet<Message, Exception> deferred = echo(proxy, "defer");
+    AsyncGet<Message, Exception> next = echo(proxy, "next");
+    ProtobufRpcEngine2.flushBatch();
+
+    RemoteException re = (RemoteException) getError(deferred);
+    assertEquals(UnsupportedOperationException.class.getName(),
+        re.getClassName());
+    assertEquals("next", getEcho(next));
+
+    // the handler still answers later calls exactly once
+    assertEquals("after", convert(proxy.echo(null, newEchoRequest("after"))));
+  }
+
+  @Test
+  public void testBatchResponseRoundTrip() throws IOException {
+    RpcProtobufBatchResponse response = new RpcProtobufBatchResponse();
+    response.addResult(newEchoResponse("one"));
+    response.addError(new IOException("failed"));
+    response.addResult(newEmptyResponse());
+    assertEquals(3, response.size());
+
+    ResponseBuffer out = new ResponseBuffer(64);
+    response.writeTo(out);
+    ByteBuffer bb = ByteBuffer.wrap(out.toByteArray());
+    // skip the frame length
+    assertEquals(bb.getInt(), bb.remaining());
+
+    List<Message> prototypes = Arrays.asList(
+        TestProtos.EchoResponseProto.getDefaultInstance(),
+        TestProtos.EchoResponseProto.getDefaultInstance(),
+        TestProtos.EmptyResponseProto.getDefaultInstance());
+    RpcProtobufBatchResponse decoded = RpcWritable.Buffer.wrap(bb)
+        .getValue(new RpcProtobufBatchResponse(prototypes));
+    assertEquals(3, decoded.size());
+    assertEquals(RpcStatusProto.SUCCESS, decoded.getHeader(0).getStatus());
+    assertEquals("one", convert(
+        (TestProtos.EchoResponseProto) decoded.getResult(0)));
+    assertEquals(RpcStatusProto.ERROR, decoded.getHeader(1).getStatus());
+    assertEquals(IOException.class.getName(),
+        decoded.getHeader(1).getExceptionClassName());
+    assertNull(decoded.getResult(1));
+    assertEquals(newEmptyResponse(), decoded.getResult(2));
+    assertEquals(0, bb.remaining());
+  }
+
+  @Test
+  public void testBatchResponseRejectsTruncatedResponse() throws IOException {
+    RpcProtobufBatchResponse response = new RpcProtobufBatchResponse();
+    response.addResult(newEmptyResponse());
+    ResponseBuffer out = new ResponseBuffer(64);
+    response.writeTo(out);
+    ByteBuffer bb = ByteBuffer.wrap(out.toByteArray());
+    bb.getInt();
+
+    // a response with fewer calls than expected cannot be decoded
+    List<Message> prototypes = Arrays.asList(
+        TestProtos.EmptyResponseProto.getDefaultInstance(),
+        TestProtos.EmptyResponseProto.getDefaultInstance());
+    assertThrows(IOException.class, () -> RpcWritable.Buffer.wrap(bb)
+        .getValue(new RpcProtobufBatchResponse(prototypes)));
+  }
+}
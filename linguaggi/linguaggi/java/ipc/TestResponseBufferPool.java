@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestResponseBufferPool {
+
+  @Test
+  public void testReuse() {
+    ResponseBufferPool pool = new ResponseBufferPool(4096, 1024 * 1024);
+    ByteBuffer buf = pool.acquire(1000);
+    assertTrue(buf.isDirect());
+    assertEquals(0, buf.position());
+    assertEquals(1000, buf.limit());
+    assertEquals(1024, buf.capacity());
+    assertEquals(0, pool.getHits());
+    assertEquals(1, pool.getMisses());
+
+    pool.release(buf);
+    ByteBuffer again = pool.acquire(600);
+    assertSame(buf, again);
+    assertEquals(600, again.limit());
+    assertEquals(1, pool.getHits());
+
+    // a different size class is not served from the 1k free list
+    pool.release(again);
+    assertNotSame(buf, pool.acquire(100));
+    assertEquals(2, pool.getMisses());
+  }
+
+  @Test
+  public void testOversizedAndRetentionLimit() {
+    ResponseBufferPool pool = new ResponseBufferPool(1024, 3 * 1024);
+    ByteBuffer big = pool.acquire(8192);
+    assertEquals(8192, big.capacity());
+    pool.release(big);
+    assertNotSame(big, pool.acquire(8192));
+
+    // three size classes (256, 512, 1024) share 3k, so only one 1k buffer
+    // is retained
+    ByteBuffer a = pool.acquire(1024);
+    ByteBuffer b = pool.acquire(1024);
+    pool.release(a);
+    pool.release(b);
+    assertSame(a, pool.acquire(1024));
+    assertNotSame(b, pool.acquire(1024));
+  }
+
+  @Test
+  public void testBytesCopied() {
+    ResponseBufferPool pool = new ResponseBufferPool(1024, 1024);
+    pool.incrBytesCopied(10);
+    pool.incrBytesCopied(5);
+    assertEquals(15, pool.getBytesCopied());
+  }
+}
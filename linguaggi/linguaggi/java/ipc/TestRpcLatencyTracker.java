@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestRpcLatencyTracker {
+
+  @Test
+  public void testHistogramBuckets() {
+    for (long v : new long[] {0, 1, 15, 16, 17, 31, 32, 1000, 123456789L,
+        LatencyHistogram.MAX_VALUE}) {
+      int index = LatencyHistogram.bucketIndex(v);
+      long lower = LatencyHistogram.bucketLowerBound(index);
+      assertTrue(lower <= v, "lower bound of " + v);
+      // relative error is bounded by the sub bucket resolution
+      assertTrue(v - lower <= Math.max(0, v / LatencyHistogram.SUB_BUCKETS),
+          "error of " + v);
+    }
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.add(i);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(500.5, histogram.getMean(), 0.001);
+    long p50 = histogram.getPercentile(50);
+    assertTrue(p50 >= 500 && p50 <= 500 + 500 / LatencyHistogram.SUB_BUCKETS,
+        "p50=" + p50);
+    assertEquals(1000, histogram.getPercentile(100));
+    assertEquals(0, new LatencyHistogram().getPercentile(99));
+  }
+
+  @Test
+  public void testMethodLatencies() {
+    RpcLatencyTracker tracker = new RpcLatencyTracker(4, 1000);
+    tracker.add("getFileInfo", TimeUnit.MICROSECONDS.toNanos(10),
+        TimeUnit.MICROSECONDS.toNanos(100), TimeUnit.MICROSECONDS.toNanos(5),
+        "alice", null, "10.0.0.1");
+    tracker.add("create", 0, 0, 0, "bob", null, "10.0.0.2");
+    tracker.add("getFileInfo", 0, 0, 0, "bob", null, "10.0.0.2");
+
+    List<RpcLatencyTracker.MethodLatency> latencies =
+        tracker.getMethodLatencies();
+    assertEquals(2, latencies.size());
+    assertEquals("create", latencies.get(0).getMethod());
+    RpcLatencyTracker.MethodLatency getFileInfo = latencies.get(1);
+    assertEquals("getFileInfo", getFileInfo.getMethod());
+    assertEquals(2, getFileInfo.getProcessingTime().getCount());
+    assertEquals(100, getFileInfo.getProcessingTime().getMax());
+    assertEquals(10, getFileInfo.getQueueTime().getMax());
+    assertEquals(5, getFileInfo.getResponseTime().getMax());
+    assertTrue(tracker.getSlowCalls().isEmpty());
+  }
+
+  @Test
+  public void testSlowCallsKeepSlowest() {
+    RpcLatencyTracker tracker = new RpcLatencyTracker(2, 1);
+    long ms = TimeUnit.MILLISECONDS.toNanos(1);
+    tracker.add("a", 0, 2 * ms, 0, "u1", "ctx1", "h1");
+    tracker.add("b", 0, 5 * ms, 0, "u2", "ctx2", "h2");
+    tracker.add("c", ms, 2 * ms, 0, "u3", null, "h3");
+    // below the threshold
+    tracker.add("d", 0, 10, 0, "u4", null, "h4");
+
+    List<RpcLatencyTracker.SlowCall> slow = tracker.getSlowCalls();
+    // the fastest slow call was dropped
+    assertEquals(2, slow.size());
+    assertEquals("b", slow.get(0).getMethod());
+    assertEquals("ctx2", slow.get(0).getCallerContext());
+    assertEquals("u2", slow.get(0).getUser());
+    assertEquals(5000, slow.get(0).getTotalTimeMicros());
+    assertEquals("c", slow.get(1).getMethod());
+    assertEquals(1000, slow.get(1).getQueueTimeMicros());
+  }
+
+  @Test
+  public void testSlowCallsSurviveLaterCalls() {
+    RpcLatencyTracker tracker = new RpcLatencyTracker(3, 1);
+    long ms = TimeUnit.MILLISECONDS.toNanos(1);
+    tracker.add("slowest", 0, 50 * ms, 0, "u", null, "h");
+    tracker.add("slower", 0, 40 * ms, 0, "u", null, "h");
+    tracker.add("slow", 0, 30 * ms, 0, "u", null, "h");
+    // many later slow calls, all faster than the ones kept
+    for (int i = 0; i < 100; i++) {
+      tracker.add("later", 0, 2 * ms, 0, "u", null, "h");
+    }
+    tracker.add("slowerStill", 0, 45 * ms, 0, "u", null, "h");
+
+    List<RpcLatencyTracker.SlowCall> slow = tracker.getSlowCalls();
+    assertEquals(3, slow.size());
+    assertEquals("slowest", slow.get(0).getMethod());
+    assertEquals("slowerStill", slow.get(1).getMethod());
+    assertEquals("slower", slow.get(2).getMethod());
+  }
+}
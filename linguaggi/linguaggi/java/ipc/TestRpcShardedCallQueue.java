@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs real calls through a server whose call queue is a
+ * {@link ShardedCallQueue}.
+ */
+@Timeout(60)
+public class TestRpcShardedCallQueue extends TestRpcBase {
+
+  private RPC.Server server;
+  private TestRpcService proxy;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    setupConf();
+    conf.setBoolean(ShardedCallQueue.IPC_SERVER_CALLQUEUE_SHARDED_KEY, true);
+    conf.setInt(CommonConfigurationKeys.IPC_SERVER_RPC_READ_THREADS_KEY, 2);
+    server = setupTestServer(conf, 2);
+    proxy = getClient(addr, conf);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    stop(server, proxy);
+  }
+
+  @Test
+  public void testRefreshCallQueueIsIgnored() throws Exception {
+    assertEquals("before", convert(proxy.echo(null, newEchoRequest("before"))));
+
+    // the admin refresh leaves the shards in place instead of failing
+    Configuration newConf = new Configuration(conf);
+    newConf.setInt(
+        CommonConfigurationKeys.IPC_SERVER_HANDLER_QUEUE_SIZE_KEY, 1);
+    server.refreshCallQueue(newConf);
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals("msg" + i,
+          convert(proxy.echo(null, newEchoRequest("msg" + i))));
+    }
+    assertEquals(0, server.getCallQueueLen());
+  }
+}
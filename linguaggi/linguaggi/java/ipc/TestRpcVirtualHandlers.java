@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.thirdparty.protobuf.ServiceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs real calls through a server using the
+ * {@link VirtualThreadHandlerPool} instead of fixed handler threads.
+ */
+@Timeout(60)
+public class TestRpcVirtualHandlers extends TestRpcBase {
+
+  private RPC.Server server;
+  private TestRpcService proxy;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    setupConf();
+    conf.setBoolean(
+        VirtualThreadHandlerPool.IPC_SERVER_HANDLER_VIRTUAL_ENABLED_KEY, true);
+    conf.setInt(
+        VirtualThreadHandlerPool.IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_KEY, 4);
+    // the handler count is ignored when calls run on the pool
+    server = setupTestServer(conf, 1);
+    proxy = getClient(addr, conf);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    stop(server, proxy);
+  }
+
+  @Test
+  public void testCallsRunOnPool() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      assertEquals("msg" + i,
+          convert(proxy.echo(null, newEchoRequest("msg" + i))));
+    }
+    ServiceException se = assertThrows(ServiceException.class,
+        () -> proxy.error(null, newEmptyRequest()));
+    assertTrue(se.getCause() instanceof RemoteException, se.toString());
+
+    int handlers = 0;
+    for (Thread handler : server.getHandlers()) {
+      assertTrue(handler.getName().startsWith("IPC Server handler dispatcher"),
+          handler.getName());
+      handlers++;
+    }
+    assertEquals(1, handlers);
+    assertEquals(0, server.getNumInFlightPooledCalls());
+  }
+
+  @Test
+  public void testConcurrentCalls() throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(6);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 6; i++) {
+        futures.add(clients.submit(() -> {
+          proxy.sleep(null, newSleepRequest(1000));
+          return null;
+        }));
+      }
+      // four calls run at once, the other two wait in the call queue
+      while (server.getNumInFlightPooledCalls() < 4) {
+        Thread.sleep(10);
+      }
+      assertEquals(4, server.getNumInFlightPooledCalls());
+      for (Future<?> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+      while (server.getNumInFlightPooledCalls() > 0) {
+        Thread.sleep(10);
+      }
+    } finally {
+      clients.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestShardedCallQueue {
+
+  @Test
+  public void testAffinity() throws Exception {
+    ShardedCallQueue<Integer> queue = new ShardedCallQueue<>(2, 10);
+    queue.put(0, 1);
+    queue.put(1, 2);
+    queue.put(2, 3);
+    assertEquals(3, queue.size());
+    // handler 0 drains shard 0 in FIFO order before stealing
+    assertEquals(1, (int) queue.take(0));
+    assertEquals(3, (int) queue.take(0));
+    assertEquals(0, queue.getStolen());
+    assertEquals(2, (int) queue.take(0));
+    assertEquals(1, queue.getStolen());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  @Timeout(value = 10)
+  public void testAddOverflowsToOtherShards() throws Exception {
+    final ShardedCallQueue<Integer> queue = new ShardedCallQueue<>(2, 2);
+    queue.add(0, 1);
+    queue.add(0, 2);
+    assertEquals(2, queue.size());
+
+    // a full queue blocks the producer instead of failing the call
+    Thread producer = new Thread(() -> {
+      try {
+        queue.add(0, 3);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    producer.start();
+    while (producer.getState() != Thread.State.WAITING) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, queue.size());
+    assertEquals(1, (int) queue.take(0));
+    producer.join();
+    assertEquals(2, queue.size());
+    assertEquals(2, (int) queue.take(1));
+    assertEquals(3, (int) queue.take(0));
+  }
+
+  @Test
+  @Timeout(value = 10)
+  public void testBlockedHandlerSteals() throws Exception {
+    final ShardedCallQueue<Integer> queue = new ShardedCallQueue<>(2, 10);
+    final int[] taken = new int[1];
+    Thread handler = new Thread(() -> {
+      try {
+        taken[0] = queue.take(0);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    handler.start();
+    Thread.sleep(20);
+    queue.put(1, 42);
+    handler.join();
+    assertEquals(42, taken[0]);
+    assertEquals(1, queue.getStolen());
+  }
+
+  @Test
+  @Timeout(value = 10)
+  public void testIdleHandlersPark() throws Exception {
+    final ShardedCallQueue<Integer> queue = new ShardedCallQueue<>(2, 10);
+    final int numHandlers = 4;
+    final CountDownLatch done = new CountDownLatch(numHandlers);
+    Thread[] handlers = new Thread[numHandlers];
+    for (int i = 0; i < numHandlers; i++) {
+      final int handler = i;
+      handlers[i] = new Thread(() -> {
+        try {
+          queue.take(handler);
+          done.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      handlers[i].start();
+    }
+    // every handler ends up waiting instead of polling on a timer
+    for (Thread handler : handlers) {
+      while (handler.getState() != Thread.State.WAITING) {
+        Thread.sleep(10);
+      }
+    }
+    for (int i = 0; i < numHandlers; i++) {
+      queue.add(0, i);
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, queue.size());
+  }
+}
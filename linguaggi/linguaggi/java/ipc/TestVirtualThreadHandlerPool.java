@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestVirtualThreadHandlerPool {
+
+  private VirtualThreadHandlerPool pool;
+
+  @AfterEach
+  public void tearDown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  private static Server.Call newCall(RPC.RpcKind kind) {
+    return new Server.Call(1, 0, null, null, kind, new byte[0]);
+  }
+
+  @Test
+  @Timeout(value = 10)
+  public void testConcurrencyCap() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(
+        VirtualThreadHandlerPool.IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_KEY, 2);
+    pool = new VirtualThreadHandlerPool("test", conf);
+
+    final CountDownLatch started = new CountDownLatch(2);
+    final CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < 2; i++) {
+      pool.acquire();
+      pool.execute(newCall(RPC.RpcKind.RPC_PROTOCOL_BUFFER), call -> {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertEquals(2, pool.getInFlight());
+
+    Thread blocked = new Thread(() -> {
+      try {
+        pool.acquire();
+        pool.release();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    blocked.start();
+    while (pool.getWaiting() == 0) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, pool.getWaiting());
+
+    release.countDown();
+    blocked.join();
+    while (pool.getInFlight() != 0) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, pool.getWaiting());
+  }
+
+  @Test
+  @Timeout(value = 10)
+  public void testPerKindLimit() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(
+        VirtualThreadHandlerPool.IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_KEY, 8);
+    conf.setInt(VirtualThreadHandlerPool
+        .IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_PER_KIND_PREFIX
+        + RPC.RpcKind.RPC_WRITABLE.name(), 1);
+    pool = new VirtualThreadHandlerPool("test", conf);
+
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(4);
+    for (int i = 0; i < 4; i++) {
+      pool.acquire();
+      pool.execute(newCall(RPC.RpcKind.RPC_WRITABLE), call -> {
+        int now = running.incrementAndGet();
+        maxRunning.accumulateAndGet(now, Math::max);
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        done.countDown();
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(1, maxRunning.get());
+    assertFalse(pool.getInFlight() > 1);
+  }
+
+  @Test
+  @Timeout(value = 10)
+  public void testSaturatedKindDoesNotBlockDispatch() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(
+        VirtualThreadHandlerPool.IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_KEY, 8);
+    conf.setInt(VirtualThreadHandlerPool
+        .IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_PER_KIND_PREFIX
+        + RPC.RpcKind.RPC_WRITABLE.name(), 1);
+    pool = new VirtualThreadHandlerPool("test", conf);
+
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch writablesDone = new CountDownLatch(2);
+    for (int i = 0; i < 2; i++) {
+      pool.acquire();
+      // the second call waits for the kind permit on its own thread
+      pool.execute(newCall(RPC.RpcKind.RPC_WRITABLE), call -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        writablesDone.countDown();
+      });
+    }
+    while (pool.getWaiting() == 0) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, pool.getWaiting());
+
+    final CountDownLatch protobufDone = new CountDownLatch(1);
+    pool.acquire();
+    pool.execute(newCall(RPC.RpcKind.RPC_PROTOCOL_BUFFER),
+        call -> protobufDone.countDown());
+    assertTrue(protobufDone.await(5, TimeUnit.SECONDS));
+
+    release.countDown();
+    assertTrue(writablesDone.await(5, TimeUnit.SECONDS));
+    while (pool.getInFlight() != 0) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, pool.getWaiting());
+  }
+
+  @Test
+  @Timeout(value = 10)
+  public void testWaitingCallsReturnConcurrencyPermit() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(
+        VirtualThreadHandlerPool.IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_KEY, 2);
+    conf.setInt(VirtualThreadHandlerPool
+        .IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_PER_KIND_PREFIX
+        + RPC.RpcKind.RPC_WRITABLE.name(), 1);
+    pool = new VirtualThreadHandlerPool("test", conf);
+
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch writablesDone = new CountDownLatch(4);
+    for (int i = 0; i < 4; i++) {
+      // more saturated calls than the pool has concurrency permits
+      pool.acquire();
+      pool.execute(newCall(RPC.RpcKind.RPC_WRITABLE), call -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        writablesDone.countDown();
+      });
+    }
+    while (pool.getWaiting() < 3) {
+      Thread.sleep(10);
+    }
+    // waiting calls are not counted as running
+    assertEquals(1, pool.getInFlight());
+
+    final CountDownLatch protobufDone = new CountDownLatch(1);
+    pool.acquire();
+    pool.execute(newCall(RPC.RpcKind.RPC_PROTOCOL_BUFFER),
+        call -> protobufDone.countDown());
+    assertTrue(protobufDone.await(5, TimeUnit.SECONDS));
+
+    release.countDown();
+    assertTrue(writablesDone.await(5, TimeUnit.SECONDS));
+    while (pool.getInFlight() != 0 || pool.getWaiting() != 0) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.VisibleForTesting;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.thirdparty.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs each dequeued {@link Server.Call} on its own (virtual, when the JVM
+ * supports them) thread instead of on one of a fixed set of handler threads.
+ *
+ * Calls are still taken from the {@link CallQueueManager} by dispatcher
+ * threads, so the ordering chosen by the configured {@link RpcScheduler} is
+ * preserved. A dispatcher only takes the next call once a concurrency permit
+ * is available; until then calls stay in the call queue where the scheduler
+ * and client backoff can see them. Optional per-{@link RPC.RpcKind} caps
+ * bound how many calls of a single kind run at once.
+ */
+@InterfaceAudience.Private
+class VirtualThreadHandlerPool {
+  public static final Logger LOG =
+      LoggerFactory.getLogger(VirtualThreadHandlerPool.class);
+
+  public static final String IPC_SERVER_HANDLER_VIRTUAL_ENABLED_KEY =
+      "ipc.server.handler.virtual.enabled";
+  public static final boolean IPC_SERVER_HANDLER_VIRTUAL_ENABLED_DEFAULT =
+      false;
+  public static final String IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_KEY =
+      "ipc.server.handler.virtual.max-concurrent-calls";
+  public static final int IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_DEFAULT = 1024;
+  /** Suffixed with the {@link RPC.RpcKind} name, e.g. RPC_PROTOCOL_BUFFER. */
+  public static final String IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_PER_KIND_PREFIX =
+      IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_KEY + ".";
+  public static final String IPC_SERVER_HANDLER_VIRTUAL_DISPATCHERS_KEY =
+      "ipc.server.handler.virtual.dispatchers";
+  public static final int IPC_SERVER_HANDLER_VIRTUAL_DISPATCHERS_DEFAULT = 1;
+
+  private final ExecutorService executor;
+  private final boolean virtual;
+  private final int maxConcurrentCalls;
+  private final Semaphore permits;
+  private final Map<RPC.RpcKind, Semaphore> kindPermits =
+      new EnumMap<>(RPC.RpcKind.class);
+  private final int numDispatchers;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  VirtualThreadHandlerPool(String threadNamePrefix, Configuration conf) {
+    this.maxConcurrentCalls = conf.getInt(
+        IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_KEY,
+        IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_DEFAULT);
+    if (maxConcurrentCalls <= 0) {
+      throw new IllegalArgumentException(
+          IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_KEY + " must be positive: "
+              + maxConcurrentCalls);
+    }
+    this.permits = new Semaphore(maxConcurrentCalls);
+    for (RPC.RpcKind kind : RPC.RpcKind.values()) {
+      int limit = conf.getInt(
+          IPC_SERVER_HANDLER_VIRTUAL_MAX_CALLS_PER_KIND_PREFIX + kind.name(), 0);
+      if (limit > 0 && limit < maxConcurrentCalls) {
+        kindPermits.put(kind, new Semaphore(limit));
+      }
+    }
+    this.numDispatchers = Math.max(1, conf.getInt(
+        IPC_SERVER_HANDLER_VIRTUAL_DISPATCHERS_KEY,
+        IPC_SERVER_HANDLER_VIRTUAL_DISPATCHERS_DEFAULT));
+
+    ExecutorService virtualExecutor = newVirtualThreadPerTaskExecutor();
+    if (virtualExecutor != null) {
+      this.executor = virtualExecutor;
+      this.virtual = true;
+    } else {
+      LOG.warn("Virtual threads are not supported by this JVM, running "
+          + "calls of {} on a cached platform thread pool", threadNamePrefix);
+      this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat(threadNamePrefix + " %d").build());
+      this.virtual = false;
+    }
+  }
+
+  /**
+   * Look up Executors#newVirtualThreadPerTaskExecutor reflectively so the
+   * class still loads on JVMs without virtual thread support.
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOG.debug("Unable to create virtual thread executor", e);
+      return null;
+    }
+  }
+
+  /**
+   * Block until a concurrency permit is free. Dispatchers call this before
+   * taking from the call queue so that waiting calls remain subject to the
+   * scheduler's priorities.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  void acquire() throws InterruptedException {
+    waiting.incrementAndGet();
+    try {
+      permits.acquire();
+    } finally {
+      waiting.decrementAndGet();
+    }
+  }
+
+  /** Return a permit obtained by {@link #acquire()} without running a call. */
+  void release() {
+    permits.release();
+  }
+
+  /**
+   * Run the call asynchronously. The caller must hold a permit obtained
+   * from {@link #acquire()}; it is released when the call completes. When
+   * the call's {@link RPC.RpcKind} is capped and saturated, the task hands
+   * the concurrency permit back while it waits for a kind permit on its own
+   * thread, so a saturated kind holds up neither the dispatcher nor calls of
+   * other kinds.
+   * @param call the call to run.
+   * @param processor the per-call handler logic.
+   */
+  void execute(final Server.Call call,
+      final Consumer<Server.Call> processor) {
+    final Semaphore kindPermit = kindPermits.get(call.rpcKind);
+    try {
+      executor.execute(() -> {
+        boolean kindAcquired = false;
+        boolean permitHeld = true;
+        try {
+          if (kindPermit != null && !kindPermit.tryAcquire()) {
+            permits.release();
+            permitHeld = false;
+            waiting.incrementAndGet();
+            try {
+              kindPermit.acquire();
+              kindAcquired = true;
+              permits.acquire();
+              permitHeld = true;
+            } finally {
+              waiting.decrementAndGet();
+            }
+          } else {
+            kindAcquired = kindPermit != null;
+          }
+          inFlight.incrementAndGet();
+          try {
+            processor.accept(call);
+          } finally {
+            inFlight.decrementAndGet();
+          }
+        } catch (InterruptedException e) {
+          // only happens when the pool is shut down
+          LOG.debug("Interrupted waiting to run {}", call);
+          Thread.currentThread().interrupt();
+        } finally {
+          if (kindAcquired) {
+            kindPermit.release();
+          }
+          if (permitHeld) {
+            permits.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+    try {
+      if (!executor.awaitTermination(3, TimeUnit.SECONDS)) {
+        LOG.info("Handler pool did not terminate, {} calls still running.",
+            inFlight.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  int getNumDispatchers() {
+    return numDispatchers;
+  }
+
+  /** @return number of calls currently running on the pool. */
+  int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * @return number of dispatchers waiting for a concurrency permit plus
+   *     calls waiting for the permit of their {@link RPC.RpcKind}.
+   */
+  int getWaiting() {
+    return waiting.get();
+  }
+
+  int getMaxConcurrentCalls() {
+    return maxConcurrentCalls;
+  }
+
+  @VisibleForTesting
+  boolean isVirtual() {
+    return virtual;
+  }
+}
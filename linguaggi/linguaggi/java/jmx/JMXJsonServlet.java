@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Set;
 import javax.management.AttributeNotFoundException;
@@ -49,6 +50,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.commons.lang3.NotImplementedException;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.http.HttpServer2;
 
 /*
@@ -90,6 +92,16 @@ import org.apache.hadoop.http.HttpServer2;
  * If a resouce such as a mbean or attribute can not be found, 
  * a 404 SC_NOT_FOUND http response code will be returned. 
  * </p>
+ * <p>
+ * With <code>format=prometheus</code>, the numeric attributes of the beans
+ * are returned in the Prometheus text format instead.
+ * </p>
+ * <p>
+ * If <code>hadoop.jmx.snapshot.enabled</code> is set, the attributes are
+ * read by a background thread every
+ * <code>hadoop.jmx.snapshot.interval.ms</code>, or as configured per bean,
+ * and the requests are served from the latest snapshot.
+ * </p>
  * The return format is JSON and in the form
  *  <pre><code>
  *  {
@@ -139,6 +151,12 @@ public class JMXJsonServlet extends HttpServlet {
    */
   protected transient JsonFactory jsonFactory;
 
+  /**
+   * Collector of the snapshots served, null if the beans are read for each
+   * request.
+   */
+  private transient MBeanSnapshotCollector snapshotCollector;
+
   /**
    * Initialize this servlet.
    */
@@ -147,6 +165,23 @@ public class JMXJsonServlet extends HttpServlet {
     // Retrieve the MBean server
     mBeanServer = ManagementFactory.getPlatformMBeanServer();
     jsonFactory = new JsonFactory();
+    Configuration conf = (Configuration) getServletContext().getAttribute(
+        HttpServer2.CONF_CONTEXT_ATTRIBUTE);
+    if (conf != null && conf.getBoolean(
+        MBeanSnapshotCollector.SNAPSHOT_ENABLED_KEY,
+        MBeanSnapshotCollector.SNAPSHOT_ENABLED_DEFAULT)) {
+      snapshotCollector = MBeanSnapshotCollector.create(conf, mBeanServer,
+          jsonFactory, this::writeAttribute);
+      snapshotCollector.start();
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (snapshotCollector != null) {
+      snapshotCollector.close();
+    }
+    super.destroy();
   }
 
   protected boolean isInstrumentationAccessAllowed(HttpServletRequest request, 
@@ -178,6 +213,10 @@ public class JMXJsonServlet extends HttpServlet {
       if (!isInstrumentationAccessAllowed(request, response)) {
         return;
       }
+      if ("prometheus".equals(request.getParameter("format"))) {
+        writePrometheus(request, response);
+        return;
+      }
       JsonGenerator jg = null;
       PrintWriter writer = null;
       try {
@@ -232,9 +271,34 @@ public class JMXJsonServlet extends HttpServlet {
   }
 
   // --------------------------------------------------------- Private Methods
+  private void writePrometheus(HttpServletRequest request,
+      HttpServletResponse response)
+      throws IOException, MalformedObjectNameException {
+    String qry = request.getParameter("qry");
+    ObjectName query = new ObjectName(qry == null ? "*:*" : qry);
+    String text;
+    if (snapshotCollector != null) {
+      text = snapshotCollector.getPrometheusText(query);
+    } else {
+      MBeanSnapshotCollector collector = new MBeanSnapshotCollector(
+          mBeanServer, jsonFactory, this::writeAttribute, 0,
+          Collections.emptyMap());
+      collector.refresh(query, true);
+      text = collector.getPrometheusText(query);
+    }
+    response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+    try (PrintWriter writer = response.getWriter()) {
+      writer.write(text);
+    }
+  }
+
   private void listBeans(JsonGenerator jg, ObjectName qry, String attribute, 
       HttpServletResponse response) 
   throws IOException {
+    if (snapshotCollector != null) {
+      listSnapshotBeans(jg, qry, attribute, response);
+      return;
+    }
     LOG.debug("Listing beans for "+qry);
     Set<ObjectName> names = null;
     names = mBeanServer.queryNames(qry, null);
@@ -327,6 +391,39 @@ public class JMXJsonServlet extends HttpServlet {
     jg.writeEndArray();
   }
 
+  /**
+   * Write the beans from their snapshots, the JSON of which is already
+   * rendered unless a single attribute is asked for.
+   */
+  private void listSnapshotBeans(JsonGenerator jg, ObjectName qry,
+      String attribute, HttpServletResponse response) throws IOException {
+    jg.writeArrayFieldStart("beans");
+    for (MBeanSnapshotCollector.BeanSnapshot bean :
+        snapshotCollector.getBeans(qry)) {
+      if (attribute == null) {
+        jg.writeRawValue(bean.getJson());
+        continue;
+      }
+      jg.writeStartObject();
+      jg.writeStringField("name", bean.getName().toString());
+      jg.writeStringField("modelerType", bean.getModelerType());
+      Object value = bean.getAttributes().get(attribute);
+      if (value == null) {
+        jg.writeStringField("result", "ERROR");
+        jg.writeStringField("message", "No attribute with name " + attribute
+            + " was found.");
+        jg.writeEndObject();
+        jg.writeEndArray();
+        jg.close();
+        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      writeAttribute(jg, attribute, value);
+      jg.writeEndObject();
+    }
+    jg.writeEndArray();
+  }
+
   private void writeAttribute(JsonGenerator jg, ObjectName oname, MBeanAttributeInfo attr) throws IOException {
     if (!attr.isReadable()) {
       return;
@@ -0,0 +1,435 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.jmx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.thirdparty.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.util.concurrent.HadoopExecutors;
+
+/**
+ * Collects snapshots of the attributes of MBeans, so that the JMX servlet
+ * serves frequent scrapes without calling the attribute getters of every
+ * bean for every request.
+ * <p>
+ * A daemon thread refreshes the snapshots periodically. The snapshot of a
+ * bean is refreshed once it is older than the TTL of the bean, which is the
+ * refresh interval unless configured with
+ * <code>hadoop.jmx.snapshot.ttl.ms.&lt;ObjectName pattern&gt;</code>, e.g.
+ * <code>hadoop.jmx.snapshot.ttl.ms.Hadoop:service=NameNode,*</code>. The
+ * JSON of each bean is rendered when it is collected, and the Prometheus
+ * text of all the beans when it is first asked for after a refresh.
+ * </p>
+ */
+class MBeanSnapshotCollector implements Closeable {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(MBeanSnapshotCollector.class);
+
+  /** Whether the JMX servlet serves snapshots. */
+  static final String SNAPSHOT_ENABLED_KEY = "hadoop.jmx.snapshot.enabled";
+  static final boolean SNAPSHOT_ENABLED_DEFAULT = false;
+  /** The refresh interval, and the default TTL of the snapshots. */
+  static final String SNAPSHOT_INTERVAL_KEY =
+      "hadoop.jmx.snapshot.interval.ms";
+  static final long SNAPSHOT_INTERVAL_DEFAULT = 10000;
+  /** The prefix of the TTLs of the beans matching an ObjectName pattern. */
+  static final String SNAPSHOT_TTL_PREFIX = "hadoop.jmx.snapshot.ttl.ms.";
+
+  private static final ObjectName ALL_BEANS = newObjectName("*:*");
+  private static final Pattern CAMEL_CASE = Pattern.compile(
+      "(?<!(^|[A-Z_]))(?=[A-Z])|(?<!^)(?=[A-Z][a-z])");
+  private static final Pattern NOT_NAME_CHARS = Pattern.compile("[^a-z0-9]+");
+
+  /** Writes an attribute value as the servlet does. */
+  @FunctionalInterface
+  interface ValueWriter {
+    void write(JsonGenerator jg, String attName, Object value)
+        throws IOException;
+  }
+
+  /** The attributes of a bean at a point in time. */
+  static final class BeanSnapshot {
+    private final ObjectName name;
+    private final String modelerType;
+    private final Map<String, Object> attributes;
+    /** The bean as a JSON object. */
+    private final String json;
+    private final long collectedNanos;
+
+    BeanSnapshot(ObjectName name, String modelerType,
+        Map<String, Object> attributes, String json, long collectedNanos) {
+      this.name = name;
+      this.modelerType = modelerType;
+      this.attributes = Collections.unmodifiableMap(attributes);
+      this.json = json;
+      this.collectedNanos = collectedNanos;
+    }
+
+    ObjectName getName() {
+      return name;
+    }
+
+    String getModelerType() {
+      return modelerType;
+    }
+
+    Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    String getJson() {
+      return json;
+    }
+  }
+
+  private final MBeanServer mBeanServer;
+  private final JsonFactory jsonFactory;
+  private final ValueWriter valueWriter;
+  private final long intervalMs;
+  /** The TTLs in ms by ObjectName pattern, in configuration order. */
+  private final Map<ObjectName, Long> ttls;
+  private final Map<ObjectName, BeanSnapshot> snapshots =
+      new ConcurrentHashMap<>();
+  private ScheduledExecutorService scheduler;
+  private volatile boolean refreshed;
+  /** The Prometheus text of all the beans, reset by every refresh. */
+  private volatile String prometheusText;
+
+  MBeanSnapshotCollector(MBeanServer mBeanServer, JsonFactory jsonFactory,
+      ValueWriter valueWriter, long intervalMs, Map<ObjectName, Long> ttls) {
+    this.mBeanServer = mBeanServer;
+    this.jsonFactory = jsonFactory;
+    this.valueWriter = valueWriter;
+    this.intervalMs = intervalMs;
+    this.ttls = ttls;
+  }
+
+  /**
+   * Create a collector from the configuration.
+   *
+   * @return the collector, which is not started.
+   */
+  static MBeanSnapshotCollector create(Configuration conf,
+      MBeanServer mBeanServer, JsonFactory jsonFactory,
+      ValueWriter valueWriter) {
+    Map<ObjectName, Long> ttls = new LinkedHashMap<>();
+    for (Map.Entry<String, String> e :
+        new TreeMap<>(conf.getPropsWithPrefix(SNAPSHOT_TTL_PREFIX))
+            .entrySet()) {
+      try {
+        ttls.put(new ObjectName(e.getKey()), Long.parseLong(e.getValue()));
+      } catch (MalformedObjectNameException | NumberFormatException ex) {
+        LOG.warn("Ignoring the JMX snapshot TTL {}{}={}", SNAPSHOT_TTL_PREFIX,
+            e.getKey(), e.getValue(), ex);
+      }
+    }
+    return new MBeanSnapshotCollector(mBeanServer, jsonFactory, valueWriter,
+        conf.getLong(SNAPSHOT_INTERVAL_KEY, SNAPSHOT_INTERVAL_DEFAULT), ttls);
+  }
+
+  /**
+   * Start refreshing the snapshots, as often as the shortest TTL.
+   */
+  synchronized void start() {
+    long period = intervalMs;
+    for (long ttl : ttls.values()) {
+      period = Math.min(period, ttl);
+    }
+    period = Math.max(period, 100);
+    scheduler = HadoopExecutors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("JMX snapshot collector").build());
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        refresh();
+      } catch (RuntimeException e) {
+        LOG.warn("Failed to refresh the JMX snapshots", e);
+      }
+    }, 0, period, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  private long getTtlMs(ObjectName name) {
+    for (Map.Entry<ObjectName, Long> e : ttls.entrySet()) {
+      if (e.getKey().apply(name)) {
+        return e.getValue();
+      }
+    }
+    return intervalMs;
+  }
+
+  /**
+   * Refresh the snapshots of all the beans older than their TTL.
+   */
+  void refresh() {
+    refresh(ALL_BEANS, false);
+  }
+
+  /**
+   * Refresh the snapshots of the beans matching a query.
+   *
+   * @param query the beans to refresh.
+   * @param all whether to refresh the snapshots younger than their TTL.
+   */
+  synchronized void refresh(ObjectName query, boolean all) {
+    final Set<ObjectName> names = mBeanServer.queryNames(query, null);
+    snapshots.keySet().removeIf(n -> query.apply(n) && !names.contains(n));
+    final long now = System.nanoTime();
+    for (ObjectName name : names) {
+      BeanSnapshot old = snapshots.get(name);
+      if (!all && old != null && now - old.collectedNanos
+          < TimeUnit.MILLISECONDS.toNanos(getTtlMs(name))) {
+        continue;
+      }
+      try {
+        snapshots.put(name, collect(name));
+      } catch (InstanceNotFoundException e) {
+        // unregistered since the query
+        snapshots.remove(name);
+      } catch (IntrospectionException | ReflectionException | IOException
+          | RuntimeException e) {
+        LOG.error("Problem while collecting the snapshot of MBean " + name, e);
+      }
+    }
+    prometheusText = null;
+    refreshed = true;
+  }
+
+  private BeanSnapshot collect(ObjectName name) throws IOException,
+      InstanceNotFoundException, IntrospectionException,
+      ReflectionException {
+    final MBeanInfo info = mBeanServer.getMBeanInfo(name);
+    String code = info.getClassName();
+    List<String> attNames = new ArrayList<>();
+    for (MBeanAttributeInfo attr : info.getAttributes()) {
+      String attName = attr.getName();
+      if (attr.isReadable() && !"modelerType".equals(attName)
+          && attName.indexOf('=') < 0 && attName.indexOf(':') < 0
+          && attName.indexOf(' ') < 0) {
+        attNames.add(attName);
+      }
+    }
+    if ("org.apache.commons.modeler.BaseModelMBean".equals(code)) {
+      attNames.add("modelerType");
+    }
+    // a single call, which leaves out the attributes failing to be read
+    AttributeList values = mBeanServer.getAttributes(name,
+        attNames.toArray(new String[0]));
+    Map<String, Object> attributes = new LinkedHashMap<>();
+    for (Attribute attribute : values.asList()) {
+      if ("modelerType".equals(attribute.getName())) {
+        code = String.valueOf(attribute.getValue());
+      } else {
+        attributes.put(attribute.getName(), attribute.getValue());
+      }
+    }
+
+    StringWriter json = new StringWriter();
+    try (JsonGenerator jg = jsonFactory.createGenerator(json)) {
+      jg.writeStartObject();
+      jg.writeStringField("name", name.toString());
+      jg.writeStringField("modelerType", code);
+      for (Map.Entry<String, Object> e : attributes.entrySet()) {
+        valueWriter.write(jg, e.getKey(), e.getValue());
+      }
+      jg.writeEndObject();
+    }
+    return new BeanSnapshot(name, code, attributes, json.toString(),
+        System.nanoTime());
+  }
+
+  /**
+   * Get the snapshots of the beans matching a query.
+   *
+   * @param query an ObjectName pattern.
+   * @return the snapshots.
+   */
+  List<BeanSnapshot> getBeans(ObjectName query) {
+    if (!refreshed) {
+      // not yet collected by the collector thread
+      refresh();
+    }
+    List<BeanSnapshot> beans = new ArrayList<>();
+    for (BeanSnapshot bean : snapshots.values()) {
+      if (query.apply(bean.name)) {
+        beans.add(bean);
+      }
+    }
+    return beans;
+  }
+
+  /**
+   * Get the numeric attributes of the beans matching a query in the
+   * Prometheus text format. The metric name is made of the domain, the
+   * name or type key property and the attribute name; the other key
+   * properties are labels.
+   *
+   * @param query an ObjectName pattern.
+   * @return the text.
+   */
+  String getPrometheusText(ObjectName query) {
+    final boolean all = ALL_BEANS.equals(query);
+    String text = all ? prometheusText : null;
+    if (text == null) {
+      // samples grouped by metric name, as required by the format
+      Map<String, StringBuilder> metrics = new TreeMap<>();
+      for (BeanSnapshot bean : getBeans(query)) {
+        addSamples(metrics, bean);
+      }
+      StringBuilder b = new StringBuilder();
+      for (Map.Entry<String, StringBuilder> e : metrics.entrySet()) {
+        b.append("# TYPE ").append(e.getKey()).append(" gauge\n")
+            .append(e.getValue());
+      }
+      text = b.toString();
+      if (all) {
+        prometheusText = text;
+      }
+    }
+    return text;
+  }
+
+  private static void addSamples(Map<String, StringBuilder> metrics,
+      BeanSnapshot bean) {
+    Hashtable<String, String> properties =
+        bean.name.getKeyPropertyList();
+    String nameProperty = properties.containsKey("name") ? "name"
+        : properties.containsKey("type") ? "type" : null;
+    StringBuilder prefix = new StringBuilder(
+        prometheusName(bean.name.getDomain()));
+    if (nameProperty != null) {
+      prefix.append('_').append(
+          prometheusName(properties.get(nameProperty)));
+    }
+    StringBuilder labels = new StringBuilder();
+    for (Map.Entry<String, String> e : new TreeMap<>(properties).entrySet()) {
+      if (!e.getKey().equals(nameProperty)) {
+        labels.append(labels.length() == 0 ? "{" : ",")
+            .append(prometheusName(e.getKey())).append("=\"")
+            .append(escapeLabelValue(e.getValue().startsWith("\"")
+                ? ObjectName.unquote(e.getValue()) : e.getValue()))
+            .append('"');
+      }
+    }
+    if (labels.length() > 0) {
+      labels.append('}');
+    }
+    for (Map.Entry<String, Object> e : bean.attributes.entrySet()) {
+      String metric = prefix + "_" + prometheusName(e.getKey());
+      Object value = e.getValue();
+      if (value instanceof CompositeData) {
+        CompositeData data = (CompositeData) value;
+        for (String key : data.getCompositeType().keySet()) {
+          addSample(metrics, metric + "_" + prometheusName(key), labels,
+              data.get(key));
+        }
+      } else {
+        addSample(metrics, metric, labels, value);
+      }
+    }
+  }
+
+  /** Format a double the way the Prometheus text format spells it. */
+  static String formatDouble(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    } else if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    return Double.toString(value);
+  }
+
+  private static void addSample(Map<String, StringBuilder> metrics,
+      String metric, CharSequence labels, Object value) {
+    String number;
+    if (value instanceof Double || value instanceof Float) {
+      number = formatDouble(((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      number = value.toString();
+    } else if (value instanceof Boolean) {
+      number = (Boolean) value ? "1" : "0";
+    } else {
+      return;
+    }
+    metrics.computeIfAbsent(metric, m -> new StringBuilder())
+        .append(metric).append(labels).append(' ').append(number)
+        .append('\n');
+  }
+
+  /**
+   * Convert a CamelCase or dotted name to a Prometheus snake_case name.
+   */
+  static String prometheusName(String name) {
+    String[] parts = CAMEL_CASE.split(name);
+    String snake = String.join("_", parts).toLowerCase();
+    snake = NOT_NAME_CHARS.matcher(snake).replaceAll("_");
+    return snake.isEmpty() || Character.isDigit(snake.charAt(0))
+        ? "_" + snake : snake;
+  }
+
+  private static String escapeLabelValue(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"")
+        .replace("\n", "\\n");
+  }
+
+  private static ObjectName newObjectName(String name) {
+    try {
+      return new ObjectName(name);
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.jmx;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.apache.hadoop.conf.Configuration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestMBeanSnapshotCollector {
+  private MBeanServer mBeanServer;
+  private ObjectName fast;
+  private ObjectName slow;
+  private Counter fastBean;
+  private Counter slowBean;
+
+  /** A bean counting the calls of its getter. */
+  public interface CounterMBean {
+    int getCalls();
+    boolean isActive();
+    String getDescription();
+  }
+
+  public static class Counter implements CounterMBean {
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public int getCalls() {
+      return calls.incrementAndGet();
+    }
+
+    @Override
+    public boolean isActive() {
+      return true;
+    }
+
+    @Override
+    public String getDescription() {
+      return "a \"counter\"";
+    }
+  }
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    fast = new ObjectName("Test:service=Snapshot,name=FastCounter");
+    slow = new ObjectName("Test:service=Snapshot,name=SlowCounter");
+    fastBean = new Counter();
+    slowBean = new Counter();
+    mBeanServer.registerMBean(fastBean, fast);
+    mBeanServer.registerMBean(slowBean, slow);
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    mBeanServer.unregisterMBean(fast);
+    if (mBeanServer.isRegistered(slow)) {
+      mBeanServer.unregisterMBean(slow);
+    }
+  }
+
+  private static void writeValue(JsonGenerator jg, String attName,
+      Object value) throws IOException {
+    jg.writeFieldName(attName);
+    jg.writeString(String.valueOf(value));
+  }
+
+  private MBeanSnapshotCollector newCollector() {
+    Configuration conf = new Configuration(false);
+    conf.setLong(MBeanSnapshotCollector.SNAPSHOT_INTERVAL_KEY, 1);
+    conf.setLong(MBeanSnapshotCollector.SNAPSHOT_TTL_PREFIX
+        + "Test:service=Snapshot,name=Slow*", 3600000);
+    return MBeanSnapshotCollector.create(conf, mBeanServer,
+        new JsonFactory(), TestMBeanSnapshotCollector::writeValue);
+  }
+
+  @Test
+  public void testTtl() throws Exception {
+    MBeanSnapshotCollector collector = newCollector();
+    ObjectName query = new ObjectName("Test:service=Snapshot,*");
+    List<MBeanSnapshotCollector.BeanSnapshot> beans =
+        collector.getBeans(query);
+    assertEquals(2, beans.size());
+    assertEquals(1, fastBean.calls.get());
+    assertEquals(1, slowBean.calls.get());
+    // scrapes don't read the beans
+    collector.getBeans(query);
+    collector.getPrometheusText(query);
+    assertEquals(1, fastBean.calls.get());
+
+    Thread.sleep(5);
+    collector.refresh();
+    assertEquals(2, fastBean.calls.get());
+    assertEquals(1, slowBean.calls.get());
+
+    mBeanServer.unregisterMBean(slow);
+    collector.refresh();
+    beans = collector.getBeans(query);
+    assertEquals(1, beans.size());
+    MBeanSnapshotCollector.BeanSnapshot bean = beans.get(0);
+    assertEquals(fast, bean.getName());
+    assertTrue(bean.getJson().contains(
+        "\"name\":\"Test:service=Snapshot,name=FastCounter\""),
+        bean.getJson());
+    assertTrue(bean.getJson().contains(
+        "\"Calls\":\"" + fastBean.calls.get() + "\""),
+        bean.getJson());
+  }
+
+  @Test
+  public void testPrometheusText() throws Exception {
+    MBeanSnapshotCollector collector = newCollector();
+    String text = collector.getPrometheusText(
+        new ObjectName("Test:service=Snapshot,*"));
+    assertTrue(text.contains("# TYPE test_fast_counter_calls gauge\n"
+        + "test_fast_counter_calls{service=\"Snapshot\"} 1\n"), text);
+    assertTrue(text.contains(
+        "test_slow_counter_active{service=\"Snapshot\"} 1\n"), text);
+    // not numeric
+    assertTrue(!text.contains("description"), text);
+
+    text = collector.getPrometheusText(new ObjectName("java.lang:*"));
+    assertTrue(text.contains("\njava_lang_memory_heap_memory_usage_used "),
+        text);
+  }
+
+  @Test
+  public void testPrometheusName() {
+    assertEquals("heap_memory_usage",
+        MBeanSnapshotCollector.prometheusName("HeapMemoryUsage"));
+    assertEquals("rpc_queue_time_num_ops",
+        MBeanSnapshotCollector.prometheusName("RpcQueueTimeNumOps"));
+    assertEquals("java_lang", MBeanSnapshotCollector.prometheusName("java.lang"));
+    assertEquals("_99th", MBeanSnapshotCollector.prometheusName("99th"));
+  }
+
+  @Test
+  public void testFormatDouble() {
+    assertEquals("NaN", MBeanSnapshotCollector.formatDouble(Double.NaN));
+    assertEquals("+Inf",
+        MBeanSnapshotCollector.formatDouble(Double.POSITIVE_INFINITY));
+    assertEquals("-Inf",
+        MBeanSnapshotCollector.formatDouble(Float.NEGATIVE_INFINITY));
+    assertEquals("0.25", MBeanSnapshotCollector.formatDouble(0.25));
+  }
+}
@@ -78,6 +78,15 @@ public class MetricStringBuilder extends MetricsRecordBuilder {
     return this;
   }
 
+  /**
+   * Start an entry, for the value to be appended without boxing it.
+   */
+  private StringBuilder entry(MetricsInfo info) {
+    return builder.append(prefix)
+        .append(info.name())
+        .append(separator);
+  }
+
   @Override
   public MetricsRecordBuilder tag(MetricsInfo info, String value) {
     return add(info, value);
@@ -101,32 +110,38 @@ public class MetricStringBuilder extends MetricsRecordBuilder {
 
   @Override
   public MetricsRecordBuilder addCounter(MetricsInfo info, int value) {
-    return add(info, value);
+    entry(info).append(value).append(suffix);
+    return this;
   }
 
   @Override
   public MetricsRecordBuilder addCounter(MetricsInfo info, long value) {
-    return add(info, value);
+    entry(info).append(value).append(suffix);
+    return this;
   }
 
   @Override
   public MetricsRecordBuilder addGauge(MetricsInfo info, int value) {
-    return add(info, value);
+    entry(info).append(value).append(suffix);
+    return this;
   }
 
   @Override
   public MetricsRecordBuilder addGauge(MetricsInfo info, long value) {
-    return add(info, value);
+    entry(info).append(value).append(suffix);
+    return this;
   }
 
   @Override
   public MetricsRecordBuilder addGauge(MetricsInfo info, float value) {
-    return add(info, value);
+    entry(info).append(value).append(suffix);
+    return this;
   }
 
   @Override
   public MetricsRecordBuilder addGauge(MetricsInfo info, double value) {
-    return add(info, value);
+    entry(info).append(value).append(suffix);
+    return this;
   }
 
   @Override
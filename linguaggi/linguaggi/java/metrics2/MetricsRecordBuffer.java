@@ -0,0 +1,334 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.metrics2;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * A reusable metrics record builder which keeps the tags and the primitive
+ * values of the metrics in slots, rather than in a metric object per value.
+ * <p>
+ * Sources add to the buffer with the usual builder methods, and sinks read
+ * the values back with {@link #visit(MetricsVisitor)} or the slot
+ * accessors, without boxing. After {@link #reset()}, the next snapshot of a
+ * source reuses the slots, so taking snapshots allocates nothing once the
+ * slots have grown to the size of the record.
+ * </p>
+ * This class is not thread safe.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class MetricsRecordBuffer extends MetricsRecordBuilder {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final byte INT_COUNTER = 0;
+  private static final byte LONG_COUNTER = 1;
+  private static final byte INT_GAUGE = 2;
+  private static final byte LONG_GAUGE = 3;
+  private static final byte FLOAT_GAUGE = 4;
+  private static final byte DOUBLE_GAUGE = 5;
+
+  private final MetricsCollector parent;
+  private MetricsInfo recordInfo;
+  private String context;
+
+  private MetricsInfo[] infos = new MetricsInfo[INITIAL_CAPACITY];
+  private byte[] kinds = new byte[INITIAL_CAPACITY];
+  /** The values, the floating point ones as their raw bits. */
+  private long[] values = new long[INITIAL_CAPACITY];
+  private int size;
+
+  private MetricsInfo[] tagInfos = new MetricsInfo[INITIAL_CAPACITY];
+  private String[] tagValues = new String[INITIAL_CAPACITY];
+  private int tagCount;
+
+  /** Adds the value of a metric object, without boxing it. */
+  private final MetricsVisitor adder = new MetricsVisitor() {
+    @Override
+    public void gauge(MetricsInfo info, int value) {
+      addGauge(info, value);
+    }
+
+    @Override
+    public void gauge(MetricsInfo info, long value) {
+      addGauge(info, value);
+    }
+
+    @Override
+    public void gauge(MetricsInfo info, float value) {
+      addGauge(info, value);
+    }
+
+    @Override
+    public void gauge(MetricsInfo info, double value) {
+      addGauge(info, value);
+    }
+
+    @Override
+    public void counter(MetricsInfo info, int value) {
+      addCounter(info, value);
+    }
+
+    @Override
+    public void counter(MetricsInfo info, long value) {
+      addCounter(info, value);
+    }
+  };
+
+  /**
+   * @param parent the collector returned by {@link #parent()}, may be null.
+   * @param recordInfo the info of the record.
+   */
+  public MetricsRecordBuffer(MetricsCollector parent,
+      MetricsInfo recordInfo) {
+    this.parent = parent;
+    this.recordInfo = recordInfo;
+  }
+
+  /**
+   * Clear the buffer for the next snapshot, keeping its slots.
+   */
+  public void reset() {
+    size = 0;
+    tagCount = 0;
+    context = null;
+  }
+
+  /**
+   * Clear the buffer for the next snapshot of another record.
+   * @param info of the record
+   */
+  public void reset(MetricsInfo info) {
+    reset();
+    recordInfo = info;
+  }
+
+  @Override
+  public MetricsRecordBuffer tag(MetricsInfo info, String value) {
+    if (tagCount == tagInfos.length) {
+      tagInfos = Arrays.copyOf(tagInfos, tagCount * 2);
+      tagValues = Arrays.copyOf(tagValues, tagCount * 2);
+    }
+    tagInfos[tagCount] = info;
+    tagValues[tagCount++] = value;
+    return this;
+  }
+
+  @Override
+  public MetricsRecordBuffer add(MetricsTag tag) {
+    return tag(tag.info(), tag.value());
+  }
+
+  @Override
+  public MetricsRecordBuffer add(AbstractMetric metric) {
+    metric.visit(adder);
+    return this;
+  }
+
+  @Override
+  public MetricsRecordBuffer setContext(String value) {
+    context = value;
+    return this;
+  }
+
+  private MetricsRecordBuffer add(MetricsInfo info, byte kind, long value) {
+    if (size == infos.length) {
+      infos = Arrays.copyOf(infos, size * 2);
+      kinds = Arrays.copyOf(kinds, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    infos[size] = info;
+    kinds[size] = kind;
+    values[size++] = value;
+    return this;
+  }
+
+  @Override
+  public MetricsRecordBuffer addCounter(MetricsInfo info, int value) {
+    return add(info, INT_COUNTER, value);
+  }
+
+  @Override
+  public MetricsRecordBuffer addCounter(MetricsInfo info, long value) {
+    return add(info, LONG_COUNTER, value);
+  }
+
+  @Override
+  public MetricsRecordBuffer addGauge(MetricsInfo info, int value) {
+    return add(info, INT_GAUGE, value);
+  }
+
+  @Override
+  public MetricsRecordBuffer addGauge(MetricsInfo info, long value) {
+    return add(info, LONG_GAUGE, value);
+  }
+
+  @Override
+  public MetricsRecordBuffer addGauge(MetricsInfo info, float value) {
+    return add(info, FLOAT_GAUGE, Float.floatToRawIntBits(value));
+  }
+
+  @Override
+  public MetricsRecordBuffer addGauge(MetricsInfo info, double value) {
+    return add(info, DOUBLE_GAUGE, Double.doubleToRawLongBits(value));
+  }
+
+  @Override
+  public MetricsCollector parent() {
+    return parent;
+  }
+
+  /**
+   * @return the info of the record
+   */
+  public MetricsInfo info() {
+    return recordInfo;
+  }
+
+  /**
+   * @return the context of the record, null if not set
+   */
+  public String context() {
+    return context;
+  }
+
+  /**
+   * @return the number of tags
+   */
+  public int tagCount() {
+    return tagCount;
+  }
+
+  /**
+   * @param i the index of the tag
+   * @return the info of the tag
+   */
+  public MetricsInfo tagInfo(int i) {
+    checkIndex(i, tagCount);
+    return tagInfos[i];
+  }
+
+  /**
+   * @param i the index of the tag
+   * @return the value of the tag
+   */
+  public String tagValue(int i) {
+    checkIndex(i, tagCount);
+    return tagValues[i];
+  }
+
+  /**
+   * @return the number of metrics
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param i the index of the metric
+   * @return the info of the metric
+   */
+  public MetricsInfo metricInfo(int i) {
+    checkIndex(i, size);
+    return infos[i];
+  }
+
+  /**
+   * @param i the index of the metric
+   * @return the type of the metric
+   */
+  public MetricType type(int i) {
+    checkIndex(i, size);
+    return kinds[i] <= LONG_COUNTER ? MetricType.COUNTER : MetricType.GAUGE;
+  }
+
+  /**
+   * @param i the index of the metric
+   * @return whether the value of the metric is a float or a double
+   */
+  public boolean isFloatingPoint(int i) {
+    checkIndex(i, size);
+    return kinds[i] >= FLOAT_GAUGE;
+  }
+
+  /**
+   * @param i the index of the metric
+   * @return the value of the metric, truncated if floating point
+   */
+  public long longValue(int i) {
+    checkIndex(i, size);
+    return isFloatingPoint(i) ? (long) doubleValue(i) : values[i];
+  }
+
+  /**
+   * @param i the index of the metric
+   * @return the value of the metric
+   */
+  public double doubleValue(int i) {
+    checkIndex(i, size);
+    switch (kinds[i]) {
+    case FLOAT_GAUGE:
+      return Float.intBitsToFloat((int) values[i]);
+    case DOUBLE_GAUGE:
+      return Double.longBitsToDouble(values[i]);
+    default:
+      return values[i];
+    }
+  }
+
+  /**
+   * Visit the metrics in the order they were added, with their values of
+   * the type they were added with.
+   * @param visitor of the metrics
+   */
+  public void visit(MetricsVisitor visitor) {
+    for (int i = 0; i < size; i++) {
+      final MetricsInfo info = infos[i];
+      final long value = values[i];
+      switch (kinds[i]) {
+      case INT_COUNTER:
+        visitor.counter(info, (int) value);
+        break;
+      case LONG_COUNTER:
+        visitor.counter(info, value);
+        break;
+      case INT_GAUGE:
+        visitor.gauge(info, (int) value);
+        break;
+      case LONG_GAUGE:
+        visitor.gauge(info, value);
+        break;
+      case FLOAT_GAUGE:
+        visitor.gauge(info, Float.intBitsToFloat((int) value));
+        break;
+      default:
+        visitor.gauge(info, Double.longBitsToDouble(value));
+        break;
+      }
+    }
+  }
+
+  private static void checkIndex(int i, int size) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.metrics2;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.metrics2.lib.Interns;
+
+/**
+ * Mini benchmark of the garbage created by taking a snapshot of a record of
+ * many metrics and sinking it: with a metric object per value, as made by
+ * the builder of the metrics system, read by a sink through
+ * {@link AbstractMetric#value()}, and with a reused
+ * {@link MetricsRecordBuffer} visited by the sink.
+ *
+ * Usage: MetricsRecordBufferBenchmark [metrics] [snapshots]
+ */
+public class MetricsRecordBufferBenchmark {
+  /** Keeps the snapshots from being optimized away. */
+  private static volatile double blackhole;
+
+  /** A metric object per value, as with MetricGaugeLong. */
+  private static final class LongGauge extends AbstractMetric {
+    private final long value;
+
+    LongGauge(MetricsInfo info, long value) {
+      super(info);
+      this.value = value;
+    }
+
+    @Override
+    public Long value() {
+      return value;
+    }
+
+    @Override
+    public MetricType type() {
+      return MetricType.GAUGE;
+    }
+
+    @Override
+    public void visit(MetricsVisitor visitor) {
+      visitor.gauge(this, value);
+    }
+  }
+
+  /** A sink summing the values, without boxing them. */
+  private static final class SumVisitor implements MetricsVisitor {
+    private double sum;
+
+    @Override
+    public void gauge(MetricsInfo info, int value) {
+      sum += value;
+    }
+
+    @Override
+    public void gauge(MetricsInfo info, long value) {
+      sum += value;
+    }
+
+    @Override
+    public void gauge(MetricsInfo info, float value) {
+      sum += value;
+    }
+
+    @Override
+    public void gauge(MetricsInfo info, double value) {
+      sum += value;
+    }
+
+    @Override
+    public void counter(MetricsInfo info, int value) {
+      sum += value;
+    }
+
+    @Override
+    public void counter(MetricsInfo info, long value) {
+      sum += value;
+    }
+  }
+
+  private interface Snapshot {
+    double take(long base);
+  }
+
+  public static void main(String[] args) {
+    int numMetrics = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int snapshots = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+    final MetricsInfo[] infos = new MetricsInfo[numMetrics];
+    for (int i = 0; i < numMetrics; i++) {
+      infos[i] = Interns.info("Metric" + i, "Metric " + i);
+    }
+
+    final Snapshot objects = base -> {
+      List<AbstractMetric> metrics = new ArrayList<>();
+      for (int i = 0; i < infos.length; i++) {
+        // beyond the range of the Long cache
+        metrics.add(new LongGauge(infos[i], base + i));
+      }
+      double sum = 0;
+      for (AbstractMetric metric : metrics) {
+        sum += metric.value().doubleValue();
+      }
+      return sum;
+    };
+
+    final MetricsRecordBuffer buffer = new MetricsRecordBuffer(null,
+        Interns.info("Benchmark", "Benchmark record"));
+    final SumVisitor visitor = new SumVisitor();
+    final Snapshot buffered = base -> {
+      buffer.reset();
+      for (int i = 0; i < infos.length; i++) {
+        buffer.addGauge(infos[i], base + i);
+      }
+      visitor.sum = 0;
+      buffer.visit(visitor);
+      return visitor.sum;
+    };
+
+    System.out.printf("%-10s %18s %14s%n", "record", "bytes/snapshot",
+        "us/snapshot");
+    for (int round = 0; round < 2; round++) {
+      run("objects", objects, snapshots);
+      run("buffer", buffered, snapshots);
+    }
+  }
+
+  private static void run(String name, Snapshot snapshot, int snapshots) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    double check = 0;
+    // warm up
+    for (int i = 0; i < snapshots; i++) {
+      check += snapshot.take(1000L * i);
+    }
+    long bytes = threads.getThreadAllocatedBytes(thread);
+    long start = System.nanoTime();
+    for (int i = 0; i < snapshots; i++) {
+      check += snapshot.take(1000L * i);
+    }
+    long nanos = System.nanoTime() - start;
+    bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+    blackhole = check;
+    System.out.printf("%-10s %18d %14.1f%n", name, bytes / snapshots,
+        nanos / 1000.0 / snapshots);
+  }
+}
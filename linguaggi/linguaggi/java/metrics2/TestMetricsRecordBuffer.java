@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.metrics2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestMetricsRecordBuffer {
+  private static final MetricsInfo RECORD = Interns.info("Record", "record");
+  private static final MetricsInfo HOST = Interns.info("Hostname", "host");
+
+  /** Records the visited values with their type. */
+  private static class RecordingVisitor implements MetricsVisitor {
+    private final List<String> visited = new ArrayList<>();
+
+    @Override
+    public void gauge(MetricsInfo info, int value) {
+      visited.add(info.name() + " int gauge " + value);
+    }
+
+    @Override
+    public void gauge(MetricsInfo info, long value) {
+      visited.add(info.name() + " long gauge " + value);
+    }
+
+    @Override
+    public void gauge(MetricsInfo info, float value) {
+      visited.add(info.name() + " float gauge " + value);
+    }
+
+    @Override
+    public void gauge(MetricsInfo info, double value) {
+      visited.add(info.name() + " double gauge " + value);
+    }
+
+    @Override
+    public void counter(MetricsInfo info, int value) {
+      visited.add(info.name() + " int counter " + value);
+    }
+
+    @Override
+    public void counter(MetricsInfo info, long value) {
+      visited.add(info.name() + " long counter " + value);
+    }
+  }
+
+  private static MetricsInfo info(String name) {
+    return Interns.info(name, name);
+  }
+
+  @Test
+  public void testAddAndVisit() {
+    MetricsRecordBuffer buffer = new MetricsRecordBuffer(null, RECORD);
+    buffer.setContext("test").tag(HOST, "host1")
+        .add(new MetricsTag(info("Port"), "8020"));
+    buffer.addCounter(info("A"), 1).addCounter(info("B"), Long.MAX_VALUE)
+        .addGauge(info("C"), -3).addGauge(info("D"), 4L)
+        .addGauge(info("E"), 0.5f).addGauge(info("F"), -0.25);
+
+    assertSame(RECORD, buffer.info());
+    assertEquals("test", buffer.context());
+    assertEquals(2, buffer.tagCount());
+    assertSame(HOST, buffer.tagInfo(0));
+    assertEquals("8020", buffer.tagValue(1));
+    assertEquals(6, buffer.size());
+    assertEquals(MetricType.COUNTER, buffer.type(1));
+    assertEquals(MetricType.GAUGE, buffer.type(2));
+    assertEquals(Long.MAX_VALUE, buffer.longValue(1));
+    assertEquals(-3, buffer.longValue(2));
+    assertEquals(0.5, buffer.doubleValue(4), 0);
+    assertEquals(-0.25, buffer.doubleValue(5), 0);
+    assertThrows(IndexOutOfBoundsException.class, () -> buffer.longValue(6));
+
+    RecordingVisitor visitor = new RecordingVisitor();
+    buffer.visit(visitor);
+    assertEquals(Arrays.asList("A int counter 1",
+        "B long counter " + Long.MAX_VALUE, "C int gauge -3",
+        "D long gauge 4", "E float gauge 0.5", "F double gauge -0.25"),
+        visitor.visited);
+  }
+
+  @Test
+  public void testReuse() {
+    MetricsRecordBuffer buffer = new MetricsRecordBuffer(null, RECORD);
+    for (int snapshot = 0; snapshot < 3; snapshot++) {
+      buffer.reset();
+      // beyond the initial capacity
+      for (int i = 0; i < 100; i++) {
+        buffer.addGauge(info("G" + i), snapshot * 1000L + i);
+        buffer.tag(info("T" + i), "v" + snapshot);
+      }
+      assertEquals(100, buffer.size());
+      assertEquals(100, buffer.tagCount());
+      assertEquals(snapshot * 1000L + 99, buffer.longValue(99));
+      assertEquals("v" + snapshot, buffer.tagValue(99));
+    }
+    MetricsInfo other = Interns.info("Other", "other");
+    buffer.reset(other);
+    assertSame(other, buffer.info());
+    assertEquals(0, buffer.size());
+    assertNull(buffer.context());
+  }
+
+  @Test
+  public void testMetricStringBuilderFormat() {
+    MetricStringBuilder builder = new MetricStringBuilder(null, "", "=", ";");
+    builder.addCounter(info("A"), 1).addGauge(info("B"), 2L)
+        .addGauge(info("C"), 0.5f).addGauge(info("D"), 1e20);
+    assertEquals("A=1;B=2;C=0.5;D=1.0E20;", builder.toString());
+  }
+}
@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.classification.VisibleForTesting;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.thirdparty.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.util.concurrent.HadoopExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DNSToSwitchMapping} that resolves hosts with a script like
+ * {@link ScriptBasedMapping}, but never blocks the caller on the script.
+ * <p>
+ * A host which is not in the cache is mapped to
+ * {@link NetworkTopology#DEFAULT_RACK} and queued. After
+ * {@link #BATCH_DELAY_KEY} milliseconds all hosts queued meanwhile are
+ * resolved by a background thread in as few script invocations as the
+ * configured argument count allows, instead of one invocation per
+ * registering host. Callers which placed a host in the default rack can
+ * register a listener with {@link #addResolutionListener(Consumer)} to move
+ * it once the real location is known.
+ * <p>
+ * If {@link #CACHE_FILE_KEY} is set, the resolved mappings are persisted to
+ * that local file, in the "host rack" per line format of {@link TableMapping},
+ * and loaded again by {@link #setConf(Configuration)}, so a restart does not
+ * have to run the script for every known host again. A failed resolution is
+ * not cached; the host is queued again the next time it is resolved.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class AsyncScriptBasedMapping extends AbstractDNSToSwitchMapping {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(AsyncScriptBasedMapping.class);
+
+  /** Local file the resolved mappings are persisted to: {@value}. */
+  public static final String CACHE_FILE_KEY = "net.topology.script.cache.file";
+  /** Time to collect unresolved hosts before running the script: {@value}. */
+  public static final String BATCH_DELAY_KEY =
+      "net.topology.script.async.batch.delay.ms";
+  public static final long BATCH_DELAY_DEFAULT = 100;
+
+  private final DNSToSwitchMapping rawMapping;
+  private final Map<String, String> cache = new ConcurrentHashMap<>();
+  private final Set<String> pending = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final List<Consumer<Map<String, String>>> listeners =
+      new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService resolver;
+  private volatile File cacheFile;
+  private volatile long batchDelayMs = BATCH_DELAY_DEFAULT;
+
+  /**
+   * Create an instance with the default configuration.
+   * <p>
+   * Calling {@link #setConf(Configuration)} will trigger a
+   * re-evaluation of the configuration settings and so be used to
+   * set up the mapping script and load the persisted mappings.
+   */
+  public AsyncScriptBasedMapping() {
+    this(new ScriptBasedMapping.RawScriptBasedMapping());
+  }
+
+  /**
+   * Create an instance from the given raw mapping
+   * @param rawMap uncached mapping which may block, e.g. on a script
+   */
+  public AsyncScriptBasedMapping(DNSToSwitchMapping rawMap) {
+    this.rawMapping = rawMap;
+    this.resolver = HadoopExecutors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("AsyncScriptBasedMapping resolver")
+            .build());
+  }
+
+  /**
+   * Create an instance from the given configuration
+   * @param conf configuration
+   */
+  public AsyncScriptBasedMapping(Configuration conf) {
+    this();
+    setConf(conf);
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    super.setConf(conf);
+    // called by the superclass constructor before the fields are set
+    if (rawMapping == null) {
+      return;
+    }
+    if (rawMapping instanceof AbstractDNSToSwitchMapping) {
+      ((AbstractDNSToSwitchMapping) rawMapping).setConf(conf);
+    }
+    if (conf == null) {
+      return;
+    }
+    batchDelayMs = conf.getLong(BATCH_DELAY_KEY, BATCH_DELAY_DEFAULT);
+    String fileName = conf.getTrimmed(CACHE_FILE_KEY);
+    cacheFile = fileName == null || fileName.isEmpty()
+        ? null : new File(fileName);
+    if (cacheFile != null) {
+      loadCache(cacheFile);
+    }
+  }
+
+  @Override
+  public List<String> resolve(List<String> names) {
+    // normalize all input names to be in the form of IP addresses
+    names = NetUtils.normalizeHostNames(names);
+    List<String> result = new ArrayList<>(names.size());
+    if (names.isEmpty()) {
+      return result;
+    }
+    if (rawMapping.isSingleSwitch()) {
+      // nothing to fork, resolving is cheap
+      return rawMapping.resolve(names);
+    }
+    boolean queued = false;
+    for (String name : names) {
+      String location = cache.get(name);
+      if (location == null) {
+        location = NetworkTopology.DEFAULT_RACK;
+        queued |= pending.add(name);
+      }
+      result.add(location);
+    }
+    if (queued && scheduled.compareAndSet(false, true)) {
+      resolver.schedule(this::resolvePending, batchDelayMs,
+          TimeUnit.MILLISECONDS);
+    }
+    return result;
+  }
+
+  /**
+   * Add a listener called from the resolver thread with the hosts resolved
+   * by one batch and their locations.
+   * @param listener the listener
+   */
+  public void addResolutionListener(Consumer<Map<String, String>> listener) {
+    listeners.add(listener);
+  }
+
+  /** Resolve all queued hosts with the raw mapping. */
+  private void resolvePending() {
+    // hosts queued from now on need another run
+    scheduled.set(false);
+    List<String> names = new ArrayList<>(pending);
+    if (names.isEmpty()) {
+      return;
+    }
+    // hosts resolved again while the script runs are queued for another
+    // run, so that they are retried if this one fails
+    pending.removeAll(names);
+    List<String> locations;
+    try {
+      locations = rawMapping.resolve(names);
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to resolve {} hosts", names.size(), e);
+      locations = null;
+    }
+    if (locations == null || locations.size() != names.size()) {
+      // already logged by the raw mapping; try again on the next resolve
+      LOG.warn("Could not resolve {} hosts, keeping them in {}",
+          names.size(), NetworkTopology.DEFAULT_RACK);
+      return;
+    }
+    Map<String, String> resolved = new HashMap<>(names.size() * 2);
+    for (int i = 0; i < names.size(); i++) {
+      resolved.put(names.get(i), locations.get(i));
+    }
+    cache.putAll(resolved);
+    LOG.debug("Resolved {} hosts", resolved.size());
+    saveCache();
+    for (Consumer<Map<String, String>> listener : listeners) {
+      try {
+        listener.accept(resolved);
+      } catch (RuntimeException e) {
+        LOG.warn("Resolution listener {} failed", listener, e);
+      }
+    }
+  }
+
+  private void loadCache(File file) {
+    if (!file.exists()) {
+      return;
+    }
+    int loaded = 0;
+    try (BufferedReader reader =
+        Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.charAt(0) == '#') {
+          continue;
+        }
+        String[] columns = line.split("\\s+");
+        if (columns.length == 2) {
+          cache.put(columns[0], columns[1]);
+          loaded++;
+        } else {
+          LOG.warn("Line does not have two columns. Ignoring. {}", line);
+        }
+      }
+      LOG.info("Loaded {} cached mappings from {}", loaded, file);
+    } catch (IOException e) {
+      LOG.warn("Failed to load cached mappings from {}", file, e);
+    }
+  }
+
+  /** Write the cache to a temporary file and move it over the old one. */
+  private synchronized void saveCache() {
+    File file = cacheFile;
+    if (file == null) {
+      return;
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      try (BufferedWriter writer =
+          Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+        for (Map.Entry<String, String> entry : cache.entrySet()) {
+          writer.write(entry.getKey());
+          writer.write(' ');
+          writer.write(entry.getValue());
+          writer.newLine();
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Failed to save cached mappings to {}", file, e);
+    }
+  }
+
+  @Override
+  public boolean isSingleSwitch() {
+    return rawMapping.isSingleSwitch();
+  }
+
+  @Override
+  public Map<String, String> getSwitchMap() {
+    return new HashMap<>(cache);
+  }
+
+  /** @return the number of hosts waiting for the next script run. */
+  @VisibleForTesting
+  int getPendingCount() {
+    return pending.size();
+  }
+
+  @Override
+  public String toString() {
+    return "async script-based mapping with " + rawMapping;
+  }
+
+  @Override
+  public void reloadCachedMappings() {
+    cache.clear();
+    saveCache();
+  }
+
+  @Override
+  public void reloadCachedMappings(List<String> names) {
+    for (String name : names) {
+      cache.remove(name);
+    }
+    saveCache();
+  }
+}
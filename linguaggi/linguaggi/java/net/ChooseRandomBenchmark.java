@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Mini benchmark of choosing replica targets with exclusions, the access
+ * pattern of block placement: repeated calls of
+ * {@link NetworkTopology#chooseRandom(String, Collection)}, each adding its
+ * result to the excluded nodes, versus one call of the batch
+ * {@link NetworkTopology#chooseRandom(int, String, Collection,
+ * java.util.function.ToDoubleFunction)}, unweighted and weighted. Each is
+ * run with the whole cluster, a single rack and all but one rack as scope.
+ *
+ * Usage: ChooseRandomBenchmark [leaves] [nodes per rack] [excluded percent]
+ *        [nodes to choose] [seconds]
+ */
+public class ChooseRandomBenchmark {
+
+  private interface Chooser {
+    List<Node> choose(String scope, Set<Node> excluded);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int leaves = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int perRack = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+    int excludedPercent = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+    final int numOfNodes = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+    int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+    final NetworkTopology cluster = new NetworkTopology();
+    Random random = new Random(0);
+    Set<Node> excluded = new HashSet<>();
+    final double[] load = new double[leaves];
+    for (int i = 0; i < leaves; i++) {
+      Node node = new NodeBase("/r" + (i / perRack) + "/h" + i);
+      cluster.add(node);
+      load[i] = random.nextDouble();
+      if (random.nextInt(100) < excludedPercent) {
+        excluded.add(node);
+      }
+    }
+
+    Chooser single = (scope, excludedNodes) -> {
+      Set<Node> exclude = new HashSet<>(excludedNodes);
+      List<Node> chosen = new ArrayList<>(numOfNodes);
+      for (int i = 0; i < numOfNodes; i++) {
+        Node node = cluster.chooseRandom(scope, exclude);
+        if (node == null) {
+          break;
+        }
+        chosen.add(node);
+        exclude.add(node);
+      }
+      return chosen;
+    };
+    Chooser batch = (scope, excludedNodes) ->
+        cluster.chooseRandom(numOfNodes, scope, excludedNodes, null);
+    Chooser weighted = (scope, excludedNodes) ->
+        cluster.chooseRandom(numOfNodes, scope, excludedNodes,
+            node -> 1 - load[Integer.parseInt(node.getName().substring(1))]);
+
+    System.out.printf("%d leaves, %d per rack, %d excluded, choosing %d%n",
+        leaves, perRack, excluded.size(), numOfNodes);
+    System.out.printf("%-8s %-10s %15s%n", "scope", "chooser", "choices/s");
+    for (String scope : new String[] {"", "/r0", "~/r0"}) {
+      String name = scope.isEmpty() ? "/" : scope;
+      report(name, "single", run(single, scope, excluded, seconds));
+      report(name, "batch", run(batch, scope, excluded, seconds));
+      report(name, "weighted", run(weighted, scope, excluded, seconds));
+    }
+  }
+
+  private static void report(String scope, String chooser, double rate) {
+    System.out.printf("%-8s %-10s %15.0f%n", scope, chooser, rate);
+  }
+
+  private static double run(Chooser chooser, String scope, Set<Node> excluded,
+      int seconds) {
+    // warm up before measuring
+    long end = System.nanoTime() + 1_000_000_000L;
+    while (System.nanoTime() < end) {
+      chooser.choose(scope, excluded);
+    }
+    long count = 0;
+    long start = System.nanoTime();
+    end = start + seconds * 1_000_000_000L;
+    long now;
+    do {
+      for (int i = 0; i < 16; i++) {
+        chooser.choose(scope, excluded);
+      }
+      count += 16;
+      now = System.nanoTime();
+    } while (now < end);
+    return count * 1e9 / (now - start);
+  }
+}
@@ -28,11 +28,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
 
 /** The class represents a cluster of computer with a tree hierarchical
  * network topology.
@@ -118,6 +120,58 @@ public class NetworkTopology {
   /** the lock used to manage access */
   protected ReadWriteLock netlock = new ReentrantReadWriteLock(true);
 
+  /**
+   * Immutable location records of the leaves in the tree, so that
+   * {@link #getDistance(Node, Node)} and {@link #isOnSameRack(Node, Node)}
+   * can be answered without taking {@link #netlock} or walking the parent
+   * chains. Records are replaced, never mutated, under the write lock.
+   */
+  private final Map<Node, LeafLocation> leafLocations =
+      new ConcurrentHashMap<>();
+  /** Interned ids of inner node paths, only accessed under the write lock. */
+  private final HashMap<String, Integer> locationIds = new HashMap<>();
+
+  /**
+   * The path from the root to a leaf, with every inner node on it replaced
+   * by the interned id of its path. Two leaves share an ancestor at a level
+   * iff their ids at that level are equal.
+   */
+  static final class LeafLocation {
+    private final Node node;
+    private final Node parent;
+    /** ids of the ancestors, indexed by level; the root is at level 0. */
+    private final int[] ancestors;
+
+    private LeafLocation(Node node, int[] ancestors) {
+      this.node = node;
+      this.parent = node.getParent();
+      this.ancestors = ancestors;
+    }
+
+    /**
+     * @param levelsUp 1 for the parent, 2 for the grandparent, etc.
+     * @return the interned id of the ancestor <i>levelsUp</i> levels up,
+     *         or -1 if the leaf is not that deep.
+     */
+    int getAncestorId(int levelsUp) {
+      int level = ancestors.length - levelsUp;
+      return level >= 0 ? ancestors[level] : -1;
+    }
+
+    int getDistance(LeafLocation other) {
+      int[] a = ancestors;
+      int[] b = other.ancestors;
+      // ids are interned on the full path, so the deepest common level is
+      // found by scanning up from the shallower leaf's parent; in the common
+      // case of two leaves on the same rack this is a single comparison.
+      int level = Math.min(a.length, b.length) - 1;
+      while (level > 0 && a[level] != b[level]) {
+        level--;
+      }
+      return a.length + b.length - 2 * level;
+    }
+  }
+
   // keeping the constructor because other components like MR still uses this.
   public NetworkTopology() {
     this.factory = InnerNodeImpl.FACTORY;
@@ -161,6 +215,7 @@ public class NetworkTopology {
         if (depthOfAllLeaves == -1) {
           depthOfAllLeaves = node.getLevel();
         }
+        publishLeafLocation(node);
       }
       LOG.debug("NetworkTopology became:\n{}", this);
     } finally {
@@ -168,6 +223,50 @@ public class NetworkTopology {
     }
   }
 
+  /**
+   * Record the location of a leaf that has just been added to the tree.
+   * Should be called with {@link #netlock}'s write lock held.
+   * @param node a leaf in the tree
+   */
+  protected void publishLeafLocation(Node node) {
+    int[] ancestors = new int[node.getLevel()];
+    Node ancestor = node.getParent();
+    for (int level = ancestors.length - 1; level >= 0; level--) {
+      if (ancestor == null) {
+        // not attached to the tree; readers fall back to the parent chain
+        leafLocations.remove(node);
+        return;
+      }
+      ancestors[level] = locationIds.computeIfAbsent(
+          NodeBase.getPath(ancestor), k -> locationIds.size());
+      ancestor = ancestor.getParent();
+    }
+    leafLocations.put(node, new LeafLocation(node, ancestors));
+  }
+
+  /**
+   * Forget the location of a leaf that has just been removed from the tree.
+   * Should be called with {@link #netlock}'s write lock held.
+   * @param node a leaf removed from the tree
+   */
+  protected void unpublishLeafLocation(Node node) {
+    leafLocations.remove(node);
+  }
+
+  /**
+   * @param node a node
+   * @return the published location of <i>node</i>, or null if it is not a
+   *         leaf of this tree or has moved since its location was published.
+   */
+  LeafLocation getLeafLocation(Node node) {
+    LeafLocation location = leafLocations.get(node);
+    if (location == null || location.node != node
+        || location.parent != node.getParent()) {
+      return null;
+    }
+    return location;
+  }
+
   protected void incrementRacks() {
     numOfRacks++;
     if (!clusterEverBeenMultiRack && numOfRacks > 1) {
@@ -228,6 +327,7 @@ public class NetworkTopology {
     netlock.writeLock().lock();
     try {
       if (clusterMap.remove(node)) {
+        unpublishLeafLocation(node);
         InnerNode rack = (InnerNode)getNode(node.getNetworkLocation());
         if (rack == null) {
           numOfRacks--;
@@ -330,6 +430,13 @@ public class NetworkTopology {
       LOG.warn("One of the nodes is a null pointer");
       return Integer.MAX_VALUE;
     }
+    LeafLocation location1 = getLeafLocation(node1);
+    if (location1 != null) {
+      LeafLocation location2 = getLeafLocation(node2);
+      if (location2 != null) {
+        return location1.getDistance(location2);
+      }
+    }
     Node n1=node1, n2=node2;
     int dis = 0;
     netlock.readLock().lock();
@@ -444,6 +551,11 @@ public class NetworkTopology {
    * @see #isOnSameRack(Node, Node)
    */
   protected boolean isSameParents(Node node1, Node node2) {
+    LeafLocation location1 = getLeafLocation(node1);
+    LeafLocation location2 = getLeafLocation(node2);
+    if (location1 != null && location2 != null) {
+      return location1.getAncestorId(1) == location2.getAncestorId(1);
+    }
     return node1.getParent()==node2.getParent();
   }
 
@@ -636,6 +748,203 @@ public class NetworkTopology {
     return ret;
   }
 
+  /**
+   * Randomly choose up to <i>numOfNodes</i> distinct nodes from
+   * <i>scope</i> in a single pass over the tree.
+   *
+   * If scope starts with ~, choose from all nodes except for the ones in
+   * <i>scope</i>; otherwise, choose from <i>scope</i>. Nodes in
+   * excludedNodes, or under an inner node in excludedNodes, are never chosen.
+   *
+   * Unlike repeated calls to {@link #chooseRandom(String, Collection)}, the
+   * exclusions are subtracted from the leaf counts of their ancestors once,
+   * so every pick descends straight to an available leaf instead of
+   * scanning past excluded ones.
+   *
+   * @param numOfNodes number of nodes to choose
+   * @param scope range of nodes from which the nodes will be chosen
+   * @param excludedNodes nodes to be excluded from; can be null
+   * @param weightFn if not null, the relative probability of choosing each
+   *                 leaf, e.g. derived from its remaining storage or load.
+   *                 Leaves with a weight of zero or less are never chosen.
+   * @return the chosen nodes, in the order they were chosen; fewer than
+   *         <i>numOfNodes</i> if not enough nodes are available
+   */
+  public List<Node> chooseRandom(final int numOfNodes, final String scope,
+      final Collection<Node> excludedNodes,
+      final ToDoubleFunction<Node> weightFn) {
+    netlock.readLock().lock();
+    try {
+      String scopePath = scope;
+      String excludedScope = null;
+      if (scope.startsWith("~")) {
+        scopePath = NodeBase.ROOT;
+        excludedScope = scope.substring(1);
+      }
+      Node scopeNode = getNode(scopePath);
+      List<Node> chosen = new ArrayList<>(Math.max(numOfNodes, 0));
+      if (scopeNode == null || numOfNodes <= 0) {
+        return chosen;
+      }
+      BatchChooser chooser = new BatchChooser(scopeNode, weightFn);
+      if (excludedScope != null) {
+        chooser.exclude(getNode(excludedScope));
+      }
+      if (excludedNodes != null) {
+        for (Node node : excludedNodes) {
+          if (!chooser.exclude(node)) {
+            // not the instance in the tree, look that up by its path
+            chooser.exclude(getNode(NodeBase.getPath(node)));
+          }
+        }
+      }
+      chooser.choose(numOfNodes, chosen);
+      LOG.debug("chooseRandom({}, {}) returning {}", numOfNodes, scope,
+          chosen);
+      return chosen;
+    } finally {
+      netlock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Sampling without replacement over the subtree of a scope node. Tracks
+   * for every node the weight of its leaves and the part of that weight
+   * which was excluded or already chosen. Should be used with
+   * {@link #netlock}'s readlock held.
+   */
+  private final class BatchChooser {
+    private final Node scopeNode;
+    private final ToDoubleFunction<Node> weightFn;
+    /**
+     * Weight of leaves and total weight of inner nodes, only used if
+     * weightFn is set. Computed once per batch, so that the weight of an
+     * inner node always is the sum of the weights its picks see.
+     */
+    private final Map<Node, Double> weights = new IdentityHashMap<>();
+    /** Weight excluded or chosen under a node. */
+    private final Map<Node, double[]> removed = new IdentityHashMap<>();
+    /** Nodes removed with their whole subtree. */
+    private final Set<Node> exhausted =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    BatchChooser(Node scopeNode, ToDoubleFunction<Node> weightFn) {
+      this.scopeNode = scopeNode;
+      this.weightFn = weightFn;
+    }
+
+    private double getWeight(Node node) {
+      if (weightFn == null) {
+        return node instanceof InnerNode
+            ? ((InnerNode) node).getNumOfLeaves() : 1;
+      }
+      Double weight = weights.get(node);
+      if (weight == null) {
+        if (node instanceof InnerNode) {
+          double sum = 0;
+          for (Node child : ((InnerNode) node).getChildren()) {
+            sum += getWeight(child);
+          }
+          weight = sum;
+        } else {
+          double w = weightFn.applyAsDouble(node);
+          // also maps NaN to 0
+          weight = w > 0 ? w : 0;
+        }
+        weights.put(node, weight);
+      }
+      return weight;
+    }
+
+    private double getAvailable(Node node) {
+      if (exhausted.contains(node)) {
+        return 0;
+      }
+      double[] r = removed.get(node);
+      double available = getWeight(node) - (r == null ? 0 : r[0]);
+      return available > 0 ? available : 0;
+    }
+
+    /**
+     * Remove a node and its subtree from the candidates, if it lies within
+     * the scope and was not removed before.
+     * @return false if the node is not attached to the tree
+     */
+    boolean exclude(Node node) {
+      if (node == null) {
+        return true;
+      }
+      // check that node is in scope and no ancestor is removed already
+      Node n = node;
+      Node last = null;
+      while (n != scopeNode) {
+        if (n == null) {
+          return last == clusterMap;
+        }
+        if (exhausted.contains(n)) {
+          return true;
+        }
+        last = n;
+        n = n.getParent();
+      }
+      double delta = getAvailable(node);
+      exhausted.add(node);
+      if (node != scopeNode) {
+        for (n = node.getParent(); n != scopeNode; n = n.getParent()) {
+          removed.computeIfAbsent(n, k -> new double[1])[0] += delta;
+        }
+      }
+      removed.computeIfAbsent(scopeNode, k -> new double[1])[0] += delta;
+      return true;
+    }
+
+    void choose(int numOfNodes, List<Node> chosen) {
+      if (!(scopeNode instanceof InnerNode)) {
+        if (getAvailable(scopeNode) > 0 && !exhausted.contains(scopeNode)) {
+          chosen.add(scopeNode);
+        }
+        return;
+      }
+      Random r = getRandom();
+      while (chosen.size() < numOfNodes && getAvailable(scopeNode) > 0) {
+        Node node = scopeNode;
+        while (node instanceof InnerNode) {
+          Node next = pickChild((InnerNode) node, r);
+          if (next == null) {
+            // only rounding errors of the weights were left; forget them
+            exclude(node);
+            break;
+          }
+          node = next;
+        }
+        if (!(node instanceof InnerNode)) {
+          chosen.add(node);
+          exclude(node);
+        } else if (node == scopeNode) {
+          break;
+        }
+      }
+    }
+
+    /** Choose a child with probability proportional to its availability. */
+    private Node pickChild(InnerNode parent, Random r) {
+      double target = r.nextDouble() * getAvailable(parent);
+      Node last = null;
+      for (Node child : parent.getChildren()) {
+        double available = getAvailable(child);
+        if (available <= 0) {
+          continue;
+        }
+        if (target < available) {
+          return child;
+        }
+        target -= available;
+        last = child;
+      }
+      return last;
+    }
+  }
+
   /** return leaves in <i>scope</i>
    * @param scope a path string
    * @return leaves nodes under specific scope
@@ -771,6 +1080,13 @@ public class NetworkTopology {
       if(reader.equals(node)) {
         return 0;
       }
+      LeafLocation readerLocation = getLeafLocation(reader);
+      if (readerLocation != null) {
+        LeafLocation nodeLocation = getLeafLocation(node);
+        if (nodeLocation != null) {
+          return readerLocation.getDistance(nodeLocation);
+        }
+      }
       int maxReaderLevel = reader.getLevel();
       int maxNodeLevel = node.getLevel();
       int currentLevelToCompare = maxReaderLevel > maxNodeLevel ?
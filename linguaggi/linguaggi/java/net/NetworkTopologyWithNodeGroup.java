@@ -123,7 +123,13 @@ public class NetworkTopologyWithNodeGroup extends NetworkTopology {
         node1.getParent() == null || node2.getParent() == null) {
       return false;
     }
-      
+
+    LeafLocation location1 = getLeafLocation(node1);
+    LeafLocation location2 = getLeafLocation(node2);
+    if (location1 != null && location2 != null) {
+      // the parent of a leaf is its node group, the grandparent its rack
+      return location1.getAncestorId(2) == location2.getAncestorId(2);
+    }
     netlock.readLock().lock();
     try {
       return isSameParents(node1.getParent(), node2.getParent());
@@ -151,6 +157,9 @@ public class NetworkTopologyWithNodeGroup extends NetworkTopology {
     if (node1 == null || node2 == null) {
       return false;
     }
+    if (getLeafLocation(node1) != null && getLeafLocation(node2) != null) {
+      return isSameParents(node1, node2);
+    }
     netlock.readLock().lock();
     try {
       return isSameParents(node1, node2);
@@ -212,6 +221,7 @@ public class NetworkTopologyWithNodeGroup extends NetworkTopology {
           // We only track rack number here
           incrementRacks();
         }
+        publishLeafLocation(node);
       }
       if(LOG.isDebugEnabled()) {
         LOG.debug("NetworkTopology became:\n" + this.toString());
@@ -236,6 +246,7 @@ public class NetworkTopologyWithNodeGroup extends NetworkTopology {
     netlock.writeLock().lock();
     try {
       if (clusterMap.remove(node)) {
+        unpublishLeafLocation(node);
         Node nodeGroup = getNode(node.getNetworkLocation());
         if (nodeGroup == null) {
           nodeGroup = factory.newInnerNode(node.getNetworkLocation());
@@ -42,6 +42,9 @@ import org.slf4j.LoggerFactory;
  * <p>
  * This DNS mapper's {@link #isSingleSwitch()} predicate returns
  * true if and only if a script is defined.
+ * <p>
+ * See {@link AsyncScriptBasedMapping} for a mapping which runs the script
+ * in the background, batching hosts, and persists its cache.
  */
 @InterfaceAudience.Public
 @InterfaceStability.Evolving
@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestAsyncScriptBasedMapping {
+
+  /** Counts the script runs instead of forking. */
+  private static class CountingRawMapping
+      extends ScriptBasedMapping.RawScriptBasedMapping {
+    private final AtomicInteger runs = new AtomicInteger();
+    private volatile boolean fail;
+
+    @Override
+    protected String runResolveCommand(List<String> args,
+        String commandScriptName) {
+      runs.incrementAndGet();
+      if (fail) {
+        return null;
+      }
+      StringBuilder output = new StringBuilder();
+      for (String host : args) {
+        output.append(rack(host)).append('\n');
+      }
+      return output.toString();
+    }
+  }
+
+  private static String rack(String host) {
+    return "/rack" + host.substring(host.lastIndexOf('.') + 1);
+  }
+
+  private static String host(int i) {
+    return "10.0." + (i / 250) + "." + (i % 250);
+  }
+
+  private Configuration conf;
+  private File cacheFile;
+
+  @BeforeEach
+  public void setUp() {
+    File dir = GenericTestUtils.getTestDir("TestAsyncScriptBasedMapping");
+    dir.mkdirs();
+    cacheFile = new File(dir, "topology.cache");
+    cacheFile.delete();
+    conf = new Configuration();
+    conf.set(ScriptBasedMapping.SCRIPT_FILENAME_KEY, "any-script");
+    conf.set(AsyncScriptBasedMapping.CACHE_FILE_KEY, cacheFile.getPath());
+    conf.setLong(AsyncScriptBasedMapping.BATCH_DELAY_KEY, 50);
+  }
+
+  private static Map<String, String> await(
+      LinkedBlockingQueue<Map<String, String>> resolved) throws Exception {
+    Map<String, String> batch = resolved.poll(10, TimeUnit.SECONDS);
+    assertNotNull(batch, "timed out waiting for resolution");
+    return batch;
+  }
+
+  @Test
+  public void testBatchedAndPersisted() throws Exception {
+    CountingRawMapping raw = new CountingRawMapping();
+    AsyncScriptBasedMapping mapping = new AsyncScriptBasedMapping(raw);
+    mapping.setConf(conf);
+    LinkedBlockingQueue<Map<String, String>> resolved =
+        new LinkedBlockingQueue<>();
+    mapping.addResolutionListener(resolved::add);
+
+    // hosts registering one at a time get the default rack at once
+    int hosts = 300;
+    for (int i = 0; i < hosts; i++) {
+      assertEquals(Collections.singletonList(NetworkTopology.DEFAULT_RACK),
+          mapping.resolve(Collections.singletonList(host(i))));
+    }
+    int count = 0;
+    while (count < hosts) {
+      count += await(resolved).size();
+    }
+    assertEquals(hosts, count);
+    // a single script argument list holds up to 100 hosts
+    assertTrue(raw.runs.get() <= 4, "script ran " + raw.runs.get() + " times");
+    assertEquals(rack(host(7)),
+        mapping.resolve(Collections.singletonList(host(7))).get(0));
+
+    // a new instance loads the mappings without running the script
+    CountingRawMapping raw2 = new CountingRawMapping();
+    AsyncScriptBasedMapping restarted = new AsyncScriptBasedMapping(raw2);
+    restarted.setConf(conf);
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < hosts; i++) {
+      names.add(host(i));
+    }
+    List<String> racks = restarted.resolve(names);
+    for (int i = 0; i < hosts; i++) {
+      assertEquals(rack(host(i)), racks.get(i));
+    }
+    assertEquals(0, raw2.runs.get());
+    assertEquals(hosts, restarted.getSwitchMap().size());
+
+    // reloading forgets the persisted mappings too
+    restarted.reloadCachedMappings();
+    AsyncScriptBasedMapping reloaded =
+        new AsyncScriptBasedMapping(new CountingRawMapping());
+    reloaded.setConf(conf);
+    assertTrue(reloaded.getSwitchMap().isEmpty());
+  }
+
+  @Test
+  public void testFailedResolutionRetried() throws Exception {
+    CountingRawMapping raw = new CountingRawMapping();
+    raw.fail = true;
+    AsyncScriptBasedMapping mapping = new AsyncScriptBasedMapping(raw);
+    mapping.setConf(conf);
+    LinkedBlockingQueue<Map<String, String>> resolved =
+        new LinkedBlockingQueue<>();
+    mapping.addResolutionListener(resolved::add);
+
+    List<String> names = Collections.singletonList(host(1));
+    assertEquals(NetworkTopology.DEFAULT_RACK, mapping.resolve(names).get(0));
+    // the host is no longer pending once the failed run has taken it
+    GenericTestUtils.waitFor(
+        () -> mapping.getPendingCount() == 0 && raw.runs.get() == 1, 10,
+        10000);
+    assertTrue(resolved.isEmpty());
+
+    raw.fail = false;
+    assertEquals(NetworkTopology.DEFAULT_RACK, mapping.resolve(names).get(0));
+    assertEquals(rack(host(1)), await(resolved).get(host(1)));
+    assertEquals(rack(host(1)), mapping.resolve(names).get(0));
+  }
+
+  @Test
+  public void testNoScript() {
+    AsyncScriptBasedMapping mapping = new AsyncScriptBasedMapping(
+        new CountingRawMapping());
+    mapping.setConf(new Configuration());
+    assertTrue(mapping.isSingleSwitch());
+    assertEquals(NetworkTopology.DEFAULT_RACK,
+        mapping.resolve(Collections.singletonList(host(1))).get(0));
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test {@link NetworkTopology#chooseRandom(int, String,
+ * java.util.Collection, java.util.function.ToDoubleFunction)}.
+ */
+public class TestNetworkTopologyBatchChooseRandom {
+  private static final int RACKS = 10;
+  private static final int NODES_PER_RACK = 10;
+
+  private NetworkTopology cluster;
+  private List<Node> leaves;
+
+  @BeforeEach
+  public void setUp() {
+    cluster = new NetworkTopology();
+    cluster.setRandomSeed(0);
+    leaves = new ArrayList<>();
+    for (int r = 0; r < RACKS; r++) {
+      for (int h = 0; h < NODES_PER_RACK; h++) {
+        Node node = new NodeBase("/d" + (r % 2) + "/r" + r + "/h" + h);
+        cluster.add(node);
+        leaves.add(node);
+      }
+    }
+  }
+
+  private void assertDistinctAndAllowed(List<Node> chosen, String scope,
+      Set<Node> excluded) {
+    assertEquals(chosen.size(), new HashSet<>(chosen).size(),
+        "duplicates in " + chosen);
+    for (Node node : chosen) {
+      assertFalse(excluded.contains(node), node + " is excluded");
+      assertTrue(NetworkTopology.isNodeInScope(node, scope),
+          node + " not in " + scope);
+    }
+  }
+
+  @Test
+  public void testExclusions() {
+    Set<Node> excluded = new HashSet<>();
+    for (int i = 0; i < leaves.size(); i += 3) {
+      excluded.add(leaves.get(i));
+    }
+    List<Node> chosen = cluster.chooseRandom(5, "", excluded, null);
+    assertEquals(5, chosen.size());
+    assertDistinctAndAllowed(chosen, "", excluded);
+
+    // asking for more than is available returns every available node
+    chosen = cluster.chooseRandom(1000, "", excluded, null);
+    assertEquals(leaves.size() - excluded.size(), chosen.size());
+    assertDistinctAndAllowed(chosen, "", excluded);
+
+    // all but one node of a rack excluded
+    excluded.clear();
+    for (int h = 1; h < NODES_PER_RACK; h++) {
+      excluded.add(leaves.get(h));
+    }
+    chosen = cluster.chooseRandom(3, "/d0/r0", excluded, null);
+    assertEquals(1, chosen.size());
+    assertEquals(leaves.get(0), chosen.get(0));
+  }
+
+  @Test
+  public void testScopes() {
+    List<Node> chosen = cluster.chooseRandom(1000, "~/d0", null, null);
+    assertEquals(leaves.size() / 2, chosen.size());
+    assertDistinctAndAllowed(chosen, "/d1", new HashSet<>());
+
+    // an excluded inner node removes its whole subtree
+    Set<Node> excluded = new HashSet<>();
+    excluded.add(new NodeBase("/d1/r1"));
+    excluded.add(leaves.get(NODES_PER_RACK * 3));
+    chosen = cluster.chooseRandom(1000, "/d1", excluded, null);
+    assertEquals(leaves.size() / 2 - NODES_PER_RACK - 1, chosen.size());
+    for (Node node : chosen) {
+      assertFalse(NetworkTopology.isNodeInScope(node, "/d1/r1"));
+      assertFalse(node.equals(leaves.get(NODES_PER_RACK * 3)));
+    }
+
+    // a leaf scope
+    chosen = cluster.chooseRandom(2, "/d0/r0/h0", null, null);
+    assertEquals(1, chosen.size());
+    assertTrue(cluster.chooseRandom(2, "/d0/r0/h0", chosen, null).isEmpty());
+    assertTrue(cluster.chooseRandom(2, "/nowhere", null, null).isEmpty());
+  }
+
+  @Test
+  public void testUniform() {
+    Set<Node> excluded = new HashSet<>();
+    for (int i = 0; i < leaves.size(); i += 2) {
+      excluded.add(leaves.get(i));
+    }
+    Map<Node, Integer> counts = new HashMap<>();
+    int rounds = 20000;
+    for (int i = 0; i < rounds; i++) {
+      for (Node node : cluster.chooseRandom(2, "", excluded, null)) {
+        counts.merge(node, 1, Integer::sum);
+      }
+    }
+    int available = leaves.size() - excluded.size();
+    assertEquals(available, counts.size());
+    double expected = 2.0 * rounds / available;
+    for (int count : counts.values()) {
+      assertEquals(expected, count, expected * 0.15);
+    }
+  }
+
+  @Test
+  public void testWeighted() {
+    // only rack 0 has weight, h1 three times as much as h0
+    Map<Node, Integer> counts = new HashMap<>();
+    int rounds = 20000;
+    for (int i = 0; i < rounds; i++) {
+      List<Node> chosen = cluster.chooseRandom(1, "", null,
+          node -> node == leaves.get(0) ? 1 : node == leaves.get(1) ? 3 : 0);
+      assertEquals(1, chosen.size());
+      counts.merge(chosen.get(0), 1, Integer::sum);
+    }
+    assertEquals(2, counts.size());
+    assertEquals(0.75, counts.get(leaves.get(1)) / (double) rounds, 0.02);
+
+    // zero weight leaves are never chosen
+    List<Node> chosen = cluster.chooseRandom(1000, "", null,
+        node -> node.getName().equals("h0") ? 0.5 : 0);
+    assertEquals(RACKS, chosen.size());
+    for (Node node : chosen) {
+      assertEquals("h0", node.getName());
+    }
+  }
+
+  @Test
+  public void testWeightsComputedOncePerBatch() {
+    // each leaf is weighed at most once per batch, even if weightFn is
+    // dynamic and would give a different answer the second time
+    Map<Node, Integer> calls = new HashMap<>();
+    List<Node> chosen = cluster.chooseRandom(leaves.size(), "", null,
+        node -> calls.merge(node, 1, Integer::sum) == 1 ? 1 : 0);
+    assertEquals(leaves.size(), chosen.size());
+    assertDistinctAndAllowed(chosen, "", new HashSet<>());
+    assertEquals(leaves.size(), calls.size());
+    for (int count : calls.values()) {
+      assertEquals(1, count);
+    }
+  }
+}
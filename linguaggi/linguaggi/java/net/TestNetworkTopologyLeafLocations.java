@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test that the lock-free distance and rack lookups of
+ * {@link NetworkTopology} agree with the tree.
+ */
+public class TestNetworkTopologyLeafLocations {
+
+  private static List<Node> addAll(NetworkTopology cluster, String... paths) {
+    List<Node> nodes = new ArrayList<>();
+    for (String path : paths) {
+      Node node = new NodeBase(path);
+      cluster.add(node);
+      nodes.add(node);
+    }
+    return nodes;
+  }
+
+  @Test
+  public void testDistance() {
+    NetworkTopology cluster = new NetworkTopology();
+    List<Node> nodes = addAll(cluster,
+        "/d1/r1/h1", "/d1/r1/h2", "/d1/r2/h3", "/d2/r3/h4", "/d2/r3/h5");
+    for (Node node : nodes) {
+      assertNotNull(cluster.getLeafLocation(node));
+    }
+    assertEquals(0, cluster.getDistance(nodes.get(0), nodes.get(0)));
+    assertEquals(2, cluster.getDistance(nodes.get(0), nodes.get(1)));
+    assertEquals(4, cluster.getDistance(nodes.get(0), nodes.get(2)));
+    assertEquals(6, cluster.getDistance(nodes.get(0), nodes.get(3)));
+    for (Node n1 : nodes) {
+      for (Node n2 : nodes) {
+        assertEquals(NetworkTopology.getDistanceByPath(n1, n2),
+            cluster.getDistance(n1, n2));
+        assertEquals(n1.getParent() == n2.getParent(),
+            cluster.isOnSameRack(n1, n2));
+      }
+    }
+
+    // a node which is not in the tree, nor one equal to a leaf
+    assertNull(cluster.getLeafLocation(new NodeBase("/d1/r1/h9")));
+    assertNull(cluster.getLeafLocation(new NodeBase("/d1/r1/h1")));
+  }
+
+  @Test
+  public void testRemoveAndMove() {
+    NetworkTopology cluster = new NetworkTopology();
+    List<Node> nodes = addAll(cluster, "/r1/h1", "/r1/h2", "/r2/h3");
+    Node h2 = nodes.get(1);
+    assertTrue(cluster.isOnSameRack(nodes.get(0), h2));
+
+    cluster.remove(h2);
+    assertNull(cluster.getLeafLocation(h2));
+    h2.setNetworkLocation("/r2");
+    cluster.add(h2);
+    assertFalse(cluster.isOnSameRack(nodes.get(0), h2));
+    assertTrue(cluster.isOnSameRack(nodes.get(2), h2));
+    assertEquals(2, cluster.getDistance(nodes.get(2), h2));
+    assertEquals(4, cluster.getDistance(nodes.get(0), h2));
+
+    // removing the last node of a rack and adding it back
+    cluster.remove(nodes.get(0));
+    cluster.add(nodes.get(0));
+    assertEquals(4, cluster.getDistance(nodes.get(0), h2));
+  }
+
+  @Test
+  public void testNodeGroup() {
+    NetworkTopology cluster = new NetworkTopologyWithNodeGroup();
+    List<Node> nodes = addAll(cluster,
+        "/d1/r1/s1/h1", "/d1/r1/s1/h2", "/d1/r1/s2/h3", "/d1/r2/s3/h4");
+    assertTrue(cluster.isOnSameNodeGroup(nodes.get(0), nodes.get(1)));
+    assertFalse(cluster.isOnSameNodeGroup(nodes.get(0), nodes.get(2)));
+    assertTrue(cluster.isOnSameRack(nodes.get(0), nodes.get(2)));
+    assertFalse(cluster.isOnSameRack(nodes.get(0), nodes.get(3)));
+    assertEquals(2, cluster.getDistance(nodes.get(0), nodes.get(1)));
+    assertEquals(4, cluster.getDistance(nodes.get(0), nodes.get(2)));
+    assertEquals(6, cluster.getDistance(nodes.get(0), nodes.get(3)));
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    final NetworkTopology cluster = new NetworkTopology();
+    final List<Node> stable = addAll(cluster, "/r1/h1", "/r1/h2", "/r2/h3");
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] readers = new Thread[4];
+    for (int t = 0; t < readers.length; t++) {
+      readers[t] = new Thread(() -> {
+        try {
+          for (int i = 0; i < 200000; i++) {
+            if (cluster.getDistance(stable.get(0), stable.get(1)) != 2
+                || cluster.getDistance(stable.get(0), stable.get(2)) != 4
+                || !cluster.isOnSameRack(stable.get(0), stable.get(1))) {
+              throw new AssertionError("wrong distance at " + i);
+            }
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      readers[t].start();
+    }
+    for (int i = 0; i < 2000; i++) {
+      Node node = new NodeBase("/r" + (i % 7) + "/x" + i);
+      cluster.add(node);
+      if (i % 2 == 0) {
+        cluster.remove(node);
+      }
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertEquals(3 + 1000, cluster.getNumOfLeaves());
+  }
+}
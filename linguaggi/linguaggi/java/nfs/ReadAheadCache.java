@@ -0,0 +1,448 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.nfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.thirdparty.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.util.concurrent.HadoopExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-ahead cache of file data for the NFS gateway, where many clients
+ * read files sequentially in small (e.g. 32KB) requests.
+ *
+ * Files are cached in aligned chunks of {@link #CHUNK_BYTES_KEY} bytes, kept
+ * in a least recently used order and bounded by {@link #CACHE_BYTES_KEY}.
+ * The accesses to each file are tracked: once a file has been read
+ * sequentially a few times, missing chunks are loaded with one large read
+ * and the following chunks are loaded in the background, the window growing
+ * up to {@link #MAX_READ_AHEAD_CHUNKS_KEY} chunks. Requests slightly out of
+ * order, as issued by clients reading ahead themselves, still count as
+ * sequential. Random reads are passed to the loader unless already cached,
+ * so that they do not evict the chunks of sequential readers.
+ *
+ * Writes to a file must {@link #invalidate(long)} its chunks.
+ */
+public class ReadAheadCache implements Closeable {
+  public static final Logger LOG =
+      LoggerFactory.getLogger(ReadAheadCache.class);
+
+  public static final String CACHE_BYTES_KEY = "nfs.read-ahead.cache.bytes";
+  public static final long CACHE_BYTES_DEFAULT = 256L << 20;
+  public static final String CHUNK_BYTES_KEY = "nfs.read-ahead.chunk.bytes";
+  public static final int CHUNK_BYTES_DEFAULT = 1 << 20;
+  public static final String MAX_READ_AHEAD_CHUNKS_KEY =
+      "nfs.read-ahead.max.chunks";
+  public static final int MAX_READ_AHEAD_CHUNKS_DEFAULT = 4;
+  public static final String THREADS_KEY = "nfs.read-ahead.threads";
+  public static final int THREADS_DEFAULT = 4;
+
+  /** The number of sequential reads after which a file is read ahead. */
+  static final int SEQUENTIAL_THRESHOLD = 2;
+  /** The maximum number of files whose accesses are tracked. */
+  static final int MAX_TRACKED_FILES = 4096;
+
+  /**
+   * Reads file data, e.g. from an input stream of the file system.
+   */
+  public interface Loader {
+    /**
+     * Read up to len bytes of a file at the given offset.
+     *
+     * @return the number of bytes read, which may only be less than len at
+     *         the end of the file, or -1 at the end of the file.
+     */
+    int read(long fileId, long offset, byte[] buf, int off, int len)
+        throws IOException;
+  }
+
+  private static final class ChunkKey {
+    private final long fileId;
+    private final long index;
+
+    ChunkKey(long fileId, long index) {
+      this.fileId = fileId;
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ChunkKey)) {
+        return false;
+      }
+      ChunkKey that = (ChunkKey) o;
+      return fileId == that.fileId && index == that.index;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(fileId) * 31 + Long.hashCode(index);
+    }
+  }
+
+  /** The accesses to a file. */
+  private static final class FileAccess {
+    private long nextOffset = -1;
+    private int sequentialReads;
+    private int window = 1;
+    /** The first chunk past the end of the file, once it is known. */
+    private long endChunk = Long.MAX_VALUE;
+  }
+
+  private final Loader loader;
+  private final long maxCachedBytes;
+  private final int chunkBytes;
+  private final int maxReadAheadChunks;
+  private final ExecutorService executor;
+
+  /** Guarded by this. Chunks which are loading are cached as well. */
+  private final LinkedHashMap<ChunkKey, CompletableFuture<byte[]>> chunks =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<Long, FileAccess> accesses =
+      new LinkedHashMap<Long, FileAccess>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, FileAccess> e) {
+          return size() > MAX_TRACKED_FILES;
+        }
+      };
+  private long cachedBytes;
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder bypassed = new LongAdder();
+  private final LongAdder chunksLoaded = new LongAdder();
+  private final LongAdder chunksReadAhead = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public ReadAheadCache(Configuration conf, Loader loader) {
+    this(loader, conf.getLong(CACHE_BYTES_KEY, CACHE_BYTES_DEFAULT),
+        conf.getInt(CHUNK_BYTES_KEY, CHUNK_BYTES_DEFAULT),
+        conf.getInt(MAX_READ_AHEAD_CHUNKS_KEY, MAX_READ_AHEAD_CHUNKS_DEFAULT),
+        conf.getInt(THREADS_KEY, THREADS_DEFAULT));
+  }
+
+  /**
+   * @param threads the number of threads loading chunks in the background,
+   *        or 0 to only load the chunks being read.
+   */
+  public ReadAheadCache(Loader loader, long maxCachedBytes, int chunkBytes,
+      int maxReadAheadChunks, int threads) {
+    this.loader = loader;
+    this.maxCachedBytes = maxCachedBytes;
+    this.chunkBytes = chunkBytes;
+    this.maxReadAheadChunks = maxReadAheadChunks;
+    this.executor = threads <= 0 ? null : HadoopExecutors.newFixedThreadPool(
+        threads, new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("NFS read-ahead #%d").build());
+  }
+
+  /**
+   * Read file data through the cache.
+   *
+   * @return the number of bytes read, or -1 at the end of the file.
+   */
+  public int read(long fileId, long offset, byte[] buf, int off, int len)
+      throws IOException {
+    requests.increment();
+    if (len == 0) {
+      return 0;
+    }
+    final long first = offset / chunkBytes;
+    final long last = (offset + len - 1) / chunkBytes;
+    final boolean sequential;
+    synchronized (this) {
+      FileAccess access = accesses.computeIfAbsent(fileId,
+          k -> new FileAccess());
+      // sequential unless it is more than a chunk away from the last read
+      if (access.nextOffset >= 0
+          && Math.abs(offset - access.nextOffset) <= chunkBytes) {
+        access.sequentialReads++;
+      } else {
+        access.sequentialReads = 0;
+        access.window = 1;
+      }
+      access.nextOffset = Math.max(access.nextOffset, offset + len);
+      sequential = access.sequentialReads >= SEQUENTIAL_THRESHOLD;
+    }
+    if (!sequential && !isCached(fileId, first, last)) {
+      // random reads are not cached
+      bypassed.increment();
+      return loader.read(fileId, offset, buf, off, len);
+    }
+
+    boolean hit = true;
+    int n = 0;
+    for (long index = first; index <= last; index++) {
+      CompletableFuture<byte[]> chunk = getChunk(fileId, index);
+      if (chunk == null) {
+        hit = false;
+        chunk = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = register(fileId, index, chunk);
+        if (existing == null) {
+          loadChunk(fileId, index, chunk);
+        } else {
+          chunk = existing;
+        }
+      }
+      final byte[] data = await(chunk);
+      final int inChunk = (int) (offset + n - index * chunkBytes);
+      if (inChunk >= data.length) {
+        break;
+      }
+      final int c = Math.min(len - n, data.length - inChunk);
+      System.arraycopy(data, inChunk, buf, off + n, c);
+      n += c;
+      if (data.length < chunkBytes) {
+        break;
+      }
+    }
+    if (hit) {
+      hits.increment();
+    }
+    if (sequential) {
+      readAhead(fileId, last + 1);
+    }
+    return n == 0 ? -1 : n;
+  }
+
+  /**
+   * Load the chunks following a sequential read, the window doubling with
+   * every read ahead.
+   */
+  private void readAhead(long fileId, long next) {
+    final List<Long> indices = new ArrayList<>();
+    final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+    synchronized (this) {
+      FileAccess access = accesses.get(fileId);
+      if (access == null) {
+        return;
+      }
+      final long end = Math.min(access.endChunk, next + access.window);
+      access.window = Math.min(maxReadAheadChunks, access.window * 2);
+      for (long index = next; index < end; index++) {
+        CompletableFuture<byte[]> chunk = new CompletableFuture<>();
+        if (register(fileId, index, chunk) == null) {
+          indices.add(index);
+          futures.add(chunk);
+        }
+      }
+    }
+    for (int i = 0; i < indices.size(); i++) {
+      final long index = indices.get(i);
+      final CompletableFuture<byte[]> chunk = futures.get(i);
+      chunksReadAhead.increment();
+      if (executor == null) {
+        loadChunk(fileId, index, chunk);
+      } else {
+        try {
+          executor.execute(() -> loadChunk(fileId, index, chunk));
+        } catch (RejectedExecutionException e) {
+          // closed
+          removeChunk(new ChunkKey(fileId, index), chunk);
+          chunk.completeExceptionally(e);
+        }
+      }
+    }
+  }
+
+  /** Load a chunk, which completes the given future. */
+  private void loadChunk(long fileId, long index,
+      CompletableFuture<byte[]> chunk) {
+    final byte[] data = new byte[chunkBytes];
+    int n = 0;
+    try {
+      while (n < chunkBytes) {
+        int r = loader.read(fileId, index * chunkBytes + n, data, n,
+            chunkBytes - n);
+        if (r < 0) {
+          break;
+        }
+        n += r;
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Failed to load chunk {} of file {}", index, fileId, e);
+      removeChunk(new ChunkKey(fileId, index), chunk);
+      chunk.completeExceptionally(e);
+      return;
+    }
+    chunksLoaded.increment();
+    if (n < chunkBytes) {
+      // do not read ahead past the end of the file
+      setEndChunk(fileId, index + 1);
+    }
+    chunk.complete(n == chunkBytes ? data : Arrays.copyOf(data, n));
+  }
+
+  private static byte[] await(CompletableFuture<byte[]> chunk)
+      throws IOException {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private synchronized boolean isCached(long fileId, long first, long last) {
+    for (long index = first; index <= last; index++) {
+      if (!chunks.containsKey(new ChunkKey(fileId, index))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private synchronized CompletableFuture<byte[]> getChunk(long fileId,
+      long index) {
+    return chunks.get(new ChunkKey(fileId, index));
+  }
+
+  /**
+   * Cache a chunk about to be loaded, evicting the least recently used
+   * chunks over the limit.
+   *
+   * @return the chunk already cached, if any, in which case the given one
+   *         is not cached.
+   */
+  private synchronized CompletableFuture<byte[]> register(long fileId,
+      long index, CompletableFuture<byte[]> chunk) {
+    CompletableFuture<byte[]> existing =
+        chunks.putIfAbsent(new ChunkKey(fileId, index), chunk);
+    if (existing != null) {
+      return existing;
+    }
+    cachedBytes += chunkBytes;
+    for (Iterator<CompletableFuture<byte[]>> i = chunks.values().iterator();
+        cachedBytes > maxCachedBytes && chunks.size() > 1;) {
+      i.next();
+      i.remove();
+      cachedBytes -= chunkBytes;
+      evictions.increment();
+    }
+    return null;
+  }
+
+  private synchronized void removeChunk(ChunkKey key,
+      CompletableFuture<byte[]> chunk) {
+    if (chunks.remove(key, chunk)) {
+      cachedBytes -= chunkBytes;
+    }
+  }
+
+  private synchronized void setEndChunk(long fileId, long endChunk) {
+    FileAccess access = accesses.get(fileId);
+    if (access != null) {
+      access.endChunk = Math.min(access.endChunk, endChunk);
+    }
+  }
+
+  /**
+   * Drop the cached data of a file, e.g. after it has been written.
+   */
+  public synchronized void invalidate(long fileId) {
+    for (Iterator<ChunkKey> i = chunks.keySet().iterator(); i.hasNext();) {
+      if (i.next().fileId == fileId) {
+        i.remove();
+        cachedBytes -= chunkBytes;
+      }
+    }
+    accesses.remove(fileId);
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    synchronized (this) {
+      chunks.clear();
+      accesses.clear();
+      cachedBytes = 0;
+    }
+  }
+
+  /** @return the number of read requests. */
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  /** @return the number of requests served by cached or loading chunks. */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /** @return the number of random requests passed to the loader. */
+  public long getBypassCount() {
+    return bypassed.sum();
+  }
+
+  /** @return the number of chunks loaded. */
+  public long getLoadCount() {
+    return chunksLoaded.sum();
+  }
+
+  /** @return the number of chunks loaded ahead of the reads. */
+  public long getReadAheadCount() {
+    return chunksReadAhead.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  /** @return the fraction of requests served by cached or loading chunks. */
+  public double getHitRate() {
+    long n = requests.sum();
+    return n == 0 ? 0 : (double) hits.sum() / n;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[requests=" + requests.sum()
+        + ", hits=" + hits.sum() + ", bypassed=" + bypassed.sum()
+        + ", loaded=" + chunksLoaded.sum()
+        + ", readAhead=" + chunksReadAhead.sum()
+        + ", evictions=" + evictions.sum()
+        + ", cachedBytes=" + getCachedBytes() + "]";
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.nfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestReadAheadCache {
+  private static final int CHUNK = 1024;
+  private static final byte[] FILE = new byte[10 * CHUNK + 100];
+
+  static {
+    for (int i = 0; i < FILE.length; i++) {
+      FILE[i] = (byte) (i * 7);
+    }
+  }
+
+  /** Reads FILE, counting the reads. */
+  private static class CountingLoader implements ReadAheadCache.Loader {
+    private final AtomicInteger reads = new AtomicInteger();
+
+    @Override
+    public int read(long fileId, long offset, byte[] buf, int off, int len)
+        throws IOException {
+      reads.incrementAndGet();
+      if (offset >= FILE.length) {
+        return -1;
+      }
+      int n = (int) Math.min(len, FILE.length - offset);
+      System.arraycopy(FILE, (int) offset, buf, off, n);
+      return n;
+    }
+  }
+
+  private static byte[] readAll(ReadAheadCache cache, long fileId,
+      int requestSize) throws IOException {
+    byte[] out = new byte[FILE.length];
+    int pos = 0;
+    byte[] buf = new byte[requestSize];
+    for (;;) {
+      int n = cache.read(fileId, pos, buf, 0, requestSize);
+      if (n < 0) {
+        break;
+      }
+      System.arraycopy(buf, 0, out, pos, n);
+      pos += n;
+    }
+    assertEquals(FILE.length, pos);
+    return out;
+  }
+
+  @Test
+  public void testSequentialReads() throws Exception {
+    CountingLoader loader = new CountingLoader();
+    try (ReadAheadCache cache =
+        new ReadAheadCache(loader, 100 * CHUNK, CHUNK, 4, 0)) {
+      assertArrayEquals(FILE, readAll(cache, 1, 100));
+      // the first reads are not cached, then a read per chunk
+      assertTrue(loader.reads.get() <= 2 + 11 + 1);
+      assertTrue(cache.getHitRate() > 0.9);
+      assertTrue(cache.getReadAheadCount() > 0);
+
+      // read again from the cache
+      int reads = loader.reads.get();
+      assertArrayEquals(FILE, readAll(cache, 1, 300));
+      assertTrue(loader.reads.get() - reads <= 2);
+    }
+  }
+
+  @Test
+  public void testBackgroundReadAhead() throws Exception {
+    CountingLoader loader = new CountingLoader();
+    try (ReadAheadCache cache =
+        new ReadAheadCache(loader, 100 * CHUNK, CHUNK, 4, 2)) {
+      assertArrayEquals(FILE, readAll(cache, 1, 512));
+      assertTrue(cache.getReadAheadCount() > 0);
+    }
+  }
+
+  @Test
+  public void testRandomReadsBypass() throws Exception {
+    CountingLoader loader = new CountingLoader();
+    try (ReadAheadCache cache =
+        new ReadAheadCache(loader, 100 * CHUNK, CHUNK, 4, 0)) {
+      byte[] buf = new byte[10];
+      for (int offset : new int[] {5000, 100, 9000, 2000, 7000}) {
+        assertEquals(10, cache.read(2, offset, buf, 0, 10));
+        assertArrayEquals(Arrays.copyOfRange(FILE, offset, offset + 10), buf);
+      }
+      assertEquals(5, cache.getBypassCount());
+      assertEquals(0, cache.getCachedBytes());
+      assertEquals(5, loader.reads.get());
+    }
+  }
+
+  @Test
+  public void testEvictionAndInvalidation() throws Exception {
+    CountingLoader loader = new CountingLoader();
+    try (ReadAheadCache cache =
+        new ReadAheadCache(loader, 3 * CHUNK, CHUNK, 4, 0)) {
+      assertArrayEquals(FILE, readAll(cache, 1, 100));
+      assertTrue(cache.getCachedBytes() <= 3 * CHUNK);
+      assertTrue(cache.getEvictionCount() > 0);
+
+      cache.invalidate(1);
+      assertEquals(0, cache.getCachedBytes());
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.nfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TestWriteBehindBuffer {
+  /** Appends to a file, as the file system only supports appending. */
+  private static class AppendingFlusher implements WriteBehindBuffer.Flusher {
+    private final ByteArrayOutputStream file = new ByteArrayOutputStream();
+    private final List<Integer> writes = new ArrayList<>();
+
+    @Override
+    public void write(long fileId, long offset, byte[] buf, int off,
+        int len) {
+      assertEquals(file.size(), offset);
+      file.write(buf, off, len);
+      writes.add(len);
+    }
+  }
+
+  /** Writes at any offset, and records the offset and length of writes. */
+  private static class RecordingFlusher implements WriteBehindBuffer.Flusher {
+    private final byte[] file = new byte[64];
+    private final List<String> writes =
+        Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch proceed = new CountDownLatch(1);
+    private volatile boolean block;
+
+    @Override
+    public void write(long fileId, long offset, byte[] buf, int off,
+        int len) {
+      entered.countDown();
+      if (block) {
+        try {
+          proceed.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      System.arraycopy(buf, off, file, (int) offset, len);
+      writes.add(offset + "+" + len);
+    }
+  }
+
+  @Test
+  public void testCoalesceOutOfOrderWrites() throws Exception {
+    byte[] data = new byte[64 * 1024];
+    new Random(1).nextBytes(data);
+    AppendingFlusher flusher = new AppendingFlusher();
+    WriteBehindBuffer buffer =
+        new WriteBehindBuffer(flusher, null, 1 << 20, 16 * 1024);
+    buffer.open(1, 0);
+
+    // 4KB writes, shuffled within groups of 8
+    List<Integer> offsets = new ArrayList<>();
+    for (int group = 0; group < data.length; group += 32 * 1024) {
+      List<Integer> g = new ArrayList<>();
+      for (int o = group; o < group + 32 * 1024; o += 4096) {
+        g.add(o);
+      }
+      Collections.shuffle(g, new Random(group));
+      offsets.addAll(g);
+    }
+    for (int offset : offsets) {
+      assertTrue(buffer.write(1, offset, data, offset, 4096));
+    }
+    assertEquals(data.length, buffer.flush(1));
+    assertArrayEquals(data, flusher.file.toByteArray());
+    assertFalse(buffer.hasPendingWrites(1));
+    assertEquals(0, buffer.getBufferedBytes());
+    // far fewer and larger writes
+    assertTrue(flusher.writes.size() <= 4);
+    assertEquals(data.length, buffer.getFlushedBytes());
+  }
+
+  @Test
+  public void testOverlappingWrites() throws Exception {
+    AppendingFlusher flusher = new AppendingFlusher();
+    WriteBehindBuffer buffer =
+        new WriteBehindBuffer(flusher, null, 1 << 20, 1 << 20);
+    buffer.open(1, 0);
+    buffer.write(1, 10, new byte[] {1, 1, 1, 1}, 0, 4);
+    buffer.write(1, 12, new byte[] {2, 2, 2, 2}, 0, 4);
+    buffer.write(1, 4, new byte[] {3, 3, 3, 3, 3, 3}, 0, 6);
+    assertEquals(12, buffer.getBufferedBytes());
+    assertEquals(0, buffer.flush(1));
+    buffer.write(1, 0, new byte[] {4, 4, 4, 4}, 0, 4);
+    assertEquals(16, buffer.flush(1));
+    assertArrayEquals(new byte[] {4, 4, 4, 4, 3, 3, 3, 3, 3, 3, 1, 1, 2, 2,
+        2, 2}, flusher.file.toByteArray());
+  }
+
+  @Test
+  public void testBufferLimit() throws Exception {
+    AppendingFlusher flusher = new AppendingFlusher();
+    WriteBehindBuffer buffer = new WriteBehindBuffer(flusher, null, 100, 1000);
+    buffer.open(1, 0);
+    // beyond a gap, so it can not be flushed to make room
+    assertTrue(buffer.write(1, 10, new byte[60], 0, 60));
+    assertFalse(buffer.write(1, 70, new byte[60], 0, 60));
+    assertEquals(1, buffer.getRejectedCount());
+    // filling the gap flushes the contiguous data
+    assertTrue(buffer.write(1, 0, new byte[10], 0, 10));
+    assertTrue(buffer.write(1, 70, new byte[60], 0, 60));
+    assertEquals(130, buffer.flush(1));
+    assertEquals(0, buffer.close(1));
+  }
+
+  @Test
+  public void testWriteAcrossFlushedOffsetIsSplit() throws Exception {
+    RecordingFlusher flusher = new RecordingFlusher();
+    WriteBehindBuffer buffer = new WriteBehindBuffer(flusher, null, 100, 4);
+    buffer.open(1, 0);
+    assertTrue(buffer.write(1, 0, new byte[] {1, 1, 1, 1, 1, 1, 1, 1}, 0, 8));
+    // beyond a gap
+    assertTrue(buffer.write(1, 12, new byte[] {2, 2, 2, 2}, 0, 4));
+    // overlaps flushed data, then fills the gap
+    assertTrue(buffer.write(1, 4, new byte[] {3, 3, 3, 3, 3, 3, 3, 3}, 0, 8));
+
+    // only the overlapping part is passed through, the rest is flushed in
+    // order with the run after it
+    assertEquals(Arrays.asList("0+8", "4+4", "8+8"), flusher.writes);
+    assertEquals(1, buffer.getPassThroughCount());
+    assertEquals(16, buffer.flush(1));
+    assertEquals(0, buffer.getBufferedBytes());
+    assertArrayEquals(new byte[] {1, 1, 1, 1, 3, 3, 3, 3, 3, 3, 3, 3, 2, 2,
+        2, 2}, Arrays.copyOf(flusher.file, 16));
+  }
+
+  @Test(timeout = 10000)
+  public void testWriteRacingWithClose() throws Exception {
+    RecordingFlusher flusher = new RecordingFlusher();
+    WriteBehindBuffer buffer =
+        new WriteBehindBuffer(flusher, null, 100, 1000);
+    buffer.open(1, 0);
+    assertTrue(buffer.write(1, 0, new byte[] {1, 1, 1, 1}, 0, 4));
+
+    // close blocks flushing, while holding the buffer of the file
+    flusher.block = true;
+    Thread closer = new Thread(() -> {
+      try {
+        buffer.close(1);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    closer.start();
+    flusher.entered.await();
+
+    // a write which found the file open waits for close to finish
+    Thread writer = new Thread(() -> {
+      try {
+        assertTrue(buffer.write(1, 4, new byte[] {2, 2, 2, 2}, 0, 4));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    writer.start();
+    while (writer.getState() != Thread.State.BLOCKED) {
+      Thread.sleep(10);
+    }
+    flusher.proceed.countDown();
+    closer.join();
+    writer.join();
+
+    // the write is passed through rather than buffered in the closed file
+    assertEquals(Arrays.asList("0+4", "4+4"), flusher.writes);
+    assertEquals(0, buffer.getBufferedBytes());
+    assertArrayEquals(new byte[] {1, 1, 1, 1, 2, 2, 2, 2},
+        Arrays.copyOf(flusher.file, 8));
+  }
+}
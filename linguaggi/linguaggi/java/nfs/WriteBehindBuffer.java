@@ -0,0 +1,372 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.nfs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-behind buffer for the NFS gateway, coalescing the small and
+ * possibly out of order WRITE requests of clients into large sequential
+ * writes, as needed by files which can only be appended to.
+ *
+ * The writes to each open file are buffered as runs of contiguous data,
+ * merged as the gaps between them are filled. The run at the end of the
+ * data already written is flushed once it reaches {@link #FLUSH_BYTES_KEY}
+ * bytes, or by {@link #flush(long)}, e.g. on COMMIT or before a READ of the
+ * file. The part of a write overlapping data already flushed is passed to
+ * the flusher directly. The data buffered for all files is bounded by
+ * {@link #MAX_BYTES_KEY}; a write which does not fit is not accepted, and
+ * the client should be asked to retry it, e.g. with NFS3ERR_JUKEBOX.
+ *
+ * A flush also invalidates the file in the {@link ReadAheadCache}, if any.
+ */
+public class WriteBehindBuffer {
+  public static final Logger LOG =
+      LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+  public static final String MAX_BYTES_KEY = "nfs.write-behind.max.bytes";
+  public static final long MAX_BYTES_DEFAULT = 64L << 20;
+  public static final String FLUSH_BYTES_KEY = "nfs.write-behind.flush.bytes";
+  public static final int FLUSH_BYTES_DEFAULT = 1 << 20;
+
+  /**
+   * Writes file data, e.g. to an output stream of the file system.
+   */
+  public interface Flusher {
+    void write(long fileId, long offset, byte[] buf, int off, int len)
+        throws IOException;
+  }
+
+  /** Contiguous data buffered for a file. */
+  private static final class Run {
+    private final long start;
+    private final byte[] data;
+    private final int length;
+
+    Run(long start, byte[] data, int length) {
+      this.start = start;
+      this.data = data;
+      this.length = length;
+    }
+
+    long end() {
+      return start + length;
+    }
+  }
+
+  /** The data buffered for an open file. Guarded by itself. */
+  private static final class FileBuffer {
+    /** The offset up to which the file has been written. */
+    private long flushedOffset;
+    /** Non-overlapping, non-adjacent runs by their start. */
+    private final TreeMap<Long, Run> runs = new TreeMap<>();
+    /** Set once the file is closed, after which writes are passed through. */
+    private boolean closed;
+
+    FileBuffer(long flushedOffset) {
+      this.flushedOffset = flushedOffset;
+    }
+  }
+
+  private final Flusher flusher;
+  private final ReadAheadCache readAheadCache;
+  private final long maxBytes;
+  private final int flushBytes;
+  private final Map<Long, FileBuffer> files = new ConcurrentHashMap<>();
+  private final AtomicLong bufferedBytes = new AtomicLong();
+
+  private final LongAdder writes = new LongAdder();
+  private final LongAdder passedThrough = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder flushes = new LongAdder();
+  private final LongAdder flushedBytes = new LongAdder();
+  private final LongAdder flushNanos = new LongAdder();
+  private final AtomicLong maxFlushNanos = new AtomicLong();
+
+  public WriteBehindBuffer(Configuration conf, Flusher flusher,
+      ReadAheadCache readAheadCache) {
+    this(flusher, readAheadCache,
+        conf.getLong(MAX_BYTES_KEY, MAX_BYTES_DEFAULT),
+        conf.getInt(FLUSH_BYTES_KEY, FLUSH_BYTES_DEFAULT));
+  }
+
+  /**
+   * @param readAheadCache the cache to invalidate the written files in,
+   *        or null.
+   */
+  public WriteBehindBuffer(Flusher flusher, ReadAheadCache readAheadCache,
+      long maxBytes, int flushBytes) {
+    this.flusher = flusher;
+    this.readAheadCache = readAheadCache;
+    this.maxBytes = maxBytes;
+    this.flushBytes = flushBytes;
+  }
+
+  /**
+   * Start buffering the writes to a file.
+   *
+   * @param length the current length of the file.
+   */
+  public void open(long fileId, long length) {
+    files.putIfAbsent(fileId, new FileBuffer(length));
+  }
+
+  /**
+   * Flush the contiguous data of a file and stop buffering its writes.
+   *
+   * @return the number of bytes buffered beyond a gap, which are dropped.
+   */
+  public long close(long fileId) throws IOException {
+    FileBuffer fb = files.get(fileId);
+    if (fb == null) {
+      return 0;
+    }
+    synchronized (fb) {
+      if (fb.closed) {
+        return 0;
+      }
+      flushContiguous(fileId, fb, 0);
+      fb.closed = true;
+      files.remove(fileId);
+      long dropped = 0;
+      for (Run run : fb.runs.values()) {
+        dropped += run.length;
+      }
+      fb.runs.clear();
+      bufferedBytes.addAndGet(-dropped);
+      if (dropped > 0) {
+        LOG.warn("Dropped {} bytes written beyond offset {} of file {}",
+            dropped, fb.flushedOffset, fileId);
+      }
+      return dropped;
+    }
+  }
+
+  /**
+   * Buffer a write to a file, flushing the contiguous data once there is
+   * enough of it. Writes to files not opened are passed to the flusher.
+   *
+   * @return false if there is no room to buffer the write.
+   */
+  public boolean write(long fileId, long offset, byte[] buf, int off, int len)
+      throws IOException {
+    writes.increment();
+    FileBuffer fb = files.get(fileId);
+    if (fb == null) {
+      passThrough(fileId, offset, buf, off, len);
+      return true;
+    }
+    synchronized (fb) {
+      if (fb.closed) {
+        // raced with close
+        passThrough(fileId, offset, buf, off, len);
+        return true;
+      }
+      if (offset < fb.flushedOffset) {
+        if (offset + len <= fb.flushedOffset) {
+          passThrough(fileId, offset, buf, off, len);
+          return true;
+        }
+        // pass through only the part already written, so the flusher keeps
+        // seeing the rest in order
+        int head = (int) (fb.flushedOffset - offset);
+        passThrough(fileId, offset, buf, off, head);
+        offset += head;
+        off += head;
+        len -= head;
+      }
+      if (bufferedBytes.get() + len > maxBytes) {
+        // make room with the contiguous data of this file, if any
+        flushContiguous(fileId, fb, 0);
+        if (bufferedBytes.get() + len > maxBytes) {
+          rejected.increment();
+          return false;
+        }
+      }
+      bufferedBytes.addAndGet(add(fb, offset, buf, off, len));
+      flushContiguous(fileId, fb, flushBytes);
+    }
+    return true;
+  }
+
+  /**
+   * Flush the data of a file contiguous with what has been written.
+   *
+   * @return the offset up to which the file has been written.
+   */
+  public long flush(long fileId) throws IOException {
+    FileBuffer fb = files.get(fileId);
+    if (fb == null) {
+      return -1;
+    }
+    synchronized (fb) {
+      flushContiguous(fileId, fb, 0);
+      return fb.flushedOffset;
+    }
+  }
+
+  /**
+   * @return whether data written to the file has not been flushed.
+   */
+  public boolean hasPendingWrites(long fileId) {
+    FileBuffer fb = files.get(fileId);
+    if (fb == null) {
+      return false;
+    }
+    synchronized (fb) {
+      return !fb.runs.isEmpty();
+    }
+  }
+
+  /**
+   * Add data to the runs of a file, merging them with the adjacent and
+   * overlapping runs. Newer data replaces older data.
+   *
+   * @return the number of bytes by which the buffered data grew.
+   */
+  private static long add(FileBuffer fb, long offset, byte[] buf, int off,
+      int len) {
+    final long end = offset + len;
+    Map.Entry<Long, Run> floor = fb.runs.floorEntry(offset);
+    final Run first = floor != null && floor.getValue().end() >= offset
+        ? floor.getValue() : null;
+    final long start = first != null ? first.start : offset;
+    final NavigableMap<Long, Run> merged =
+        fb.runs.subMap(start, true, end, true);
+    long newEnd = end;
+    long oldBytes = 0;
+    for (Run r : merged.values()) {
+      newEnd = Math.max(newEnd, r.end());
+      oldBytes += r.length;
+    }
+    final int newLength = (int) (newEnd - start);
+
+    final byte[] data;
+    if (first != null && newLength <= first.data.length) {
+      data = first.data;
+    } else if (first != null) {
+      // grow by doubling, so that appending small writes is cheap
+      data = new byte[(int) Math.min(Integer.MAX_VALUE - 8,
+          Math.max(newLength, 2L * first.data.length))];
+      System.arraycopy(first.data, 0, data, 0, first.length);
+    } else {
+      data = new byte[newLength];
+    }
+    for (Run r : merged.values()) {
+      if (r != first) {
+        System.arraycopy(r.data, 0, data, (int) (r.start - start), r.length);
+      }
+    }
+    System.arraycopy(buf, off, data, (int) (offset - start), len);
+    merged.clear();
+    fb.runs.put(start, new Run(start, data, newLength));
+    return newLength - oldBytes;
+  }
+
+  /**
+   * Flush the run at the written offset of a file, if it has at least the
+   * given number of bytes.
+   */
+  private void flushContiguous(long fileId, FileBuffer fb, int minBytes)
+      throws IOException {
+    Run run = fb.runs.get(fb.flushedOffset);
+    if (run == null || run.length < minBytes) {
+      return;
+    }
+    final long startTime = System.nanoTime();
+    flusher.write(fileId, run.start, run.data, 0, run.length);
+    final long nanos = System.nanoTime() - startTime;
+    fb.runs.remove(run.start);
+    fb.flushedOffset = run.end();
+    bufferedBytes.addAndGet(-run.length);
+    flushes.increment();
+    flushedBytes.add(run.length);
+    flushNanos.add(nanos);
+    maxFlushNanos.accumulateAndGet(nanos, Math::max);
+    if (readAheadCache != null) {
+      readAheadCache.invalidate(fileId);
+    }
+  }
+
+  private void passThrough(long fileId, long offset, byte[] buf, int off,
+      int len) throws IOException {
+    passedThrough.increment();
+    flusher.write(fileId, offset, buf, off, len);
+    if (readAheadCache != null) {
+      readAheadCache.invalidate(fileId);
+    }
+  }
+
+  /** @return the number of write requests. */
+  public long getWriteCount() {
+    return writes.sum();
+  }
+
+  /** @return the number of writes passed to the flusher unbuffered. */
+  public long getPassThroughCount() {
+    return passedThrough.sum();
+  }
+
+  /** @return the number of writes not accepted for lack of room. */
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+
+  /** @return the number of coalesced writes to the flusher. */
+  public long getFlushCount() {
+    return flushes.sum();
+  }
+
+  public long getFlushedBytes() {
+    return flushedBytes.sum();
+  }
+
+  public long getBufferedBytes() {
+    return bufferedBytes.get();
+  }
+
+  /** @return the average latency of a flush in milliseconds. */
+  public double getAverageFlushLatencyMs() {
+    long n = flushes.sum();
+    return n == 0 ? 0 : flushNanos.sum() / 1e6 / n;
+  }
+
+  /** @return the maximum latency of a flush in milliseconds. */
+  public double getMaxFlushLatencyMs() {
+    return maxFlushNanos.get() / 1e6;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[writes=" + writes.sum()
+        + ", passedThrough=" + passedThrough.sum()
+        + ", rejected=" + rejected.sum() + ", flushes=" + flushes.sum()
+        + ", flushedBytes=" + flushedBytes.sum()
+        + ", bufferedBytes=" + bufferedBytes.get() + "]";
+  }
+}
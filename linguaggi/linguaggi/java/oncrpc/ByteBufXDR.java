@@ -0,0 +1,365 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.oncrpc;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import org.apache.hadoop.classification.VisibleForTesting;
+import org.apache.hadoop.util.Preconditions;
+
+/**
+ * An XDR message, like {@link XDR}, backed by Netty {@link ByteBuf}s to avoid
+ * copying large opaque data such as the payloads of NFS READ and WRITE.
+ *
+ * <ul>
+ * <li>A message being written is a composite buffer. Primitives are written
+ * to pooled direct buffers, while opaque data of at least
+ * {@link #ZERO_COPY_THRESHOLD} bytes given as a {@link ByteBuf} is added as a
+ * component without copying.</li>
+ * <li>A message being read wraps the received buffer, and opaque data can be
+ * read as retained slices of it instead of byte arrays.</li>
+ * </ul>
+ *
+ * The message owns its buffer: it must be either released with
+ * {@link #release()} or handed over to the channel with
+ * {@link #writeMessageTcp(ByteBufXDR, boolean)} or
+ * {@link #writeMessageUdp(ByteBufXDR)}, after which it can not be used.
+ * Slices returned by the read methods are retained and must be released by
+ * the caller.
+ */
+public final class ByteBufXDR {
+  private static final int DEFAULT_INITIAL_CAPACITY = 256;
+  /** Opaque data shorter than this is copied rather than added as a slice. */
+  static final int ZERO_COPY_THRESHOLD = 4096;
+  /** Netty consolidates the components, copying them, beyond this number. */
+  private static final int MAX_COMPONENTS = 64;
+
+  private final XDR.State state;
+  private final ByteBufAllocator alloc;
+  private final int initialCapacity;
+  /** The message read, or the written parts of the message being written. */
+  private ByteBuf buf;
+  /** The buffer primitives are being written to, or null. */
+  private ByteBuf tail;
+
+  /**
+   * Construct a new XDR message with pooled direct buffers.
+   *
+   * @param initialCapacity
+   *          the initial capacity of the buffer for primitives.
+   */
+  public ByteBufXDR(int initialCapacity) {
+    this(PooledByteBufAllocator.DEFAULT, initialCapacity);
+  }
+
+  public ByteBufXDR() {
+    this(DEFAULT_INITIAL_CAPACITY);
+  }
+
+  public ByteBufXDR(ByteBufAllocator alloc, int initialCapacity) {
+    this.state = XDR.State.WRITING;
+    this.alloc = alloc;
+    this.initialCapacity = initialCapacity;
+    this.buf = alloc.compositeDirectBuffer(MAX_COMPONENTS);
+  }
+
+  /**
+   * Wraps a received buffer as an XDR message to be read, e.g.
+   * {@link RpcInfo#data()}. The message takes over the reference of the
+   * caller.
+   *
+   * @param data
+   *          the buffer to be read from its reader index.
+   */
+  public ByteBufXDR(ByteBuf data) {
+    this.state = XDR.State.READING;
+    this.alloc = data.alloc();
+    this.initialCapacity = 0;
+    this.buf = data;
+  }
+
+  public XDR.State state() {
+    return state;
+  }
+
+  /**
+   * @return the number of bytes left to be read, or written so far.
+   */
+  public int size() {
+    checkUsable();
+    return state == XDR.State.READING ? buf.readableBytes()
+        : buf.readableBytes() + (tail == null ? 0 : tail.readableBytes());
+  }
+
+  public int readInt() {
+    checkReading();
+    return buf.readInt();
+  }
+
+  public void writeInt(int v) {
+    ensureFreeSpace(XDR.SIZEOF_INT);
+    tail.writeInt(v);
+  }
+
+  public boolean readBoolean() {
+    checkReading();
+    return buf.readInt() != 0;
+  }
+
+  public void writeBoolean(boolean v) {
+    writeInt(v ? 1 : 0);
+  }
+
+  public long readHyper() {
+    checkReading();
+    return buf.readLong();
+  }
+
+  public void writeLongAsHyper(long v) {
+    ensureFreeSpace(XDR.SIZEOF_LONG);
+    tail.writeLong(v);
+  }
+
+  public byte[] readFixedOpaque(int size) {
+    checkReading();
+    byte[] r = new byte[size];
+    buf.readBytes(r);
+    buf.skipBytes(pad(size));
+    return r;
+  }
+
+  /**
+   * Read opaque data without copying it.
+   *
+   * @param size the length of the data.
+   * @return a retained slice of the message, to be released by the caller.
+   */
+  public ByteBuf readFixedOpaqueSlice(int size) {
+    checkReading();
+    ByteBuf r = buf.readRetainedSlice(size);
+    buf.skipBytes(pad(size));
+    return r;
+  }
+
+  public byte[] readVariableOpaque() {
+    return readFixedOpaque(readInt());
+  }
+
+  /**
+   * Read variable length opaque data without copying it.
+   *
+   * @return a retained slice of the message, to be released by the caller.
+   */
+  public ByteBuf readVariableOpaqueSlice() {
+    return readFixedOpaqueSlice(readInt());
+  }
+
+  public String readString() {
+    checkReading();
+    int size = buf.readInt();
+    String s = buf.toString(buf.readerIndex(), size, StandardCharsets.UTF_8);
+    buf.skipBytes(size + pad(size));
+    return s;
+  }
+
+  public void writeFixedOpaque(byte[] src, int length) {
+    ensureFreeSpace(alignUp(length));
+    tail.writeBytes(src, 0, length);
+    tail.writeZero(pad(length));
+  }
+
+  public void writeFixedOpaque(byte[] src) {
+    writeFixedOpaque(src, src.length);
+  }
+
+  /**
+   * Write the readable bytes of the given buffer as opaque data. Large data
+   * is added to the message without copying, so it must not be modified
+   * until the message is written to the channel.
+   *
+   * @param src the data, whose reader index is not changed and whose
+   *        reference stays with the caller.
+   */
+  public void writeFixedOpaque(ByteBuf src) {
+    final int length = src.readableBytes();
+    if (length < ZERO_COPY_THRESHOLD) {
+      ensureFreeSpace(alignUp(length));
+      tail.writeBytes(src, src.readerIndex(), length);
+    } else {
+      checkWriting();
+      addTail();
+      ((CompositeByteBuf) buf).addComponent(true,
+          src.retainedSlice(src.readerIndex(), length));
+      ensureFreeSpace(XDR.SIZEOF_INT);
+    }
+    tail.writeZero(pad(length));
+  }
+
+  public void writeVariableOpaque(byte[] src) {
+    ensureFreeSpace(XDR.SIZEOF_INT + alignUp(src.length));
+    tail.writeInt(src.length);
+    writeFixedOpaque(src);
+  }
+
+  public void writeVariableOpaque(ByteBuf src) {
+    writeInt(src.readableBytes());
+    writeFixedOpaque(src);
+  }
+
+  public void writeString(String s) {
+    writeVariableOpaque(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static int alignUp(int length) {
+    return length + pad(length);
+  }
+
+  private static int pad(int length) {
+    return -length & 3;
+  }
+
+  private void checkUsable() {
+    Preconditions.checkState(buf != null,
+        "The message has been released or written");
+  }
+
+  private void checkReading() {
+    checkUsable();
+    Preconditions.checkState(state == XDR.State.READING);
+  }
+
+  private void checkWriting() {
+    checkUsable();
+    Preconditions.checkState(state == XDR.State.WRITING);
+  }
+
+  private void ensureFreeSpace(int size) {
+    checkWriting();
+    if (tail == null) {
+      tail = alloc.directBuffer(Math.max(initialCapacity, size));
+    } else {
+      // the pool reallocates, copying only the primitives written to the tail
+      tail.ensureWritable(size);
+    }
+  }
+
+  /** Add the primitives written so far to the message. */
+  private void addTail() {
+    if (tail != null) {
+      if (tail.isReadable()) {
+        ((CompositeByteBuf) buf).addComponent(true, tail);
+      } else {
+        tail.release();
+      }
+      tail = null;
+    }
+  }
+
+  /**
+   * Hand over the buffer of the message, which can not be used any more.
+   *
+   * @return the written message, or what is left to be read.
+   */
+  private ByteBuf detach() {
+    checkUsable();
+    if (state == XDR.State.WRITING) {
+      addTail();
+    }
+    ByteBuf b = buf;
+    buf = null;
+    return b;
+  }
+
+  /**
+   * Release the buffers of the message.
+   */
+  public void release() {
+    if (tail != null) {
+      tail.release();
+      tail = null;
+    }
+    if (buf != null) {
+      buf.release();
+      buf = null;
+    }
+  }
+
+  /**
+   * check if the rest of data has more than len bytes.
+   * @param xdr XDR message
+   * @param len minimum remaining length
+   * @return specify remaining length is enough or not
+   */
+  public static boolean verifyLength(ByteBufXDR xdr, int len) {
+    xdr.checkUsable();
+    return xdr.buf.readableBytes() >= len;
+  }
+
+  /**
+   * Write an XDR message to a TCP ChannelBuffer. The record mark is added
+   * as another component, without copying the message.
+   * @param request XDR request, which is handed over to the returned buffer
+   * @param last specifies last request or not
+   * @return TCP buffer
+   */
+  public static ByteBuf writeMessageTcp(ByteBufXDR request, boolean last) {
+    Preconditions.checkState(request.state == XDR.State.WRITING);
+    CompositeByteBuf b = (CompositeByteBuf) request.detach();
+    int size = b.readableBytes();
+    ByteBuf mark = request.alloc.directBuffer(XDR.SIZEOF_INT);
+    mark.writeInt(!last ? size : size | 0x80000000);
+    return b.addComponent(true, 0, mark);
+  }
+
+  /**
+   * Write an XDR message to a UDP ChannelBuffer, without copying it.
+   * @param response XDR response, which is handed over to the returned buffer
+   * @return UDP buffer
+   */
+  public static ByteBuf writeMessageUdp(ByteBufXDR response) {
+    Preconditions.checkState(response.state == XDR.State.WRITING);
+    return response.detach();
+  }
+
+  @VisibleForTesting
+  int numComponents() {
+    return ((CompositeByteBuf) buf).numComponents()
+        + (tail != null && tail.isReadable() ? 1 : 0);
+  }
+
+  @VisibleForTesting
+  public byte[] getBytes() {
+    checkUsable();
+    byte[] b = new byte[size()];
+    if (state == XDR.State.READING) {
+      buf.getBytes(buf.readerIndex(), b);
+    } else {
+      buf.getBytes(buf.readerIndex(), b, 0, buf.readableBytes());
+      if (tail != null) {
+        tail.getBytes(tail.readerIndex(), b, buf.readableBytes(),
+            tail.readableBytes());
+      }
+    }
+    return b;
+  }
+}
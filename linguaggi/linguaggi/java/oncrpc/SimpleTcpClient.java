@@ -21,12 +21,15 @@ import java.net.InetSocketAddress;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
 import org.apache.hadoop.classification.VisibleForTesting;
 
 /**
@@ -36,6 +39,7 @@ public class SimpleTcpClient {
   protected final String host;
   protected final int port;
   protected final XDR request;
+  protected final ByteBufXDR byteBufRequest;
   protected final boolean oneShot;
   private NioEventLoopGroup workerGroup;
   private ChannelFuture future;
@@ -48,6 +52,21 @@ public class SimpleTcpClient {
     this.host = host;
     this.port = port;
     this.request = request;
+    this.byteBufRequest = null;
+    this.oneShot = oneShot;
+  }
+
+  /**
+   * Construct a client sending a request in pooled buffers, without copying
+   * its payload. The request is handed over to the channel, so the client
+   * can only be run once.
+   */
+  public SimpleTcpClient(String host, int port, ByteBufXDR request,
+      boolean oneShot) {
+    this.host = host;
+    this.port = port;
+    this.request = null;
+    this.byteBufRequest = request;
     this.oneShot = oneShot;
   }
 
@@ -58,7 +77,9 @@ public class SimpleTcpClient {
         ChannelPipeline p = ch.pipeline();
         p.addLast(
             RpcUtil.constructRpcFrameDecoder(),
-            new SimpleTcpClientHandler(request)
+            byteBufRequest != null
+                ? new ByteBufRequestHandler(byteBufRequest)
+                : new SimpleTcpClientHandler(request)
         );
       }
     };
@@ -100,4 +121,37 @@ public class SimpleTcpClient {
       workerGroup.shutdownGracefully();
     }
   }
+
+  /**
+   * Sends a {@link ByteBufXDR} request like {@link SimpleTcpClientHandler}
+   * and closes the channel on the response.
+   */
+  private static class ByteBufRequestHandler
+      extends ChannelInboundHandlerAdapter {
+    private final ByteBufXDR request;
+
+    ByteBufRequestHandler(ByteBufXDR request) {
+      this.request = request;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+      ctx.channel().writeAndFlush(ByteBufXDR.writeMessageTcp(request, true));
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      try {
+        // Close the channel after the response.
+        ctx.channel().close();
+      } finally {
+        ReferenceCountUtil.release(msg);
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      ctx.channel().close();
+    }
+  }
 }
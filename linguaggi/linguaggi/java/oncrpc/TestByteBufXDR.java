@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.oncrpc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link ByteBufXDR}
+ */
+public class TestByteBufXDR {
+  private static byte[] payload(int length) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = (byte) i;
+    }
+    return b;
+  }
+
+  @Test
+  public void testSameEncodingAsXDR() {
+    byte[] small = payload(5);
+    byte[] large = payload(ByteBufXDR.ZERO_COPY_THRESHOLD + 3);
+    ByteBuf largeBuf = Unpooled.wrappedBuffer(large);
+
+    XDR x = new XDR();
+    ByteBufXDR b = new ByteBufXDR(4);
+    x.writeInt(-7);
+    b.writeInt(-7);
+    x.writeBoolean(true);
+    b.writeBoolean(true);
+    x.writeLongAsHyper(Long.MIN_VALUE);
+    b.writeLongAsHyper(Long.MIN_VALUE);
+    x.writeVariableOpaque(small);
+    b.writeVariableOpaque(Unpooled.wrappedBuffer(small));
+    x.writeString("hadoop");
+    b.writeString("hadoop");
+    x.writeVariableOpaque(large);
+    b.writeVariableOpaque(largeBuf);
+    x.writeFixedOpaque(small, 3);
+    b.writeFixedOpaque(small, 3);
+
+    assertEquals(x.size(), b.size());
+    assertArrayEquals(x.getBytes(), b.getBytes());
+    // the large payload is a component of its own
+    assertEquals(3, b.numComponents());
+    // and is not consumed
+    assertEquals(large.length, largeBuf.readableBytes());
+    b.release();
+    assertEquals(1, largeBuf.refCnt());
+  }
+
+  @Test
+  public void testZeroCopyRead() {
+    byte[] large = payload(ByteBufXDR.ZERO_COPY_THRESHOLD + 1);
+    XDR x = new XDR();
+    x.writeInt(1);
+    x.writeVariableOpaque(large);
+    x.writeString("end");
+    ByteBuf data = Unpooled.wrappedBuffer(x.getBytes());
+
+    ByteBufXDR b = new ByteBufXDR(data);
+    assertEquals(1, b.readInt());
+    ByteBuf slice = b.readVariableOpaqueSlice();
+    assertEquals(large.length, slice.readableBytes());
+    // a slice of the received buffer
+    assertTrue(slice.unwrap() == data || slice.unwrap() == data.unwrap());
+    byte[] read = new byte[large.length];
+    slice.readBytes(read);
+    assertArrayEquals(large, read);
+    assertEquals("end", b.readString());
+    assertEquals(0, b.size());
+
+    b.release();
+    // still referenced by the slice
+    assertEquals(1, data.refCnt());
+    slice.release();
+    assertEquals(0, data.refCnt());
+  }
+
+  @Test
+  public void testWriteMessageTcp() {
+    byte[] large = payload(ByteBufXDR.ZERO_COPY_THRESHOLD);
+    ByteBufXDR b = new ByteBufXDR();
+    b.writeInt(42);
+    b.writeFixedOpaque(Unpooled.wrappedBuffer(large));
+    int size = b.size();
+
+    ByteBuf message = ByteBufXDR.writeMessageTcp(b, true);
+    assertEquals(size + 4, message.readableBytes());
+    byte[] mark = new byte[4];
+    message.readBytes(mark);
+    assertTrue(XDR.isLastFragment(mark));
+    assertEquals(size, XDR.fragmentSize(mark));
+    assertEquals(42, message.readInt());
+    byte[] read = new byte[large.length];
+    message.readBytes(read);
+    assertArrayEquals(large, read);
+    assertFalse(message.isReadable());
+    message.release();
+
+    // the message has been handed over
+    assertThrows(IllegalStateException.class, () -> b.writeInt(1));
+  }
+
+  @Test
+  public void testWriteMessageUdp() {
+    ByteBufXDR b = new ByteBufXDR();
+    b.writeString("udp");
+    byte[] expected = b.getBytes();
+    ByteBuf message = ByteBufXDR.writeMessageUdp(b);
+    byte[] read = new byte[message.readableBytes()];
+    message.readBytes(read);
+    assertTrue(Arrays.equals(expected, read));
+    message.release();
+  }
+
+  @Test
+  public void testVerifyLength() {
+    ByteBufXDR message = new ByteBufXDR(Unpooled.wrappedBuffer(new byte[8]));
+    assertTrue(ByteBufXDR.verifyLength(message, 8));
+    assertFalse(ByteBufXDR.verifyLength(message, 9));
+    message.release();
+    assertThrows(IllegalStateException.class,
+        () -> ByteBufXDR.verifyLength(message, 1));
+  }
+}
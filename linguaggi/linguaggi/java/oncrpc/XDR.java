@@ -41,8 +41,8 @@ import org.apache.hadoop.util.Preconditions;
  */
 public final class XDR {
   private static final int DEFAULT_INITIAL_CAPACITY = 256;
-  private static final int SIZEOF_INT = 4;
-  private static final int SIZEOF_LONG = 8;
+  static final int SIZEOF_INT = 4;
+  static final int SIZEOF_LONG = 8;
   private static final byte[] PADDING_BYTES = new byte[] { 0, 0, 0, 0 };
 
   private ByteBuffer buf;
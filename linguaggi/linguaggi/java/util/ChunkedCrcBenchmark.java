@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Mini benchmark of checksum verification throughput over chunked data in
+ * a direct buffer, as done on the read path: the slicing-by-8
+ * {@link PureJavaCrc32} and {@link PureJavaCrc32C}, which need the data on
+ * the heap, the slicing-by-16 engine and the JDK intrinsic engine of
+ * {@link PureJavaChunkedCrc}.
+ *
+ * Usage: ChunkedCrcBenchmark [bytesPerSum] [MB of data] [iterations]
+ */
+public class ChunkedCrcBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int bytesPerSum = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+    int size = (args.length > 1 ? Integer.parseInt(args[1]) : 64) << 20;
+    int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+    byte[] bytes = new byte[size];
+    new Random(0).nextBytes(bytes);
+    ByteBuffer data = ByteBuffer.allocateDirect(size);
+    data.put(bytes).flip();
+    ByteBuffer sums = ByteBuffer.allocateDirect(
+        (size + bytesPerSum - 1) / bytesPerSum * 4);
+
+    System.out.printf("%-8s %-12s %12s%n", "type", "engine", "MB/s");
+    for (int type : new int[] {DataChecksum.CHECKSUM_CRC32,
+        DataChecksum.CHECKSUM_CRC32C}) {
+      String name = type == DataChecksum.CHECKSUM_CRC32 ? "CRC32" : "CRC32C";
+      PureJavaChunkedCrc.calculateChunkedSums(bytesPerSum, type, sums, data);
+      report(name, "slicing-8", size, iterations, () -> {
+        java.util.zip.Checksum sum = type == DataChecksum.CHECKSUM_CRC32
+            ? new PureJavaCrc32() : new PureJavaCrc32C();
+        byte[] chunk = new byte[bytesPerSum];
+        ByteBuffer in = data.duplicate();
+        int sumPos = 0;
+        while (in.hasRemaining()) {
+          int n = Math.min(bytesPerSum, in.remaining());
+          in.get(chunk, 0, n);
+          sum.reset();
+          sum.update(chunk, 0, n);
+          if ((int) sum.getValue() != sums.getInt(sumPos)) {
+            throw new IllegalStateException("Checksum mismatch");
+          }
+          sumPos += 4;
+        }
+      });
+      report(name, "slicing-16", size, iterations, () ->
+          PureJavaChunkedCrc.computeChunkedSums(
+              PureJavaChunkedCrc.newSlicingEngine(type), bytesPerSum, sums, 0,
+              data, 0, size, "bench", 0, true));
+      report(name, "jdk", size, iterations, () ->
+          PureJavaChunkedCrc.verifyChunkedSums(bytesPerSum, type, sums, data,
+              "bench", 0));
+    }
+  }
+
+  private interface Run {
+    void run() throws Exception;
+  }
+
+  private static void report(String type, String engine, int size,
+      int iterations, Run run) throws Exception {
+    // warm up
+    for (int i = 0; i < 3; i++) {
+      run.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      run.run();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-8s %-12s %12.0f%n", type, engine,
+        (double) size * iterations / (1 << 20) / seconds);
+  }
+}
@@ -0,0 +1,468 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import org.apache.hadoop.HadoopIllegalArgumentException;
+import org.apache.hadoop.classification.InterfaceAudience;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe {@link GSet} implementation for read-mostly workloads.
+ *
+ * Reads never lock: the buckets hold immutable chains which writers
+ * replace with a single volatile write, so {@link #get(Object)} sees either
+ * the old or the new chain. Writes lock one of a fixed number of stripes,
+ * so writers to different stripes do not contend.
+ *
+ * If the size of elements exceeds the threshold, the table is doubled
+ * incrementally: writers each move a small chunk of buckets to the new
+ * table and leave a forwarding marker behind, and readers follow the
+ * marker. No operation waits for the whole table to be copied.
+ *
+ * Unlike {@link LightWeightResizableGSet}, elements need not implement
+ * {@link LightWeightGSet.LinkedElement}; the price is one chain node per
+ * element. Iteration is weakly consistent and never throws
+ * {@link java.util.ConcurrentModificationException}.
+ *
+ * This class does not support null element.
+ *
+ * @param <K> Key type for looking up the elements
+ * @param <E> Element type, which must be a subclass of K.
+ */
+@InterfaceAudience.Private
+public class ConcurrentResizableGSet<K, E extends K> implements GSet<K, E> {
+
+  /** The default initial capacity - MUST be a power of two. */
+  static final int DEFAULT_INITIAL_CAPACITY = 1 << 10;
+
+  /** The load factor used when none specified in constructor. */
+  static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+  /** Number of write lock stripes, also the minimum capacity. */
+  static final int NUM_STRIPES = 64;
+
+  static final int MAX_CAPACITY = 1 << 30;
+
+  /** Number of buckets a writer moves at a time during a resize. */
+  private static final int TRANSFER_CHUNK = 16;
+
+  /** An immutable link of a bucket chain. */
+  private static class Node<E> {
+    private final int hash;
+    private final E element;
+    private final Node<E> next;
+
+    Node(int hash, E element, Node<E> next) {
+      this.hash = hash;
+      this.element = element;
+      this.next = next;
+    }
+  }
+
+  /** Marks a bucket which has been moved to the next table. */
+  private static final class Forward<E> extends Node<E> {
+    private final AtomicReferenceArray<Node<E>> nextTable;
+
+    Forward(AtomicReferenceArray<Node<E>> nextTable) {
+      super(0, null, null);
+      this.nextTable = nextTable;
+    }
+  }
+
+  /** State of an in-progress resize. */
+  private static final class Resize<E> {
+    private final AtomicReferenceArray<Node<E>> from;
+    private final AtomicReferenceArray<Node<E>> to;
+    private final AtomicInteger claimed = new AtomicInteger();
+    private final AtomicInteger transferred = new AtomicInteger();
+
+    Resize(AtomicReferenceArray<Node<E>> from,
+        AtomicReferenceArray<Node<E>> to) {
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  private final ReentrantLock[] stripes = new ReentrantLock[NUM_STRIPES];
+  private final Object resizeLock = new Object();
+  private final float loadFactor;
+  private final LongAdder size = new LongAdder();
+
+  private volatile AtomicReferenceArray<Node<E>> table;
+  private volatile Resize<E> resize;
+  private volatile int threshold;
+
+  public ConcurrentResizableGSet(int initCapacity, float loadFactor) {
+    if (initCapacity < 0) {
+      throw new HadoopIllegalArgumentException("Illegal initial capacity: " +
+          initCapacity);
+    }
+    if (loadFactor <= 0 || loadFactor > 1.0f) {
+      throw new HadoopIllegalArgumentException("Illegal load factor: " +
+          loadFactor);
+    }
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+    this.loadFactor = loadFactor;
+    int capacity = actualArrayLength(initCapacity);
+    this.table = new AtomicReferenceArray<>(capacity);
+    this.threshold = (int) (capacity * loadFactor);
+  }
+
+  public ConcurrentResizableGSet() {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+  }
+
+  public ConcurrentResizableGSet(int initCapacity) {
+    this(initCapacity, DEFAULT_LOAD_FACTOR);
+  }
+
+  private static int actualArrayLength(int recommended) {
+    if (recommended > MAX_CAPACITY) {
+      return MAX_CAPACITY;
+    } else if (recommended < NUM_STRIPES) {
+      return NUM_STRIPES;
+    } else {
+      return Integer.highestOneBit(recommended - 1) << 1;
+    }
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private ReentrantLock stripe(int hash) {
+    return stripes[hash & (NUM_STRIPES - 1)];
+  }
+
+  @Override
+  public int size() {
+    return (int) size.sum();
+  }
+
+  @Override
+  public boolean contains(K key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public E get(K key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    int h = hash(key);
+    AtomicReferenceArray<Node<E>> t = table;
+    Node<E> n = t.get(h & (t.length() - 1));
+    while (n instanceof Forward) {
+      t = ((Forward<E>) n).nextTable;
+      n = t.get(h & (t.length() - 1));
+    }
+    for (; n != null; n = n.next) {
+      if (n.hash == h && n.element.equals(key)) {
+        return n.element;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public E put(final E element) {
+    if (element == null) {
+      throw new NullPointerException("Null element is not supported.");
+    }
+    int h = hash(element);
+    E existing;
+    ReentrantLock lock = stripe(h);
+    lock.lock();
+    try {
+      AtomicReferenceArray<Node<E>> t = writableTable(h);
+      int index = h & (t.length() - 1);
+      Node<E> head = t.get(index);
+      existing = find(head, h, element);
+      if (existing == null) {
+        t.set(index, new Node<>(h, element, head));
+      } else {
+        t.set(index, new Node<>(h, element, without(head, existing)));
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (existing == null) {
+      size.increment();
+      if (resize == null && size() > threshold) {
+        startResize();
+      }
+    }
+    helpResize();
+    return existing;
+  }
+
+  @Override
+  public E remove(K key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    int h = hash(key);
+    E existing;
+    ReentrantLock lock = stripe(h);
+    lock.lock();
+    try {
+      AtomicReferenceArray<Node<E>> t = writableTable(h);
+      int index = h & (t.length() - 1);
+      Node<E> head = t.get(index);
+      existing = find(head, h, key);
+      if (existing != null) {
+        t.set(index, without(head, existing));
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (existing != null) {
+      size.decrement();
+    }
+    helpResize();
+    return existing;
+  }
+
+  /**
+   * @return the table holding the bucket of the given hash. The caller
+   *     must hold the stripe lock of the hash, which keeps the bucket from
+   *     being moved.
+   */
+  private AtomicReferenceArray<Node<E>> writableTable(int h) {
+    AtomicReferenceArray<Node<E>> t = table;
+    Node<E> n = t.get(h & (t.length() - 1));
+    while (n instanceof Forward) {
+      t = ((Forward<E>) n).nextTable;
+      n = t.get(h & (t.length() - 1));
+    }
+    return t;
+  }
+
+  private static <E> E find(Node<E> head, int h, Object key) {
+    for (Node<E> n = head; n != null; n = n.next) {
+      if (n.hash == h && n.element.equals(key)) {
+        return n.element;
+      }
+    }
+    return null;
+  }
+
+  /** @return a copy of the chain without the given element. */
+  private static <E> Node<E> without(Node<E> head, E element) {
+    if (head.element == element) {
+      return head.next;
+    }
+    return new Node<>(head.hash, head.element, without(head.next, element));
+  }
+
+  @Override
+  public void clear() {
+    synchronized (resizeLock) {
+      for (ReentrantLock lock : stripes) {
+        lock.lock();
+      }
+      try {
+        AtomicReferenceArray<Node<E>> t = table;
+        // a cleared set keeps its capacity, including a pending resize.
+        int capacity = resize != null ? resize.to.length() : t.length();
+        resize = null;
+        table = new AtomicReferenceArray<>(capacity);
+        threshold = (int) (capacity * loadFactor);
+        size.reset();
+      } finally {
+        for (ReentrantLock lock : stripes) {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  private void startResize() {
+    synchronized (resizeLock) {
+      AtomicReferenceArray<Node<E>> t = table;
+      if (resize != null || size() <= threshold
+          || t.length() >= MAX_CAPACITY) {
+        return;
+      }
+      resize = new Resize<>(t, new AtomicReferenceArray<>(t.length() << 1));
+    }
+  }
+
+  /** Move one chunk of buckets of the in-progress resize, if any. */
+  private void helpResize() {
+    Resize<E> r = resize;
+    if (r == null) {
+      return;
+    }
+    int length = r.from.length();
+    int start = r.claimed.getAndAdd(TRANSFER_CHUNK);
+    if (start >= length) {
+      return;
+    }
+    int end = Math.min(start + TRANSFER_CHUNK, length);
+    for (int i = start; i < end; i++) {
+      ReentrantLock lock = stripes[i & (NUM_STRIPES - 1)];
+      lock.lock();
+      try {
+        if (resize != r) {
+          // cleared while moving
+          return;
+        }
+        transfer(r, i);
+      } finally {
+        lock.unlock();
+      }
+    }
+    if (r.transferred.addAndGet(end - start) == length) {
+      synchronized (resizeLock) {
+        if (resize == r) {
+          table = r.to;
+          threshold = (int) (r.to.length() * loadFactor);
+          resize = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Split a bucket of the old table into its two buckets of the new table.
+   * The old chain is left untouched for concurrent readers.
+   */
+  private static <E> void transfer(Resize<E> r, int index) {
+    int length = r.from.length();
+    Node<E> lo = null;
+    Node<E> hi = null;
+    for (Node<E> n = r.from.get(index); n != null; n = n.next) {
+      if ((n.hash & length) == 0) {
+        lo = new Node<>(n.hash, n.element, lo);
+      } else {
+        hi = new Node<>(n.hash, n.element, hi);
+      }
+    }
+    r.to.set(index, lo);
+    r.to.set(index + length, hi);
+    r.from.set(index, new Forward<>(r.to));
+  }
+
+  /** Add the elements of a bucket, following forwarding markers. */
+  private static <E> void collect(AtomicReferenceArray<Node<E>> t, int index,
+      List<E> out) {
+    Node<E> n = t.get(index);
+    if (n instanceof Forward) {
+      AtomicReferenceArray<Node<E>> next = ((Forward<E>) n).nextTable;
+      collect(next, index, out);
+      collect(next, index + t.length(), out);
+      return;
+    }
+    for (; n != null; n = n.next) {
+      out.add(n.element);
+    }
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return new SetIterator();
+  }
+
+  @Override
+  public Collection<E> values() {
+    return new AbstractCollection<E>() {
+      @Override
+      public Iterator<E> iterator() {
+        return ConcurrentResizableGSet.this.iterator();
+      }
+
+      @Override
+      public int size() {
+        return ConcurrentResizableGSet.this.size();
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override
+      public boolean contains(Object o) {
+        return ConcurrentResizableGSet.this.contains((K) o);
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(size=" + size()
+        + ", capacity=" + table.length() + ")";
+  }
+
+  /**
+   * Weakly consistent iterator: it walks the table seen at creation one
+   * bucket at a time, and reflects changes made to buckets not yet visited.
+   */
+  private class SetIterator implements Iterator<E> {
+    private final AtomicReferenceArray<Node<E>> t = table;
+    private final List<E> bucket = new ArrayList<>();
+    private int nextBucket = 0;
+    private int position = 0;
+    private E last;
+
+    private boolean advance() {
+      while (position >= bucket.size()) {
+        if (nextBucket >= t.length()) {
+          return false;
+        }
+        bucket.clear();
+        position = 0;
+        collect(t, nextBucket++, bucket);
+      }
+      return true;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return advance();
+    }
+
+    @Override
+    public E next() {
+      if (!advance()) {
+        throw new NoSuchElementException();
+      }
+      last = bucket.get(position++);
+      return last;
+    }
+
+    @Override
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      ConcurrentResizableGSet.this.remove(last);
+      last = null;
+    }
+  }
+}
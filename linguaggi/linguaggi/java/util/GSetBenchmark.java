@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Mini benchmark comparing {@link LightWeightResizableGSet} with
+ * {@link ConcurrentResizableGSet} under a read-heavy mixed workload, the
+ * access pattern of namespace and block map lookups. Each thread performs
+ * random gets with a small fraction of puts and removes on a pre-populated
+ * set, at 1 to 64 threads, and the operations per second are reported.
+ *
+ * Usage: GSetBenchmark [elements] [write percent] [seconds]
+ */
+public class GSetBenchmark {
+
+  /** An element usable by both implementations. */
+  private static final class Element
+      implements LightWeightGSet.LinkedElement {
+    private final long id;
+    private LightWeightGSet.LinkedElement next;
+
+    Element(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public void setNext(LightWeightGSet.LinkedElement next) {
+      this.next = next;
+    }
+
+    @Override
+    public LightWeightGSet.LinkedElement getNext() {
+      return next;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Element && ((Element) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(id * 0x9E3779B97F4A7C15L);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int elements = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+    int writePercent = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    System.out.printf("%-8s %-12s %15s%n", "threads", "gset", "ops/s");
+    for (int threads = 1; threads <= 64; threads *= 2) {
+      report(threads, "resizable", run(LightWeightResizableGSet::new,
+          elements, writePercent, threads, seconds));
+      report(threads, "concurrent", run(ConcurrentResizableGSet::new,
+          elements, writePercent, threads, seconds));
+    }
+  }
+
+  private static void report(int threads, String gset, double rate) {
+    System.out.printf("%-8d %-12s %15.0f%n", threads, gset, rate);
+  }
+
+  private static double run(Supplier<GSet<Element, Element>> factory,
+      final int elements, final int writePercent, int threads, int seconds)
+      throws InterruptedException {
+    final GSet<Element, Element> set = factory.get();
+    for (int i = 0; i < elements; i++) {
+      set.put(new Element(i));
+    }
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final LongAdder ops = new LongAdder();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      workers[t] = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        long n = 0;
+        while (running.get()) {
+          // twice the populated range, so about half of the gets miss
+          Element e = new Element(random.nextInt(elements * 2));
+          int dice = random.nextInt(100);
+          if (dice < writePercent / 2) {
+            set.put(e);
+          } else if (dice < writePercent) {
+            set.remove(e);
+          } else {
+            set.get(e);
+          }
+          if (++n % 1024 == 0) {
+            ops.add(1024);
+          }
+        }
+      });
+      workers[t].setDaemon(true);
+      workers[t].start();
+    }
+    start.countDown();
+    // warm up before measuring
+    Thread.sleep(1000);
+    long before = ops.sum();
+    long startNanos = System.nanoTime();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+    long count = ops.sum() - before;
+    long elapsedNanos = System.nanoTime() - startNanos;
+    running.set(false);
+    for (Thread w : workers) {
+      w.join();
+    }
+    return count * 1e9 / elapsedNanos;
+  }
+}
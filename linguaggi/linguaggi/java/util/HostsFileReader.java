@@ -21,16 +21,23 @@ package org.apache.hadoop.util;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
+import java.util.Objects;
 import java.util.Set;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceAudience.Private;
@@ -41,19 +48,32 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 // Keeps track of which datanodes/nodemanagers are allowed to connect to the
 // namenode/resourcemanager.
+//
+// With incremental refresh enabled, a refresh skips the files that have not
+// changed since they were last read, parses the others without logging every
+// host, and listeners are told only which hosts were added, removed or had
+// their timeout changed.
 @InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
 @InterfaceStability.Unstable
 public class HostsFileReader {
   private static final Logger LOG = LoggerFactory.getLogger(HostsFileReader
       .class);
+  private static final Pattern HOST_SEPARATOR =
+      Pattern.compile("[ \t\n\f\r]+");
 
   private final AtomicReference<HostDetails> current;
   private final AtomicReference<HostDetails> lazyLoaded =
       new AtomicReference<>();
+  private final List<HostsChangeListener> listeners =
+      new CopyOnWriteArrayList<>();
+  private volatile boolean incrementalRefresh;
 
   public HostsFileReader(String inFile,
                          String exFile) throws IOException {
@@ -85,13 +105,23 @@ public class HostsFileReader {
   public static void readFileToSetWithFileInputStream(String type,
       String filename, InputStream fileInputStream, Set<String> set)
       throws IOException {
+    readFileToCollection(type, filename, fileInputStream, set, null, true);
+  }
+
+  /**
+   * Read a plain hosts file into either a set or a map of hosts with the
+   * default timeout.
+   */
+  private static void readFileToCollection(String type, String filename,
+      InputStream fileInputStream, Set<String> set, Map<String, Integer> map,
+      boolean logHosts) throws IOException {
     BufferedReader reader = null;
     try {
       reader = new BufferedReader(
           new InputStreamReader(fileInputStream, StandardCharsets.UTF_8));
       String line;
       while ((line = reader.readLine()) != null) {
-        String[] nodes = line.split("[ \t\n\f\r]+");
+        String[] nodes = HOST_SEPARATOR.split(line);
         if (nodes != null) {
           for (int i = 0; i < nodes.length; i++) {
             nodes[i] = nodes[i].trim();
@@ -100,9 +130,15 @@ public class HostsFileReader {
               break;
             }
             if (!nodes[i].isEmpty()) {
-              LOG.info("Adding a node \"" + nodes[i] + "\" to the list of "
-                  + type + " hosts from " + filename);
-              set.add(nodes[i]);
+              if (logHosts) {
+                LOG.info("Adding a node \"" + nodes[i] + "\" to the list of "
+                    + type + " hosts from " + filename);
+              }
+              if (set != null) {
+                set.add(nodes[i]);
+              } else {
+                map.put(nodes[i], null);
+              }
             }
           }
         }
@@ -187,6 +223,95 @@ public class HostsFileReader {
     return (nodes.getLength() == 0)? null : nodes.item(0).getTextContent();
   }
 
+  /**
+   * Read a hosts file into a map like {@link #readFileToMap}, but without
+   * logging every host and, for XML, with a streaming parser instead of
+   * building the whole document.
+   */
+  static void readFileToMapStreaming(String type, String filename,
+      InputStream inputStream, Map<String, Integer> map) throws IOException {
+    if (!filename.toLowerCase().endsWith(".xml")) {
+      readFileToCollection(type, filename, inputStream, null, map, false);
+      return;
+    }
+    try {
+      SAXParser parser = XMLUtils.newSecureSAXParserFactory().newSAXParser();
+      parser.parse(new InputSource(inputStream), new HostsXmlHandler(map));
+    } catch (IOException|SAXException|ParserConfigurationException e) {
+      LOG.error("error parsing " + filename, e);
+      throw new RuntimeException(e);
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Collects the hosts of the XML format read by
+   * {@link #readXmlFileToMapWithFileInputStream}: the first name and timeout
+   * elements within each host element.
+   */
+  private static class HostsXmlHandler extends DefaultHandler {
+    private final Map<String, Integer> map;
+    private final StringBuilder text = new StringBuilder();
+    private int hostDepth;
+    private String capturing;
+    private int capturingDepth;
+    private int depth;
+    private String name;
+    private String timeout;
+
+    HostsXmlHandler(Map<String, Integer> map) {
+      this.map = map;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes attributes) {
+      depth++;
+      if (capturing != null) {
+        return;
+      }
+      if (qName.equals("host")) {
+        if (hostDepth == 0) {
+          hostDepth = depth;
+          name = null;
+          timeout = null;
+        }
+      } else if (hostDepth > 0 && ((qName.equals("name") && name == null)
+          || (qName.equals("timeout") && timeout == null))) {
+        capturing = qName;
+        capturingDepth = depth;
+        text.setLength(0);
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if (capturing != null) {
+        text.append(ch, start, length);
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      if (capturing != null && depth == capturingDepth) {
+        if (capturing.equals("name")) {
+          name = text.toString();
+        } else {
+          timeout = text.toString();
+        }
+        capturing = null;
+      } else if (depth == hostDepth) {
+        Integer t = (timeout == null)? null : Integer.parseInt(timeout);
+        for (String host : StringUtils.getTrimmedStrings(name)) {
+          map.put(host, t);
+        }
+        hostDepth = 0;
+      }
+      depth--;
+    }
+  }
+
   public void refresh(String includesFile, String excludesFile)
       throws IOException {
     refreshInternal(includesFile, excludesFile, false);
@@ -204,32 +329,111 @@ public class HostsFileReader {
     HostDetails oldDetails = current.get();
     Set<String> newIncludes = oldDetails.includes;
     Map<String, Integer> newExcludes = oldDetails.excludes;
+    FileStamp includesStamp = null;
+    FileStamp excludesStamp = null;
+    boolean incremental = incrementalRefresh;
     if (includesFile != null && !includesFile.isEmpty()) {
-      newIncludes = new HashSet<>();
-      readFileToSet("included", includesFile, newIncludes);
-      newIncludes = Collections.unmodifiableSet(newIncludes);
+      includesStamp = incremental? FileStamp.of(includesFile) : null;
+      if (includesStamp != null
+          && includesStamp.isUnchanged(oldDetails.includesStamp)) {
+        LOG.info("Skipping unchanged includes file {}", includesFile);
+        includesStamp = oldDetails.includesStamp;
+      } else if (incremental) {
+        newIncludes = new HashSet<>();
+        readFileToCollection("included", includesFile,
+            Files.newInputStream(Paths.get(includesFile)), newIncludes, null,
+            false);
+        newIncludes = Collections.unmodifiableSet(newIncludes);
+      } else {
+        newIncludes = new HashSet<>();
+        readFileToSet("included", includesFile, newIncludes);
+        newIncludes = Collections.unmodifiableSet(newIncludes);
+      }
     }
     if (excludesFile != null && !excludesFile.isEmpty()) {
-      newExcludes = new HashMap<>();
-      readFileToMap("excluded", excludesFile, newExcludes);
-      newExcludes = Collections.unmodifiableMap(newExcludes);
+      excludesStamp = incremental? FileStamp.of(excludesFile) : null;
+      if (excludesStamp != null
+          && excludesStamp.isUnchanged(oldDetails.excludesStamp)) {
+        LOG.info("Skipping unchanged excludes file {}", excludesFile);
+        excludesStamp = oldDetails.excludesStamp;
+      } else if (incremental) {
+        newExcludes = new HashMap<>();
+        readFileToMapStreaming("excluded", excludesFile,
+            Files.newInputStream(Paths.get(excludesFile)), newExcludes);
+        newExcludes = Collections.unmodifiableMap(newExcludes);
+      } else {
+        newExcludes = new HashMap<>();
+        readFileToMap("excluded", excludesFile, newExcludes);
+        newExcludes = Collections.unmodifiableMap(newExcludes);
+      }
     }
     HostDetails newDetails = new HostDetails(includesFile, newIncludes,
-        excludesFile, newExcludes);
+        excludesFile, newExcludes, includesStamp, excludesStamp);
 
     if (lazy) {
       lazyLoaded.set(newDetails);
     } else {
-      current.set(newDetails);
+      publish(newDetails);
     }
   }
 
+  /**
+   * Make the given hosts current and tell the listeners what changed.
+   */
+  private void publish(HostDetails newDetails) {
+    HostDetails oldDetails = current.getAndSet(newDetails);
+    if (listeners.isEmpty()) {
+      return;
+    }
+    HostsDiff diff = new HostsDiff(oldDetails, newDetails);
+    if (diff.isEmpty()) {
+      return;
+    }
+    LOG.info("Hosts changed: {}", diff);
+    for (HostsChangeListener listener : listeners) {
+      try {
+        listener.hostsChanged(newDetails, diff);
+      } catch (RuntimeException e) {
+        LOG.warn("Hosts change listener " + listener + " failed", e);
+      }
+    }
+  }
+
+  /**
+   * Enable or disable incremental refresh. When enabled, a refresh stats the
+   * include and exclude files and only reads those changed since they were
+   * last read, without logging every host.
+   *
+   * @param incremental whether to refresh incrementally
+   */
+  public void setIncrementalRefresh(boolean incremental) {
+    this.incrementalRefresh = incremental;
+  }
+
+  public boolean isIncrementalRefresh() {
+    return incrementalRefresh;
+  }
+
+  /**
+   * Add a listener to be told about the changed hosts after each refresh
+   * which changes them. Listeners are called by the refreshing thread.
+   *
+   * @param listener the listener
+   */
+  public void addHostsChangeListener(HostsChangeListener listener) {
+    listeners.add(Objects.requireNonNull(listener));
+  }
+
+  public void removeHostsChangeListener(HostsChangeListener listener) {
+    listeners.remove(listener);
+  }
+
   public void finishRefresh() {
     if (lazyLoaded.get() == null) {
       throw new IllegalStateException(
           "Cannot finish refresh - call lazyRefresh() first");
     }
-    current.set(lazyLoaded.get());
+    publish(lazyLoaded.get());
     lazyLoaded.set(null);
   }
 
@@ -255,7 +459,7 @@ public class HostsFileReader {
     HostDetails newDetails = new HostDetails(
         oldDetails.includesFile, newIncludes,
         oldDetails.excludesFile, newExcludes);
-    current.set(newDetails);
+    publish(newDetails);
   }
 
   public Set<String> getHosts() {
@@ -336,6 +540,147 @@ public class HostsFileReader {
     current.set(newDetails);
   }
 
+  /**
+   * A listener of the changes of the included and excluded hosts.
+   */
+  public interface HostsChangeListener {
+    /**
+     * Called after a refresh changed the hosts.
+     *
+     * @param details the new included and excluded hosts
+     * @param diff the changes from the previous hosts
+     */
+    void hostsChanged(HostDetails details, HostsDiff diff);
+  }
+
+  /**
+   * The changes between two views of the included and excluded hosts.
+   */
+  public static class HostsDiff {
+    private final Set<String> addedIncludes = new HashSet<>();
+    private final Set<String> removedIncludes = new HashSet<>();
+    private final Map<String, Integer> addedExcludes = new HashMap<>();
+    private final Set<String> removedExcludes = new HashSet<>();
+    private final Map<String, Integer> changedExcludes = new HashMap<>();
+
+    HostsDiff(HostDetails oldDetails, HostDetails newDetails) {
+      // an unchanged file keeps its hosts instance
+      if (oldDetails.includes != newDetails.includes) {
+        for (String host : newDetails.includes) {
+          if (!oldDetails.includes.contains(host)) {
+            addedIncludes.add(host);
+          }
+        }
+        for (String host : oldDetails.includes) {
+          if (!newDetails.includes.contains(host)) {
+            removedIncludes.add(host);
+          }
+        }
+      }
+      if (oldDetails.excludes != newDetails.excludes) {
+        for (Map.Entry<String, Integer> e : newDetails.excludes.entrySet()) {
+          String host = e.getKey();
+          if (!oldDetails.excludes.containsKey(host)) {
+            addedExcludes.put(host, e.getValue());
+          } else if (!Objects.equals(e.getValue(),
+              oldDetails.excludes.get(host))) {
+            changedExcludes.put(host, e.getValue());
+          }
+        }
+        for (String host : oldDetails.excludes.keySet()) {
+          if (!newDetails.excludes.containsKey(host)) {
+            removedExcludes.add(host);
+          }
+        }
+      }
+    }
+
+    public Set<String> getAddedIncludes() {
+      return Collections.unmodifiableSet(addedIncludes);
+    }
+
+    public Set<String> getRemovedIncludes() {
+      return Collections.unmodifiableSet(removedIncludes);
+    }
+
+    /**
+     * @return the newly excluded hosts with their timeouts
+     */
+    public Map<String, Integer> getAddedExcludes() {
+      return Collections.unmodifiableMap(addedExcludes);
+    }
+
+    public Set<String> getRemovedExcludes() {
+      return Collections.unmodifiableSet(removedExcludes);
+    }
+
+    /**
+     * @return the excluded hosts whose timeout changed, with the new timeouts
+     */
+    public Map<String, Integer> getChangedExcludes() {
+      return Collections.unmodifiableMap(changedExcludes);
+    }
+
+    public boolean isEmpty() {
+      return addedIncludes.isEmpty() && removedIncludes.isEmpty()
+          && addedExcludes.isEmpty() && removedExcludes.isEmpty()
+          && changedExcludes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+      return "includes +" + addedIncludes.size() + " -" + removedIncludes.size()
+          + ", excludes +" + addedExcludes.size() + " -"
+          + removedExcludes.size() + " ~" + changedExcludes.size();
+    }
+  }
+
+  /**
+   * The attributes of a hosts file when it was read, to skip reading it again
+   * if it has not changed.
+   */
+  static final class FileStamp {
+    /**
+     * Files modified this close to being read may change again without a
+     * different modification time on file systems with a coarse granularity,
+     * so they are always read again.
+     */
+    static final long RACY_INTERVAL_MS = 2000;
+
+    private final String filename;
+    private final long size;
+    private final long modificationTime;
+    private final Object fileKey;
+    private final long stampTime;
+
+    private FileStamp(String filename, BasicFileAttributes attributes) {
+      this.filename = filename;
+      this.size = attributes.size();
+      this.modificationTime = attributes.lastModifiedTime().toMillis();
+      this.fileKey = attributes.fileKey();
+      this.stampTime = System.currentTimeMillis();
+    }
+
+    /** Stat the file, before reading it so that a concurrent write is seen
+     * by the next refresh. */
+    static FileStamp of(String filename) throws IOException {
+      return new FileStamp(filename, Files.readAttributes(Paths.get(filename),
+          BasicFileAttributes.class));
+    }
+
+    /**
+     * @return whether the file is the same as when the given stamp was taken.
+     */
+    boolean isUnchanged(FileStamp old) {
+      return old != null
+          && filename.equals(old.filename)
+          && size == old.size
+          && modificationTime == old.modificationTime
+          && Objects.equals(fileKey, old.fileKey)
+          && modificationTime < old.stampTime - RACY_INTERVAL_MS;
+    }
+  }
+
   /**
    * An atomic view of the included and excluded hosts
    */
@@ -346,13 +691,24 @@ public class HostsFileReader {
     // exclude host list with optional timeout.
     // If the value is null, it indicates default timeout.
     private final Map<String, Integer> excludes;
+    // the files as read by an incremental refresh, or null.
+    private final FileStamp includesStamp;
+    private final FileStamp excludesStamp;
 
     HostDetails(String includesFile, Set<String> includes,
         String excludesFile, Map<String, Integer> excludes) {
+      this(includesFile, includes, excludesFile, excludes, null, null);
+    }
+
+    HostDetails(String includesFile, Set<String> includes,
+        String excludesFile, Map<String, Integer> excludes,
+        FileStamp includesStamp, FileStamp excludesStamp) {
       this.includesFile = includesFile;
       this.includes = includes;
       this.excludesFile = excludesFile;
       this.excludes = excludes;
+      this.includesStamp = includesStamp;
+      this.excludesStamp = excludesStamp;
     }
 
     public String getIncludesFile() {
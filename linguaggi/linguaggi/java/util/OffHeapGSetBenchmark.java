@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Mini benchmark comparing {@link LightWeightResizableGSet} with
+ * {@link OffHeapLongGSet} for a block-like element of an id and two longs.
+ * For each set it reports the heap retained after populating it, the
+ * memory used outside the heap, and the mean latency of random lookups.
+ *
+ * Usage: OffHeapGSetBenchmark [elements] [lookups]
+ */
+public class OffHeapGSetBenchmark {
+
+  /** A block-like element usable by both implementations. */
+  private static final class Block implements LightWeightGSet.LinkedElement {
+    private final long id;
+    private final long numBytes;
+    private final long generationStamp;
+    private LightWeightGSet.LinkedElement next;
+
+    Block(long id, long numBytes, long generationStamp) {
+      this.id = id;
+      this.numBytes = numBytes;
+      this.generationStamp = generationStamp;
+    }
+
+    @Override
+    public void setNext(LightWeightGSet.LinkedElement next) {
+      this.next = next;
+    }
+
+    @Override
+    public LightWeightGSet.LinkedElement getNext() {
+      return next;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Block && ((Block) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(id);
+    }
+  }
+
+  private static final OffHeapLongGSet.RecordCodec<Block, Block> CODEC =
+      new OffHeapLongGSet.RecordCodec<Block, Block>() {
+        @Override
+        public long getId(Block key) {
+          return key.id;
+        }
+
+        @Override
+        public int getRecordLength() {
+          return 2 * Long.BYTES;
+        }
+
+        @Override
+        public void encode(Block element, ByteBuffer out) {
+          out.putLong(element.numBytes);
+          out.putLong(element.generationStamp);
+        }
+
+        @Override
+        public Block decode(long id, ByteBuffer in) {
+          return new Block(id, in.getLong(), in.getLong());
+        }
+      };
+
+  public static void main(String[] args) throws Exception {
+    int elements = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+    System.out.printf("%-10s %12s %12s %12s%n",
+        "gset", "heap MB", "off-heap MB", "get ns");
+
+    long base = usedHeap();
+    GSet<Block, Block> onHeap = new LightWeightResizableGSet<>();
+    populate(onHeap, elements);
+    long heap = usedHeap() - base;
+    report("resizable", heap, 0, lookup(onHeap, elements, lookups));
+    onHeap = null;
+
+    base = usedHeap();
+    try (OffHeapLongGSet<Block, Block> offHeap =
+        new OffHeapLongGSet<>(CODEC, elements)) {
+      populate(offHeap, elements);
+      heap = usedHeap() - base;
+      report("off-heap", heap, offHeap.getOffHeapBytes(),
+          lookup(offHeap, elements, lookups));
+    }
+  }
+
+  private static void report(String gset, long heap, long offHeap,
+      double nanos) {
+    System.out.printf("%-10s %12d %12d %12.1f%n", gset,
+        Math.max(0, heap) >> 20, offHeap >> 20, nanos);
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void populate(GSet<Block, Block> set, int elements) {
+    // block ids are allocated sequentially
+    for (int i = 0; i < elements; i++) {
+      set.put(new Block(1073741825L + i, 134217728L, 1001L + i));
+    }
+  }
+
+  /** @return mean nanoseconds per lookup, after a warm up pass. */
+  private static double lookup(GSet<Block, Block> set, int elements,
+      int lookups) {
+    long[] ids = new long[lookups];
+    Random random = new Random(0);
+    for (int i = 0; i < lookups; i++) {
+      ids[i] = 1073741825L + random.nextInt(elements);
+    }
+    long sink = 0;
+    long start = 0;
+    for (int pass = 0; pass < 2; pass++) {
+      start = System.nanoTime();
+      for (long id : ids) {
+        sink += set.get(new Block(id, 0, 0)).numBytes;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sink == 42) {
+      System.out.println();
+    }
+    return (double) elapsed / lookups;
+  }
+}
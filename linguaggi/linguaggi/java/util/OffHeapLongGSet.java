@@ -0,0 +1,589 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import org.apache.hadoop.HadoopIllegalArgumentException;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link GSet} implementation for very large sets of elements identified
+ * by a primitive long id, such as blocks. Elements are not kept on the
+ * heap: each one is encoded by a {@link RecordCodec} into a fixed-size
+ * record of an open addressing table in direct or memory-mapped memory,
+ * and a new element object is decoded from its record on every
+ * {@link #get(Object)}. A table of N elements thus costs about
+ * (8 + record length) * N / load factor bytes outside the heap and no
+ * objects for the garbage collector to trace.
+ *
+ * Collisions are resolved by linear probing and removal shifts the
+ * following records back, so the table never accumulates tombstones.
+ * If the size of elements exceeds the threshold, the table is rehashed
+ * into one of double capacity. Once the table is at its maximal capacity,
+ * {@link #put(Object)} of a new element throws {@link IllegalStateException}
+ * instead of filling it up.
+ *
+ * Since elements are copies, modifying an element returned by
+ * {@link #get(Object)} does not change the set; it has to be put again.
+ * The id {@link Long#MIN_VALUE} is reserved and cannot be stored.
+ *
+ * This class is thread safe: reads share a lock and writes are exclusive.
+ * {@link #close()} releases the memory of the table.
+ *
+ * @param <K> Key type for looking up the elements
+ * @param <E> Element type, which must be a subclass of K.
+ */
+@InterfaceAudience.Private
+public class OffHeapLongGSet<K, E extends K> implements GSet<K, E>, Closeable {
+
+  /**
+   * Maps elements to their id and fixed-size record.
+   * @param <K> Key type.
+   * @param <E> Element type.
+   */
+  public interface RecordCodec<K, E extends K> {
+    /**
+     * @param key key or element.
+     * @return the id of the key.
+     */
+    long getId(K key);
+
+    /** @return the length of a record in bytes. */
+    int getRecordLength();
+
+    /**
+     * Write the record of an element, exactly record length bytes.
+     * @param element the element.
+     * @param out buffer positioned at the record.
+     */
+    void encode(E element, ByteBuffer out);
+
+    /**
+     * Create an element from its record. The buffer is only valid during
+     * the call.
+     * @param id the element id.
+     * @param in buffer positioned at the record.
+     * @return the element.
+     */
+    E decode(long id, ByteBuffer in);
+  }
+
+  /** The default initial capacity - MUST be a power of two. */
+  static final int DEFAULT_INITIAL_CAPACITY = 1 << 16;
+
+  /** The load factor used when none specified in constructor. */
+  static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+  static final long MAX_CAPACITY = 1L << 40;
+
+  /** Upper bound of a single buffer, which is indexed by int. */
+  private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+  /** Ids are stored with the sign bit flipped so that 0 marks a free slot. */
+  private static final long ID_MASK = Long.MIN_VALUE;
+
+  private final RecordCodec<K, E> codec;
+  private final int recordLength;
+  private final int slotLength;
+  private final float loadFactor;
+  /** Capacity the table does not grow beyond; a power of two. */
+  private final long maxCapacity;
+  /** Directory for memory-mapped tables, or null for direct memory. */
+  private final File mmapDir;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private ByteBuffer[] segments;
+  private int segmentShift;
+  private long segmentMask;
+  private long capacity;
+  private long mask;
+  private long threshold;
+  private long size;
+  private int modification;
+  private boolean closed;
+
+  /**
+   * @param codec codec of the elements.
+   * @param initCapacity initial number of slots.
+   * @param loadFactor maximal fraction of occupied slots.
+   * @param mmapDir directory holding the table in memory-mapped files, so
+   *     the kernel can page it out; null to use direct memory.
+   */
+  public OffHeapLongGSet(RecordCodec<K, E> codec, long initCapacity,
+      float loadFactor, File mmapDir) {
+    this(codec, initCapacity, loadFactor, mmapDir, MAX_CAPACITY);
+  }
+
+  @VisibleForTesting
+  OffHeapLongGSet(RecordCodec<K, E> codec, long initCapacity,
+      float loadFactor, File mmapDir, long maxCapacity) {
+    if (initCapacity < 0) {
+      throw new HadoopIllegalArgumentException("Illegal initial capacity: " +
+          initCapacity);
+    }
+    if (loadFactor <= 0 || loadFactor >= 1.0f) {
+      throw new HadoopIllegalArgumentException("Illegal load factor: " +
+          loadFactor);
+    }
+    this.codec = codec;
+    this.recordLength = codec.getRecordLength();
+    this.slotLength = Long.BYTES + recordLength;
+    if (slotLength > MAX_SEGMENT_BYTES) {
+      throw new HadoopIllegalArgumentException("Illegal record length: " +
+          recordLength);
+    }
+    this.loadFactor = loadFactor;
+    this.mmapDir = mmapDir;
+    this.maxCapacity = Math.min(actualCapacity(maxCapacity), MAX_CAPACITY);
+    allocate(Math.min(actualCapacity(initCapacity), this.maxCapacity));
+  }
+
+  public OffHeapLongGSet(RecordCodec<K, E> codec, long initCapacity) {
+    this(codec, initCapacity, DEFAULT_LOAD_FACTOR, null);
+  }
+
+  public OffHeapLongGSet(RecordCodec<K, E> codec) {
+    this(codec, DEFAULT_INITIAL_CAPACITY);
+  }
+
+  private static long actualCapacity(long recommended) {
+    if (recommended > MAX_CAPACITY) {
+      return MAX_CAPACITY;
+    } else if (recommended < 2) {
+      return 2;
+    } else {
+      return Long.highestOneBit(recommended - 1) << 1;
+    }
+  }
+
+  /** Allocate an empty table of the given number of slots. */
+  private void allocate(long slots) {
+    int slotsPerSegment = Integer.highestOneBit(MAX_SEGMENT_BYTES / slotLength);
+    long segmentSlots = Math.min(slots, slotsPerSegment);
+    int numSegments = (int) (slots / segmentSlots);
+    ByteBuffer[] newSegments = new ByteBuffer[numSegments];
+    try {
+      for (int i = 0; i < numSegments; i++) {
+        newSegments[i] = allocateSegment((int) (segmentSlots * slotLength));
+      }
+    } catch (IOException e) {
+      free(newSegments);
+      throw new UncheckedIOException("Failed to allocate " + slots
+          + " slots in " + mmapDir, e);
+    }
+    this.segments = newSegments;
+    this.segmentShift = Long.numberOfTrailingZeros(segmentSlots);
+    this.segmentMask = segmentSlots - 1;
+    this.capacity = slots;
+    this.mask = slots - 1;
+    this.threshold = (long) (slots * loadFactor);
+  }
+
+  private ByteBuffer allocateSegment(int bytes) throws IOException {
+    if (mmapDir == null) {
+      return ByteBuffer.allocateDirect(bytes);
+    }
+    File file = File.createTempFile("gset", ".tbl", mmapDir);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // a new sparse file reads as zeros, which marks all slots free
+      raf.setLength(bytes);
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+    } finally {
+      // the mapping outlives the file name
+      if (!file.delete()) {
+        LOG.warn("Failed to delete " + file);
+      }
+    }
+  }
+
+  private static void free(ByteBuffer[] buffers) {
+    if (!CleanerUtil.UNMAP_SUPPORTED) {
+      LOG.trace(CleanerUtil.UNMAP_NOT_SUPPORTED_REASON);
+      return;
+    }
+    for (ByteBuffer buffer : buffers) {
+      if (buffer != null) {
+        try {
+          CleanerUtil.getCleaner().freeBuffer(buffer);
+        } catch (IOException e) {
+          LOG.info("Failed to free the buffer", e);
+        }
+      }
+    }
+  }
+
+  /** Finalization step of MurmurHash3, spreads sequential ids. */
+  private static long hash(long id) {
+    long h = id;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private ByteBuffer segment(long slot) {
+    return segments[(int) (slot >>> segmentShift)];
+  }
+
+  private int offset(long slot) {
+    return (int) (slot & segmentMask) * slotLength;
+  }
+
+  /** @return the stored (flipped) id of a slot, 0 if the slot is free. */
+  private long storedId(long slot) {
+    return segment(slot).getLong(offset(slot));
+  }
+
+  private ByteBuffer record(long slot) {
+    ByteBuffer b = segment(slot).duplicate();
+    int off = offset(slot) + Long.BYTES;
+    b.limit(off + recordLength);
+    b.position(off);
+    return b;
+  }
+
+  /** @return the slot holding the id or, if absent, the free slot ending
+   *      its probe sequence. */
+  private long probe(long id) {
+    long stored = id ^ ID_MASK;
+    long slot = hash(id) & mask;
+    // put keeps size below capacity, so this only fails if that is broken
+    for (long i = 0; i < capacity; i++) {
+      long s = storedId(slot);
+      if (s == 0 || s == stored) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    throw new IllegalStateException("No free slot in a table of capacity "
+        + capacity);
+  }
+
+  private long checkedId(K key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    long id = codec.getId(key);
+    if (id == Long.MIN_VALUE) {
+      throw new HadoopIllegalArgumentException("Reserved id: " + id);
+    }
+    return id;
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("The set is closed");
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return (int) Math.min(size, Integer.MAX_VALUE);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return the number of bytes the table occupies outside the heap. */
+  public long getOffHeapBytes() {
+    lock.readLock().lock();
+    try {
+      return closed ? 0 : capacity * slotLength;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean contains(K key) {
+    long id = checkedId(key);
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      return storedId(probe(id)) != 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public E get(K key) {
+    long id = checkedId(key);
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      long slot = probe(id);
+      return storedId(slot) == 0 ? null : codec.decode(id, record(slot));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public E put(final E element) {
+    if (element == null) {
+      throw new NullPointerException("Null element is not supported.");
+    }
+    long id = checkedId(element);
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      long slot = probe(id);
+      E existing = null;
+      if (storedId(slot) != 0) {
+        existing = codec.decode(id, record(slot));
+      } else {
+        if (size >= threshold) {
+          if (capacity >= maxCapacity) {
+            throw new IllegalStateException("The set is full: " + size
+                + " elements at the maximal capacity " + maxCapacity);
+          }
+          resize(capacity << 1);
+          slot = probe(id);
+        }
+        segment(slot).putLong(offset(slot), id ^ ID_MASK);
+        size++;
+      }
+      codec.encode(element, record(slot));
+      modification++;
+      return existing;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public E remove(K key) {
+    long id = checkedId(key);
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      long slot = probe(id);
+      if (storedId(slot) == 0) {
+        return null;
+      }
+      E existing = codec.decode(id, record(slot));
+      delete(slot);
+      size--;
+      modification++;
+      return existing;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Free a slot, shifting back the following records of the probe run
+   * whose home slot is not between the freed slot and their own slot.
+   */
+  private void delete(long slot) {
+    long free = slot;
+    long next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      long stored = storedId(next);
+      if (stored == 0) {
+        break;
+      }
+      long home = hash(stored ^ ID_MASK) & mask;
+      // distance from home must cover the free slot for the record to move
+      if (((next - home) & mask) >= ((next - free) & mask)) {
+        copySlot(next, free);
+        free = next;
+      }
+    }
+    segment(free).putLong(offset(free), 0L);
+  }
+
+  private void copySlot(long from, long to) {
+    ByteBuffer src = segment(from).duplicate();
+    int off = offset(from);
+    src.limit(off + slotLength);
+    src.position(off);
+    ByteBuffer dst = segment(to).duplicate();
+    dst.position(offset(to));
+    dst.put(src);
+  }
+
+  private void resize(long newCapacity) {
+    ByteBuffer[] oldSegments = segments;
+    int oldShift = segmentShift;
+    long oldCapacity = capacity;
+    int oldSegmentSlots = (int) (segmentMask + 1);
+    allocate(newCapacity);
+    for (long slot = 0; slot < oldCapacity; slot++) {
+      ByteBuffer seg = oldSegments[(int) (slot >>> oldShift)];
+      int off = (int) (slot & (oldSegmentSlots - 1)) * slotLength;
+      long stored = seg.getLong(off);
+      if (stored == 0) {
+        continue;
+      }
+      long to = probe(stored ^ ID_MASK);
+      ByteBuffer src = seg.duplicate();
+      src.limit(off + slotLength);
+      src.position(off);
+      ByteBuffer dst = segment(to).duplicate();
+      dst.position(offset(to));
+      dst.put(src);
+    }
+    free(oldSegments);
+  }
+
+  @Override
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      for (ByteBuffer seg : segments) {
+        for (int off = 0; off < seg.capacity(); off += slotLength) {
+          seg.putLong(off, 0L);
+        }
+      }
+      size = 0;
+      modification++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      if (!closed) {
+        closed = true;
+        free(segments);
+        segments = null;
+        size = 0;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The iterator decodes each element as it is reached. It fails with
+   * {@link ConcurrentModificationException} if the set is modified, and
+   * does not support removal, which would move records across it.
+   */
+  @Override
+  public Iterator<E> iterator() {
+    return new SetIterator();
+  }
+
+  @Override
+  public Collection<E> values() {
+    return new AbstractCollection<E>() {
+      @Override
+      public Iterator<E> iterator() {
+        return OffHeapLongGSet.this.iterator();
+      }
+
+      @Override
+      public int size() {
+        return OffHeapLongGSet.this.size();
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override
+      public boolean contains(Object o) {
+        return OffHeapLongGSet.this.contains((K) o);
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(size=" + size()
+        + ", capacity=" + capacity + ", recordLength=" + recordLength + ")";
+  }
+
+  private class SetIterator implements Iterator<E> {
+    private final int expectedModification;
+    private long slot = -1;
+
+    SetIterator() {
+      lock.readLock().lock();
+      try {
+        expectedModification = modification;
+        advance();
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /** Move to the next occupied slot. The caller holds the read lock. */
+    private void advance() {
+      if (modification != expectedModification) {
+        throw new ConcurrentModificationException(
+            "The set has been modified");
+      }
+      checkOpen();
+      do {
+        slot++;
+      } while (slot < capacity && storedId(slot) == 0);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return slot < capacity;
+    }
+
+    @Override
+    public E next() {
+      lock.readLock().lock();
+      try {
+        if (slot >= capacity) {
+          throw new NoSuchElementException();
+        }
+        if (modification != expectedModification) {
+          throw new ConcurrentModificationException(
+              "The set has been modified");
+        }
+        E e = codec.decode(storedId(slot) ^ ID_MASK, record(slot));
+        advance();
+        return e;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove is not supported.");
+    }
+  }
+}
@@ -0,0 +1,362 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pure-java counterpart of {@link NativeCrc32} for hosts without
+ * libhadoop, with the same bulk API over chunked data and checksums.
+ *
+ * Chunks are checksummed with the JDK's {@link CRC32} and, on Java 9 and
+ * later, {@code java.util.zip.CRC32C}, which the JIT compiles to the
+ * hardware CRC instructions, and directly on {@link ByteBuffer}s without
+ * copying. Where the JDK has no CRC32C a table driven slicing-by-16
+ * implementation is used, which processes 16 bytes per iteration.
+ */
+class PureJavaChunkedCrc {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(PureJavaChunkedCrc.class);
+
+  /** Reflected polynomial of CRC32. */
+  static final int CRC32_POLYNOMIAL = 0xEDB88320;
+  /** Reflected polynomial of CRC32C (Castagnoli). */
+  static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+
+  private static final int[] CRC32_TABLE = slicingTable(CRC32_POLYNOMIAL);
+  private static final int[] CRC32C_TABLE = slicingTable(CRC32C_POLYNOMIAL);
+
+  private static final MethodHandle NEW_JDK_CRC32C;
+  private static final MethodHandle UPDATE_BYTE_BUFFER;
+
+  static {
+    MethodHandle newCrc32c = null;
+    MethodHandle update = null;
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      Class<?> cls = Class.forName("java.util.zip.CRC32C");
+      newCrc32c = lookup.findConstructor(cls, MethodType.methodType(void.class))
+          .asType(MethodType.methodType(Checksum.class));
+      // Checksum#update(ByteBuffer) is a default method since Java 9
+      update = lookup.findVirtual(Checksum.class, "update",
+          MethodType.methodType(void.class, ByteBuffer.class));
+    } catch (ReflectiveOperationException e) {
+      LOG.debug("java.util.zip.CRC32C is not available, using slicing-by-16",
+          e);
+      newCrc32c = null;
+    }
+    NEW_JDK_CRC32C = newCrc32c;
+    UPDATE_BYTE_BUFFER = update;
+  }
+
+  private PureJavaChunkedCrc() {
+  }
+
+  /**
+   * Build the 16 lookup tables of slicing-by-16 in one array: entry
+   * {@code k * 256 + b} is the CRC of byte b followed by k zero bytes.
+   */
+  static int[] slicingTable(int polynomial) {
+    int[] table = new int[16 * 256];
+    for (int b = 0; b < 256; b++) {
+      int crc = b;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc >>> 1) ^ ((crc & 1) != 0 ? polynomial : 0);
+      }
+      table[b] = crc;
+    }
+    for (int k = 1; k < 16; k++) {
+      for (int b = 0; b < 256; b++) {
+        int prev = table[(k - 1) * 256 + b];
+        table[k * 256 + b] = (prev >>> 8) ^ table[prev & 0xff];
+      }
+    }
+    return table;
+  }
+
+  /**
+   * @return true if CRC32C is computed by the JDK rather than by the
+   *     slicing-by-16 fallback.
+   */
+  static boolean isJdkCrc32cAvailable() {
+    return NEW_JDK_CRC32C != null;
+  }
+
+  /**
+   * Computes the CRC of one chunk at a time. An instance is not thread
+   * safe; the bulk methods create one per call.
+   */
+  abstract static class Engine {
+    /** @return the CRC of data[off, off + len). */
+    abstract int crc(byte[] data, int off, int len);
+
+    /** @return the CRC of data[off, off + len), the buffer is not modified. */
+    abstract int crc(ByteBuffer data, int off, int len);
+  }
+
+  /** Chunk engine backed by a JDK checksum intrinsic. */
+  private static final class JdkEngine extends Engine {
+    private final Checksum checksum;
+    private final boolean isCrc32;
+    private ByteBuffer source;
+    private ByteBuffer view;
+
+    JdkEngine(Checksum checksum) {
+      this.checksum = checksum;
+      this.isCrc32 = checksum instanceof CRC32;
+    }
+
+    @Override
+    int crc(byte[] data, int off, int len) {
+      checksum.reset();
+      checksum.update(data, off, len);
+      return (int) checksum.getValue();
+    }
+
+    @Override
+    int crc(ByteBuffer data, int off, int len) {
+      if (data.hasArray()) {
+        return crc(data.array(), data.arrayOffset() + off, len);
+      }
+      if (source != data) {
+        source = data;
+        view = data.duplicate();
+      }
+      view.limit(off + len);
+      view.position(off);
+      checksum.reset();
+      if (isCrc32) {
+        ((CRC32) checksum).update(view);
+      } else {
+        try {
+          UPDATE_BYTE_BUFFER.invokeExact(checksum, view);
+        } catch (Throwable t) {
+          throw new IllegalStateException("Failed to update " + checksum, t);
+        }
+      }
+      return (int) checksum.getValue();
+    }
+  }
+
+  /** Chunk engine using slicing-by-16 lookup tables. */
+  static final class SlicingEngine extends Engine {
+    private final int[] t;
+    private ByteBuffer source;
+    /** Little endian view of the source, to read ints in CRC order. */
+    private ByteBuffer view;
+
+    SlicingEngine(int[] table) {
+      this.t = table;
+    }
+
+    @Override
+    int crc(byte[] b, int off, int len) {
+      int crc = 0xffffffff;
+      int i = off;
+      for (final int end = off + (len & ~15); i < end; i += 16) {
+        crc = slice(crc,
+            (b[i] & 0xff) | (b[i + 1] & 0xff) << 8
+                | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24,
+            (b[i + 4] & 0xff) | (b[i + 5] & 0xff) << 8
+                | (b[i + 6] & 0xff) << 16 | b[i + 7] << 24,
+            (b[i + 8] & 0xff) | (b[i + 9] & 0xff) << 8
+                | (b[i + 10] & 0xff) << 16 | b[i + 11] << 24,
+            (b[i + 12] & 0xff) | (b[i + 13] & 0xff) << 8
+                | (b[i + 14] & 0xff) << 16 | b[i + 15] << 24);
+      }
+      for (final int end = off + len; i < end; i++) {
+        crc = (crc >>> 8) ^ t[(crc ^ b[i]) & 0xff];
+      }
+      return ~crc;
+    }
+
+    @Override
+    int crc(ByteBuffer data, int off, int len) {
+      if (data.hasArray()) {
+        return crc(data.array(), data.arrayOffset() + off, len);
+      }
+      if (source != data) {
+        source = data;
+        view = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      }
+      int crc = 0xffffffff;
+      int i = off;
+      for (final int end = off + (len & ~15); i < end; i += 16) {
+        crc = slice(crc, view.getInt(i), view.getInt(i + 4),
+            view.getInt(i + 8), view.getInt(i + 12));
+      }
+      for (final int end = off + len; i < end; i++) {
+        crc = (crc >>> 8) ^ t[(crc ^ view.get(i)) & 0xff];
+      }
+      return ~crc;
+    }
+
+    /** Fold 16 bytes, given as four little endian ints, into the crc. */
+    private int slice(int crc, int a, int b, int c, int d) {
+      a ^= crc;
+      return t[0xf00 + (a & 0xff)] ^ t[0xe00 + ((a >>> 8) & 0xff)]
+          ^ t[0xd00 + ((a >>> 16) & 0xff)] ^ t[0xc00 + (a >>> 24)]
+          ^ t[0xb00 + (b & 0xff)] ^ t[0xa00 + ((b >>> 8) & 0xff)]
+          ^ t[0x900 + ((b >>> 16) & 0xff)] ^ t[0x800 + (b >>> 24)]
+          ^ t[0x700 + (c & 0xff)] ^ t[0x600 + ((c >>> 8) & 0xff)]
+          ^ t[0x500 + ((c >>> 16) & 0xff)] ^ t[0x400 + (c >>> 24)]
+          ^ t[0x300 + (d & 0xff)] ^ t[0x200 + ((d >>> 8) & 0xff)]
+          ^ t[0x100 + ((d >>> 16) & 0xff)] ^ t[d >>> 24];
+    }
+  }
+
+  /**
+   * @param checksumType the DataChecksum type constant.
+   * @return the fastest available engine for the checksum type.
+   */
+  static Engine newEngine(int checksumType) {
+    switch (checksumType) {
+    case DataChecksum.CHECKSUM_CRC32:
+      return new JdkEngine(new CRC32());
+    case DataChecksum.CHECKSUM_CRC32C:
+      if (NEW_JDK_CRC32C != null) {
+        try {
+          return new JdkEngine((Checksum) NEW_JDK_CRC32C.invokeExact());
+        } catch (Throwable t) {
+          throw new IllegalStateException("Failed to create CRC32C", t);
+        }
+      }
+      return new SlicingEngine(CRC32C_TABLE);
+    default:
+      throw new IllegalArgumentException(
+          "Unsupported checksum type " + checksumType);
+    }
+  }
+
+  /**
+   * @param checksumType the DataChecksum type constant.
+   * @return the slicing-by-16 engine for the checksum type.
+   */
+  static Engine newSlicingEngine(int checksumType) {
+    switch (checksumType) {
+    case DataChecksum.CHECKSUM_CRC32:
+      return new SlicingEngine(CRC32_TABLE);
+    case DataChecksum.CHECKSUM_CRC32C:
+      return new SlicingEngine(CRC32C_TABLE);
+    default:
+      throw new IllegalArgumentException(
+          "Unsupported checksum type " + checksumType);
+    }
+  }
+
+  /**
+   * Verify the given buffers of data and checksums, and throw an exception
+   * if any checksum is invalid. The buffers given to this function should
+   * have their position initially at the start of the data, and their limit
+   * set at the end of the data. The position, limit, and mark are not
+   * modified.
+   *
+   * @param bytesPerSum the chunk size (eg 512 bytes)
+   * @param checksumType the DataChecksum type constant (NULL is not supported)
+   * @param sums the ByteBuffer pointing at the beginning of the
+   *             stored checksums
+   * @param data the ByteBuffer pointing at the beginning of the
+   *             data to check
+   * @param fileName the name of the file being verified
+   * @param basePos the position in the file where the data buffer starts
+   * @throws ChecksumException if there is an invalid checksum
+   */
+  public static void verifyChunkedSums(int bytesPerSum, int checksumType,
+      ByteBuffer sums, ByteBuffer data, String fileName, long basePos)
+      throws ChecksumException {
+    computeChunkedSums(newEngine(checksumType), bytesPerSum, sums,
+        sums.position(), data, data.position(), data.remaining(),
+        fileName, basePos, true);
+  }
+
+  public static void verifyChunkedSumsByteArray(int bytesPerSum,
+      int checksumType, byte[] sums, int sumsOffset, byte[] data,
+      int dataOffset, int dataLength, String fileName, long basePos)
+      throws ChecksumException {
+    computeChunkedSums(newEngine(checksumType), bytesPerSum,
+        ByteBuffer.wrap(sums), sumsOffset, ByteBuffer.wrap(data), dataOffset,
+        dataLength, fileName, basePos, true);
+  }
+
+  public static void calculateChunkedSums(int bytesPerSum, int checksumType,
+      ByteBuffer sums, ByteBuffer data) {
+    try {
+      computeChunkedSums(newEngine(checksumType), bytesPerSum, sums,
+          sums.position(), data, data.position(), data.remaining(),
+          "", 0, false);
+    } catch (ChecksumException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static void calculateChunkedSumsByteArray(int bytesPerSum,
+      int checksumType, byte[] sums, int sumsOffset, byte[] data,
+      int dataOffset, int dataLength) {
+    try {
+      computeChunkedSums(newEngine(checksumType), bytesPerSum,
+          ByteBuffer.wrap(sums), sumsOffset, ByteBuffer.wrap(data),
+          dataOffset, dataLength, "", 0, false);
+    } catch (ChecksumException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Compute the checksum of every chunk of the data and either store it
+   * in, or compare it with, the big endian checksums. Uses absolute
+   * indexes only, so no buffer state is modified.
+   */
+  static void computeChunkedSums(Engine engine, int bytesPerSum,
+      ByteBuffer sums, int sumsOffset, ByteBuffer data, int dataOffset,
+      int dataLength, String fileName, long basePos, boolean verify)
+      throws ChecksumException {
+    if (bytesPerSum <= 0) {
+      throw new IllegalArgumentException("Invalid bytesPerSum " + bytesPerSum);
+    }
+    ByteOrder sumsOrder = sums.order();
+    boolean swap = sumsOrder != ByteOrder.BIG_ENDIAN;
+    int sumPos = sumsOffset;
+    for (int pos = 0; pos < dataLength; pos += bytesPerSum, sumPos += 4) {
+      int n = Math.min(bytesPerSum, dataLength - pos);
+      int crc = engine.crc(data, dataOffset + pos, n);
+      if (verify) {
+        int stored = sums.getInt(sumPos);
+        if (swap) {
+          stored = Integer.reverseBytes(stored);
+        }
+        if (stored != crc) {
+          long errPos = basePos + pos;
+          throw new ChecksumException("Checksum error: " + fileName
+              + " at " + errPos + " exp: " + stored + " got: " + crc, errPos);
+        }
+      } else {
+        sums.putInt(sumPos, swap ? Integer.reverseBytes(crc) : crc);
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestConcurrentResizableGSet {
+
+  /** Element whose equality is by id only, so puts can replace. */
+  private static final class Element {
+    private final long id;
+    private final String value;
+
+    Element(long id, String value) {
+      this.id = id;
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Element && ((Element) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(id);
+    }
+  }
+
+  @Test
+  public void testBasicOperations() {
+    GSet<Element, Element> set = new ConcurrentResizableGSet<>();
+    Element a = new Element(1, "a");
+    assertNull(set.put(a));
+    assertEquals(1, set.size());
+    assertTrue(set.contains(new Element(1, null)));
+    assertSame(a, set.get(new Element(1, null)));
+
+    Element b = new Element(1, "b");
+    assertSame(a, set.put(b));
+    assertEquals(1, set.size());
+    assertEquals("b", set.get(a).value);
+
+    assertSame(b, set.remove(new Element(1, null)));
+    assertNull(set.remove(a));
+    assertEquals(0, set.size());
+    assertFalse(set.contains(a));
+    assertThrows(NullPointerException.class, () -> set.put(null));
+    assertThrows(NullPointerException.class, () -> set.get(null));
+  }
+
+  @Test
+  public void testResizeAndIterate() {
+    ConcurrentResizableGSet<Element, Element> set =
+        new ConcurrentResizableGSet<>(0);
+    int n = 100000;
+    for (int i = 0; i < n; i++) {
+      set.put(new Element(i, null));
+    }
+    assertEquals(n, set.size());
+    for (int i = 0; i < n; i++) {
+      assertTrue(set.contains(new Element(i, null)), "missing " + i);
+    }
+    Set<Long> seen = new HashSet<>();
+    for (Element e : set) {
+      assertTrue(seen.add(e.id), "duplicate " + e.id);
+    }
+    assertEquals(n, seen.size());
+    assertEquals(n, set.values().size());
+
+    // remove the odd elements through the iterator
+    for (Iterator<Element> it = set.iterator(); it.hasNext();) {
+      if (it.next().id % 2 == 1) {
+        it.remove();
+      }
+    }
+    assertEquals(n / 2, set.size());
+    assertFalse(set.contains(new Element(1, null)));
+    assertTrue(set.contains(new Element(2, null)));
+
+    set.clear();
+    assertEquals(0, set.size());
+    assertFalse(set.iterator().hasNext());
+    set.put(new Element(3, null));
+    assertTrue(set.contains(new Element(3, null)));
+  }
+
+  @Test
+  @Timeout(value = 60)
+  public void testConcurrentAccess() throws Exception {
+    final ConcurrentResizableGSet<Element, Element> set =
+        new ConcurrentResizableGSet<>(0);
+    final int threads = 8;
+    final int perThread = 20000;
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final long base = (long) t * perThread;
+      workers[t] = new Thread(() -> {
+        try {
+          for (int i = 0; i < perThread; i++) {
+            Element e = new Element(base + i, null);
+            set.put(e);
+            // elements put earlier stay visible during resizes
+            int j = i / 2;
+            if (j % 3 != 0 && set.get(new Element(base + j, null)) == null) {
+              throw new AssertionError("lost element " + (base + j));
+            }
+            if (i % 3 == 0) {
+              set.remove(e);
+            }
+          }
+        } catch (Throwable th) {
+          failure.compareAndSet(null, th);
+        }
+      });
+      workers[t].start();
+    }
+    for (Thread w : workers) {
+      w.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    int expected = threads * (perThread - (perThread + 2) / 3);
+    assertEquals(expected, set.size());
+    int counted = 0;
+    for (Element e : set) {
+      assertTrue(e.id % perThread % 3 != 0);
+      counted++;
+    }
+    assertEquals(expected, counted);
+  }
+}
@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestHostsFileReaderIncremental {
+  private File testDir;
+  private File includesFile;
+  private File excludesFile;
+  private long modificationTime;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    testDir = GenericTestUtils.getTestDir("TestHostsFileReaderIncremental");
+    testDir.mkdirs();
+    includesFile = new File(testDir, "includes");
+    excludesFile = new File(testDir, "excludes.xml");
+    // well before the racy interval of the reads
+    modificationTime = System.currentTimeMillis() - 60000;
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    includesFile.delete();
+    excludesFile.delete();
+  }
+
+  private void write(File file, String content) throws Exception {
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(file.toPath(),
+        FileTime.fromMillis(modificationTime));
+    // the next write is a different version
+    modificationTime += 1000;
+  }
+
+  private static String excludes(String... hosts) {
+    StringBuilder b = new StringBuilder("<hosts>\n");
+    for (String host : hosts) {
+      b.append(host).append('\n');
+    }
+    return b.append("</hosts>\n").toString();
+  }
+
+  @Test
+  public void testIncrementalRefresh() throws Exception {
+    write(includesFile, "host1 host2\n# comment\nhost3 # host4\n");
+    write(excludesFile, excludes(
+        "<host><name>host1</name></host>",
+        "<host><name>host2</name><timeout>100</timeout></host>"));
+    HostsFileReader reader = new HostsFileReader(includesFile.getPath(),
+        excludesFile.getPath());
+    reader.setIncrementalRefresh(true);
+    List<HostsFileReader.HostsDiff> diffs = new ArrayList<>();
+    reader.addHostsChangeListener((details, diff) -> diffs.add(diff));
+
+    // the first incremental refresh reads the files again, finding no change
+    reader.refresh();
+    assertEquals(0, diffs.size());
+    HostsFileReader.HostDetails details = reader.getHostDetails();
+    assertEquals(new HashSet<>(Arrays.asList(
+        "host1", "host2", "host3")), details.getIncludedHosts());
+
+    // unchanged files are not read again
+    reader.refresh();
+    assertSame(details.getIncludedHosts(),
+        reader.getHostDetails().getIncludedHosts());
+    assertSame(details.getExcludedMap(),
+        reader.getHostDetails().getExcludedMap());
+    assertEquals(0, diffs.size());
+
+    write(excludesFile, excludes(
+        "<host><name>host2</name><timeout>200</timeout></host>",
+        "<host><name>host3, host4</name><timeout>-1</timeout></host>"));
+    reader.refresh();
+    assertSame(details.getIncludedHosts(),
+        reader.getHostDetails().getIncludedHosts());
+    assertNotSame(details.getExcludedMap(),
+        reader.getHostDetails().getExcludedMap());
+    assertEquals(1, diffs.size());
+    HostsFileReader.HostsDiff diff = diffs.get(0);
+    assertTrue(diff.getAddedIncludes().isEmpty());
+    assertTrue(diff.getRemovedIncludes().isEmpty());
+    Map<String, Integer> added = new HashMap<>();
+    added.put("host3", -1);
+    added.put("host4", -1);
+    assertEquals(added, diff.getAddedExcludes());
+    assertEquals(Collections.singleton("host1"), diff.getRemovedExcludes());
+    assertEquals(Collections.singletonMap("host2", 200),
+        diff.getChangedExcludes());
+
+    write(includesFile, "host1 host5\n");
+    reader.lazyRefresh(includesFile.getPath(), excludesFile.getPath());
+    assertEquals(1, diffs.size());
+    reader.finishRefresh();
+    assertEquals(2, diffs.size());
+    diff = diffs.get(1);
+    assertEquals(Collections.singleton("host5"), diff.getAddedIncludes());
+    assertEquals(new HashSet<>(Arrays.asList("host2", "host3")),
+        diff.getRemovedIncludes());
+    assertTrue(diff.getAddedExcludes().isEmpty());
+  }
+
+  @Test
+  public void testRecentlyModifiedFileIsReadAgain() throws Exception {
+    Files.write(includesFile.toPath(), "host1\n".getBytes());
+    FileTime now = Files.getLastModifiedTime(includesFile.toPath());
+    HostsFileReader reader = new HostsFileReader(includesFile.getPath(), "");
+    reader.setIncrementalRefresh(true);
+    reader.refresh();
+
+    // same size and modification time, but modified while being read
+    Files.write(includesFile.toPath(), "host2\n".getBytes());
+    Files.setLastModifiedTime(includesFile.toPath(), now);
+    reader.refresh();
+    assertEquals(Collections.singleton("host2"), reader.getHosts());
+  }
+
+  @Test
+  public void testStreamingXmlMatchesDom() throws Exception {
+    String xml = excludes(
+        "<host><name>host1</name></host>",
+        "<host><name>host2</name><timeout>123</timeout></host>",
+        "<host><timeout>-1</timeout><name> host3 </name></host>",
+        "<host><name>host4, host5,host6</name><timeout>1800</timeout></host>",
+        "<other><host><name>host7</name></host></other>");
+    Map<String, Integer> dom = new HashMap<>();
+    HostsFileReader.readXmlFileToMapWithFileInputStream("excluded",
+        "hosts.xml", new ByteArrayInputStream(xml.getBytes()), dom);
+    Map<String, Integer> streaming = new HashMap<>();
+    HostsFileReader.readFileToMapStreaming("excluded", "hosts.xml",
+        new ByteArrayInputStream(xml.getBytes()), streaming);
+    assertEquals(7, dom.size());
+    assertEquals(dom, streaming);
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestOffHeapLongGSet {
+
+  private static final class Block {
+    private final long id;
+    private final long numBytes;
+
+    Block(long id, long numBytes) {
+      this.id = id;
+      this.numBytes = numBytes;
+    }
+  }
+
+  private static final OffHeapLongGSet.RecordCodec<Block, Block> CODEC =
+      new OffHeapLongGSet.RecordCodec<Block, Block>() {
+        @Override
+        public long getId(Block key) {
+          return key.id;
+        }
+
+        @Override
+        public int getRecordLength() {
+          return Long.BYTES;
+        }
+
+        @Override
+        public void encode(Block element, ByteBuffer out) {
+          out.putLong(element.numBytes);
+        }
+
+        @Override
+        public Block decode(long id, ByteBuffer in) {
+          return new Block(id, in.getLong());
+        }
+      };
+
+  @Test
+  public void testBasicOperations() {
+    try (OffHeapLongGSet<Block, Block> set = new OffHeapLongGSet<>(CODEC)) {
+      assertNull(set.put(new Block(-1, 10)));
+      assertNull(set.put(new Block(0, 20)));
+      assertEquals(2, set.size());
+      assertEquals(10, set.get(new Block(-1, 0)).numBytes);
+      assertTrue(set.contains(new Block(0, 0)));
+      assertFalse(set.contains(new Block(1, 0)));
+
+      assertEquals(20, set.put(new Block(0, 30)).numBytes);
+      assertEquals(2, set.size());
+      assertEquals(30, set.get(new Block(0, 0)).numBytes);
+
+      assertEquals(10, set.remove(new Block(-1, 0)).numBytes);
+      assertNull(set.remove(new Block(-1, 0)));
+      assertEquals(1, set.size());
+      assertThrows(IllegalArgumentException.class,
+          () -> set.put(new Block(Long.MIN_VALUE, 0)));
+    }
+  }
+
+  /** Random operations against a HashMap, in a small table that resizes. */
+  private static void checkAgainstMap(OffHeapLongGSet<Block, Block> set) {
+    Map<Long, Long> expected = new HashMap<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 200000; i++) {
+      // a small id range forces long probe runs and many removals
+      long id = random.nextInt(20000) - 10000;
+      if (random.nextInt(3) == 0) {
+        Block removed = set.remove(new Block(id, 0));
+        Long old = expected.remove(id);
+        assertEquals(old, removed == null ? null : removed.numBytes);
+      } else {
+        Block previous = set.put(new Block(id, i));
+        Long old = expected.put(id, (long) i);
+        assertEquals(old, previous == null ? null : previous.numBytes);
+      }
+    }
+    assertEquals(expected.size(), set.size());
+    for (Map.Entry<Long, Long> e : expected.entrySet()) {
+      Block b = set.get(new Block(e.getKey(), 0));
+      assertEquals(e.getValue().longValue(), b.numBytes);
+    }
+    int count = 0;
+    for (Iterator<Block> it = set.iterator(); it.hasNext(); count++) {
+      Block b = it.next();
+      assertEquals(expected.get(b.id).longValue(), b.numBytes);
+    }
+    assertEquals(expected.size(), count);
+
+    set.clear();
+    assertEquals(0, set.size());
+    assertFalse(set.iterator().hasNext());
+  }
+
+  @Test
+  public void testDirectMemory() {
+    try (OffHeapLongGSet<Block, Block> set =
+        new OffHeapLongGSet<>(CODEC, 0)) {
+      checkAgainstMap(set);
+    }
+  }
+
+  @Test
+  public void testMemoryMapped() throws Exception {
+    File dir = Files.createTempDirectory("gset").toFile();
+    try (OffHeapLongGSet<Block, Block> set = new OffHeapLongGSet<>(CODEC, 0,
+        OffHeapLongGSet.DEFAULT_LOAD_FACTOR, dir)) {
+      checkAgainstMap(set);
+      assertTrue(set.getOffHeapBytes() > 0);
+    } finally {
+      // the table files are unlinked once mapped
+      assertEquals(0, dir.list().length);
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testFullAtMaxCapacity() {
+    try (OffHeapLongGSet<Block, Block> set = new OffHeapLongGSet<>(CODEC, 0,
+        OffHeapLongGSet.DEFAULT_LOAD_FACTOR, null, 8)) {
+      // the threshold of 8 slots is 6 elements
+      for (long id = 0; id < 6; id++) {
+        assertNull(set.put(new Block(id, id)));
+      }
+      assertThrows(IllegalStateException.class,
+          () -> set.put(new Block(6, 6)));
+      assertEquals(6, set.size());
+      assertFalse(set.contains(new Block(6, 0)));
+
+      // existing elements can still be replaced, and removal makes room
+      assertEquals(5, set.put(new Block(5, 50)).numBytes);
+      assertEquals(50, set.remove(new Block(5, 0)).numBytes);
+      assertNull(set.put(new Block(6, 6)));
+      assertEquals(6, set.get(new Block(6, 0)).numBytes);
+      assertEquals(6, set.size());
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestPureJavaChunkedCrc {
+  private static final int[] TYPES =
+      {DataChecksum.CHECKSUM_CRC32, DataChecksum.CHECKSUM_CRC32C};
+
+  @Test
+  public void testSlicingMatchesReference() {
+    Random random = new Random(1);
+    for (int len : new int[] {0, 1, 15, 16, 17, 63, 512, 1001}) {
+      byte[] data = new byte[len + 3];
+      random.nextBytes(data);
+
+      CRC32 crc32 = new CRC32();
+      crc32.update(data, 3, len);
+      PureJavaCrc32C crc32c = new PureJavaCrc32C();
+      crc32c.update(data, 3, len);
+      long[] expected = {crc32.getValue(), crc32c.getValue()};
+
+      for (int t = 0; t < TYPES.length; t++) {
+        PureJavaChunkedCrc.Engine slicing =
+            PureJavaChunkedCrc.newSlicingEngine(TYPES[t]);
+        PureJavaChunkedCrc.Engine best =
+            PureJavaChunkedCrc.newEngine(TYPES[t]);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        for (PureJavaChunkedCrc.Engine engine :
+            new PureJavaChunkedCrc.Engine[] {slicing, best}) {
+          assertEquals(expected[t], engine.crc(data, 3, len) & 0xffffffffL);
+          assertEquals(expected[t], engine.crc(direct, 3, len) & 0xffffffffL);
+          direct.order(ByteOrder.LITTLE_ENDIAN);
+          assertEquals(expected[t], engine.crc(direct, 3, len) & 0xffffffffL);
+          direct.order(ByteOrder.BIG_ENDIAN);
+        }
+        assertEquals(0, direct.position());
+      }
+    }
+  }
+
+  @Test
+  public void testChunkedSums() throws Exception {
+    Random random = new Random(2);
+    int bytesPerSum = 512;
+    byte[] bytes = new byte[10 * bytesPerSum + 100];
+    random.nextBytes(bytes);
+    int numSums = 11;
+    for (int type : TYPES) {
+      ByteBuffer data = ByteBuffer.allocateDirect(bytes.length + 8);
+      data.position(8);
+      data.put(bytes);
+      data.position(8);
+      ByteBuffer sums = ByteBuffer.allocateDirect(numSums * 4);
+      PureJavaChunkedCrc.calculateChunkedSums(bytesPerSum, type, sums, data);
+      assertEquals(8, data.position());
+      assertEquals(0, sums.position());
+
+      byte[] arraySums = new byte[numSums * 4 + 2];
+      PureJavaChunkedCrc.calculateChunkedSumsByteArray(bytesPerSum, type,
+          arraySums, 2, bytes, 0, bytes.length);
+      for (int i = 0; i < numSums * 4; i++) {
+        assertEquals(sums.get(i), arraySums[i + 2]);
+      }
+
+      PureJavaChunkedCrc.verifyChunkedSums(bytesPerSum, type, sums, data,
+          "file", 1000);
+      PureJavaChunkedCrc.verifyChunkedSumsByteArray(bytesPerSum, type,
+          arraySums, 2, bytes, 0, bytes.length, "file", 1000);
+
+      // corrupt a byte of the fourth chunk
+      data.put(8 + 3 * bytesPerSum + 7, (byte) (bytes[3 * bytesPerSum + 7] ^ 1));
+      ChecksumException e = assertThrows(ChecksumException.class,
+          () -> PureJavaChunkedCrc.verifyChunkedSums(bytesPerSum, type, sums,
+              data, "file", 1000));
+      assertEquals(1000 + 3 * bytesPerSum, e.getPos());
+    }
+  }
+}